@@ -2,16 +2,57 @@ package client;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+import protocol.Checksums;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.TrailerInputStream;
+
+import static protocol.Tftp.*;
 
 public class TFTPTCPSocketClient {
-    private static final int BUFFER_SIZE = 512;
-    private static final byte OP_RRQ = 1;
-    private static final byte OP_WRQ = 2;
-    private static final byte OP_DATA = 3;
-    private static final byte OP_ACK = 4;
+    private static final int BUFFER_SIZE = DEFAULT_BLOCK_SIZE;
+    // With tftp.compression=deflate, requests ask for the file data to be deflated on the wire
+    private static final boolean DEFLATE = "deflate".equalsIgnoreCase(System.getProperty("tftp.compression", "none"));
+    // With tftp.resume=true, a download continues from the end of the local file, and an upload from as much
+    // of the file as the server kept of an earlier attempt
+    private static final boolean RESUME = Boolean.getBoolean("tftp.resume");
+    // tftp.offset and tftp.length ask for part of a file, such as its header: the offset of the first byte,
+    // and the number of bytes, or -1 for the rest of the file
+    private static final long OFFSET = Math.max(0, Long.getLong("tftp.offset", 0));
+    private static final long LENGTH = Math.max(-1, Long.getLong("tftp.length", -1));
+    // With tftp.checksum=crc32c, requests ask for the file data to be checked end to end with a CRC32C checksum
+    private static final boolean CHECKSUM = Checksums.isSupported(System.getProperty("tftp.checksum", "none"));
+    // With tftp.connections above 1, a whole-file download is split into ranges fetched over that many connections
+    // at once, so one connection's TCP window does not limit it on long fat links. 0 picks the number by file size
+    private static final int CONNECTIONS = Math.max(0, Integer.getInteger("tftp.connections", 1));
+    // A parallel download first asks for the file's size along with this much of its start, so files no larger
+    // take a single connection. It is a whole number of blocks, as are the ranges, which the server does not move
+    private static final long PARALLEL_THRESHOLD = 8192L * BUFFER_SIZE;
+    // When picking the number of connections, each connection is given at least this much of the file, and at
+    // most this many connections are opened
+    private static final long MIN_RANGE_SIZE = 8192L * BUFFER_SIZE;
+    private static final int MAX_AUTO_CONNECTIONS = 8;
 
     private static boolean running = true;
 
@@ -41,11 +82,19 @@ public class TFTPTCPSocketClient {
                 int choice = scanner.nextInt();
 
                 if (choice == 1) {
-                    sendWriteRequest(out, fileName);
-                    sendFile(out, fileName);
+                    File source = new File("src/Sending Files/" + fileName);
+                    Map<String, String> options = writeOptions(source);
+                    sendWriteRequest(out, fileName, options);
+                    sendFile(clientSocket, out, in, source, options);
                 } else if (choice == 2) {
-                    sendReadRequest(out, fileName);
-                    receiveFile(in, fileName);
+                    File destination = new File("src/Retrieved Files/" + new File(fileName).getName());
+                    if (downloadsInParallel(destination)) {
+                        receiveFile(in, out, serverAddress, portNumber, fileName, destination);
+                    } else {
+                        Map<String, String> options = readOptions(destination);
+                        sendReadRequest(out, fileName, options);
+                        receiveFile(in, destination, options);
+                    }
                 } else {
                     System.out.println("Invalid choice.");
                     return;
@@ -63,6 +112,121 @@ public class TFTPTCPSocketClient {
         }
     }
 
+    /**
+     * Sends a file to the server without any prompts or progress messages, for programs that drive the
+     * client, such as the load generator. Returns once the server has closed the connection, which it
+     * does when the upload is saved.
+     *
+     * @param serverAddress the address of the server
+     * @param serverPort the port the server listens on
+     * @param source the local file to send
+     * @param fileName the name to store the file under on the server
+     * @throws IOException if the file cannot be read, the connection fails or the server reports an error
+     */
+    public static void send(String serverAddress, int serverPort, File source, String fileName) throws IOException {
+        try (Socket clientSocket = new Socket(serverAddress, serverPort);
+             FileInputStream file = new FileInputStream(source)) {
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            sendHandshake(out);
+            out.flush();
+            receiveHandshake(in);
+            Map<String, String> options = writeOptions(source);
+            sendWriteRequest(out, fileName, options);
+            out.flush();
+            Map<String, String> accepted = startUpload(in, file, options);
+            sendBlocks(out, file, "deflate".equalsIgnoreCase(accepted.get("comp")), Checksums.isSupported(accepted.get(Checksums.OPTION)));
+            finishUpload(clientSocket, out, in);
+        }
+    }
+
+    /**
+     * Ends an upload once its last block has been sent, and waits for the server to save it. The
+     * server reads the last block up to the end of the stream, and answers only with an error, so the
+     * upload has been saved when the server closes the connection without sending anything.
+     *
+     * @param clientSocket the connection to the server
+     * @param out the DataOutputStream object representing the connection to the server
+     * @param in the DataInputStream object the server's answer arrives on
+     * @throws IOException if an I/O error occurs, or the server reports an error or sends anything else
+     */
+    private static void finishUpload(Socket clientSocket, DataOutputStream out, DataInputStream in) throws IOException {
+        out.flush();
+        clientSocket.shutdownOutput();
+        byte[] answer = in.readAllBytes();
+        if (answer.length > 0) {
+            PacketReader error = new PacketReader().wrap(answer, answer.length);
+            throw new IOException("Server error: " + (error.opcode() == OP_ERROR ? error.errorMessage() : "unexpected packet"));
+        }
+    }
+
+    /**
+     * Retrieves a file from the server without any prompts or progress messages, for programs that
+     * drive the client, such as the load generator.
+     *
+     * @param serverAddress the address of the server
+     * @param serverPort the port the server listens on
+     * @param fileName the name of the file on the server
+     * @param destination the local file to save it to
+     * @throws IOException if the connection fails, the server reports an error or the file arrives incomplete
+     */
+    public static void retrieve(String serverAddress, int serverPort, String fileName, File destination) throws IOException {
+        if (!downloadsInParallel(destination)) {
+            retrieve(serverAddress, serverPort, fileName, destination, readOptions(destination));
+            return;
+        }
+        try (Socket clientSocket = new Socket(serverAddress, serverPort)) {
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            sendHandshake(out);
+            receiveHandshake(in);
+            if (!receiveParallel(in, out, serverAddress, serverPort, fileName, destination)) {
+                throw new IOException("Incomplete data received for " + fileName);
+            }
+        }
+    }
+
+    /**
+     * Retrieves part of a file from the server without any prompts or progress messages, writing it to
+     * the same place in the local file and keeping the rest of the local file. The server starts the
+     * part at the beginning of the block holding the offset, so a few bytes before it can be written
+     * as well.
+     *
+     * @param serverAddress the address of the server
+     * @param serverPort the port the server listens on
+     * @param fileName the name of the file on the server
+     * @param destination the local file to write the part into
+     * @param offset the offset in the file of the first byte to retrieve
+     * @param length the number of bytes to retrieve, or -1 for the rest of the file
+     * @throws IOException if the connection fails, the server reports an error or the part arrives incomplete
+     */
+    public static void retrieve(String serverAddress, int serverPort, String fileName, File destination, long offset, long length) throws IOException {
+        retrieve(serverAddress, serverPort, fileName, destination, requestOptions(-1, Math.max(offset, 0), Math.max(length, -1)));
+    }
+
+    /**
+     * Retrieves a file, or the part of it the options ask for, without any prompts or progress messages.
+     *
+     * @param serverAddress the address of the server
+     * @param serverPort the port the server listens on
+     * @param fileName the name of the file on the server
+     * @param destination the local file to save it to
+     * @param options the options to send with the request
+     * @throws IOException if the connection fails, the server reports an error or the file arrives incomplete
+     */
+    private static void retrieve(String serverAddress, int serverPort, String fileName, File destination, Map<String, String> options) throws IOException {
+        try (Socket clientSocket = new Socket(serverAddress, serverPort)) {
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            sendHandshake(out);
+            receiveHandshake(in);
+            sendReadRequest(out, fileName, options);
+            if (!receiveBlocks(in, destination, options)) {
+                throw new IOException("Incomplete data received for " + fileName);
+            }
+        }
+    }
+
     /**
      * Sends a handshake message to the server represented by the given DataOutputStream object.
      *
@@ -79,147 +243,281 @@ public class TFTPTCPSocketClient {
      *
      * @param out the DataOutputStream object representing the connection to the server
      * @param fileName the name of the file to be written
+     * @param options the options to send with the request
      * @throws IOException if an I/O error occurs while sending the write request message
      * @throws IllegalArgumentException if fileName is null or empty
      */
-    private static void sendWriteRequest(DataOutputStream out, String fileName) throws IOException {
-        byte[] wrqPacket = createWrqPacket(fileName);
+    private static void sendWriteRequest(DataOutputStream out, String fileName, Map<String, String> options) throws IOException {
+        byte[] wrqPacket = createRequestPacket(OP_WRQ, fileName, options);
         out.write(wrqPacket);
     }
-    /**
-     * Creates a write request (WRQ) packet as specified in the TFTP protocol, containing the specified file name.
-     *
-     * @param fileName the name of the file to be written
-     * @return a byte array representing the WRQ packet
-     */
-    private static byte[] createWrqPacket(String fileName) {
-        byte[] fileNameBytes = fileName.getBytes();
-
-        // Create a byte array for the WRQ packet with length of the file name plus 4 bytes.
-        byte[] wrqPacket = new byte[fileNameBytes.length + 4];
-        // Set the first byte to 0, indicating that this is a WRQ packet.
-        wrqPacket[0] = 0;
-        // Set the second byte to the opcode for WRQ (2).
-        wrqPacket[1] = OP_WRQ;
-        // Copy the file name bytes to the WRQ packet starting at index 2.
-        System.arraycopy(fileNameBytes, 0, wrqPacket, 2, fileNameBytes.length);
-        // Set the last byte to 0 to indicate the end of the file name.
-        wrqPacket[wrqPacket.length - 1] = 0;
-        // Return the created WRQ packet.
-        return wrqPacket;
-    }
     /**
      * Sends a read request message to the server represented by the given DataOutputStream object,
      * requesting to read the specified file.
      *
      * @param out the DataOutputStream object representing the connection to the server
      * @param fileName the name of the file to be read
+     * @param options the options to send with the request
      * @throws IOException if an I/O error occurs while sending the read request message
      */
-    private static void sendReadRequest(DataOutputStream out, String fileName) throws IOException {
+    private static void sendReadRequest(DataOutputStream out, String fileName, Map<String, String> options) throws IOException {
         fileName = new File(fileName).getName();
-        byte[] rrqPacket = createRrqPacket("src/Retrieve Files/" + fileName);
+        byte[] rrqPacket = createRequestPacket(OP_RRQ, "src/Retrieve Files/" + fileName, options);
         out.write(rrqPacket);
     }
     /**
-     * Creates a read request (RRQ) packet as specified in the TFTP protocol, containing the specified file name.
+     * Returns the options of a request to upload a file. When resuming, the client offers to continue
+     * from the end of its file, and announces the size of the file, so the server can tell an upload
+     * that was cut off from a finished one.
      *
-     * @param fileName the name of the file to be read
-     * @return a byte array representing the RRQ packet
-     */
-    private static byte[] createRrqPacket(String fileName) {
-        // Convert the file name to byte array.
-        byte[] fileNameBytes = fileName.getBytes();
-        // Create a byte array for the RRQ packet with length of the file name plus 4 bytes.
-        byte[] rrqPacket = new byte[fileNameBytes.length + 4];
-        // Set the first byte to 0, indicating that this is a RRQ packet.
-        rrqPacket[0] = 0;
-        // Set the second byte to the opcode for RRQ (1).
-        rrqPacket[1] = OP_RRQ;
-        // Copy the file name bytes to the RRQ packet starting at index 2.
-        System.arraycopy(fileNameBytes, 0, rrqPacket, 2, fileNameBytes.length);
-        // Set the last byte to 0 to indicate the end of the file name.
-        rrqPacket[rrqPacket.length - 1] = 0;
-        // Return the created RRQ packet.
-        return rrqPacket;
-    }
-
-    /**
-     * Sends the specified file to the server represented by the given DataOutputStream object.
+     * @param source the local file to be sent
+     * @return the options, empty if there are none
+     */
+    private static Map<String, String> writeOptions(File source) {
+        return RESUME && source.length() > 0 ? requestOptions(source.length(), source.length(), -1) : requestOptions(-1, -1, -1);
+    }
+    /**
+     * Returns the options of a request to download a file. When resuming, the client asks for the file
+     * from the end of what the local file holds; otherwise it asks for the part set by tftp.offset and
+     * tftp.length, if there is one.
      *
+     * @param destination the local file the download is saved to
+     * @return the options, empty if there are none
+     */
+    private static Map<String, String> readOptions(File destination) {
+        if (RESUME && destination.length() > 0) {
+            return requestOptions(-1, destination.length(), -1);
+        }
+        return OFFSET > 0 || LENGTH >= 0 ? requestOptions(-1, OFFSET, LENGTH) : requestOptions(-1, -1, -1);
+    }
+    /**
+     * Returns the options of a request: comp and checksum when they are turned on, and the given size,
+     * offset and length.
+     *
+     * @param transferSize the value of the tsize option, or -1 to leave it out
+     * @param offset the value of the offset option, or -1 to leave it out
+     * @param length the value of the length option, or -1 to leave it out
+     * @return the options, empty if there are none
+     */
+    private static Map<String, String> requestOptions(long transferSize, long offset, long length) {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (DEFLATE) {
+            options.put("comp", "deflate");
+        }
+        if (CHECKSUM) {
+            options.put(Checksums.OPTION, Checksums.CRC32C);
+        }
+        if (offset >= 0) {
+            options.put("offset", Long.toString(offset));
+        }
+        if (length >= 0) {
+            options.put("length", Long.toString(length));
+        }
+        if (transferSize >= 0) {
+            options.put("tsize", Long.toString(transferSize));
+        }
+        return options;
+    }
+    /**
+     * Creates a read (RRQ) or write (WRQ) request packet as specified in the TFTP protocol, containing
+     * the specified file name followed by an empty mode. A request with options has the mode "octet"
+     * instead, followed by the options and an empty name ending them, and the server answers it with
+     * an OACK packet before the data.
+     *
+     * @param opcode the opcode of the request
+     * @param fileName the name of the file to be read or written
+     * @param options the options to send with the request
+     * @return a byte array representing the request packet
+     */
+    private static byte[] createRequestPacket(byte opcode, String fileName, Map<String, String> options) {
+        // Write the request into a default sized packet, then trim it to its length.
+        byte[] requestPacket = new byte[BUFFER_SIZE + 4];
+        PacketWriter writer = new PacketWriter().wrap(requestPacket);
+        if (!options.isEmpty()) {
+            writer.request(opcode, fileName, "octet").options(options).endOptions();
+        } else {
+            writer.request(opcode, fileName, "");
+        }
+        ByteBuffer request = writer.finish();
+        return Arrays.copyOf(requestPacket, request.limit());
+    }
+
+    /**
+     * Receives the OACK packet the server answers a request with options with, which lists the
+     * options the server accepted, ended by an empty name. A server that refuses the request sends
+     * an error packet in its place.
+     *
+     * @param in the DataInputStream object representing the connection to the server
+     * @return the options the server accepted and their values
+     * @throws IOException if an I/O error occurs while receiving the packet, or the server sends an error
+     */
+    private static Map<String, String> receiveOptionAck(DataInputStream in) throws IOException {
+        byte[] oackPacket = new byte[BUFFER_SIZE + 4];
+        in.readFully(oackPacket, 0, 2);
+        if (oackPacket[0] == 0 && oackPacket[1] == OP_ERROR) {
+            throw serverError(oackPacket, in);
+        }
+        if (oackPacket[1] != OP_OACK) {
+            throw new IOException("Unexpected packet instead of an option acknowledgment");
+        }
+        // Read name/value pairs of null terminated strings up to the empty name that ends them
+        int length = 2;
+        for (int string = 0; ; string++) {
+            int stringStart = length;
+            byte b;
+            do {
+                if (length == oackPacket.length) {
+                    throw new IOException("Option acknowledgment too long");
+                }
+                b = in.readByte();
+                oackPacket[length++] = b;
+            } while (b != 0);
+            if (string % 2 == 0 && length - stringStart == 1) {
+                break;
+            }
+        }
+        return new PacketReader().wrap(oackPacket, length).options();
+    }
+
+    /**
+     * Returns the offset the server accepted to start the transfer at, which is at most the offset asked for.
+     *
+     * @param accepted the options the server accepted
+     * @param requested the options sent with the request
+     * @return the offset, 0 if the server left the option out
+     * @throws IOException if the server accepted an offset the client did not ask for
+     */
+    private static long acceptedOffset(Map<String, String> accepted, Map<String, String> requested) throws IOException {
+        long offset = acceptedValue(accepted, "offset");
+        if (offset > 0 && offset > Long.parseLong(requested.getOrDefault("offset", "0"))) {
+            throw new IOException("Server acknowledged an invalid offset: " + accepted.get("offset"));
+        }
+        return Math.max(offset, 0);
+    }
+
+    /**
+     * Returns the numeric value of an option the server accepted.
+     *
+     * @param accepted the options the server accepted
+     * @param name the name of the option
+     * @return the value, or -1 if the server left the option out
+     * @throws IOException if the value is not a number of 0 or more
+     */
+    private static long acceptedValue(Map<String, String> accepted, String name) throws IOException {
+        String value = accepted.get(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IOException("Server acknowledged an invalid " + name + ": " + value);
+    }
+
+    /**
+     * Waits for the server to accept an upload with options, and moves the source to the offset the
+     * server resumes the upload from.
+     *
+     * @param in the DataInputStream object the server's option acknowledgment arrives on
+     * @param source the file being sent
+     * @param requested the options sent with the request, none of which is answered when it is empty
+     * @return the options the server accepted, empty if none were sent
+     * @throws IOException if an I/O error occurs, or the server sends an error or an invalid acknowledgment
+     */
+    private static Map<String, String> startUpload(DataInputStream in, FileInputStream source, Map<String, String> requested) throws IOException {
+        if (requested.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, String> accepted = receiveOptionAck(in);
+        source.getChannel().position(acceptedOffset(accepted, requested));
+        return accepted;
+    }
+
+    /**
+     * Sends the specified file to the server represented by the given DataOutputStream object,
+     * deflated if the server accepted to compress it, followed by the checksum trailer if the server
+     * accepted to check it, and from where the server resumes the upload. Success is only reported
+     * once the server has saved the file.
+     *
+     * @param clientSocket the connection to the server
      * @param out the DataOutputStream object representing the connection to the server
-     * @param fileName the name of the file to be sent
+     * @param in the DataInputStream object the server's option acknowledgment arrives on
+     * @param source the file to be sent
+     * @param options the options sent with the request
      * @throws IOException if an I/O error occurs while sending the file
      */
-    private static void sendFile(DataOutputStream out, String fileName) throws IOException {
-        String filePath = "src/Sending Files/" + fileName;
-        if (Files.exists(Paths.get(filePath))) {
-            try (FileInputStream fis = new FileInputStream(filePath)) {
-                short blockNumber = 1;
-                int bytesRead;
-                byte[] dataBuffer = new byte[BUFFER_SIZE];
-
-                while ((bytesRead = fis.read(dataBuffer)) != -1) {
-                    sendData(out, blockNumber, dataBuffer, bytesRead);
-                    blockNumber++;
+    private static void sendFile(Socket clientSocket, DataOutputStream out, DataInputStream in, File source, Map<String, String> options) throws IOException {
+        String fileName = source.getName();
+        if (source.exists()) {
+            try (FileInputStream fis = new FileInputStream(source)) {
+                Map<String, String> accepted = startUpload(in, fis, options);
+                if (fis.getChannel().position() > 0) {
+                    System.out.println("Resuming upload of " + fileName + " from byte " + fis.getChannel().position());
                 }
+                sendBlocks(out, fis, "deflate".equalsIgnoreCase(accepted.get("comp")), Checksums.isSupported(accepted.get(Checksums.OPTION)));
+                finishUpload(clientSocket, out, in);
                 System.out.println("File transfer completed for " + fileName);
 
             } catch (IOException e) {
-                System.out.println("Error reading from file: " + e.getMessage());
+                System.out.println("Error sending file: " + e.getMessage());
             }
         } else {
             System.out.println("File does not exist: " + fileName);
         }
     }
     /**
-     * Receives the specified file from the server represented by the given DataInputStream object.
+     * Sends the contents of a stream to the server in data packets, deflating them on the way if asked to.
+     * With a checksum, the data is added to it as it is read, before it is deflated, and the trailer
+     * carrying it follows the last block.
      *
-     * @param in the DataInputStream object representing the connection to the server
-     * @param fileName the name of the file to be received
-     * @throws IOException if an I/O error occurs while receiving the file
+     * @param out the DataOutputStream object representing the connection to the server
+     * @param source the stream to read the data from
+     * @param deflate whether to deflate the data
+     * @param withChecksum whether to send the checksum of the data
+     * @throws IOException if an I/O error occurs while reading the data or sending it
      */
-    private static void receiveFile(DataInputStream in, String fileName) throws IOException {
-        // Create a byte array output stream to hold the received file data.
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-             FileOutputStream fos = new FileOutputStream("src/Retrieved Files/" + fileName)) {
-            // Set the initial block number to 1, and the "done" flag to false.
+    private static void sendBlocks(DataOutputStream out, InputStream source, boolean deflate, boolean withChecksum) throws IOException {
+        CRC32C checksum = withChecksum ? new CRC32C() : null;
+        InputStream checked = checksum != null ? new CheckedInputStream(source, checksum) : source;
+        // Closing the deflating stream frees its deflater, and closes the source, which the caller closes too
+        try (InputStream data = deflate ? new DeflaterInputStream(checked) : checked) {
             short blockNumber = 1;
-            boolean done = false;
-            // While not done, read a data packet from the input stream.
-            while (!done) {
-                // Create a byte array buffer for the incoming data packet.
-                byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-                // Read a data packet from the input stream, with a maximum size of BUFFER_SIZE + 4 bytes.
-                int bytesRead = in.read(dataBuffer, 0, BUFFER_SIZE + 4);
-                // If the end of the input stream has been reached, exit the loop.
-                if (bytesRead == -1) {
+            int bytesRead;
+            // Read each block straight into the data packet, behind the opcode and block number. Every
+            // block but the last is full, as the server takes a short block for the end of the file.
+            byte[] dataPacket = new byte[BUFFER_SIZE + 4];
+
+            while ((bytesRead = data.readNBytes(dataPacket, 4, BUFFER_SIZE)) > 0) {
+                sendData(out, blockNumber, dataPacket, bytesRead);
+                blockNumber++;
+                if (bytesRead < BUFFER_SIZE) {
                     break;
                 }
-                // Extract the block number from the received data packet.
-                short receivedBlockNumber = (short) (((dataBuffer[2] & 0xFF) << 8) | (dataBuffer[3] & 0xFF));
-                // If the received block number matches the expected block number, process the data.
-                if (receivedBlockNumber == blockNumber) {
-                    // Calculate the size of the data (excluding the block number and opcode).
-                    int dataSize = bytesRead - 4;
-                    // Write the data (excluding the block number and opcode) to the byte array output stream.
-                    byteArrayOutputStream.write(dataBuffer, 4, dataSize);
-                    // Increment the block number, and set the "done" flag if this is the last block.
-                    blockNumber++;
-                    if (dataSize < BUFFER_SIZE) {
-                        done = true;
-                    }
-                    // If the received block number does not match the expected block number, print an error message.
-                } else {
-                    System.out.println("Received data packet with incorrect block number. Expected " + blockNumber + ", but received " + receivedBlockNumber);
-                }
             }
+            if (checksum != null) {
+                out.write(Checksums.trailer(checksum.getValue()));
+            }
+        }
+    }
+    /**
+     * Receives the specified file from the server represented by the given DataInputStream object,
+     * inflating it if the server accepted to compress it.
+     *
+     * @param in the DataInputStream object representing the connection to the server
+     * @param destination the local file to save it to
+     * @param options the options sent with the request
+     * @throws IOException if an I/O error occurs while receiving the file
+     */
+    private static void receiveFile(DataInputStream in, File destination, Map<String, String> options) throws IOException {
+        String fileName = destination.getName();
+        try {
             // Check if all expected blocks were received.
-            if (blockNumber - 1 == ((byteArrayOutputStream.size() + BUFFER_SIZE - 1) / BUFFER_SIZE)) {
-                // Convert the byte array output stream to a byte array.
-                byte[] fileContent = byteArrayOutputStream.toByteArray();
-                // Write the byte array to the output file.
-                fos.write(fileContent);
+            if (receiveBlocks(in, destination, options)) {
                 // Print a completion message.
                 System.out.println("File transfer completed for " + fileName);
 
@@ -233,51 +531,417 @@ public class TFTPTCPSocketClient {
         }
     }
     /**
-     * Sends a data packet to the server represented by the given DataOutputStream object, containing the specified data.
+     * Receives the specified file from the server over several connections at once, the first of which
+     * is the given one.
      *
-     * @param out the DataOutputStream object representing the connection to the server
-     * @param blockNumber the block number of the data packet
-     * @param dataBuffer the byte array containing the data to be sent
-     * @param dataSize the size of the data in the byte array
-     * @throws IOException if an I/O error occurs while sending the data packet
+     * @param in the DataInputStream object representing the first connection to the server
+     * @param out the DataOutputStream object representing the first connection to the server
+     * @param serverAddress the address of the server, which the other connections are made to
+     * @param serverPort the port the server listens on
+     * @param fileName the name of the file on the server
+     * @param destination the local file to save it to
+     * @throws IOException if an I/O error occurs while sending the read request
      */
-    private static void sendData(DataOutputStream out, short blockNumber, byte[] dataBuffer, int dataSize) throws IOException {
-        byte[] dataPacket = createDataPacket(blockNumber, dataBuffer, dataSize);
-        out.write(dataPacket);
+    private static void receiveFile(DataInputStream in, DataOutputStream out, String serverAddress, int serverPort,
+                                    String fileName, File destination) throws IOException {
+        try {
+            if (receiveParallel(in, out, serverAddress, serverPort, fileName, destination)) {
+                System.out.println("File transfer completed for " + destination.getName());
+            } else {
+                System.out.println("Error receiving file: incomplete data received.");
+            }
+        } catch (IOException e) {
+            System.out.println("Error transferring file to folder: " + e.getMessage());
+        }
+    }
+    /**
+     * Returns whether a download is split into ranges fetched over several connections, which only
+     * whole-file downloads are, and only when tftp.connections is not 1.
+     *
+     * @param destination the local file the download is saved to
+     * @return true if the download goes over several connections
+     */
+    private static boolean downloadsInParallel(File destination) {
+        return CONNECTIONS != 1 && !(RESUME && destination.length() > 0) && OFFSET == 0 && LENGTH < 0;
+    }
+    /**
+     * Downloads a whole file over several connections at once. The first request asks for the size of
+     * the file with tsize, along with the first PARALLEL_THRESHOLD bytes, so a small file is fetched with
+     * it alone. Otherwise the local file is preallocated to the size, and the rest of the file is split
+     * into block-aligned ranges, each fetched with the offset and length options over a connection of
+     * its own and written to its place in the file with positional writes, so the connections share one
+     * channel without taking turns. The number of connections is tftp.connections, or when it is 0, one
+     * per MIN_RANGE_SIZE bytes left, up to MAX_AUTO_CONNECTIONS. A server that does not answer tsize is
+     * sent the rest of the file over a single further connection. Compression and checksums apply to
+     * each range on its own.
+     *
+     * @param in the DataInputStream object representing the first connection to the server
+     * @param out the DataOutputStream object representing the first connection to the server
+     * @param serverAddress the address of the server, which the other connections are made to
+     * @param serverPort the port the server listens on
+     * @param fileName the name of the file on the server
+     * @param destination the local file to save it to, which loses what it held
+     * @return true if the whole file was received
+     * @throws IOException if a connection fails, the server sends an error packet, a range does not match its
+     *                     checksum, or an I/O error occurs while writing the file
+     */
+    private static boolean receiveParallel(DataInputStream in, DataOutputStream out, String serverAddress, int serverPort,
+                                           String fileName, File destination) throws IOException {
+        Map<String, String> requested = requestOptions(0, 0, PARALLEL_THRESHOLD);
+        sendReadRequest(out, fileName, requested);
+        Map<String, String> accepted = receiveOptionAck(in);
+        long size = acceptedValue(accepted, "tsize");
+        try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+            FileChannel channel = file.getChannel();
+            // Lay the file out at its full size up front, so the ranges are written into place rather than
+            // each extending the file
+            file.setLength(0);
+            if (size > 0) {
+                file.setLength(size);
+            }
+            long received = receiveRange(in, channel, requested, accepted);
+            if (received < 0) {
+                return false;
+            }
+            if (size >= 0 ? received == size : received < PARALLEL_THRESHOLD) {
+                file.setLength(received);
+                return true;
+            }
+            // Split the rest of the file into ranges of whole blocks, the last of which may be shorter
+            int connections = size < 0 ? 1 : CONNECTIONS > 0 ? CONNECTIONS
+                    : (int) Math.max(1, Math.min(MAX_AUTO_CONNECTIONS, (size - received) / MIN_RANGE_SIZE));
+            long rangeSize = size < 0 ? -1 : ((size - received + connections - 1) / connections + BUFFER_SIZE - 1) / BUFFER_SIZE * BUFFER_SIZE;
+            List<Long> ends = new ArrayList<>();
+            List<Future<Long>> ranges = new ArrayList<>();
+            ExecutorService pool = Executors.newFixedThreadPool(connections);
+            try {
+                for (long start = received; size < 0 ? ranges.isEmpty() : start < size; start += rangeSize) {
+                    long offset = start;
+                    long length = size < 0 ? -1 : Math.min(rangeSize, size - start);
+                    ends.add(offset + length);
+                    ranges.add(pool.submit(() -> receiveRange(serverAddress, serverPort, fileName, channel, offset, length)));
+                }
+                // Wait for every range before closing the file, even after one has failed
+                boolean complete = true;
+                IOException failure = null;
+                for (int i = 0; i < ranges.size(); i++) {
+                    try {
+                        long end = ranges.get(i).get();
+                        complete &= end >= 0 && (size < 0 || end == ends.get(i));
+                        received = Math.max(received, end);
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                        }
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (complete && size < 0) {
+                    file.setLength(received);
+                }
+                return complete;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while receiving " + fileName);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+    /**
+     * Receives one range of a file over a connection of its own.
+     *
+     * @param serverAddress the address of the server
+     * @param serverPort the port the server listens on
+     * @param fileName the name of the file on the server
+     * @param channel the channel of the local file, which the range is written to with positional writes
+     * @param offset the offset of the range in the file, a whole number of blocks
+     * @param length the length of the range, or -1 for the rest of the file
+     * @return the offset of the end of the data received, or -1 if the range was not received whole
+     * @throws IOException if the connection fails, the server sends an error packet, the range does not match
+     *                     its checksum, or an I/O error occurs while writing the file
+     */
+    private static long receiveRange(String serverAddress, int serverPort, String fileName, FileChannel channel,
+                                     long offset, long length) throws IOException {
+        try (Socket clientSocket = new Socket(serverAddress, serverPort)) {
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            sendHandshake(out);
+            receiveHandshake(in);
+            Map<String, String> requested = requestOptions(-1, offset, length);
+            sendReadRequest(out, fileName, requested);
+            return receiveRange(in, channel, requested, receiveOptionAck(in));
+        }
     }
-
     /**
-     * Creates a data packet as specified in the TFTP protocol, containing the specified block number and data.
+     * Receives the range of a file the server accepted to send, writing it to its place in the local
+     * file with positional writes.
      *
+     * @param in the DataInputStream object representing the connection to the server
+     * @param channel the channel of the local file
+     * @param requested the options sent with the request, which name the offset of the range
+     * @param accepted the options the server accepted
+     * @return the offset of the end of the data received, or -1 if the range was not received whole
+     * @throws IOException if the server moved the range, sends an error packet, the range does not match its
+     *                     checksum, or an I/O error occurs while receiving or writing the data
+     */
+    private static long receiveRange(DataInputStream in, FileChannel channel, Map<String, String> requested,
+                                     Map<String, String> accepted) throws IOException {
+        long offset = Long.parseLong(requested.get("offset"));
+        if (acceptedOffset(accepted, requested) != offset) {
+            throw new IOException("Server acknowledged an invalid offset: " + accepted.get("offset"));
+        }
+        long length = acceptedValue(accepted, "length");
+        RangeOutputStream range = new RangeOutputStream(channel, offset);
+        boolean complete = receiveData(in, new BufferedOutputStream(range), accepted);
+        if (!complete || (length >= 0 && range.position() - offset != length)) {
+            return -1;
+        }
+        return range.position();
+    }
+    /**
+     * Receives a file, or the part of it the server accepted to send, into a local file. A whole file
+     * replaces what the local file held, while a part is written over the local file where it belongs,
+     * keeping the rest of it. A file resumed from an offset ends where the server's file ends.
+     *
+     * @param in the DataInputStream object representing the connection to the server
+     * @param destination the local file to write to
+     * @param requested the options sent with the request, none of which is answered when it is empty
+     * @return true if the whole file or part was received
+     * @throws IOException if the server sends an error packet, the data does not match its checksum, or an I/O
+     *                     error occurs while receiving or writing the data
+     */
+    private static boolean receiveBlocks(DataInputStream in, File destination, Map<String, String> requested) throws IOException {
+        try (FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Map<String, String> accepted = requested.isEmpty() ? Map.of() : receiveOptionAck(in);
+            long offset = acceptedOffset(accepted, requested);
+            long length = acceptedValue(accepted, "length");
+            if (length >= 0 && !requested.containsKey("length")) {
+                throw new IOException("Server acknowledged an invalid length: " + accepted.get("length"));
+            }
+            if (offset == 0 && length < 0) {
+                channel.truncate(0);
+            }
+            channel.position(offset);
+            // Write each block straight to the file, so memory use stays the same however large the file is.
+            boolean complete = receiveData(in, new BufferedOutputStream(Channels.newOutputStream(channel)), accepted);
+            if (length >= 0) {
+                return complete && channel.position() - offset == length;
+            }
+            if (complete) {
+                channel.truncate(channel.position());
+            }
+            return complete;
+        }
+    }
+    /**
+     * Receives the data the server accepted to send, and flushes it to the stream it is written to.
+     * When the server accepted the checksum option, the data is added to a checksum as it is written,
+     * and its trailer is held back from the last block and compared with the checksum once the data
+     * has ended.
+     *
+     * @param in the DataInputStream object representing the connection to the server
+     * @param file the stream to write the received data to
+     * @param accepted the options the server accepted
+     * @return true if all expected blocks were received, along with a matching checksum if one was asked for
+     * @throws IOException if the server sends an error packet, the data does not match its checksum, or an I/O
+     *                     error occurs while receiving or writing the data
+     */
+    private static boolean receiveData(DataInputStream in, OutputStream file, Map<String, String> accepted) throws IOException {
+        CRC32C checksum = Checksums.isSupported(accepted.get(Checksums.OPTION)) ? new CRC32C() : null;
+        TrailerInputStream trailed = checksum != null ? new TrailerInputStream(in, Checksums.TRAILER_SIZE) : null;
+        boolean complete = receiveBlocks(trailed != null ? new DataInputStream(trailed) : in,
+                checksum != null ? new CheckedOutputStream(file, checksum) : file, "deflate".equalsIgnoreCase(accepted.get("comp")));
+        file.flush();
+        if (complete && checksum != null) {
+            byte[] trailer = trailed.trailer();
+            long senderChecksum = trailer != null ? Checksums.valueOf(new PacketReader().wrap(trailer, trailer.length)) : -1;
+            if (senderChecksum == -1) {
+                return false;
+            }
+            if (senderChecksum != checksum.getValue()) {
+                throw new IOException("Checksum mismatch: the data received differs from the data sent");
+            }
+        }
+        return complete;
+    }
+    /**
+     * Receives data packets from the server until the last block, writing their data to a stream,
+     * through an inflating stage if the data is deflated.
+     *
+     * @param in the DataInputStream object representing the connection to the server
+     * @param file the stream to write the received data to
+     * @param deflate whether the data is deflated
+     * @return true if all expected blocks were received, and the deflated data was complete
+     * @throws IOException if the server sends an error packet or an I/O error occurs while receiving, inflating or writing the data
+     */
+    private static boolean receiveBlocks(DataInputStream in, OutputStream file, boolean deflate) throws IOException {
+        Inflater inflater = deflate ? new Inflater() : null;
+        // The inflating stage is finished rather than closed, since the caller closes the file
+        InflaterOutputStream inflating = deflate ? new InflaterOutputStream(file, inflater, BUFFER_SIZE) : null;
+        try {
+            boolean complete = receiveBlocks(in, inflating != null ? inflating : file);
+            if (inflating != null) {
+                inflating.finish();
+                return complete && inflater.finished();
+            }
+            return complete;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+    /**
+     * Receives data packets from the server until the last block, writing their data to a stream.
+     *
+     * @param in the DataInputStream object representing the connection to the server
+     * @param file the stream to write the received data to
+     * @return true if all expected blocks were received
+     * @throws IOException if the server sends an error packet or an I/O error occurs while receiving or writing the data
+     */
+    private static boolean receiveBlocks(DataInputStream in, OutputStream file) throws IOException {
+        // Set the initial block number to 1, and the "done" flag to false. The block number wraps around
+        // after 65535 blocks, so the blocks and bytes received are counted separately in 64 bits.
+        short blockNumber = 1;
+        long blocksReceived = 0;
+        long bytesReceived = 0;
+        boolean done = false;
+        // Create a byte array buffer for the incoming data packets.
+        byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
+        PacketReader data = new PacketReader();
+        // While not done, read a data packet from the input stream.
+        while (!done) {
+            // Read a data packet from the input stream. Every packet but the last holds a full block of
+            // BUFFER_SIZE + 4 bytes, and the server closes the connection after the last one.
+            int bytesRead = in.readNBytes(dataBuffer, 0, BUFFER_SIZE + 4);
+            // If the end of the input stream has been reached, exit the loop.
+            if (bytesRead == 0) {
+                break;
+            }
+            // An error packet from the server, such as for a missing file, ends the transfer.
+            if (data.wrap(dataBuffer, bytesRead).opcode() == OP_ERROR) {
+                throw new IOException("Server error: " + data.errorMessage());
+            }
+            // Extract the block number from the received data packet.
+            short receivedBlockNumber = (short) data.block();
+            // If the received block number matches the expected block number, process the data.
+            if (receivedBlockNumber == blockNumber) {
+                // Calculate the size of the data (excluding the block number and opcode).
+                int dataSize = data.dataLength();
+                // Write the data (excluding the block number and opcode) to the file.
+                file.write(dataBuffer, data.dataOffset(), dataSize);
+                bytesReceived += dataSize;
+                blocksReceived++;
+                // Increment the block number, and set the "done" flag if this is the last block.
+                blockNumber++;
+                if (dataSize < BUFFER_SIZE) {
+                    done = true;
+                }
+                // If the received block number does not match the expected block number, print an error message.
+            } else {
+                System.out.println("Received data packet with incorrect block number. Expected " + (blockNumber & 0xFFFF) + ", but received " + (receivedBlockNumber & 0xFFFF));
+            }
+        }
+        // Check if all expected blocks were received. The server always ends with a short block, which
+        // is empty when the data is a whole number of blocks long.
+        return done && blocksReceived == bytesReceived / BUFFER_SIZE + 1;
+    }
+    /**
+     * Sends a data packet to the server represented by the given DataOutputStream object, containing the specified data.
+     *
+     * @param out the DataOutputStream object representing the connection to the server
      * @param blockNumber the block number of the data packet
-     * @param dataBuffer the byte array containing the data to be sent
+     * @param dataPacket the byte array holding the data behind room for the opcode and block number
      * @param dataSize the size of the data in the byte array
-     * @return a byte array representing the data packet
+     * @throws IOException if an I/O error occurs while sending the data packet
      */
-    private static byte[] createDataPacket(short blockNumber, byte[] dataBuffer, int dataSize) {
-        byte[] dataPacket = new byte[dataSize + 4];
-        dataPacket[0] = 0;
-        dataPacket[1] = OP_DATA;
-        dataPacket[2] = (byte) (blockNumber >> 8);
-        dataPacket[3] = (byte) (blockNumber & 0xFF);
-        System.arraycopy(dataBuffer, 0, dataPacket, 4, dataSize);
-        return dataPacket;
+    private static void sendData(DataOutputStream out, short blockNumber, byte[] dataPacket, int dataSize) throws IOException {
+        // Fill in the opcode and block number in front of the data, and send the packet as it is.
+        PacketWriter.putHeader(dataPacket, OP_DATA, blockNumber);
+        out.write(dataPacket, 0, dataSize + 4);
     }
     /**
      * Receives a handshake message from the server represented by the given DataInputStream object.
+     * A server that is too busy to serve the client sends an error packet in its place.
      *
      * @param in the DataInputStream object representing the connection to the server
-     * @throws IOException if an I/O error occurs while receiving the handshake message
+     * @throws IOException if an I/O error occurs while receiving the handshake message, or the server sends an error
      */
     private static void receiveHandshake(DataInputStream in) throws IOException {
         byte[] handshakeBuffer = new byte[9];
-        in.readFully(handshakeBuffer);
+        in.readFully(handshakeBuffer, 0, 2);
+        if (handshakeBuffer[0] == 0 && handshakeBuffer[1] == OP_ERROR) {
+            throw serverError(handshakeBuffer, in);
+        }
+        in.readFully(handshakeBuffer, 2, handshakeBuffer.length - 2);
         String handshake = new String(handshakeBuffer);
 
         if (!handshake.equals("HANDSHAKE")) {
             throw new IOException("Invalid handshake received: " + handshake);
         }
     }
+    /**
+     * Reads the rest of an error packet the server sent in place of another packet, of which the
+     * opcode has been read.
+     *
+     * @param opcode the array holding the opcode of the error packet in its first 2 bytes
+     * @param in the DataInputStream object representing the connection to the server
+     * @return the exception reporting the server's error message
+     * @throws IOException if an I/O error occurs while reading the packet
+     */
+    private static IOException serverError(byte[] opcode, DataInputStream in) throws IOException {
+        // The error packet runs to the end of the stream, as the server closes the connection after it
+        byte[] rest = in.readAllBytes();
+        byte[] errorPacket = Arrays.copyOf(opcode, 2 + rest.length);
+        System.arraycopy(rest, 0, errorPacket, 2, rest.length);
+        return new IOException("Server error: " + new PacketReader().wrap(errorPacket, errorPacket.length).errorMessage());
+    }
+
+    /**
+     * An output stream that writes to a file channel from a given position on with positional writes,
+     * which leave the channel's own position alone, so streams writing different ranges of a file can
+     * share its channel from several threads.
+     */
+    private static final class RangeOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        /**
+         * Creates a stream writing from a position on.
+         *
+         * @param channel the channel to write to
+         * @param position the position of the first byte written
+         */
+        private RangeOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(b, off, len);
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        }
+
+        /**
+         * Returns the position the next byte is written to.
+         *
+         * @return the position after the last byte written
+         */
+        private long position() {
+            return position;
+        }
+    }
 
 
 }
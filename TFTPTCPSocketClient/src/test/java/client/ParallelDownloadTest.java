@@ -0,0 +1,327 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Checksums;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static protocol.Tftp.OP_DATA;
+
+/**
+ * Downloads a file over several connections at once, as the pom has the client do, each range
+ * deflated and checked with its own checksum. The TCP server runs in a JVM of its own; the cases it
+ * never produces, a server that leaves tsize out of its answer and a range that fails while the others
+ * arrive, are served by a minimal server in the test, which ignores compression and checksums.
+ */
+class ParallelDownloadTest {
+    private static final int BLOCK_SIZE = 512;
+    // The bytes the client asks for with its first request, before it splits the rest into ranges
+    private static final int FIRST_REQUEST_SIZE = 8192 * BLOCK_SIZE;
+    // Three ranges of 2 MiB and more after the first request, and not a whole number of blocks, so the last range ends in a short block
+    private static final int FILE_SIZE = 3 * FIRST_REQUEST_SIZE + 123;
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    @TempDir
+    static Path directory;
+
+    private static byte[] file;
+    private static Process server;
+    private static int serverPort;
+
+    /**
+     * Writes the file to serve and starts the TCP server in the temporary directory, on a free port.
+     *
+     * @throws Exception if the server does not start listening in time
+     */
+    @BeforeAll
+    static void startServer() throws Exception {
+        file = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(file);
+        Files.write(Files.createDirectories(directory.resolve("src/Retrieve Files")).resolve("parallel.bin"), file);
+        Files.createDirectories(directory.resolve("src/Received Files"));
+
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serverPort = probe.getLocalPort();
+        }
+        String classPath = classesOf("server.TFTPTCPSocketServer") + File.pathSeparator + classesOf("protocol.Tftp");
+        server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath, "server.TFTPTCPSocketServer")
+                .directory(directory.toFile()).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+        // The server asks for its port on standard input
+        try (OutputStream in = server.getOutputStream()) {
+            in.write((serverPort + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT;
+        while (!isBound(serverPort)) {
+            assertTrue(server.isAlive() && System.nanoTime() < deadline, "The server did not start listening on port " + serverPort);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Stops the server.
+     *
+     * @throws InterruptedException if interrupted while waiting for it to exit
+     */
+    @AfterAll
+    static void stopServer() throws InterruptedException {
+        server.destroy();
+        server.waitFor(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void rangesArriveIntactWithChecksumsAndCompression() throws IOException {
+        File copy = directory.resolve("parallel-copy.bin").toFile();
+        // Left over from an earlier download and larger than the file, so a copy that is not cut to size shows
+        Files.write(copy.toPath(), new byte[FILE_SIZE + BLOCK_SIZE]);
+        TFTPTCPSocketClient.retrieve("localhost", serverPort, "parallel.bin", copy);
+        assertArrayEquals(file, Files.readAllBytes(copy.toPath()));
+    }
+
+    @Test
+    void serverWithoutTsizeSendsTheRestOverOneMoreConnection() throws IOException {
+        File copy = directory.resolve("without-tsize.bin").toFile();
+        try (RangeServer rangeServer = new RangeServer(false, -1)) {
+            TFTPTCPSocketClient.retrieve("localhost", rangeServer.port(), "without-tsize.bin", copy);
+            List<Map<String, String>> requests = rangeServer.requests();
+            assertEquals(2, requests.size(), "Requests: " + requests);
+            assertEquals(Integer.toString(FIRST_REQUEST_SIZE), requests.get(1).get("offset"));
+            assertFalse(requests.get(1).containsKey("length"), "The rest of the file is asked for: " + requests.get(1));
+        }
+        assertArrayEquals(file, Files.readAllBytes(copy.toPath()));
+    }
+
+    @Test
+    void failedRangeFailsTheDownloadOnceTheOtherRangesAreWritten() throws IOException {
+        File copy = directory.resolve("failed-range.bin").toFile();
+        int failingPosition = FILE_SIZE / 3 * 2;
+        try (RangeServer rangeServer = new RangeServer(true, failingPosition)) {
+            IOException e = assertThrows(IOException.class,
+                    () -> TFTPTCPSocketClient.retrieve("localhost", rangeServer.port(), "failed-range.bin", copy));
+            assertTrue(e.getMessage().contains(RangeServer.FAILURE), "Unexpected failure: " + e.getMessage());
+
+            List<Map<String, String>> requests = rangeServer.requests();
+            assertEquals(4, requests.size(), "Requests: " + requests);
+            for (Map<String, String> request : requests) {
+                assertEquals("deflate", request.get("comp"), "Every range asks for compression: " + request);
+                assertEquals(Checksums.CRC32C, request.get(Checksums.OPTION), "Every range asks for a checksum: " + request);
+            }
+            // Every other range was written to its place in the file before the download failed
+            byte[] received = Files.readAllBytes(copy.toPath());
+            assertEquals(FILE_SIZE, received.length);
+            long[] failed = rangeServer.failedRange();
+            assertArrayEquals(Arrays.copyOfRange(file, 0, (int) failed[0]), Arrays.copyOfRange(received, 0, (int) failed[0]));
+            assertArrayEquals(Arrays.copyOfRange(file, (int) failed[1], FILE_SIZE), Arrays.copyOfRange(received, (int) failed[1], FILE_SIZE));
+        }
+    }
+
+    /**
+     * Returns where a class on the test class path was loaded from, without initializing it.
+     *
+     * @param className the name of the class
+     * @return the directory or jar holding the class
+     * @throws Exception if the class cannot be found
+     */
+    private static String classesOf(String className) throws Exception {
+        Class<?> type = Class.forName(className, false, ParallelDownloadTest.class.getClassLoader());
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    /**
+     * Returns whether a TCP port is taken, by trying to bind it.
+     *
+     * @param port the port
+     * @return true if something is bound to the port
+     */
+    private static boolean isBound(int port) {
+        try {
+            new ServerSocket(port).close();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * A server that answers every request with the range of the file it asks for, on a thread per
+     * connection, and records the options of each request. It sends the data uncompressed and without a
+     * checksum, which the client takes as the options being refused.
+     */
+    private static final class RangeServer implements AutoCloseable {
+        static final String FAILURE = "Range refused by the test";
+
+        private final boolean answersTsize;
+        private final long failingPosition;
+        private final ServerSocket serverSocket;
+        private final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<>());
+        private volatile long[] failedRange;
+
+        /**
+         * Starts the server on a free loopback port.
+         *
+         * @param answersTsize    whether the server tells the client the size of the file
+         * @param failingPosition the position in the file of which the range is answered with an error packet, or -1
+         * @throws IOException if the server socket cannot be opened
+         */
+        RangeServer(boolean answersTsize, long failingPosition) throws IOException {
+            this.answersTsize = answersTsize;
+            this.failingPosition = failingPosition;
+            serverSocket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::accept, "range-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /**
+         * Accepts connections until the server socket is closed.
+         */
+        private void accept() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread connection = new Thread(() -> serve(socket), "range-connection");
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        /**
+         * Answers the handshake and the request of a connection, then closes it.
+         *
+         * @param socket the connection
+         */
+        private void serve(Socket socket) {
+            try (Socket connection = socket) {
+                DataInputStream in = new DataInputStream(connection.getInputStream());
+                OutputStream out = connection.getOutputStream();
+                in.readFully(new byte[9]);
+                out.write("HANDSHAKE".getBytes(StandardCharsets.US_ASCII));
+                Map<String, String> options = readRequest(in);
+                requests.add(options);
+
+                long offset = Long.parseLong(options.getOrDefault("offset", "0"));
+                long end = options.containsKey("length") ? Math.min(FILE_SIZE, offset + Long.parseLong(options.get("length"))) : FILE_SIZE;
+                byte[] packet = new byte[BLOCK_SIZE + 4];
+                PacketWriter writer = new PacketWriter().wrap(packet);
+                if (offset <= failingPosition && failingPosition < end) {
+                    failedRange = new long[] {offset, end};
+                    out.write(packet, 0, writer.error(0, FAILURE).limit());
+                    return;
+                }
+                writer.oack().option("offset", offset);
+                if (options.containsKey("length")) {
+                    writer.option("length", end - offset);
+                }
+                if (answersTsize && options.containsKey("tsize")) {
+                    writer.option("tsize", FILE_SIZE);
+                }
+                out.write(packet, 0, writer.endOptions().finish().limit());
+                // Full blocks up to a short one, which may be empty, and then the end of the stream
+                for (int block = 1; ; block++) {
+                    int length = (int) Math.min(BLOCK_SIZE, end - offset);
+                    PacketWriter.putHeader(packet, OP_DATA, block);
+                    System.arraycopy(file, (int) offset, packet, 4, length);
+                    out.write(packet, 0, 4 + length);
+                    offset += length;
+                    if (length < BLOCK_SIZE) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Range server: " + e);
+            }
+        }
+
+        /**
+         * Reads a request with options off a connection, up to the empty name that ends its options.
+         *
+         * @param in the connection
+         * @return the options of the request
+         * @throws IOException if the connection fails
+         */
+        private static Map<String, String> readRequest(DataInputStream in) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            int opcode = in.readUnsignedShort();
+            request.write(opcode >> 8);
+            request.write(opcode);
+            // The file name and mode, then name and value pairs up to an empty name
+            for (int string = 0; ; string++) {
+                int length = 0;
+                for (int b; (b = in.readUnsignedByte()) != 0; length++) {
+                    request.write(b);
+                }
+                request.write(0);
+                if (string >= 2 && string % 2 == 0 && length == 0) {
+                    break;
+                }
+            }
+            byte[] bytes = request.toByteArray();
+            return new PacketReader().wrap(bytes, bytes.length).options();
+        }
+
+        /**
+         * Returns the options of every request so far, in the order they arrived.
+         *
+         * @return the options of the requests
+         */
+        List<Map<String, String>> requests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests);
+            }
+        }
+
+        /**
+         * Returns the range that was answered with an error packet.
+         *
+         * @return the offset of the range and the offset of its end, or null if none was
+         */
+        long[] failedRange() {
+            return failedRange;
+        }
+
+        /**
+         * Returns the port the server listens on.
+         *
+         * @return the port
+         */
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import protocol.Metrics;
+
+/**
+ * Keeps the connections the server serves within a cap on the memory their buffers take and on the
+ * files they hold open. A connection reserves its share before the handshake and gives it back when
+ * it ends; one that does not fit waits until others have ended or its deadline passes, and is then
+ * refused as busy. The number of connections served at once is capped by the server's thread pool.
+ */
+class AdmissionControl {
+    /** The message of the ERROR packet that refuses a connection for lack of capacity. */
+    static final String BUSY_MESSAGE = "Server busy, try again later";
+
+    private final long maxBufferMemory;
+    private final int maxOpenFiles;
+    private long bufferMemory;
+    private int openFiles;
+
+    /**
+     * Creates an admission control with nothing reserved.
+     *
+     * @param maxBufferMemory the most memory, in bytes, the buffers of the connections served may take
+     * @param maxOpenFiles    the most files the connections served may hold open
+     */
+    AdmissionControl(long maxBufferMemory, int maxOpenFiles) {
+        this.maxBufferMemory = maxBufferMemory;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Reserves buffer memory and open files for a connection, waiting for other connections to give
+     * theirs back if they do not fit yet.
+     *
+     * @param bufferBytes the memory the connection's buffers take
+     * @param files       the number of files the connection holds open
+     * @param deadline    the {@link System#nanoTime()} after which the connection stops waiting
+     * @return -1 if the reservation was made, otherwise the limit that was reached, as counted in the
+     *         metrics ({@link Metrics#LIMIT_MEMORY} or {@link Metrics#LIMIT_FILES})
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized int admit(long bufferBytes, int files, long deadline) throws InterruptedException {
+        while (true) {
+            int limit = bufferMemory + bufferBytes > maxBufferMemory ? Metrics.LIMIT_MEMORY
+                    : openFiles + files > maxOpenFiles ? Metrics.LIMIT_FILES : -1;
+            if (limit < 0) {
+                bufferMemory += bufferBytes;
+                openFiles += files;
+                return -1;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return limit;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Gives back buffer memory and open files, for a connection that has ended or that reserved more
+     * than it turned out to need, and wakes the connections waiting for them.
+     *
+     * @param bufferBytes the memory to give back
+     * @param files       the number of files to give back
+     */
+    synchronized void release(long bufferBytes, int files) {
+        bufferMemory -= bufferBytes;
+        openFiles -= files;
+        notifyAll();
+    }
+}
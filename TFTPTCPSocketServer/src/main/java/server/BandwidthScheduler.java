@@ -0,0 +1,377 @@
+package server;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocol.Metrics;
+
+/**
+ * Paces the DATA blocks of read transfers so they stay within the server's bandwidth limits and share
+ * the bandwidth fairly. Each connection's thread calls {@link #pace} before writing a block, which
+ * blocks until the block may go out. A block is first charged to the token bucket of the client's
+ * subnet, so a subnet over its limit only holds up its own connections, and then waits for its turn
+ * at the global token bucket. Turns are given in start-time fair queueing order: each connection's
+ * block is tagged with the virtual time at which its previous block finished, counted in bytes
+ * divided by the connection's weight, and the lowest tag goes first. A connection that was idle starts
+ * at the current virtual time, so a small fetch is served ahead of the backlog of a large one, while
+ * large transfers share what is left in proportion to their weights. Weights come from priority
+ * classes matched against the file name.
+ */
+class BandwidthScheduler {
+    // Virtual time is counted in bytes scaled by this factor and divided by the flow's weight
+    private static final long TAG_SCALE = 1 << 16;
+    // Token buckets hold up to this many seconds of traffic, which is the largest burst they let through
+    private static final double BURST_SECONDS = 0.1;
+
+    private final TokenBucket globalBucket;
+    private final long clientRate;
+    private final int prefixLength;
+    private final int prefixLength6;
+    private final List<PriorityClass> priorityClasses;
+    private final Metrics metrics;
+    // The token bucket of every subnet with a flow open, shared by the flows from that subnet
+    private final Map<InetAddress, TokenBucket> clientBuckets = new HashMap<>();
+    // Guards the turns at the global bucket: the waiting blocks, lowest start tag first, and the virtual time
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Turn> waiting = new PriorityQueue<>(
+            Comparator.<Turn>comparingLong(turn -> turn.startTag).thenComparingLong(turn -> turn.sequence));
+    // The start tag of the block sent last
+    private long virtualTime;
+    private long sequence;
+
+    /**
+     * Creates a scheduler with the given limits.
+     *
+     * @param rate            the most bytes per second sent to all clients together, or 0 for no limit
+     * @param clientRate      the most bytes per second sent to one client subnet, or 0 for no limit
+     * @param prefixLength    the prefix length that groups IPv4 clients into subnets, 32 for one bucket per address
+     * @param prefixLength6   the prefix length that groups IPv6 clients into subnets, 128 for one bucket per address
+     * @param priorityClasses the priority classes, as a comma separated list of glob=weight pairs
+     * @param metrics         the metrics the time blocks wait is recorded in
+     * @throws IllegalArgumentException if the priority classes are not valid
+     */
+    BandwidthScheduler(long rate, long clientRate, int prefixLength, int prefixLength6, String priorityClasses, Metrics metrics) {
+        this.globalBucket = rate > 0 ? new TokenBucket(rate, System.nanoTime()) : null;
+        this.clientRate = clientRate;
+        this.prefixLength = Math.max(0, Math.min(prefixLength, 32));
+        this.prefixLength6 = Math.max(0, Math.min(prefixLength6, 128));
+        this.priorityClasses = parsePriorityClasses(priorityClasses);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Opens a flow for a read transfer, weighted by the priority class of its file.
+     *
+     * @param clientAddress the address of the client, whose subnet's bucket the flow is charged to
+     * @param fileName      the name of the file being sent
+     * @return the flow
+     */
+    Flow open(InetAddress clientAddress, String fileName) {
+        TokenBucket bucket = null;
+        if (clientRate > 0) {
+            synchronized (clientBuckets) {
+                bucket = clientBuckets.computeIfAbsent(subnetOf(clientAddress), subnet -> new TokenBucket(clientRate, System.nanoTime()));
+                bucket.flows++;
+            }
+        }
+        return new Flow(weightOf(fileName), bucket);
+    }
+
+    /**
+     * Closes a flow once its transfer has ended, releasing its subnet's bucket when no other flow uses it.
+     *
+     * @param flow the flow
+     */
+    void close(Flow flow) {
+        if (flow.bucket != null) {
+            synchronized (clientBuckets) {
+                if (--flow.bucket.flows == 0) {
+                    clientBuckets.values().remove(flow.bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until a block of a flow may be sent, and charges it to the buckets.
+     *
+     * @param flow  the flow the block belongs to
+     * @param bytes the size of the packet about to be sent
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    void pace(Flow flow, int bytes) throws InterruptedIOException {
+        long startedAt = System.nanoTime();
+        try {
+            if (flow.bucket != null) {
+                flow.bucket.acquire(bytes);
+            }
+            if (globalBucket != null) {
+                awaitTurn(flow, bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send");
+        }
+        metrics.pacingDelay.recordSince(startedAt);
+    }
+
+    /**
+     * Waits for a block's turn at the global bucket. Only the block with the lowest start tag waits
+     * for tokens; the others wait to be woken when it has gone.
+     *
+     * @param flow  the flow the block belongs to
+     * @param bytes the size of the packet about to be sent
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void awaitTurn(Flow flow, int bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            Turn turn = new Turn(Math.max(virtualTime, flow.finishTag), sequence++, lock.newCondition());
+            waiting.add(turn);
+            try {
+                while (true) {
+                    if (waiting.peek() == turn) {
+                        long wait = globalBucket.nanosUntilAvailable(System.nanoTime());
+                        if (wait == 0) {
+                            break;
+                        }
+                        turn.wakeUp.awaitNanos(wait);
+                    } else {
+                        turn.wakeUp.await();
+                    }
+                }
+                virtualTime = turn.startTag;
+                flow.finishTag = turn.startTag + bytes * TAG_SCALE / flow.weight;
+                globalBucket.take(bytes);
+            } finally {
+                // Whether it was sent or interrupted, the block hands the head of the queue to the next one
+                waiting.remove(turn);
+                Turn next = waiting.peek();
+                if (next != null) {
+                    next.wakeUp.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the weight of the first priority class matching a file name.
+     *
+     * @param fileName the name of the file
+     * @return the weight, or 1 if no class matches
+     */
+    private int weightOf(String fileName) {
+        try {
+            for (PriorityClass priorityClass : priorityClasses) {
+                if (priorityClass.pattern.matches(Paths.get(fileName))) {
+                    return priorityClass.weight;
+                }
+            }
+        } catch (InvalidPathException e) {
+            // A name that is not a valid path matches no class
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the subnet a client belongs to, which is its address with the host bits cleared.
+     *
+     * @param address the address of the client
+     * @return the subnet address
+     */
+    private InetAddress subnetOf(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefix = bytes.length == 4 ? prefixLength : prefixLength6;
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = prefix - i * 8;
+            if (bits <= 0) {
+                bytes[i] = 0;
+            } else if (bits < 8) {
+                bytes[i] &= (byte) (0xFF << (8 - bits));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Cannot happen, since the address has the length of the one it came from
+            return address;
+        }
+    }
+
+    /**
+     * Parses priority classes written as a comma separated list of glob=weight pairs, such as
+     * {@code *.cfg=8,*.{img,iso}=1}. Commas inside braces belong to the glob.
+     *
+     * @param spec the priority classes, or an empty string for none
+     * @return the classes, in the order they are matched
+     * @throws IllegalArgumentException if a pair is not valid or a weight is not between 1 and 1000
+     */
+    static List<PriorityClass> parsePriorityClasses(String spec) {
+        List<PriorityClass> classes = new ArrayList<>();
+        for (String entry : spec.split(",(?![^{]*})")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected glob=weight: " + entry);
+            }
+            int weight;
+            try {
+                weight = Integer.parseInt(entry.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight: " + entry);
+            }
+            if (weight < 1 || weight > 1000) {
+                throw new IllegalArgumentException("Weight must be between 1 and 1000: " + entry);
+            }
+            PathMatcher pattern = FileSystems.getDefault().getPathMatcher("glob:" + entry.substring(0, separator).trim());
+            classes.add(new PriorityClass(pattern, weight));
+        }
+        return classes;
+    }
+
+    /**
+     * The scheduler's view of one read transfer, used by the transfer's own thread.
+     */
+    static final class Flow {
+        final int weight;
+        // The bucket of the client's subnet, or null when clients are not limited
+        final TokenBucket bucket;
+        // The virtual time at which the flow's last block finished, guarded by the scheduler's lock
+        long finishTag;
+
+        /**
+         * Creates a flow.
+         *
+         * @param weight the flow's share of the bandwidth relative to other flows
+         * @param bucket the bucket of the client's subnet, or null
+         */
+        Flow(int weight, TokenBucket bucket) {
+            this.weight = weight;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * A block waiting for its turn at the global bucket.
+     */
+    private static final class Turn {
+        final long startTag;
+        final long sequence;
+        // Signalled when the block reaches the head of the queue
+        final Condition wakeUp;
+
+        /**
+         * Creates a turn.
+         *
+         * @param startTag the virtual time the block starts at
+         * @param sequence the order the block arrived in, breaking ties between equal start tags
+         * @param wakeUp   the condition the waiting thread is woken through
+         */
+        Turn(long startTag, long sequence, Condition wakeUp) {
+            this.startTag = startTag;
+            this.sequence = sequence;
+            this.wakeUp = wakeUp;
+        }
+    }
+
+    /**
+     * A file name pattern and the weight given to transfers of matching files.
+     */
+    static final class PriorityClass {
+        final PathMatcher pattern;
+        final int weight;
+
+        /**
+         * Creates a priority class.
+         *
+         * @param pattern the pattern file names are matched against
+         * @param weight  the weight of matching transfers
+         */
+        PriorityClass(PathMatcher pattern, int weight) {
+            this.pattern = pattern;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A token bucket that refills at a fixed rate up to a burst of {@link #BURST_SECONDS} of traffic.
+     * Packets may be sent while the bucket holds any tokens, and a packet larger than what is left
+     * puts the bucket in debt, which the following packets wait out.
+     */
+    static final class TokenBucket {
+        private final double bytesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long updatedAt;
+        // The flows charged to this bucket, guarded by the scheduler's map of buckets
+        int flows;
+
+        /**
+         * Creates a full bucket.
+         *
+         * @param rate the rate in bytes per second
+         * @param now  the current System.nanoTime() value
+         */
+        TokenBucket(long rate, long now) {
+            this.bytesPerNano = rate / 1e9;
+            this.capacity = rate * BURST_SECONDS;
+            this.tokens = capacity;
+            this.updatedAt = now;
+        }
+
+        /**
+         * Returns how long until the bucket holds tokens again.
+         *
+         * @param now the current System.nanoTime() value
+         * @return the time in nanoseconds, or 0 if a packet may be sent now
+         */
+        synchronized long nanosUntilAvailable(long now) {
+            if (now > updatedAt) {
+                tokens = Math.min(capacity, tokens + (now - updatedAt) * bytesPerNano);
+                updatedAt = now;
+            }
+            return tokens > 0 ? 0 : (long) Math.ceil((1 - tokens) / bytesPerNano);
+        }
+
+        /**
+         * Takes the tokens for a packet that was sent.
+         *
+         * @param bytes the size of the packet
+         */
+        synchronized void take(long bytes) {
+            tokens -= bytes;
+        }
+
+        /**
+         * Waits until the bucket holds tokens, then takes the tokens for a packet.
+         *
+         * @param bytes the size of the packet about to be sent
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        synchronized void acquire(long bytes) throws InterruptedException {
+            long wait;
+            while ((wait = nanosUntilAvailable(System.nanoTime())) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            take(bytes);
+        }
+    }
+}
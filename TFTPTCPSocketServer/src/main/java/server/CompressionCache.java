@@ -0,0 +1,137 @@
+package server;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the deflated form of recently requested files, so a file sent compressed to many clients is
+ * compressed once rather than once per client. Entries are keyed by the file's path and remembered
+ * with its modification time and size, so a file that changes is compressed again. The first
+ * connection to send an uncached file compressed captures the compressed bytes as it sends them and
+ * adds them to the cache once it is done; connections sending the same file meanwhile compress it
+ * themselves without capturing it. The least recently used entries are dropped to keep the cache
+ * within its capacity, and files too large to take more than an eighth of it are never cached.
+ */
+class CompressionCache {
+    /**
+     * The compressed bytes of a file as it was when they were made.
+     */
+    private static final class Entry {
+        private final FileTime lastModified;
+        private final long size;
+        private final byte[] compressed;
+
+        /**
+         * Creates an entry.
+         *
+         * @param attributes the attributes of the file that was compressed
+         * @param compressed the compressed bytes
+         */
+        private Entry(BasicFileAttributes attributes, byte[] compressed) {
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.compressed = compressed;
+        }
+
+        /**
+         * Returns whether the entry was made from the file as it is now.
+         *
+         * @param attributes the current attributes of the file
+         * @return true if the file has not been modified since
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime());
+        }
+    }
+
+    // In order of use, the least recently used first
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // The files a connection is capturing for the cache
+    private final Set<Path> capturing = new HashSet<>();
+    private final long capacity;
+    private long cachedBytes;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity the most compressed bytes the cache holds, or 0 to cache nothing
+     */
+    CompressionCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the compressed bytes of a file, if they are cached for the file as it is now.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @return the compressed bytes, which must not be modified, or null if they are not cached
+     */
+    synchronized byte[] get(Path path, BasicFileAttributes attributes) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.matches(attributes) ? entry.compressed : null;
+    }
+
+    /**
+     * Claims the capture of a file's compressed bytes for the calling connection, unless the file is
+     * too large to cache or another connection is capturing it. A successful claim must be followed
+     * by a call to {@link #put} or {@link #abandon}.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @return true if the caller should capture the compressed bytes
+     */
+    synchronized boolean startCapture(Path path, BasicFileAttributes attributes) {
+        return attributes.size() <= maxEntrySize() && capturing.add(path);
+    }
+
+    /**
+     * Adds the captured compressed bytes of a file, dropping the least recently used entries to make
+     * room for them.
+     *
+     * @param path       the path of the file
+     * @param attributes the attributes of the file that was compressed
+     * @param compressed the compressed bytes
+     */
+    synchronized void put(Path path, BasicFileAttributes attributes, byte[] compressed) {
+        capturing.remove(path);
+        if (compressed.length > maxEntrySize()) {
+            // Data that does not compress can come out slightly larger than it went in
+            return;
+        }
+        Entry previous = entries.put(path, new Entry(attributes, compressed));
+        if (previous != null) {
+            cachedBytes -= previous.compressed.length;
+        }
+        cachedBytes += compressed.length;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (cachedBytes > capacity) {
+            cachedBytes -= eldest.next().compressed.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Gives up the capture of a file whose transfer failed.
+     *
+     * @param path the path of the file
+     */
+    synchronized void abandon(Path path) {
+        capturing.remove(path);
+    }
+
+    /**
+     * Returns the size of the largest file the cache takes.
+     *
+     * @return the number of bytes
+     */
+    private long maxEntrySize() {
+        return capacity / 8;
+    }
+}
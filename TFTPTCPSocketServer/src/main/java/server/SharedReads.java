@@ -0,0 +1,368 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import protocol.MappedFiles;
+import protocol.Metrics;
+import protocol.PacketWriter;
+
+import static protocol.Tftp.OP_DATA;
+
+/**
+ * Coalesces the reads of connections sending the same file at the same time. Every connection
+ * reading an unchanged file shares one {@link Ring} of DATA packets: the first connection to need a
+ * block reads it from disk or the file's mapping into the ring, and the others write it to their
+ * sockets from there, so a file read by many clients at once is read about once rather than once
+ * per client. A ring is reference counted like a mapping: it is created by its first reader, holds
+ * the file's only channel, and is closed by its last reader. Each block in the ring is reference
+ * counted too: a connection pins the block while it writes it, and a block is only replaced once no
+ * connection has it pinned. A connection whose block's slot is pinned by others for a different
+ * block, because it fell a ring behind or ran ahead of them, reads that block into its own buffer.
+ */
+class SharedReads {
+    /**
+     * The blocks recently read from one file, in a ring of ready-to-send DATA packets.
+     */
+    static final class Ring {
+        private final Path path;
+        private final Object fileKey;
+        private final FileTime lastModified;
+        final long size;
+        // The file is read through a shared mapping when it is large, otherwise through a channel
+        private final MappedFiles.Mapping mapping;
+        private final FileChannel file;
+        // Block n is kept in slot (n - 1) % slots.length
+        private final Block[] slots;
+        private int readers;
+
+        /**
+         * Creates an empty ring over an open file.
+         *
+         * @param path       the path of the file
+         * @param attributes the attributes of the file when it was opened
+         * @param mapping    the mapping of the file, or null if it is read through a channel
+         * @param file       the channel of the file, or null if it is mapped
+         * @param slots      the number of blocks the ring holds
+         */
+        private Ring(Path path, BasicFileAttributes attributes, MappedFiles.Mapping mapping, FileChannel file, int slots) {
+            this.path = path;
+            this.fileKey = attributes.fileKey();
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.mapping = mapping;
+            this.file = file;
+            this.slots = new Block[slots];
+            for (int i = 0; i < slots; i++) {
+                this.slots[i] = new Block();
+            }
+        }
+
+        /**
+         * Returns whether the ring was created for the file as it is now.
+         *
+         * @param attributes the current attributes of the file
+         * @return true if the file is the same and unchanged
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime())
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    /**
+     * A slot of a ring, holding the DATA packet of one block. Guarded by its own monitor.
+     */
+    static final class Block {
+        // The packet, allocated when the slot is first used, and its length
+        byte[] packet;
+        int length;
+        // The number of the block in the slot, or 0 if none, whether it is still being read, and the connections writing it
+        private int number;
+        private boolean loading;
+        private int pins;
+    }
+
+    private final Map<Path, Ring> rings = new HashMap<>();
+    private final MappedFiles mappedFiles;
+    private final int blockSize;
+    private final int ringSize;
+    private final Metrics metrics;
+
+    /**
+     * Creates the shared reads with no rings yet.
+     *
+     * @param mappedFiles the mappings large files are read through
+     * @param blockSize   the block size files are sent in
+     * @param ringSize    the number of bytes of blocks each ring holds, of which it holds at least 16 blocks
+     * @param metrics     the metrics reads and blocks shared between connections are recorded in
+     */
+    SharedReads(MappedFiles mappedFiles, int blockSize, int ringSize, Metrics metrics) {
+        this.mappedFiles = mappedFiles;
+        this.blockSize = blockSize;
+        this.ringSize = ringSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the ring of a file for a new reader, opening the file if no connection is reading the
+     * unchanged file. Every call must be matched by a call to {@link #release}.
+     *
+     * @param path         the path of the file
+     * @param attributes   the current attributes of the file
+     * @param mapThreshold the size from which a file is read through a shared mapping
+     * @return the ring
+     * @throws IOException if the file cannot be opened
+     */
+    synchronized Ring acquire(Path path, BasicFileAttributes attributes, long mapThreshold) throws IOException {
+        Ring ring = rings.get(path);
+        if (ring == null || !ring.matches(attributes)) {
+            // Readers of a ring over an older version of the file keep it until they finish
+            ring = open(path, attributes, mapThreshold);
+            rings.put(path, ring);
+        }
+        ring.readers++;
+        return ring;
+    }
+
+    /**
+     * Releases a reader's hold on a ring, closing the file when the last reader finishes.
+     *
+     * @param ring the ring returned by {@link #acquire}
+     * @throws IOException if the file's channel cannot be closed
+     */
+    synchronized void release(Ring ring) throws IOException {
+        if (--ring.readers > 0) {
+            return;
+        }
+        if (rings.get(ring.path) == ring) {
+            rings.remove(ring.path);
+        }
+        if (ring.mapping != null) {
+            // Unmaps the file if this was its last reader
+            mappedFiles.release(ring.mapping);
+        } else {
+            ring.file.close();
+        }
+    }
+
+    /**
+     * Pins the DATA packet of a block in the ring, reading the block into the ring unless another
+     * connection already did, or is doing so, in which case this one waits for it. The packet stays
+     * in place until it is unpinned.
+     *
+     * @param ring  the ring of the file
+     * @param block the number of the block, starting at 1
+     * @return the pinned block, or null if its slot is pinned for a different block and the caller must read it with {@link #read}
+     * @throws IOException if the block cannot be read
+     */
+    Block pin(Ring ring, int block) throws IOException {
+        Block slot = ring.slots[(block - 1) % ring.slots.length];
+        synchronized (slot) {
+            while (slot.number == block && slot.loading) {
+                try {
+                    slot.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for block " + block);
+                }
+            }
+            if (slot.number == block) {
+                metrics.sharedReadHits.increment();
+                slot.pins++;
+                return slot;
+            }
+            if (slot.pins > 0) {
+                return null;
+            }
+            // Claim the slot, so readers of the same block wait for it rather than read it too
+            if (slot.packet == null) {
+                slot.packet = new byte[blockSize + 4];
+            }
+            slot.number = block;
+            slot.loading = true;
+            slot.pins = 1;
+        }
+        int length = 0;
+        try {
+            length = read(ring, block, slot.packet);
+        } finally {
+            synchronized (slot) {
+                slot.length = length;
+                slot.loading = false;
+                if (length == 0) {
+                    // The read failed, so the slot holds nothing
+                    slot.number = 0;
+                    slot.pins = 0;
+                }
+                slot.notifyAll();
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Unpins a block once its packet has been written, so its slot can take another block.
+     *
+     * @param slot the block returned by {@link #pin}
+     */
+    void unpin(Block slot) {
+        synchronized (slot) {
+            slot.pins--;
+        }
+    }
+
+    /**
+     * Reads a block of the file into a DATA packet.
+     *
+     * @param ring   the ring of the file
+     * @param block  the number of the block, starting at 1
+     * @param packet the array to read the packet into, of at least the block size + 4 bytes
+     * @return the length of the packet, including its 4 byte header
+     * @throws IOException if the block cannot be read
+     */
+    int read(Ring ring, int block, byte[] packet) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(packet, 4, blockSize);
+        long position = (long) (block - 1) * blockSize;
+        long readStart = System.nanoTime();
+        if (ring.mapping != null) {
+            // A mapped file is copied from memory without a read call
+            ring.mapping.read(position, data);
+        } else {
+            while (data.hasRemaining() && ring.file.read(data, position + data.position() - 4) != -1) {
+                // Keep reading until the block is full or the end of the file is reached
+            }
+        }
+        metrics.diskRead.recordSince(readStart);
+        PacketWriter.putHeader(packet, OP_DATA, block);
+        return data.position();
+    }
+
+    /**
+     * Returns a stream over the bytes of a file read through its ring, for connections that do not
+     * send the blocks as they are, such as those compressing the file or sending part of it.
+     *
+     * @param ring       the ring of the file, which the stream does not release
+     * @param firstBlock the number of blocks to skip, so the stream starts at the beginning of the block after them
+     * @param length     the most bytes the stream returns before it ends
+     * @return the stream
+     */
+    InputStream stream(Ring ring, int firstBlock, long length) {
+        return new RingStream(ring, firstBlock, length);
+    }
+
+    /**
+     * Opens a file for a new ring, through a shared mapping if it is large.
+     *
+     * @param path         the path of the file
+     * @param attributes   the attributes of the file
+     * @param mapThreshold the size from which a file is read through a shared mapping
+     * @return the ring, with no readers yet
+     * @throws IOException if the file cannot be opened
+     */
+    private Ring open(Path path, BasicFileAttributes attributes, long mapThreshold) throws IOException {
+        // The ring never holds more blocks than the file has
+        long fileBlocks = attributes.size() / blockSize + 1;
+        int slots = (int) Math.min(fileBlocks, Math.max(16, ringSize / (blockSize + 4)));
+        if (attributes.size() >= mapThreshold) {
+            return new Ring(path, attributes, mappedFiles.acquire(path, attributes), null, slots);
+        }
+        return new Ring(path, attributes, null, FileChannel.open(path, StandardOpenOption.READ), slots);
+    }
+
+    /**
+     * Reads a file one block at a time through its ring, copying each block out of the ring, or
+     * reading it itself when the block's slot is pinned for another block.
+     */
+    private final class RingStream extends InputStream {
+        private final Ring ring;
+        private final byte[] packet = new byte[blockSize + 4];
+        // The number of the block in the packet, and the positions of the next byte and the end of its data,
+        // which start out as if a full block before the first one had been read
+        private int block;
+        private int position = blockSize + 4;
+        private int length = blockSize + 4;
+        // The bytes the stream returns before it ends
+        private long remaining;
+
+        /**
+         * Creates a stream at the start of a block of a file.
+         *
+         * @param ring       the ring of the file
+         * @param firstBlock the number of blocks to skip
+         * @param remaining  the most bytes to return
+         */
+        private RingStream(Ring ring, int firstBlock, long remaining) {
+            this.ring = ring;
+            this.block = firstBlock;
+            this.remaining = remaining;
+        }
+
+        /**
+         * Reads one byte of the file.
+         *
+         * @return the byte, or -1 at the end of the file
+         * @throws IOException if the block cannot be read
+         */
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        /**
+         * Reads bytes of the file, up to the end of the current block.
+         *
+         * @param b   the array to read the bytes into
+         * @param off the index in the array of the first byte
+         * @param len the most bytes to read
+         * @return the number of bytes read, or -1 at the end of the file
+         * @throws IOException if the block cannot be read
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if (position == length) {
+                // A short block is the last one
+                if (length - 4 < blockSize) {
+                    return -1;
+                }
+                block++;
+                Block shared = pin(ring, block);
+                if (shared != null) {
+                    try {
+                        System.arraycopy(shared.packet, 0, packet, 0, shared.length);
+                        length = shared.length;
+                    } finally {
+                        unpin(shared);
+                    }
+                } else {
+                    length = SharedReads.this.read(ring, block, packet);
+                }
+                position = 4;
+                if (position == length) {
+                    return -1;
+                }
+            }
+            int count = (int) Math.min(Math.min(len, length - position), remaining);
+            System.arraycopy(packet, position, b, off, count);
+            position += count;
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -3,17 +3,92 @@ package server;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+import protocol.ChecksumCache;
+import protocol.Checksums;
+import protocol.DirectoryIndex;
+import protocol.MappedFiles;
+import protocol.Metrics;
+import protocol.MetricsEndpoint;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.TrailerInputStream;
+
+import static protocol.Tftp.*;
 
 public class TFTPTCPSocketServer {
     // Define constants
 
-    private static final int BUFFER_SIZE = 512;
-    private static final byte OP_RRQ = 1;
-    private static final byte OP_WRQ = 2;
-    private static final byte OP_DATA = 3;
-    private static final byte OP_ACK = 4;
-    private static final byte OP_ERROR = 5;
+    private static final int BUFFER_SIZE = DEFAULT_BLOCK_SIZE;
+    // Files at least this large are served from a memory mapping shared by every client reading them
+    private static final long MAP_THRESHOLD = Long.getLong("tftp.mapThreshold", 1024 * 1024);
+    private static final MappedFiles MAPPED_FILES = new MappedFiles();
+    private static final String RETRIEVE_DIRECTORY = "src/Retrieve Files/";
+    // Read requests are resolved against an index of the retrieve directory kept current by a WatchService,
+    // unless tftp.directoryIndex is false, in which case every request looks its file up on disk
+    private static final DirectoryIndex RETRIEVE_INDEX = new DirectoryIndex(Paths.get(RETRIEVE_DIRECTORY),
+            Boolean.parseBoolean(System.getProperty("tftp.directoryIndex", "true")));
+    // Metrics are published over JMX, and as Prometheus text on this localhost port unless it is 0
+    private static final int METRICS_PORT = Integer.getInteger("tftp.metricsPort", 0);
+    private static final Metrics METRICS = new Metrics();
+    // Uploads are gathered into chunks of tftp.writeChunkSize bytes and saved by a background writer
+    // thread; tftp.durability decides whether an upload is done once received, written or fsynced
+    private static final int WRITE_CHUNK_SIZE = Integer.getInteger("tftp.writeChunkSize", 256 * 1024);
+    private static final WriteBehind WRITE_BEHIND = new WriteBehind(Integer.getInteger("tftp.writeQueueSize", 64),
+            WRITE_CHUNK_SIZE, WriteBehind.Durability.parse(System.getProperty("tftp.durability", "write")), METRICS);
+    // Bytes per second sent to all clients together and to each client subnet (tftp.clientPrefixLength and
+    // tftp.clientPrefixLength6), 0 for no limit. With a limit, DATA blocks are paced and shared between
+    // transfers by the weights of the priority classes in tftp.priorityClasses that their files match
+    private static final long RATE_LIMIT = Long.getLong("tftp.rateLimit", 0);
+    private static final long CLIENT_RATE_LIMIT = Long.getLong("tftp.clientRateLimit", 0);
+    private static final BandwidthScheduler SCHEDULER = RATE_LIMIT > 0 || CLIENT_RATE_LIMIT > 0
+            ? new BandwidthScheduler(RATE_LIMIT, CLIENT_RATE_LIMIT, Integer.getInteger("tftp.clientPrefixLength", 32),
+                    Integer.getInteger("tftp.clientPrefixLength6", 128), System.getProperty("tftp.priorityClasses", ""), METRICS)
+            : null;
+    // Connections sending the same file at the same time share a ring of its last tftp.readRingSize bytes of blocks,
+    // so each block is read once for all of them
+    private static final SharedReads SHARED_READS = new SharedReads(MAPPED_FILES, BUFFER_SIZE, Integer.getInteger("tftp.readRingSize", 1024 * 1024), METRICS);
+    // Clients may ask for the file data to be deflated with the comp option. The deflated form of files up to an eighth
+    // of tftp.compressionCacheSize bytes is cached, so files sent compressed again and again are compressed once
+    private static final CompressionCache COMPRESSION_CACHE = new CompressionCache(Long.getLong("tftp.compressionCacheSize", 64L * 1024 * 1024));
+    // Clients may ask for the file data to be checked end to end with the checksum option. The CRC32C checksums of up
+    // to tftp.checksumCacheSize files sent whole are cached, so a hot file is not checksummed again for every reader
+    private static final ChecksumCache CHECKSUMS = new ChecksumCache(Integer.getInteger("tftp.checksumCacheSize", 4096));
+    // The memory the state of a Deflater or Inflater takes, beyond the connection's buffers
+    private static final long COMPRESSION_MEMORY = 256 * 1024;
+    // Caps on the connections served at once, each on a thread of its own, on the memory their buffers take and
+    // on the files they hold open. A connection over a cap waits up to tftp.admissionWait milliseconds, among at
+    // most tftp.admissionQueueSize others, and is then sent an ERROR packet in place of the handshake
+    private static final int MAX_TRANSFERS = Integer.getInteger("tftp.maxTransfers", 512);
+    private static final long ADMISSION_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("tftp.admissionWait", 1000));
+    private static final int ADMISSION_QUEUE_SIZE = Integer.getInteger("tftp.admissionQueueSize", 1024);
+    private static final AdmissionControl ADMISSION = new AdmissionControl(Long.getLong("tftp.maxBufferMemory", 256L * 1024 * 1024),
+            Integer.getInteger("tftp.maxOpenFiles", 256));
+    // What a connection reserves before its request is known: the buffers and open file of a compressed upload
+    private static final long MAX_CONNECTION_MEMORY = connectionMemory(OP_WRQ, true);
+    private static final ThreadPoolExecutor WORKERS = newPool(MAX_TRANSFERS, ADMISSION_WAIT_NANOS > 0 ? ADMISSION_QUEUE_SIZE : 0);
+    // Refuses the connections the workers have no room for, one at a time so a flood of them takes a single thread
+    private static final ThreadPoolExecutor REJECTOR = newPool(1, 1024);
 
     public static void main(String[] args) throws IOException {
         Scanner scanner = new Scanner(System.in);
@@ -32,109 +107,524 @@ public class TFTPTCPSocketServer {
         System.out.printf("~~~~~~~~~~~  %s  ~~~~~~~~~~~\n", serverName);
         System.out.printf("Server listening on port %d...\n", portNumber);
         System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+        MetricsEndpoint.start(METRICS, "tcp", METRICS_PORT);
         ServerSocket serverSocket = new ServerSocket(portNumber);
         while (true) {
             Socket clientSocket = serverSocket.accept();
             System.out.println("Connection established with client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-            new Thread(() -> {
-                try {
-                    handleClient(clientSocket);
-                } catch (IOException e) {
-                    System.out.println("Error handling client: " + e.getMessage());
-                    e.printStackTrace(); // Add this line to
+            long acceptedAt = System.nanoTime();
+            // Counted as queued until a worker thread picks the connection up
+            METRICS.queuedRequests.increment();
+            try {
+                WORKERS.execute(() -> {
+                    METRICS.queuedRequests.decrement();
+                    try {
+                        handleClient(clientSocket, acceptedAt);
+                    } catch (IOException e) {
+                        System.out.println("Error handling client: " + e.getMessage());
+                        e.printStackTrace(); // Add this line to
 
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Every worker is busy and the queue is full
+                METRICS.queuedRequests.decrement();
+                try {
+                    REJECTOR.execute(() -> refuse(clientSocket, Metrics.LIMIT_TRANSFERS));
+                } catch (RejectedExecutionException overflow) {
+                    // Even refusals are backed up, so drop the connection without a word
+                    clientSocket.close();
                 }
-            }).start();
+            }
+        }
+    }
+
+    /**
+     * Creates a thread pool whose threads end after a minute without work, with a bounded queue that
+     * rejects tasks once it is full.
+     *
+     * @param threads   the most threads the pool runs
+     * @param queueSize the most tasks that wait for a thread, or 0 to reject tasks when every thread is busy
+     * @return the pool
+     */
+    private static ThreadPoolExecutor newPool(int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Returns the memory a connection's buffers take: the buffered input stream, the request buffer
+     * and the data buffer, plus the chunk an upload is gathered into and the state of the Deflater or
+     * Inflater of a compressed transfer.
+     *
+     * @param opcode     the opcode of the connection's request
+     * @param compressed whether the transfer is compressed
+     * @return the number of bytes
+     */
+    private static long connectionMemory(int opcode, boolean compressed) {
+        long memory = 8192 + 2 * (BUFFER_SIZE + 4);
+        if (opcode == OP_WRQ) {
+            memory += WRITE_CHUNK_SIZE;
+        }
+        return compressed ? memory + COMPRESSION_MEMORY : memory;
+    }
+
+    /**
+     * Refuses a connection the server has no capacity for by sending an ERROR packet in place of the
+     * handshake. The client's handshake is read and thrown away until the client closes the
+     * connection, since closing with it unread would reset the connection before the error arrives.
+     *
+     * @param clientSocket the socket connected to the client
+     * @param limit        the limit that was reached, as counted in the metrics
+     */
+    private static void refuse(Socket clientSocket, int limit) {
+        System.out.println("Refused client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort()
+                + ": the " + Metrics.LIMITS[limit] + " limit is reached.");
+        METRICS.rejectedRequests.increment(limit);
+        try (clientSocket) {
+            ByteBuffer errorPacket = PacketWriter.errorPacket(ERROR_NOT_DEFINED, AdmissionControl.BUSY_MESSAGE);
+            clientSocket.getOutputStream().write(errorPacket.array(), 0, errorPacket.limit());
+            clientSocket.shutdownOutput();
+            clientSocket.setSoTimeout(1000);
+            InputStream in = clientSocket.getInputStream();
+            byte[] discard = new byte[BUFFER_SIZE];
+            while (in.read(discard) != -1) {
+                // Discard whatever the client sent
+            }
+        } catch (IOException e) {
+            System.out.println("Error refusing client: " + e.getMessage());
         }
     }
+
     /**
-     * Handles communication with a TFTP client.
-     * Performs the TFTP protocol handshake and handles both read and write requests.
+     * Handles communication with a TFTP client, first waiting for it to fit within the server's caps
+     * and refusing it if it does not in time. Performs the TFTP protocol handshake and handles both
+     * read and write requests.
      *
      * @param clientSocket the socket connected to the client
+     * @param acceptedAt   when the connection was accepted, in {@link System#nanoTime()} terms
      * @throws IOException if there is an error communicating with the client
      */
-    private static void handleClient(Socket clientSocket) throws IOException {
-        // Create input and output streams for the client socket
-        DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-        DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-        // Perform handshake
-        sendHandshake(out);
-        receiveHandshake(in);
-        // Read the TFTP packet from the client
-        byte[] packetData = new byte[BUFFER_SIZE + 4];
-        int bytesRead = in.read(packetData, 0, packetData.length);
-        // If no bytes were read, the packet is invalid
-        if (bytesRead == -1) {
-            System.out.println("Invalid packet received.");
+    private static void handleClient(Socket clientSocket, long acceptedAt) throws IOException {
+        long deadline = acceptedAt + ADMISSION_WAIT_NANOS;
+        if (ADMISSION_WAIT_NANOS > 0 && System.nanoTime() - deadline > 0) {
+            // The connection waited too long for a worker thread
+            refuse(clientSocket, Metrics.LIMIT_TRANSFERS);
             return;
         }
-        // Determine the opcode of the packet
-        byte opcode = packetData[1];
-        // Handle the packet based on its opcode
-        if (opcode == OP_WRQ) {
-            handleWriteRequest(out, in, packetData);
-        } else if (opcode == OP_RRQ) {
-            handleReadRequest(out, in, packetData);
-        } else {
-            System.out.println("Invalid opcode received: " + opcode);
+        // Reserve enough for an upload, the most a connection can need, and give back what the request does not need once it is known
+        long reservedMemory = MAX_CONNECTION_MEMORY;
+        int reservedFiles = 1;
+        int refusal;
+        try {
+            refusal = ADMISSION.admit(reservedMemory, reservedFiles, deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            refusal = Metrics.LIMIT_TRANSFERS;
+        }
+        if (refusal >= 0) {
+            refuse(clientSocket, refusal);
+            return;
+        }
+        try {
+            // Create input and output streams for the client socket
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            // Perform handshake
+            sendHandshake(out);
+            receiveHandshake(in);
+            // Read the TFTP packet from the client
+            PacketReader request;
+            try {
+                request = readRequest(in);
+            } catch (EOFException e) {
+                // If the connection closed before the whole request arrived, the packet is invalid
+                System.out.println("Invalid packet received.");
+                return;
+            }
+            // Determine the opcode of the packet
+            int opcode = request.opcode();
+            // Give back what the request does not need: a read holds no file open when the file is missing or
+            // is served from a shared mapping
+            long neededMemory = connectionMemory(opcode, deflateRequested(request));
+            BasicFileAttributes attributes = opcode == OP_RRQ ? RETRIEVE_INDEX.lookup(request.baseName()) : null;
+            int neededFiles = opcode == OP_WRQ || attributes != null && attributes.size() < MAP_THRESHOLD ? 1 : 0;
+            ADMISSION.release(reservedMemory - neededMemory, reservedFiles - neededFiles);
+            reservedMemory = neededMemory;
+            reservedFiles = neededFiles;
+            // Handle the packet based on its opcode
+            if (opcode == OP_WRQ || opcode == OP_RRQ) {
+                int requestType = opcode == OP_WRQ ? Metrics.WRQ : Metrics.RRQ;
+                METRICS.transfersStarted.increment(requestType);
+                METRICS.activeTransfers.increment();
+                long startedAt = System.nanoTime();
+                boolean completed = false;
+                try {
+                    completed = opcode == OP_WRQ ? handleWriteRequest(out, in, request) : handleReadRequest(out, in, request, clientSocket.getInetAddress());
+                } finally {
+                    METRICS.activeTransfers.decrement();
+                    METRICS.transferDuration.recordSince(startedAt);
+                    if (!completed) {
+                        METRICS.transfersFailed.increment(requestType);
+                    }
+                }
+            } else {
+                System.out.println("Invalid opcode received: " + opcode);
+                METRICS.invalidRequests.increment();
+            }
+            // Close the client socket
+            clientSocket.close();
+        } finally {
+            ADMISSION.release(reservedMemory, reservedFiles);
         }
-        // Close the client socket
-        clientSocket.close();
+    }
+
+    /**
+     * Reads a read or write request from the client: the opcode followed by the null terminated file name
+     * and mode. A request with a mode carries options after it, name/value pairs of null terminated
+     * strings ended by an empty name, while a request with an empty mode has none. The request is read
+     * up to its last null byte, so none of the data packets that follow it on the stream are consumed.
+     *
+     * @param in the input stream to read the request from
+     * @return a reader over the request packet
+     * @throws IOException if the connection closes before the request is complete or the request is too long
+     */
+    private static PacketReader readRequest(DataInputStream in) throws IOException {
+        byte[] packetData = new byte[BUFFER_SIZE + 4];
+        in.readFully(packetData, 0, 2);
+        int length = 2;
+        for (int string = 0; ; string++) {
+            int stringStart = length;
+            byte b;
+            do {
+                if (length == packetData.length) {
+                    throw new IOException("Request packet too long");
+                }
+                b = in.readByte();
+                packetData[length++] = b;
+            } while (b != 0);
+            // An empty mode, or an empty option name, ends the request
+            boolean empty = length - stringStart == 1;
+            if (empty && (string == 1 || string > 1 && string % 2 == 0)) {
+                break;
+            }
+        }
+        return new PacketReader().wrap(packetData, length);
+    }
+
+    /**
+     * Returns whether a request carries options, which the server answers with an OACK packet
+     * before the transfer starts.
+     *
+     * @param request the reader over the request packet
+     * @return true if the request has a mode, and so options
+     */
+    private static boolean hasOptions(PacketReader request) {
+        return !request.mode().isEmpty();
+    }
+
+    /**
+     * Returns whether a request asks for the file data to be deflated, with the option comp=deflate.
+     * Other compression methods are not supported and are left out of the OACK, so the transfer is
+     * not compressed.
+     *
+     * @param request the reader over the request packet
+     * @return true if the data is to be deflated
+     */
+    private static boolean deflateRequested(PacketReader request) {
+        Map<String, String> options = request.options();
+        return "deflate".equalsIgnoreCase(options.get("comp"));
+    }
+
+    /**
+     * Parses a size or position in bytes requested by the client, such as the offset option.
+     *
+     * @param requested the requested value, or null if the client did not send the option
+     * @return the number of bytes, or -1 if there is no valid number, in which case the option is ignored
+     */
+    private static long parseBytes(String requested) {
+        if (requested == null) {
+            return -1;
+        }
+        try {
+            return Math.max(Long.parseLong(requested.trim()), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends the OACK packet answering a request with options, listing the options the server accepted.
+     *
+     * @param out      the output stream to send the OACK packet to
+     * @param accepted the accepted options and the values the server uses
+     * @throws IOException if there is an error sending the packet
+     */
+    private static void sendOptionAck(DataOutputStream out, Map<String, String> accepted) throws IOException {
+        PacketWriter oack = new PacketWriter().wrap(new byte[BUFFER_SIZE + 4]).oack().options(accepted);
+        ByteBuffer packet = oack.endOptions().finish();
+        out.write(packet.array(), 0, packet.limit());
+        out.flush();
     }
 
     /**
      * Handles a read request from a TFTP client by reading the requested file from disk
-     * and sending it back to the client in data packets.
+     * and sending it back to the client in data packets, deflated if the client asks for it.
+     * With the offset and length options only part of the file is sent.
      * @param out the output stream to send data packets to the client
      * @param in the input stream to receive acknowledgement packets from the client
-     * @param packetData the initial read request packet from the client
+     * @param request the reader over the initial read request packet from the client
+     * @param clientAddress the address of the client, which the bandwidth limits are applied by
+     * @return true if the whole file was sent, false if it could not be found
      * @throws IOException if there is an error reading the file or communicating with the client
      */
-    private static void handleReadRequest(DataOutputStream out, DataInputStream in, byte[] packetData) throws IOException {
-        // Parse the filename from the read request packet
-        ByteBuffer buffer = ByteBuffer.wrap(packetData);
-        byte[] fileNameBytes = new byte[BUFFER_SIZE];
-        int fileNameLength = 0;
-        for (int i = 2; i < packetData.length; i++) {
-            if (packetData[i] == 0) {
-                fileNameLength = i - 2;
-                break;
+    private static boolean handleReadRequest(DataOutputStream out, DataInputStream in, PacketReader request, InetAddress clientAddress) throws IOException {
+        // Parse the filename from the read request packet, without any path in front of it
+        String fileName = request.baseName();
+        // With bandwidth limits set, every block waits for the scheduler to let it through
+        BandwidthScheduler.Flow flow = SCHEDULER != null ? SCHEDULER.open(clientAddress, fileName) : null;
+        try {
+            return sendFile(out, fileName, flow, hasOptions(request), request.options());
+        } finally {
+            if (flow != null) {
+                SCHEDULER.close(flow);
             }
-            fileNameBytes[i - 2] = packetData[i];
         }
-        // Convert the filename to a string and get its basename
-        String fileName = new String(fileNameBytes, 0, fileNameLength);
-        fileName = new File("src/Retrieved Files/" + fileName).getName();
-        // Read the file from disk and send it to the client in data packets
-        try (FileInputStream fis = new FileInputStream("src/Retrieve Files/" + fileName)) {
-            short blockNumber = 1;
-            byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-            while (true) {
-                int bytesRead = fis.read(dataBuffer, 4, BUFFER_SIZE);
-                if (bytesRead == -1) {
-                    break;
+    }
+
+    /**
+     * Sends a file from the retrieve directory to the client in data packets, after the OACK packet if
+     * the request has options. The file is looked up in the index of the directory, so a missing file
+     * is refused without touching the disk. A file whose deflated form is cached is sent from the
+     * cache without being opened. A request with the offset or length option is sent the part of the
+     * file it names, starting at the beginning of the block holding the requested offset and cut off
+     * at the end of the file, and the OACK tells the client where that part starts and how long it is.
+     * A request with the tsize option is told the size of the whole file (RFC 2349), which lets a client
+     * split a download into ranges fetched over several connections. With the checksum option the data is added to a CRC32C checksum as it is read, before it is
+     * deflated, and the trailer carrying the checksum follows the last block. The checksum of a whole
+     * file is cached, and while it is, the file is not checksummed again.
+     *
+     * @param out        the output stream to send data packets to the client
+     * @param fileName   the name of the file
+     * @param flow       the flow the bandwidth scheduler paces the blocks by, or null without bandwidth limits
+     * @param hasOptions whether the request has options, which are answered with an OACK packet
+     * @param options    the options of the request
+     * @return true if the whole file or part was sent, false if it could not be found, in which case the client is sent an error
+     * @throws IOException if there is an error reading the file or communicating with the client
+     */
+    private static boolean sendFile(DataOutputStream out, String fileName, BandwidthScheduler.Flow flow, boolean hasOptions,
+                                    Map<String, String> options) throws IOException {
+        boolean deflate = "deflate".equalsIgnoreCase(options.get("comp"));
+        boolean checksum = hasOptions && Checksums.isSupported(options.get(Checksums.OPTION));
+        long requestedOffset = parseBytes(options.get("offset"));
+        long requestedLength = parseBytes(options.get("length"));
+        BasicFileAttributes attributes = RETRIEVE_INDEX.lookup(fileName);
+        Path path = Paths.get(RETRIEVE_DIRECTORY + fileName);
+        // Only the whole file is cached in deflated form, or checksummed. Without a cached checksum, the
+        // checksum is worked out from the file as it is read, so the deflated form is not taken from the cache
+        boolean ranged = requestedOffset >= 0 || requestedLength >= 0;
+        long cachedChecksum = checksum && !ranged && attributes != null ? CHECKSUMS.get(path, attributes) : -1;
+        byte[] cached = deflate && !ranged && attributes != null && (!checksum || cachedChecksum != -1)
+                ? COMPRESSION_CACHE.get(path, attributes) : null;
+        SharedReads.Ring ring = null;
+        try {
+            if (attributes != null && cached == null) {
+                ring = SHARED_READS.acquire(path, attributes, MAP_THRESHOLD);
+            }
+        } catch (NoSuchFileException e) {
+            // The file was deleted after it was indexed
+        }
+        if (ring == null && cached == null) {
+            System.out.println("File not found: " + fileName);
+            sendError(out, Metrics.RRQ, "File not found");
+            return false;
+        }
+        try {
+            // The part of the file to send, moved to start at the beginning of a block
+            long fileSize = ring != null ? ring.size : attributes.size();
+            long start = Math.min(Math.max(requestedOffset, 0), fileSize);
+            long end = requestedLength >= 0 && requestedLength < fileSize - start ? start + requestedLength : fileSize;
+            int firstBlock = (int) (start / BUFFER_SIZE);
+            start = (long) firstBlock * BUFFER_SIZE;
+            if (hasOptions) {
+                Map<String, String> accepted = new LinkedHashMap<>();
+                if (deflate) {
+                    accepted.put("comp", "deflate");
+                }
+                if (requestedOffset >= 0) {
+                    accepted.put("offset", Long.toString(start));
                 }
-                // Create a data packet and send it to the client
-                dataBuffer[0] = 0;
-                dataBuffer[1] = OP_DATA;
-                dataBuffer[2] = (byte) (blockNumber >> 8);
-                dataBuffer[3] = (byte) (blockNumber & 0xFF);
-                out.write(dataBuffer, 0, bytesRead + 4);
+                if (requestedLength >= 0) {
+                    accepted.put("length", Long.toString(end - start));
+                }
+                if (options.containsKey("tsize")) {
+                    accepted.put("tsize", Long.toString(fileSize));
+                }
+                if (checksum) {
+                    accepted.put(Checksums.OPTION, Checksums.CRC32C);
+                }
+                sendOptionAck(out, accepted);
+            }
+            boolean whole = start == 0 && end == fileSize;
+            CRC32C dataChecksum = checksum && cachedChecksum == -1 ? new CRC32C() : null;
+            if (deflate) {
+                sendCompressedBlocks(out, path, attributes, cached, ring, firstBlock, end - start, whole, dataChecksum, flow);
+            } else if (whole) {
+                sendBlocks(out, ring, dataChecksum, flow);
+            } else {
+                InputStream range = SHARED_READS.stream(ring, firstBlock, end - start);
+                sendStreamBlocks(out, dataChecksum != null ? new CheckedInputStream(range, dataChecksum) : range, null, flow);
+            }
+            if (dataChecksum != null && whole) {
+                CHECKSUMS.put(path, attributes, dataChecksum.getValue());
+            }
+            if (checksum) {
+                out.write(Checksums.trailer(dataChecksum != null ? dataChecksum.getValue() : cachedChecksum));
                 out.flush();
-                // Increment the block number for the next data packet
-                blockNumber++;
+            }
+            System.out.println("File transfer to client completed for " + fileName);
+            return true;
+        } finally {
+            if (ring != null) {
+                // Closes the file if this was its last reader
+                SHARED_READS.release(ring);
+            }
+        }
+    }
+
+    /**
+     * Sends the blocks of a file as they are. The blocks are read through the file's shared ring, so
+     * connections sending the same file at the same time read each block once between them, and large
+     * files are copied out of a shared memory mapping instead of being read 512 bytes at a time.
+     *
+     * @param out      the output stream to send data packets to the client
+     * @param ring     the ring of the file
+     * @param checksum the checksum the data is added to, or null
+     * @param flow     the flow the bandwidth scheduler paces the blocks by, or null without bandwidth limits
+     * @throws IOException if there is an error reading the file or communicating with the client
+     */
+    private static void sendBlocks(DataOutputStream out, SharedReads.Ring ring, CRC32C checksum, BandwidthScheduler.Flow flow) throws IOException {
+        int blockNumber = 1;
+        // Used when the block's slot in the ring is pinned for another block
+        byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
+        while (true) {
+            SharedReads.Block shared = SHARED_READS.pin(ring, blockNumber);
+            try {
+                byte[] packet = shared != null ? shared.packet : dataBuffer;
+                int length = shared != null ? shared.length : SHARED_READS.read(ring, blockNumber, dataBuffer);
+                int bytesRead = length - 4;
+                if (checksum != null) {
+                    checksum.update(packet, 4, bytesRead);
+                }
+                // Send the data packet to the client
+                sendData(out, packet, length, flow);
                 // If we read less than the buffer size, we've reached the end of the file
                 if (bytesRead < BUFFER_SIZE) {
-                    System.out.println("File transfer to client completed for " + fileName);
-                    break;
+                    return;
+                }
+            } finally {
+                if (shared != null) {
+                    SHARED_READS.unpin(shared);
                 }
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + e.getMessage());
+            // Increment the block number for the next data packet
+            blockNumber++;
         }
     }
 
+    /**
+     * Sends the deflated bytes of a file, or of part of it, in blocks. The bytes of a whole file come
+     * from the compression cache if it has them, and are otherwise deflated as the file is read through
+     * its shared ring, while the first connection to do so captures them for the cache.
+     *
+     * @param out        the output stream to send data packets to the client
+     * @param path       the path of the file
+     * @param attributes the attributes of the file
+     * @param cached     the cached deflated bytes of the file, or null if they are not cached
+     * @param ring       the ring of the file, or null if the deflated bytes are cached
+     * @param firstBlock the number of blocks of the file before the part sent
+     * @param length     the length of the part sent
+     * @param whole      whether the part sent is the whole file, which may be captured for the cache
+     * @param checksum   the checksum the data is added to before it is deflated, or null
+     * @param flow       the flow the bandwidth scheduler paces the blocks by, or null without bandwidth limits
+     * @throws IOException if there is an error reading the file or communicating with the client
+     */
+    private static void sendCompressedBlocks(DataOutputStream out, Path path, BasicFileAttributes attributes, byte[] cached,
+                                             SharedReads.Ring ring, int firstBlock, long length, boolean whole,
+                                             CRC32C checksum, BandwidthScheduler.Flow flow) throws IOException {
+        Deflater deflater = cached == null ? new Deflater() : null;
+        InputStream data = cached == null ? SHARED_READS.stream(ring, firstBlock, length) : null;
+        if (checksum != null) {
+            data = new CheckedInputStream(data, checksum);
+        }
+        InputStream compressed = cached != null ? new ByteArrayInputStream(cached) : new DeflaterInputStream(data, deflater, BUFFER_SIZE);
+        ByteArrayOutputStream captured = cached == null && whole && COMPRESSION_CACHE.startCapture(path, attributes)
+                ? new ByteArrayOutputStream() : null;
+        boolean completed = false;
+        try {
+            sendStreamBlocks(out, compressed, captured, flow);
+            completed = true;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (captured != null && completed) {
+                COMPRESSION_CACHE.put(path, attributes, captured.toByteArray());
+            } else if (captured != null) {
+                COMPRESSION_CACHE.abandon(path);
+            }
+        }
+    }
+
+    /**
+     * Sends the bytes of a stream in blocks, every one of them full but the last, which may be empty.
+     *
+     * @param out      the output stream to send data packets to the client
+     * @param data     the bytes to send
+     * @param captured where to copy the bytes sent, or null
+     * @param flow     the flow the bandwidth scheduler paces the blocks by, or null without bandwidth limits
+     * @throws IOException if there is an error reading the bytes or communicating with the client
+     */
+    private static void sendStreamBlocks(DataOutputStream out, InputStream data, ByteArrayOutputStream captured,
+                                         BandwidthScheduler.Flow flow) throws IOException {
+        int blockNumber = 1;
+        byte[] dataPacket = new byte[BUFFER_SIZE + 4];
+        while (true) {
+            // Every block but the last is full, however little the stream hands out at a time
+            int bytesRead = data.readNBytes(dataPacket, 4, BUFFER_SIZE);
+            if (captured != null) {
+                captured.write(dataPacket, 4, bytesRead);
+            }
+            PacketWriter.putHeader(dataPacket, OP_DATA, blockNumber);
+            sendData(out, dataPacket, bytesRead + 4, flow);
+            if (bytesRead < BUFFER_SIZE) {
+                return;
+            }
+            blockNumber++;
+        }
+    }
+
+    /**
+     * Sends a data packet to the client, once the bandwidth scheduler lets it through.
+     *
+     * @param out    the output stream to send the packet to
+     * @param packet the array holding the packet
+     * @param length the length of the packet, including its 4 byte header
+     * @param flow   the flow the bandwidth scheduler paces the packet by, or null without bandwidth limits
+     * @throws IOException if there is an error sending the packet
+     */
+    private static void sendData(DataOutputStream out, byte[] packet, int length, BandwidthScheduler.Flow flow) throws IOException {
+        if (flow != null) {
+            SCHEDULER.pace(flow, length);
+        }
+        out.write(packet, 0, length);
+        out.flush();
+        METRICS.blocksSent.increment();
+        METRICS.bytesSent.add(length - 4);
+    }
+
     /**
      * Sends a TFTP protocol handshake to the client over the output stream.
      * @param out the output stream to send the handshake to
@@ -166,85 +656,183 @@ public class TFTPTCPSocketServer {
         }
     }
     /**
-     * Handles a write request from a TFTP client by writing the received data to a file on disk.
+     * Handles a write request from a TFTP client by writing the received data to a file on disk,
+     * inflating it first if the client deflates it. The data is kept in a temporary file until it is
+     * complete. With the offset option that file is the destination's partial file, and an upload that
+     * is cut off leaves it behind; otherwise the temporary file is deleted. With the offset option the
+     * client also resumes such an upload: the data is appended to what the partial file
+     * holds up to the requested offset, and the OACK tells the client how much that is. A client that
+     * announces the size of its file with tsize is told the upload failed if the data falls short of it,
+     * since a connection closed at a block boundary otherwise looks like the end of the file. With the
+     * checksum option the data is added to a CRC32C checksum as it is written, after it is inflated,
+     * and the trailer the client sends after the last block is held back from the data and compared with
+     * it; an upload that does not match is refused and its partial file deleted.
      *
      * @param out the output stream to send acknowledgement packets to the client
      * @param in the input stream to receive data packets from the client
-     * @param packetData the initial write request packet from the client
+     * @param request the reader over the initial write request packet from the client
+     * @return true if the file was received and saved, false if an error was sent to the client
      * @throws IOException if there is an error writing the file or communicating with the client
      */
-    private static void handleWriteRequest(DataOutputStream out, DataInputStream in, byte[] packetData) throws IOException {
-        // Parse the filename from the write request packet
-        ByteBuffer buffer = ByteBuffer.wrap(packetData);
-        byte[] fileNameBytes = new byte[BUFFER_SIZE];
-        int fileNameLength = 0;
-        for (int i = 2; i < packetData.length; i++) {
-            if (packetData[i] == 0) {
-                fileNameLength = i - 2;
-                break;
-            }
-            fileNameBytes[i - 2] = packetData[i];
+    private static boolean handleWriteRequest(DataOutputStream out, DataInputStream in, PacketReader request) throws IOException {
+        // Parse the filename from the write request packet, without any path in front of it
+        String fileName = request.baseName();
+        Map<String, String> options = request.options();
+        long resumeFrom = parseBytes(options.get("offset"));
+        long transferSize = parseBytes(options.get("tsize"));
+        // Hand the received data to the write-behind queue, which saves it to a temporary file that
+        // replaces the destination once the whole file has arrived
+        WriteBehind.Upload upload;
+        try {
+            upload = WRITE_BEHIND.open(Paths.get("src/Received Files/" + fileName),
+                    transferSize >= 0 ? Math.min(resumeFrom, transferSize) : resumeFrom);
+        } catch (IOException e) {
+            System.out.println("Error writing to file: " + e.getMessage());
+            sendError(out, Metrics.WRQ, "Error writing to file");
+            return false;
         }
-        // Convert the filename to a string and get its basename
-        String fileName = new String(fileNameBytes, 0, fileNameLength);
-        fileName = new File("src/Received Files/" + fileName).getName();
-        // Write the received data to the file on disk
-        try (FileOutputStream fos = new FileOutputStream("src/Received Files/" + fileName)) {
+        // Deflated data is inflated on its way to the upload, and checksummed once inflated
+        boolean deflate = deflateRequested(request);
+        CRC32C checksum = hasOptions(request) && Checksums.isSupported(options.get(Checksums.OPTION)) ? new CRC32C() : null;
+        Inflater inflater = deflate ? new Inflater() : null;
+        InflaterOutputStream inflating = deflate ? new InflaterOutputStream(
+                checksum != null ? new CheckedOutputStream(upload.stream(), checksum) : upload.stream(), inflater, BUFFER_SIZE) : null;
+        // The trailer carrying the client's checksum follows the last block, which runs to the end of the stream
+        TrailerInputStream trailed = checksum != null ? new TrailerInputStream(in, Checksums.TRAILER_SIZE) : null;
+        InputStream blocks = trailed != null ? trailed : in;
+        try {
+            if (hasOptions(request)) {
+                // The client waits for the OACK before it sends any data
+                Map<String, String> accepted = new LinkedHashMap<>();
+                if (deflate) {
+                    accepted.put("comp", "deflate");
+                }
+                if (resumeFrom >= 0) {
+                    accepted.put("offset", Long.toString(upload.offset()));
+                }
+                if (transferSize >= 0) {
+                    accepted.put("tsize", Long.toString(transferSize));
+                }
+                if (checksum != null) {
+                    accepted.put(Checksums.OPTION, Checksums.CRC32C);
+                }
+                sendOptionAck(out, accepted);
+            }
             short blockNumber = 1;
+            long bytesReceived = 0;
+            byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
+            PacketReader data = new PacketReader();
 
             while (true) {
-                // Read the next data packet from the client
-                byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-                int bytesRead = in.read(dataBuffer, 0, dataBuffer.length);
+                // Read the next data packet from the client; every packet but the last is a full block
+                int bytesRead = blocks.readNBytes(dataBuffer, 0, dataBuffer.length);
 
-                if (bytesRead == -1) {
+                if (bytesRead == 0) {
                     break;
                 }
                 // Extract the block number from the data packet
-                short receivedBlockNumber = (short) (((dataBuffer[2] & 0xFF) << 8) | (dataBuffer[3] & 0xFF));
-                // If the block number is correct, write the data to the file
+                short receivedBlockNumber = (short) data.wrap(dataBuffer, bytesRead).block();
+                // If the block number is correct, queue the data to be written to the file
                 if (receivedBlockNumber == blockNumber) {
-                    int dataSize = bytesRead - 4;
-                    fos.write(dataBuffer, 4, dataSize);
-                    // Send an acknowledgement packet to the client
+                    int dataSize = data.dataLength();
+                    if (inflating != null) {
+                        inflating.write(dataBuffer, data.dataOffset(), dataSize);
+                    } else {
+                        if (checksum != null) {
+                            checksum.update(dataBuffer, data.dataOffset(), dataSize);
+                        }
+                        upload.append(ByteBuffer.wrap(dataBuffer, data.dataOffset(), dataSize));
+                        bytesReceived += dataSize;
+                    }
+                    METRICS.blocksReceived.increment();
+                    METRICS.bytesReceived.add(dataSize);
+                    if (upload.failed()) {
+                        System.out.println("Error writing to file " + fileName + ".");
+                        sendError(out, Metrics.WRQ, "Error writing to file");
+                        return false;
+                    }
                     blockNumber++;
                     // If we received less than the buffer size, we've reached the end of the file
                     if (dataSize < BUFFER_SIZE) {
-                        System.out.println("File transfer to server completed for " + fileName);
                         break;
                     }
                 } else {
                     // If the block number is incorrect, send an error packet to the client
-                    System.out.println("Received data packet with incorrect block number. Expected " + blockNumber + ", but received " + receivedBlockNumber);
-                    sendError(out, "Incorrect block number");
-                    break;
+                    System.out.println("Received data packet with incorrect block number. Expected " + (blockNumber & 0xFFFF) + ", but received " + (receivedBlockNumber & 0xFFFF));
+                    sendError(out, Metrics.WRQ, "Incorrect block number");
+                    return false;
+                }
+            }
+            if (inflating != null) {
+                inflating.finish();
+                // A deflated stream that stops short of its end was cut off
+                if (!inflater.finished()) {
+                    System.out.println("Incomplete compressed data received for " + fileName + ".");
+                    sendError(out, Metrics.WRQ, "Incomplete compressed data");
+                    return false;
                 }
+                bytesReceived = inflater.getBytesWritten();
             }
+            if (trailed != null) {
+                // A connection cut off leaves no trailer, and is abandoned like any other incomplete upload
+                byte[] trailer = trailed.trailer();
+                long senderChecksum = trailer != null ? Checksums.valueOf(new PacketReader().wrap(trailer, trailer.length)) : -1;
+                if (senderChecksum == -1) {
+                    System.out.println("Incomplete data received for " + fileName + ": no checksum trailer.");
+                    sendError(out, Metrics.WRQ, "Incomplete data");
+                    return false;
+                }
+                if (senderChecksum != checksum.getValue()) {
+                    System.out.println("Upload of " + fileName + " does not match its checksum.");
+                    upload.reject();
+                    sendError(out, Metrics.WRQ, "Checksum mismatch");
+                    return false;
+                }
+            }
+            long size = upload.offset() + bytesReceived;
+            if (transferSize >= 0 && size != transferSize) {
+                System.out.println("Incomplete data received for " + fileName + ": " + size + " of " + transferSize + " bytes.");
+                sendError(out, Metrics.WRQ, "Incomplete data");
+                return false;
+            }
+            // Keep the connection open until the file is saved as far as the durability policy asks for
+            CompletableFuture<IOException> saved = new CompletableFuture<>();
+            upload.commit(size, saved::complete);
+            IOException error = saved.join();
+            if (error != null) {
+                System.out.println("Error writing to file: " + error.getMessage());
+                sendError(out, Metrics.WRQ, "Error writing to file");
+                return false;
+            }
+            System.out.println("File transfer to server completed for " + fileName);
+            return true;
         } catch (IOException e) {
             System.out.println("Error writing to file: " + e.getMessage());
-            sendError(out, "Error writing to file");
+            sendError(out, Metrics.WRQ, "Error writing to file");
+            return false;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+            // An upload that did not complete keeps its partial file if the client negotiated the offset
+            // option to resume it, and leaves nothing behind otherwise
+            upload.abort();
         }
     }
     /**
      * Sends an error packet to the client with the specified error message.
      *
      * @param out the output stream to send the error packet to
+     * @param requestType the type of request the error ends, as counted in the metrics
      * @param errorMessage the error message to include in the error packet
      * @throws IOException if there is an error sending the error packet
      */
-    private static void sendError(DataOutputStream out, String errorMessage) throws IOException {
-        // Create a byte array for the error packet
-        byte[] errorPacket = new byte[4 + errorMessage.length() + 1];
-        // Fill in the error packet fields
-        errorPacket[0] = 0;
-        errorPacket[1] = OP_ERROR;
-        errorPacket[2] = 0;
-        errorPacket[3] = 5; // Error code 5
-        byte[] messageBytes = errorMessage.getBytes();
-        System.arraycopy(messageBytes, 0, errorPacket, 4, messageBytes.length);
-        errorPacket[errorPacket.length - 1] = 0; // Null terminator
+    private static void sendError(DataOutputStream out, int requestType, String errorMessage) throws IOException {
+        METRICS.errorsSent.increment(requestType);
+        // Create the error packet, with the error code the server has always sent
+        ByteBuffer errorPacket = PacketWriter.errorPacket(ERROR_UNKNOWN_TID, errorMessage);
         // Send the error packet to the client over the output stream
-        out.write(errorPacket);
+        out.write(errorPacket.array(), 0, errorPacket.limit());
     }
 
 
@@ -0,0 +1,571 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import protocol.Metrics;
+
+/**
+ * Writes uploaded files on a background thread, so the disk stays out of the network round trip.
+ * Received blocks are copied into large chunks, and the writer thread writes each chunk to a
+ * temporary file beside the destination with a single positional write. When an upload ends, its
+ * file is renamed over the destination atomically, so a partial upload never appears under the real
+ * name. An upload that negotiated the offset option is staged in the destination's partial file,
+ * {@code .<name>.partial}, unless another upload to the same destination holds it, and if it is
+ * abandoned it keeps the partial file, trimmed to the data it received, so a later upload can resume
+ * from where it stopped. Any other upload is staged in a temporary file of its own, which is deleted
+ * if the upload is abandoned. Uploads that end while the writer is busy are committed together, sharing one round of fsync
+ * calls and one sync of each directory (group commit). The queue of chunks is bounded; when it is
+ * full, the thread handing over a chunk waits for the writer, which slows uploads to disk speed.
+ */
+class WriteBehind {
+    /**
+     * When an upload counts as finished, which is when the client is told that the last block arrived.
+     */
+    enum Durability {
+        /** As soon as the last block is received; the file is written and renamed in the background. */
+        NONE,
+        /** Once every block has been written and the file has been renamed into place. */
+        WRITE,
+        /** Once the file and the directory holding it have also been flushed to disk with fsync. */
+        FSYNC;
+
+        /**
+         * Parses a durability policy from its name, ignoring case.
+         *
+         * @param name the name of the policy
+         * @return the policy
+         */
+        static Durability parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * The kinds of work handed to the writer thread.
+     */
+    private enum Kind {
+        WRITE, COMMIT, ABORT
+    }
+
+    /**
+     * A chunk to write, or an upload to commit or abandon, queued for the writer thread.
+     */
+    private static final class Operation {
+        final Kind kind;
+        final Upload upload;
+        final ByteBuffer chunk;
+        final long position;
+
+        /**
+         * Creates a piece of work for the writer thread.
+         *
+         * @param kind     what to do
+         * @param upload   the upload the work belongs to
+         * @param chunk    the chunk to write, or null
+         * @param position the offset in the file to write the chunk at
+         */
+        Operation(Kind kind, Upload upload, ByteBuffer chunk, long position) {
+            this.kind = kind;
+            this.upload = upload;
+            this.chunk = chunk;
+            this.position = position;
+        }
+    }
+
+    private final BlockingQueue<Operation> queue;
+    private final int queueSize;
+    private final int chunkSize;
+    private final Durability durability;
+    private final Metrics metrics;
+    // Chunks the writer has finished with, kept for the next uploads up to the size of the queue
+    private final ConcurrentLinkedQueue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeChunkCount = new AtomicInteger();
+    // The partial files held by running uploads, so two uploads to the same destination never share one
+    private final Set<Path> partialsInUse = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the write-behind queue and starts its writer thread.
+     *
+     * @param queueSize  the number of chunks that may wait for the writer
+     * @param chunkSize  the size, in bytes, of the chunks blocks are gathered into
+     * @param durability when an upload counts as finished
+     * @param metrics    the metrics the time spent writing and syncing is recorded in
+     */
+    WriteBehind(int queueSize, int chunkSize, Durability durability, Metrics metrics) {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.queueSize = queueSize;
+        this.chunkSize = chunkSize;
+        this.durability = durability;
+        this.metrics = metrics;
+        Thread writer = new Thread(this::run, "write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Starts an upload. A resumable upload is staged in the partial file of the destination, keeping
+     * up to the given number of bytes an earlier, abandoned upload left in it, so the new upload
+     * continues from there. An upload that is not resumable, or whose partial file another upload to
+     * the same destination holds, gets a temporary file of its own instead, which starts empty and is
+     * not kept if the upload is abandoned.
+     *
+     * @param destination the path the file is renamed to once the upload is committed
+     * @param resumeFrom  the most bytes of the partial file to keep, 0 to start afresh, or -1 if the
+     *                    client did not negotiate the offset option and cannot resume the upload
+     * @return the upload, whose {@link Upload#offset()} is the number of bytes kept
+     * @throws IOException if the partial or temporary file cannot be opened
+     */
+    Upload open(Path destination, long resumeFrom) throws IOException {
+        Path directory = destination.toAbsolutePath().getParent();
+        Path partial = directory.resolve("." + destination.getFileName() + ".partial");
+        if (resumeFrom < 0 || !partialsInUse.add(partial)) {
+            Path temporary = createTemporary(directory, destination.getFileName());
+            return new Upload(destination.toAbsolutePath(), temporary, new RandomAccessFile(temporary.toFile(), "rw"), 0, false);
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw");
+            // Whatever lies past the point the upload resumes from is written again
+            long offset = Math.min(resumeFrom, file.length());
+            file.setLength(offset);
+            return new Upload(destination.toAbsolutePath(), partial, file, offset, true);
+        } catch (IOException e) {
+            partialsInUse.remove(partial);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty temporary file with a name no other upload uses. Unlike
+     * {@link Files#createTempFile}, the file gets the same permissions as any other new file, which the
+     * destination keeps once the file is renamed over it.
+     *
+     * @param directory the directory to create the file in
+     * @param name      the name of the destination
+     * @return the path of the new file
+     * @throws IOException if the file cannot be created
+     */
+    private static Path createTemporary(Path directory, Path name) throws IOException {
+        while (true) {
+            Path temporary = directory.resolve("." + name + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".part");
+            try {
+                return Files.createFile(temporary);
+            } catch (FileAlreadyExistsException e) {
+                // Another file took the name, so pick another
+            }
+        }
+    }
+
+    /**
+     * Hands work to the writer thread, waiting for room in the queue if the writer has fallen behind.
+     *
+     * @param operation the work to queue
+     */
+    private void submit(Operation operation) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(operation);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a chunk to gather blocks in, reusing one the writer has finished with when possible.
+     *
+     * @return an empty chunk
+     */
+    private ByteBuffer takeChunk() {
+        ByteBuffer chunk = freeChunks.poll();
+        if (chunk == null) {
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+        freeChunkCount.decrementAndGet();
+        return chunk.clear();
+    }
+
+    /**
+     * Keeps a chunk for reuse, unless enough are kept already.
+     *
+     * @param chunk the chunk the writer has finished with
+     */
+    private void releaseChunk(ByteBuffer chunk) {
+        if (freeChunkCount.incrementAndGet() <= queueSize) {
+            freeChunks.offer(chunk);
+        } else {
+            freeChunkCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the writer thread: takes whatever work is queued as one batch, writes its chunks in order,
+     * then commits every upload that ended in the batch together.
+     */
+    private void run() {
+        List<Operation> batch = new ArrayList<>();
+        List<Upload> commits = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (Operation operation : batch) {
+                if (operation.kind == Kind.WRITE) {
+                    operation.upload.write(operation.chunk, operation.position);
+                    releaseChunk(operation.chunk);
+                } else if (operation.kind == Kind.COMMIT) {
+                    commits.add(operation.upload);
+                } else {
+                    operation.upload.discard();
+                }
+            }
+            batch.clear();
+            if (!commits.isEmpty()) {
+                commit(commits);
+                commits.clear();
+            }
+        }
+    }
+
+    /**
+     * Commits a group of uploads: trims each file to its size, flushes it to disk if the policy asks
+     * for it, and renames it into place, then syncs each directory involved once for the whole group.
+     *
+     * @param uploads the uploads to commit
+     */
+    private void commit(List<Upload> uploads) {
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Upload upload : uploads) {
+            try {
+                if (upload.error == null) {
+                    // Drop any preallocated space the client did not fill
+                    upload.file.getChannel().truncate(upload.size);
+                    if (durability == Durability.FSYNC) {
+                        long syncStart = System.nanoTime();
+                        upload.file.getChannel().force(true);
+                        metrics.diskSync.recordSince(syncStart);
+                    }
+                }
+                upload.file.close();
+                if (upload.error == null) {
+                    Files.move(upload.temporary, upload.destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    directories.add(upload.destination.getParent());
+                }
+            } catch (IOException e) {
+                upload.fail(e);
+            }
+        }
+        if (durability == Durability.FSYNC) {
+            // The renames only survive a crash once the directories holding them are flushed too
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        }
+        for (Upload upload : uploads) {
+            if (upload.error != null) {
+                deleteQuietly(upload.temporary);
+            }
+            if (upload.resumable) {
+                partialsInUse.remove(upload.temporary);
+            }
+            upload.committed.accept(upload.error);
+        }
+    }
+
+    /**
+     * Flushes a directory's entries to disk. Platforms that cannot open a directory skip this.
+     *
+     * @param directory the directory to flush
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory; the rename is still in place
+        }
+    }
+
+    /**
+     * Deletes a file, ignoring any error.
+     *
+     * @param path the file to delete
+     */
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Error deleting " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A single upload: the blocks received so far, gathered into chunks for the writer thread. Blocks
+     * are appended by one thread at a time, while the writer records any error it runs into.
+     */
+    final class Upload {
+        private final Path destination;
+        private final Path temporary;
+        private final RandomAccessFile file;
+        // The bytes kept from an earlier upload, and whether the file is kept for a later upload if this one is abandoned
+        private final long offset;
+        private final boolean resumable;
+        // The chunk being filled, and the offset in the file where it starts
+        private ByteBuffer chunk;
+        private long chunkPosition;
+        private long size;
+        private boolean finished;
+        // Whether the data failed its checksum, so even a partial file is not worth keeping
+        private boolean rejected;
+        private volatile IOException error;
+        private Consumer<IOException> committed;
+
+        /**
+         * Creates an upload staged in the given temporary file.
+         *
+         * @param destination the path the file is renamed to once the upload is committed
+         * @param temporary   the temporary file the data is written to
+         * @param file        the temporary file, open for writing
+         * @param offset      the number of bytes already in the file, after which the data is appended
+         * @param resumable   whether the file is the destination's partial file, kept if the upload is abandoned
+         */
+        private Upload(Path destination, Path temporary, RandomAccessFile file, long offset, boolean resumable) {
+            this.destination = destination;
+            this.temporary = temporary;
+            this.file = file;
+            this.offset = offset;
+            this.resumable = resumable;
+            this.chunkPosition = offset;
+        }
+
+        /**
+         * Returns the number of bytes kept from an earlier upload, where the data of this one starts.
+         *
+         * @return the offset in the file of the first byte appended
+         */
+        long offset() {
+            return offset;
+        }
+
+        /**
+         * Reserves space for the announced size of the upload, so the file is laid out in one go.
+         *
+         * @param length the announced size in bytes
+         * @throws IOException if the space cannot be reserved
+         */
+        void preallocate(long length) throws IOException {
+            file.setLength(length);
+        }
+
+        /**
+         * Appends the remaining bytes of a buffer to the upload, handing every chunk that fills up to the writer.
+         *
+         * @param data the data to append, consumed by this call
+         */
+        void append(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                if (chunk == null) {
+                    chunk = takeChunk();
+                }
+                int length = Math.min(data.remaining(), chunk.remaining());
+                int limit = data.limit();
+                chunk.put(data.limit(data.position() + length));
+                data.limit(limit);
+                if (!chunk.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Returns a stream that appends what is written to it to the upload, for data that is
+         * transformed on its way in, such as by inflating it.
+         *
+         * @return the stream, which need not be closed
+         */
+        OutputStream stream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    append(ByteBuffer.wrap(new byte[]{(byte) b}));
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    append(ByteBuffer.wrap(b, off, len));
+                }
+            };
+        }
+
+        /**
+         * Hands the chunk being filled to the writer thread.
+         */
+        private void flush() {
+            if (chunk == null || chunk.position() == 0) {
+                return;
+            }
+            chunk.flip();
+            submit(new Operation(Kind.WRITE, this, chunk, chunkPosition));
+            chunkPosition += chunk.limit();
+            chunk = null;
+        }
+
+        /**
+         * Returns whether the writer failed to write part of the upload, in which case it cannot succeed.
+         *
+         * @return true if a write failed
+         */
+        boolean failed() {
+            return error != null;
+        }
+
+        /**
+         * Ends the upload: the remaining data is written, the file trimmed to its final size and renamed
+         * over the destination. The callback is run once the upload is as durable as the policy asks for,
+         * on the writer thread, or straight away on this thread when the policy is {@link Durability#NONE}.
+         *
+         * @param length   the size of the uploaded file
+         * @param callback run with null once the upload is committed, or with the error that stopped it
+         */
+        void commit(long length, Consumer<IOException> callback) {
+            flush();
+            finished = true;
+            size = length;
+            if (durability == Durability.NONE) {
+                callback.accept(null);
+                committed = e -> {
+                    if (e != null) {
+                        System.out.println("Error saving " + destination.getFileName() + ": " + e.getMessage());
+                    }
+                };
+            } else {
+                committed = callback;
+            }
+            submit(new Operation(Kind.COMMIT, this, null, 0));
+        }
+
+        /**
+         * Abandons an upload that did not finish. A partial file keeps every byte received, and is
+         * trimmed to them once the writer reaches it; any other temporary file is deleted. Abandoning
+         * an upload that was already committed does nothing.
+         */
+        void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (resumable && !rejected) {
+                flush();
+            } else if (chunk != null) {
+                releaseChunk(chunk);
+                chunk = null;
+            }
+            size = chunkPosition;
+            submit(new Operation(Kind.ABORT, this, null, 0));
+        }
+
+        /**
+         * Abandons an upload whose data does not match the checksum its sender worked out. The
+         * temporary file is deleted even if it is the partial file, so no later upload resumes from
+         * the bad data.
+         */
+        void reject() {
+            rejected = true;
+            abort();
+        }
+
+        /**
+         * Writes a chunk at its offset in the temporary file, on the writer thread. After a failed write
+         * the rest of the upload is skipped.
+         *
+         * @param data     the chunk to write
+         * @param position the offset in the file to write it at
+         */
+        private void write(ByteBuffer data, long position) {
+            if (error != null) {
+                return;
+            }
+            try {
+                long writeStart = System.nanoTime();
+                while (data.hasRemaining()) {
+                    position += file.getChannel().write(data, position);
+                }
+                metrics.diskWrite.recordSince(writeStart);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Records the first error the upload ran into.
+         *
+         * @param e the error
+         */
+        private void fail(IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        /**
+         * Closes the temporary file of an abandoned upload, on the writer thread. A partial file is
+         * trimmed to the bytes received, dropping any space preallocated past them, and flushed to disk
+         * if the policy asks for it, so a later upload resumes from data that is really there. Any
+         * other temporary file, or a partial file a write failed for or whose data was rejected, is deleted.
+         */
+        private void discard() {
+            boolean keep = resumable && !rejected && error == null;
+            try {
+                if (keep) {
+                    file.getChannel().truncate(size);
+                    if (durability == Durability.FSYNC) {
+                        long syncStart = System.nanoTime();
+                        file.getChannel().force(true);
+                        metrics.diskSync.recordSince(syncStart);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error keeping " + temporary + ": " + e.getMessage());
+                keep = false;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("Error closing " + temporary + ": " + e.getMessage());
+            }
+            if (!keep) {
+                deleteQuietly(temporary);
+            }
+            if (resumable) {
+                partialsInUse.remove(temporary);
+            }
+        }
+    }
+}
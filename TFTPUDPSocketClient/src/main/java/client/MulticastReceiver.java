@@ -0,0 +1,276 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.RttEstimator;
+
+import static client.TFTPUDPSocketClient.*;
+import static protocol.Tftp.*;
+
+/**
+ * Receives a file over multicast (RFC 2090). The request and the ACKs go to the server over a unicast
+ * control channel, while the DATA blocks arrive on a multicast group that other clients reading the
+ * same file listen to as well. Blocks are written to the file wherever they belong as they arrive, in
+ * any order, so a client that joined late keeps the blocks it sees and only asks for the ones it
+ * missed once the server makes it the master client. A server that does not support multicast
+ * answers with an ordinary transfer, which is received the same way.
+ */
+class MulticastReceiver {
+    // Interface to join the multicast group on; by default the one the server is reached through
+    private static final String MULTICAST_INTERFACE = System.getProperty("tftp.multicastInterface");
+
+    private final String fileName;
+    private final File destinationFile;
+    private final InetSocketAddress serverAddress;
+    private final TransferOptions options = new TransferOptions();
+    private final RttEstimator rtt = new RttEstimator();
+    private final ByteBuffer packet = ByteBuffer.allocate(TransferOptions.REQUESTED_BLOCK_SIZE + 4);
+    private final PacketReader reader = new PacketReader();
+    private final ByteBuffer ackPacket = ByteBuffer.allocate(HEADER_SIZE);
+    private final PacketWriter ackWriter = new PacketWriter().wrap(ackPacket);
+    // The blocks received so far, the last block such that every block up to it has been received, and the final block once it is known
+    private final BitSet received = new BitSet();
+    private int contiguousBlock;
+    private int finalBlock = -1;
+    private DatagramChannel control;
+    private DatagramChannel group;
+    private Selector selector;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel file;
+    // The server's transfer ID, known once it first answers
+    private SocketAddress serverTid;
+    // Whether the client acknowledges blocks, either as the master client or because the server sends to it alone
+    private boolean master;
+    // The last packet sent over the control channel, which is resent whenever the server goes quiet
+    private ByteBuffer lastSent;
+
+    /**
+     * Creates a receiver for the named file.
+     *
+     * @param fileName      the name of the file to retrieve
+     * @param destination   the local file to save it to
+     * @param serverAddress the address and port the server listens for requests on
+     */
+    MulticastReceiver(String fileName, File destination, InetSocketAddress serverAddress) {
+        this.fileName = fileName;
+        this.destinationFile = destination;
+        this.serverAddress = serverAddress;
+    }
+
+    /**
+     * Requests the file and receives it, returning once every block has been written.
+     *
+     * @throws IOException if the server reports an error, stops answering, or the file cannot be written
+     */
+    void receive() throws IOException {
+        try (RandomAccessFile destination = new RandomAccessFile(destinationFile, "rw");
+             DatagramChannel controlChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+             Selector readySelector = Selector.open()) {
+            // blocks are written straight to the file, so truncate whatever an earlier transfer left behind
+            destination.setLength(0);
+            randomAccessFile = destination;
+            file = destination.getChannel();
+            control = controlChannel;
+            selector = readySelector;
+            control.bind(null);
+            control.configureBlocking(false);
+            control.register(selector, SelectionKey.OP_READ);
+            lastSent = ByteBuffer.wrap(createRequestPacket(OP_RRQ, "src/Retrieved Files/" + fileName, 0, true, -1, -1));
+            control.send(lastSent, serverAddress);
+            long sentAt = System.nanoTime();
+            int retries = 0;
+            while (finalBlock == -1 || contiguousBlock < finalBlock) {
+                if (selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(rtt.timeout()))) == 0) {
+                    // nothing arrived in time: resend the request or the last ACK, and give up after the retry limit
+                    if (++retries > MAX_RETRIES) {
+                        throw new SocketTimeoutException("Timeout waiting for block " + (contiguousBlock + 1) + " after " + MAX_RETRIES + " retransmissions");
+                    }
+                    rtt.backoff();
+                    sentAt = 0;
+                    if (serverTid == null || master) {
+                        control.send(lastSent.rewind(), serverTid == null ? serverAddress : serverTid);
+                    }
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                retries = 0;
+                // only the answer to a request that was sent once times the round trip
+                if (sentAt != 0) {
+                    rtt.addSample(System.nanoTime() - sentAt);
+                    sentAt = 0;
+                }
+                receivePackets(control);
+                if (group != null) {
+                    receivePackets(group);
+                }
+            }
+            if (!master) {
+                // a client that got the whole file without becoming the master client leaves by acknowledging the final block
+                sendAck(finalBlock);
+            }
+            System.out.println("File transfer completed for " + fileName);
+        } finally {
+            if (group != null) {
+                group.close();
+            }
+        }
+    }
+
+    /**
+     * Receives every packet waiting on a channel.
+     *
+     * @param channel the control channel or the multicast group channel
+     * @throws IOException if the server reports an error or the file cannot be written
+     */
+    private void receivePackets(DatagramChannel channel) throws IOException {
+        SocketAddress sender;
+        while ((finalBlock == -1 || contiguousBlock < finalBlock) && (sender = channel.receive(packet.clear())) != null) {
+            reader.wrap(packet.flip());
+            if (reader.length() < HEADER_SIZE) {
+                continue;
+            }
+            // the first answer to the request comes from the server's transfer ID, and every later packet must too
+            if (serverTid == null) {
+                if (channel != control) {
+                    continue;
+                }
+                serverTid = sender;
+            } else if (!serverTid.equals(sender)) {
+                continue;
+            }
+            int opcode = reader.opcode();
+            if (opcode == OP_OACK) {
+                onOack();
+            } else if (opcode == OP_DATA) {
+                onData();
+            } else if (opcode == OP_ERROR) {
+                throw new IOException("Server error: " + reader.errorMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies an OACK, which starts the transfer or makes this client the master client, and joins
+     * the multicast group the first time it is named.
+     *
+     * @throws IOException if the OACK is invalid or the group cannot be joined
+     */
+    private void onOack() throws IOException {
+        options.applyOack(reader);
+        if (options.timeout > 0) {
+            rtt.setFixedTimeout(TimeUnit.SECONDS.toNanos(options.timeout));
+        }
+        if (options.transferSize >= 0 && finalBlock == -1) {
+            // the size of the file fixes the final block, and the space for it is reserved up front
+            finalBlock = (int) (options.transferSize / options.blockSize) + 1;
+            randomAccessFile.setLength(options.transferSize);
+        }
+        if (options.multicastAddress != null && group == null) {
+            joinGroup();
+        }
+        // a server without multicast sends the file to this client alone, so it acknowledges every block
+        master = options.multicastAddress == null || options.master;
+        if (master) {
+            sendAck(contiguousBlock);
+        }
+    }
+
+    /**
+     * Writes a DATA block to the file, wherever it belongs, unless it was already received.
+     *
+     * @throws IOException if the file cannot be written or the ACK cannot be sent
+     */
+    private void onData() throws IOException {
+        if (options.multicastAddress == null && !master) {
+            // a server that ignored the options answers straight away with the first block
+            master = true;
+        }
+        // a multicast file has at most 65535 blocks, while the block number of a unicast fallback wraps
+        // around after 65535 blocks and is taken as the one closest to the last block received in order
+        int block = reader.block();
+        if (options.multicastAddress == null) {
+            block = contiguousBlock + (short) (block - contiguousBlock);
+        }
+        if (block == 0 || (finalBlock != -1 && block > finalBlock)) {
+            return;
+        }
+        int dataSize = reader.dataLength();
+        if (!received.get(block)) {
+            packet.position(reader.dataOffset());
+            long position = (long) (block - 1) * options.blockSize;
+            while (packet.hasRemaining()) {
+                position += file.write(packet, position);
+            }
+            received.set(block);
+            if (dataSize < options.blockSize) {
+                finalBlock = block;
+            }
+            while (received.get(contiguousBlock + 1)) {
+                contiguousBlock++;
+            }
+        }
+        // the master client answers every block with the last block it holds without a gap, so the server resends the first one missing
+        if (master) {
+            sendAck(contiguousBlock);
+        }
+    }
+
+    /**
+     * Joins the multicast group named in the OACK, on the configured interface or the one the server is reached through.
+     *
+     * @throws IOException if the group cannot be joined
+     */
+    private void joinGroup() throws IOException {
+        NetworkInterface networkInterface;
+        if (MULTICAST_INTERFACE != null) {
+            networkInterface = NetworkInterface.getByName(MULTICAST_INTERFACE);
+        } else {
+            // the local address of a socket connected to the server picks out the interface that reaches it
+            try (DatagramChannel probe = DatagramChannel.open(StandardProtocolFamily.INET)) {
+                probe.connect(serverAddress);
+                networkInterface = NetworkInterface.getByInetAddress(((InetSocketAddress) probe.getLocalAddress()).getAddress());
+            }
+        }
+        if (networkInterface == null) {
+            throw new IOException("No network interface to join the multicast group on");
+        }
+        InetAddress groupAddress = options.multicastAddress;
+        // every client on this host listens on the group port, so the port has to be shared
+        group = DatagramChannel.open(StandardProtocolFamily.INET);
+        group.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        group.bind(new InetSocketAddress(options.multicastPort));
+        group.join(groupAddress, networkInterface);
+        group.configureBlocking(false);
+        group.register(selector, SelectionKey.OP_READ);
+        System.out.println("Joined multicast group " + groupAddress.getHostAddress() + ":" + options.multicastPort + " on " + networkInterface.getName());
+    }
+
+    /**
+     * Sends an ACK packet to the server's transfer ID and keeps it as the packet to resend.
+     *
+     * @param block the block number to acknowledge
+     * @throws IOException if the packet cannot be sent
+     */
+    private void sendAck(int block) throws IOException {
+        control.send(ackWriter.ack(block), serverTid);
+        lastSent = ackPacket;
+    }
+}
@@ -0,0 +1,85 @@
+package client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A packet to the server's transfer ID that is rewritten in place and sent again for every block,
+ * such as the DATA packet of an upload or the ACK packet of a download. DatagramSocket.send builds a
+ * new address from the packet each time it is called, so on a socket opened with
+ * {@link #openSocket()} the packet goes out through the socket's channel instead, from a buffer
+ * wrapping its data to an address built once, and sending it allocates nothing.
+ */
+class OutgoingPacket {
+    private final DatagramSocket socket;
+    private final DatagramPacket packet;
+    private final ByteBuffer buffer;
+    private final InetSocketAddress target;
+
+    /**
+     * Creates a packet around the given data, addressed to the server's transfer ID.
+     *
+     * @param socket  the socket to send the packet from
+     * @param data    the bytes of the packet, rewritten before each send
+     * @param address the address of the server
+     * @param port    the port of the server's transfer ID
+     */
+    OutgoingPacket(DatagramSocket socket, byte[] data, InetAddress address, int port) {
+        this.socket = socket;
+        this.packet = new DatagramPacket(data, data.length, address, port);
+        this.buffer = ByteBuffer.wrap(data);
+        this.target = new InetSocketAddress(address, port);
+    }
+
+    /**
+     * Opens a socket on an ephemeral port through a DatagramChannel, so that packets can be sent
+     * through the channel.
+     *
+     * @return the socket
+     * @throws IOException if the socket cannot be opened
+     */
+    static DatagramSocket openSocket() throws IOException {
+        return DatagramChannel.open().bind(null).socket();
+    }
+
+    /**
+     * Returns the bytes of the packet, to be rewritten before the next send.
+     *
+     * @return the bytes of the packet
+     */
+    byte[] data() {
+        return packet.getData();
+    }
+
+    /**
+     * Returns the packet as last sent, for resending it through the socket and for telling whether a
+     * packet came from the server's transfer ID.
+     *
+     * @return the packet
+     */
+    DatagramPacket packet() {
+        return packet;
+    }
+
+    /**
+     * Sends the first bytes of the packet.
+     *
+     * @param length the number of bytes to send
+     * @throws IOException if the packet cannot be sent
+     */
+    void send(int length) throws IOException {
+        packet.setLength(length);
+        DatagramChannel channel = socket.getChannel();
+        if (channel == null) {
+            socket.send(packet);
+            return;
+        }
+        buffer.clear().limit(length);
+        channel.send(buffer, target);
+    }
+}
@@ -2,17 +2,23 @@ package client;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import protocol.Checksums;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.RttEstimator;
+
+import static protocol.Tftp.*;
 
     public class TFTPUDPSocketClient {
-        private static final int BUFFER_SIZE = 512;
-        private static final byte OP_RRQ = 1;
-        private static final byte OP_WRQ = 2;
-        private static final byte OP_DATA = 3;
-        private static final byte OP_ACK = 4;
-        private static final byte OP_ERROR = 5;
+        private static final int BUFFER_SIZE = DEFAULT_BLOCK_SIZE;
+        // Number of times a packet is retransmitted without an answer before the transfer is abandoned
+        static final int MAX_RETRIES = Integer.getInteger("tftp.maxRetries", 5);
         private static boolean running = true;
 
         /**
@@ -31,9 +37,7 @@ import java.util.Scanner;
             while (running) {
                 System.out.println("**NOTE**");
                 System.out.println("If you want to send a file, the file should be in the 'Sending Files' directory. To retrieve a file it should in the servers 'Retrieve Files' directory");
-                try (DatagramSocket clientSocket = new DatagramSocket()) {
-                    clientSocket.setSoTimeout(5000);
-
+                try (DatagramSocket clientSocket = OutgoingPacket.openSocket()) {
                     System.out.print("Enter the filename: ");
                     String fileName = scanner.next();
 
@@ -67,6 +71,77 @@ import java.util.Scanner;
             }
         }
 
+        /**
+         * Sends a file to the server without any prompts or progress messages, for programs that drive
+         * the client, such as the load generator.
+         *
+         * @param serverAddress The IP address of the server.
+         * @param serverPort    The port number the server listens for requests on.
+         * @param source        The local file to send.
+         * @param fileName      The name to store the file under on the server.
+         * @throws IOException If the file cannot be read, the server reports an error or stops answering.
+         */
+        public static void send(InetAddress serverAddress, int serverPort, File source, String fileName) throws IOException {
+            try (DatagramSocket clientSocket = OutgoingPacket.openSocket()) {
+                TransferOptions options = TransferOptions.forWrite(source);
+                RttEstimator rtt = new RttEstimator();
+                int transferPort = requestWrite(clientSocket, fileName, source, serverAddress, serverPort, options, rtt);
+                sendBlocks(clientSocket, serverAddress, transferPort, source, options, rtt);
+            }
+        }
+
+        /**
+         * Retrieves a file from the server without any prompts, for programs that drive the client,
+         * such as the load generator.
+         *
+         * @param serverAddress The IP address of the server.
+         * @param serverPort    The port number the server listens for requests on.
+         * @param fileName      The name of the file on the server.
+         * @param destination   The local file to save it to.
+         * @throws IOException If the server reports an error or stops answering, or the file arrives incomplete.
+         */
+        public static void retrieve(InetAddress serverAddress, int serverPort, String fileName, File destination) throws IOException {
+            retrieve(serverAddress, serverPort, fileName, destination, TransferOptions.forRead(destination));
+        }
+
+        /**
+         * Retrieves part of a file from the server without any prompts, writing it to the same place in
+         * the local file and keeping the rest of the local file. The server may start the range at the
+         * beginning of the block holding the offset, so a few bytes before it can be written as well.
+         *
+         * @param serverAddress The IP address of the server.
+         * @param serverPort    The port number the server listens for requests on.
+         * @param fileName      The name of the file on the server.
+         * @param destination   The local file to write the range into.
+         * @param offset        The offset in the file of the first byte to retrieve.
+         * @param length        The number of bytes to retrieve, or -1 for the rest of the file.
+         * @throws IOException If the server reports an error or stops answering, or the range arrives incomplete.
+         */
+        public static void retrieve(InetAddress serverAddress, int serverPort, String fileName, File destination, long offset, long length) throws IOException {
+            TransferOptions options = new TransferOptions();
+            options.requestedOffset = Math.max(offset, 0);
+            options.requestedLength = Math.max(length, -1);
+            retrieve(serverAddress, serverPort, fileName, destination, options);
+        }
+
+        /**
+         * Retrieves a file, or the part of it the options ask for, without any prompts.
+         *
+         * @param serverAddress The IP address of the server.
+         * @param serverPort    The port number the server listens for requests on.
+         * @param fileName      The name of the file on the server.
+         * @param destination   The local file to save it to.
+         * @param options       The options to ask for, including the range if there is one.
+         * @throws IOException If the server reports an error or stops answering, or the file arrives incomplete.
+         */
+        private static void retrieve(InetAddress serverAddress, int serverPort, String fileName, File destination, TransferOptions options) throws IOException {
+            try (DatagramSocket clientSocket = OutgoingPacket.openSocket()) {
+                if (!readFile(clientSocket, fileName, destination, serverAddress, serverPort, options)) {
+                    throw new IOException("Incomplete or corrupt data received for " + fileName);
+                }
+            }
+        }
+
         /**
          * Sends a write request to the server containing the specified file name.
          *
@@ -77,11 +152,46 @@ import java.util.Scanner;
          * @throws IOException If an I/O error occurs while sending the packet.
          */
         private static void sendWriteRequest(DatagramSocket clientSocket, String fileName, InetAddress serverAddress, int serverPort) throws IOException {
-            byte[] wrqPacket = createWrqPacket(fileName);
+            File source = new File("src/Sending Files/" + fileName);
+            TransferOptions options = TransferOptions.forWrite(source);
+            RttEstimator rtt = new RttEstimator();
+            int transferPort = requestWrite(clientSocket, fileName, source, serverAddress, serverPort, options, rtt);
+            // check if the file exists
+            if (source.exists()) {
+                try {
+                    if (options.offset > 0) {
+                        System.out.println("Resuming upload of " + fileName + " from byte " + options.offset);
+                    }
+                    sendBlocks(clientSocket, serverAddress, transferPort, source, options, rtt);
+                    System.out.println("File transfer completed for " + fileName);
+                } catch (IOException e) {
+                    System.out.println("Error reading from file: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Sends a write request and waits for the server to accept it.
+         *
+         * @param clientSocket  The DatagramSocket object used to send and receive data.
+         * @param fileName      The name to store the file under on the server.
+         * @param source        The local file to send, whose size is announced if it exists.
+         * @param serverAddress The IP address of the server.
+         * @param serverPort    The port number the server listens for requests on.
+         * @param options       The transfer options, including the offset to offer when resuming, updated with
+         *                      the values acknowledged by the server.
+         * @param rtt           The round-trip time estimate, updated from the time the server took to answer.
+         * @return The port the server answered from, which the rest of the transfer goes to.
+         * @throws IOException If the server refuses the request or does not answer it.
+         */
+        private static int requestWrite(DatagramSocket clientSocket, String fileName, File source, InetAddress serverAddress, int serverPort,
+                                        TransferOptions options, RttEstimator rtt) throws IOException {
+            // announce the size of the file so the server can refuse it up front or preallocate it (RFC 2349)
+            byte[] wrqPacket = createWrqPacket(fileName, source.exists() ? source.length() : -1, options.requestedOffset);
             DatagramPacket sendPacket = new DatagramPacket(wrqPacket, wrqPacket.length, serverAddress, serverPort);
             clientSocket.send(sendPacket);
-            receiveInitialAck(clientSocket);
-            sendFile(clientSocket, serverAddress, serverPort, fileName);
+            // the server answers from a new port (its transfer ID), so the rest of the transfer goes there
+            return receiveInitialAck(clientSocket, options, sendPacket, rtt);
         }
 
         /**
@@ -95,102 +205,352 @@ import java.util.Scanner;
          */
         private static void sendReadRequest(DatagramSocket clientSocket, String fileName, InetAddress serverAddress, int serverPort) throws IOException {
             fileName = new File(fileName).getName(); // removes the path from the file name
+            File destination = new File("src/Retrieved Files/" + fileName);
+            readFile(clientSocket, fileName, destination, serverAddress, serverPort, TransferOptions.forRead(destination));
+        }
+
+        /**
+         * Sends a read request to the server and receives the file into the given local file.
+         *
+         * @param clientSocket  The DatagramSocket object used to send and receive data.
+         * @param fileName      The name of the file to retrieve.
+         * @param destination   The local file to save it to.
+         * @param serverAddress The IP address of the server.
+         * @param serverPort    The port number to use for communication with the server.
+         * @param options       The options to ask for, including the range if there is one, updated with the
+         *                      values acknowledged by the server.
+         * @return True if the whole file, or the whole range, was received and matched its checksum.
+         * @throws IOException If an I/O error occurs while receiving or writing the file.
+         */
+        private static boolean readFile(DatagramSocket clientSocket, String fileName, File destination, InetAddress serverAddress, int serverPort,
+                                        TransferOptions options) throws IOException {
+            if (TransferOptions.MULTICAST && options.requestedOffset < 0) {
+                // the file arrives on a multicast group shared with other clients, so it needs its own channels
+                new MulticastReceiver(fileName, destination, new InetSocketAddress(serverAddress, serverPort)).receive();
+                return true;
+            }
             // create a read request packet for the given file
-            byte[] rrqPacket = createRrqPacket("src/Retrieved Files/" + fileName);
+            byte[] rrqPacket = createRrqPacket("src/Retrieved Files/" + fileName, options);
             // create a DatagramPacket containing the read request packet, the server's IP address, and the server's port number
             DatagramPacket sendPacket = new DatagramPacket(rrqPacket, rrqPacket.length, serverAddress, serverPort);
             // send the DatagramPacket to the server
             clientSocket.send(sendPacket);
-            // receive the file from the server
-            receiveFile(clientSocket, fileName);
+            // receive the file from the server, resending the request if the server does not answer it
+            return receiveFile(clientSocket, fileName, destination, sendPacket, options);
         }
 
         /**
-         * Sends the specified file to the server in chunks of a fixed size.
+         * Sends the specified file to the server in chunks of a fixed size. With the checksum option, each
+         * chunk is added to the checksum as it is read, and the final block is followed by the trailer.
          *
          * @param clientSocket  The DatagramSocket object used to send and receive data.
          * @param serverAddress The IP address of the server.
          * @param serverPort    The port number to use for communication with the server.
-         * @param fileName      The name of the file to send.
+         * @param source        The file to send.
+         * @param options       The options acknowledged by the server: the block size, the offset in the file to
+         *                      send from, where the server resumes the upload, and whether to send a checksum.
+         * @param rtt           The round-trip time estimate that sets the retransmission timeout.
          * @throws IOException If an I/O error occurs while reading the file or sending the data.
          */
-        private static void sendFile(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName) throws IOException {
-            // check if the file exists
-            String filePath = "src/Sending Files/" + fileName;
-            if (Files.exists(Paths.get(filePath))) {
-                try (FileInputStream fis = new FileInputStream(filePath)) {
-                    short blockNumber = 1;
-                    int bytesRead;
-                    byte[] dataBuffer = new byte[BUFFER_SIZE];
-                    // read the file in BUFFER_SIZE chunks and send each chunk as a data packet to the server
-                    while ((bytesRead = fis.read(dataBuffer)) != -1) {
-                        // send the data packet to the server
-                        sendData(clientSocket, serverAddress, serverPort, blockNumber, dataBuffer, bytesRead);
-                        // wait for an acknowledgement packet from the server for the current block
-                        receiveAck(clientSocket, blockNumber);
-
-                        blockNumber++;
+        private static void sendBlocks(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, File source, TransferOptions options, RttEstimator rtt) throws IOException {
+            int blockSize = options.blockSize;
+            CRC32C checksum = options.checksum ? new CRC32C() : null;
+            try (FileInputStream fis = new FileInputStream(source)) {
+                // skip what the server already has of a resumed upload
+                fis.getChannel().position(options.offset);
+                short blockNumber = 1;
+                int bytesRead;
+                // one DATA packet and one ACK packet serve the whole transfer, rewritten in place for every block
+                byte[] dataBuffer = new byte[blockSize + 4];
+                OutgoingPacket dataPacket = new OutgoingPacket(clientSocket, dataBuffer, serverAddress, serverPort);
+                DatagramPacket ackPacket = new DatagramPacket(new byte[BUFFER_SIZE + 4], BUFFER_SIZE + 4);
+                PacketReader reader = new PacketReader();
+                long strayPackets = 0;
+                // read the file in blockSize chunks and send each chunk as a data packet to the server,
+                // finishing with a short (possibly empty) block so the server knows the file has ended
+                do {
+                    // read the next chunk straight into the packet, behind the opcode and block number
+                    bytesRead = fis.readNBytes(dataBuffer, 4, blockSize);
+                    if (checksum != null) {
+                        checksum.update(dataBuffer, 4, bytesRead);
                     }
-                    System.out.println("File transfer completed for " + fileName);
+                    // send the data packet to the server
+                    sendData(dataPacket, blockNumber, bytesRead);
+                    // the final block is followed by the trailer, and the server only acknowledges it once both are there
+                    DatagramPacket trailer = null;
+                    if (checksum != null && bytesRead < blockSize) {
+                        byte[] trailerPacket = Checksums.trailer(checksum.getValue());
+                        trailer = new DatagramPacket(trailerPacket, trailerPacket.length, serverAddress, serverPort);
+                        clientSocket.send(trailer);
+                    }
+                    // wait for an acknowledgement packet from the server for the current block, resending the block if it does not come in time
+                    strayPackets += receiveAck(clientSocket, blockNumber, dataPacket.packet(), trailer, ackPacket, reader, rtt);
 
-                } catch (IOException e) {
-                    System.out.println("Error reading from file: " + e.getMessage());
+                    blockNumber++;
+                } while (bytesRead == blockSize);
+                if (strayPackets > 0) {
+                    System.out.println("Ignored " + strayPackets + " packets from an unknown transfer ID.");
                 }
             }
         }
 
 
         /**
-         * Receives a file from the server and saves it in the local directory.
+         * Receives a file from the server and saves it in the local directory. With the checksum option,
+         * each block is added to the checksum as it is written, and the final block is only acknowledged
+         * once the server's trailer has arrived and matches it.
          *
          * @param clientSocket The DatagramSocket object used to send and receive data.
          * @param fileName     The name of the file to be saved.
+         * @param destination  The local file to save it to.
+         * @param rrqPacket    The read request, resent if the server does not answer it.
+         * @param options      The options asked for in the request, updated with the values acknowledged by the server.
+         * @return True if the whole file, or the whole range, was received and matched its checksum.
          * @throws IOException If an I/O error occurs while receiving or writing the file.
          */
-        private static void receiveFile(DatagramSocket clientSocket, String fileName) throws IOException {
-            try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                 FileOutputStream fos = new FileOutputStream("src/Retrieved Files/" + fileName)) {
+        private static boolean receiveFile(DatagramSocket clientSocket, String fileName, File destination, DatagramPacket rrqPacket,
+                                           TransferOptions options) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+                // the file is made ready for the blocks once the server has said which part of the file it sends
+                boolean prepared = false;
+                // bytes and blocks received, counted in 64 bits since the 16-bit block number wraps around after 65535 blocks
+                long bytesReceived = 0;
+                long blocksReceived = 0;
                 short blockNumber = 1;
                 boolean done = false;
+                // blocks received in order since the last ACK, whether a gap has already been reported, and
+                // whether a repeated block has already been answered since the last block received in order
+                int blocksInWindow = 0;
+                boolean gapReported = false;
+                boolean duplicateAcked = false;
+                long duplicateBlocks = 0;
+                long strayPackets = 0;
+                // the checksum of the blocks received in order, and the one in the server's trailer, or -1 until it arrives
+                CRC32C checksum = new CRC32C();
+                long senderChecksum = -1;
+                // the last packet sent, which is resent whenever the server goes quiet, and when it was sent
+                RttEstimator rtt = new RttEstimator();
+                DatagramPacket lastSent = rrqPacket;
+                long lastSentAt = System.nanoTime();
+                // one receive buffer serves the whole transfer, and one ACK packet addressed to the server's
+                // transfer ID is rewritten in place for every block it acknowledges
+                byte[] dataBuffer = new byte[TransferOptions.REQUESTED_BLOCK_SIZE + 4];
+                DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
+                OutgoingPacket ackPacket = null;
+                PacketReader reader = new PacketReader();
                 // keep receiving data packets from the server until the entire file has been received
-                while (!done) {
-                    byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-                    DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
+                while (!done || (options.checksum && senderChecksum == -1)) {
                     try {
-                        // receive a data packet from the server
-                        clientSocket.receive(dataPacket);
+                        // receive a data packet from the server; the first packet after an ACK or the request times the round trip
+                        boolean retransmitted = receiveWithRetransmission(clientSocket, dataPacket, lastSent, rtt);
+                        reader.wrap(dataBuffer, dataPacket.getLength());
+                        // the server's first reply, from the server's address, sets its transfer ID; a packet from
+                        // anywhere else is answered with an error and ignored (RFC 1350)
+                        if (ackPacket == null ? !dataPacket.getAddress().equals(rrqPacket.getAddress()) : !isFromServer(dataPacket, ackPacket.packet())) {
+                            strayPackets++;
+                            rejectStray(clientSocket, dataPacket, reader);
+                            continue;
+                        }
+                        if (lastSentAt != 0 && !retransmitted) {
+                            rtt.addSample(System.nanoTime() - lastSentAt);
+                        }
+                        lastSentAt = 0;
+                        if (ackPacket == null) {
+                            ackPacket = createAckPacket(clientSocket, dataPacket.getAddress(), dataPacket.getPort());
+                        }
+                        // once the options are applied, the trailer is the OACK that follows the final block from the
+                        // server's transfer ID; one that overtakes the final block is dropped, as the server sends it
+                        // again behind the block, and any other OACK is the server repeating the options it agreed to
+                        if (reader.opcode() == OP_OACK && prepared && options.checksum) {
+                            long trailerChecksum = Checksums.valueOf(reader);
+                            if (done && trailerChecksum != -1 && senderChecksum == -1) {
+                                senderChecksum = trailerChecksum;
+                                if (!acknowledgeFinalBlock(clientSocket, ackPacket, (short) (blockNumber - 1), checksum, senderChecksum)) {
+                                    return false;
+                                }
+                            } else if (blocksReceived == 0 && trailerChecksum == -1) {
+                                // the ACK of the options was lost
+                                lastSent = sendAck(ackPacket, (short) 0);
+                            }
+                            continue;
+                        }
+                        // if the server acknowledged our options, apply them and acknowledge the OACK as block 0
+                        if (reader.opcode() == OP_OACK && blocksReceived == 0) {
+                            options.applyOack(reader);
+                            if (options.timeout > 0) {
+                                rtt.setFixedTimeout(TimeUnit.SECONDS.toNanos(options.timeout));
+                            }
+                            prepareFile(file, options);
+                            prepared = true;
+                            lastSent = sendAck(ackPacket, (short) 0);
+                            lastSentAt = System.nanoTime();
+                            continue;
+                        }
+                        if (reader.opcode() == OP_ERROR) {
+                            throw new IOException("Server error: " + reader.errorMessage());
+                        }
+                        // a server without options sends the whole file straight away
+                        if (!prepared) {
+                            prepareFile(file, options);
+                            prepared = true;
+                        }
                         // extract the block number from the data packet
-                        short receivedBlockNumber = (short) (((dataPacket.getData()[2] & 0xFF) << 8) | (dataPacket.getData()[3] & 0xFF));
-                        // if the block numbers match, write the data to the ByteArrayOutputStream
+                        short receivedBlockNumber = (short) reader.block();
+                        // if the block numbers match, write the data to the file
                         if (receivedBlockNumber == blockNumber) {
-                            int dataSize = dataPacket.getLength() - 4;
-                            byteArrayOutputStream.write(dataPacket.getData(), 4, dataSize);
-                            // send an acknowledgement packet to the server for the current block
-                            sendAck(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), blockNumber);
-                            blockNumber++;
+                            int dataSize = reader.dataLength();
+                            file.write(dataBuffer, reader.dataOffset(), dataSize);
+                            if (options.checksum) {
+                                checksum.update(dataBuffer, reader.dataOffset(), dataSize);
+                            }
+                            bytesReceived += dataSize;
+                            blocksReceived++;
+                            blocksInWindow++;
+                            gapReported = false;
+                            duplicateAcked = false;
                             // check if this is the last data packet for the file
-                            if (dataSize < BUFFER_SIZE) {
+                            if (dataSize < options.blockSize) {
                                 done = true;
                             }
+                            // acknowledge only the last block of each window, and the final block, which waits for
+                            // the trailer when there is one; until then a timeout repeats the ACK of the block before
+                            if (done && options.checksum) {
+                                PacketWriter.putHeader(ackPacket.data(), OP_ACK, (short) (blockNumber - 1));
+                                lastSent = ackPacket.packet();
+                            } else if (done || blocksInWindow == options.windowSize) {
+                                lastSent = sendAck(ackPacket, blockNumber);
+                                lastSentAt = System.nanoTime();
+                                blocksInWindow = 0;
+                            } else {
+                                // a timeout in the middle of a window repeats the ACK of the last block received in order
+                                PacketWriter.putHeader(ackPacket.data(), OP_ACK, blockNumber);
+                                lastSent = ackPacket.packet();
+                            }
+                            blockNumber++;
+                        } else if ((short) (receivedBlockNumber - blockNumber) < 0) {
+                            // an old block the server sent again because it missed an ACK: acknowledge the last block
+                            // received in order once more, without writing the block again (RFC 1123)
+                            duplicateBlocks++;
+                            if (!duplicateAcked && !done) {
+                                lastSent = sendAck(ackPacket, (short) (blockNumber - 1));
+                                blocksInWindow = 0;
+                                duplicateAcked = true;
+                            }
                         } else {
-                            System.out.println("Received data packet with incorrect block number. Expected " + blockNumber + ", but received " + receivedBlockNumber);
+                            System.out.println("Received data packet with incorrect block number. Expected " + (blockNumber & 0xFFFF) + ", but received " + (receivedBlockNumber & 0xFFFF));
+                            // a block went missing, so acknowledge the last one received in order and the
+                            // server starts its next window from there; once is enough until the gap is filled
+                            if (options.windowSize > 1 && !gapReported && (short) (receivedBlockNumber - blockNumber) > 0) {
+                                lastSent = sendAck(ackPacket, (short) (blockNumber - 1));
+                                blocksInWindow = 0;
+                                gapReported = true;
+                            }
                         }
                     } catch (SocketTimeoutException e) {
-                        System.out.println("Timeout waiting for data packet for block " + blockNumber);
+                        System.out.println("Timeout waiting for data packet for block " + (blockNumber & 0xFFFF) + " after " + MAX_RETRIES + " retransmissions");
                         throw e;
                     }
 
                 }
 
-                // check if the entire file has been received
-                if (blockNumber - 1 == ((byteArrayOutputStream.size() + BUFFER_SIZE - 1) / BUFFER_SIZE)) {
-                    // if the entire file has been received, write the contents of the ByteArrayOutputStream to a file
-                    byte[] fileContent = byteArrayOutputStream.toByteArray();
-                    fos.write(fileContent);
+                // check if the entire file or range has been received: the length of the range or the size the server
+                // reported if it sent one, otherwise every full block must have been followed by one more, possibly empty, block
+                long expectedBytes = options.length >= 0 ? options.length
+                        : options.transferSize >= 0 ? options.transferSize - options.offset : -1;
+                boolean complete = expectedBytes >= 0
+                        ? bytesReceived == expectedBytes
+                        : blocksReceived == (bytesReceived / options.blockSize) + 1;
+                if (complete && options.length < 0) {
+                    // a resumed download ends where the file ends, even if the local file was longer
+                    file.setLength(options.offset + bytesReceived);
+                }
+                if (duplicateBlocks > 0) {
+                    System.out.println("Ignored " + duplicateBlocks + " duplicate blocks.");
+                }
+                if (strayPackets > 0) {
+                    System.out.println("Ignored " + strayPackets + " packets from an unknown transfer ID.");
+                }
+                if (complete) {
                     System.out.println("File transfer completed for " + fileName);
                 } else {
                     System.out.println("Error receiving file: incomplete data received.");
                 }
+                return complete;
+            }
+        }
+
+        /**
+         * Acknowledges the final block of a download once the server's trailer has arrived, if the
+         * checksum it carries matches the one worked out from the blocks received. Otherwise the server
+         * is sent an error instead.
+         *
+         * @param clientSocket   the DatagramSocket used to send the packet
+         * @param ackPacket      the ACK packet addressed to the server
+         * @param blockNumber    the block number of the final block
+         * @param checksum       the checksum of the blocks received
+         * @param senderChecksum the checksum in the server's trailer
+         * @return true if the checksums match
+         * @throws IOException if there is an error sending the packet
+         */
+        private static boolean acknowledgeFinalBlock(DatagramSocket clientSocket, OutgoingPacket ackPacket, short blockNumber,
+                                                     CRC32C checksum, long senderChecksum) throws IOException {
+            if (checksum.getValue() != senderChecksum) {
+                ByteBuffer error = PacketWriter.errorPacket(ERROR_NOT_DEFINED, "Checksum mismatch");
+                clientSocket.send(new DatagramPacket(error.array(), error.limit(), ackPacket.packet().getSocketAddress()));
+                System.out.println("Error receiving file: checksum mismatch.");
+                return false;
+            }
+            sendAck(ackPacket, blockNumber);
+            return true;
+        }
+
+        /**
+         * Tells whether a packet came from the server's transfer ID, the address and port the packets of
+         * the transfer are sent to.
+         *
+         * @param packet       the packet received
+         * @param serverPacket a packet addressed to the server's transfer ID
+         * @return true if the packet came from the same address and port
+         */
+        private static boolean isFromServer(DatagramPacket packet, DatagramPacket serverPacket) {
+            return packet.getPort() == serverPacket.getPort() && packet.getAddress().equals(serverPacket.getAddress());
+        }
+
+        /**
+         * Answers a packet that did not come from the server's transfer ID with an "Unknown transfer ID"
+         * error, unless the packet is an error itself, and leaves the transfer undisturbed (RFC 1350).
+         *
+         * @param clientSocket the DatagramSocket used to send the error
+         * @param packet       the stray packet
+         * @param reader       the reader wrapped around the stray packet
+         * @throws IOException if there is an error sending the packet
+         */
+        private static void rejectStray(DatagramSocket clientSocket, DatagramPacket packet, PacketReader reader) throws IOException {
+            if (reader.length() < 2 || reader.opcode() != OP_ERROR) {
+                ByteBuffer error = PacketWriter.errorPacket(ERROR_UNKNOWN_TID, "Unknown transfer ID");
+                clientSocket.send(new DatagramPacket(error.array(), error.limit(), packet.getSocketAddress()));
+            }
+        }
+
+        /**
+         * Makes the local file ready for the blocks of a download. A whole file replaces whatever an
+         * earlier transfer left behind, while a range is written over the file where it belongs. The
+         * space for the file is reserved up front when the server reported its size, unless only a
+         * bounded range of it is downloaded.
+         *
+         * @param file    the local file
+         * @param options the options acknowledged by the server
+         * @throws IOException if the file cannot be truncated, extended or positioned
+         */
+        private static void prepareFile(RandomAccessFile file, TransferOptions options) throws IOException {
+            if (!options.isRanged()) {
+                file.setLength(0);
+            } else if (options.offset > 0) {
+                System.out.println("Receiving from byte " + options.offset);
+            }
+            file.seek(options.offset);
+            if (options.length < 0 && options.transferSize > file.length()) {
+                file.setLength(options.transferSize);
             }
         }
 
@@ -198,128 +558,211 @@ import java.util.Scanner;
         /**
          * Creates a WRQ (Write Request) packet for the specified file name.
          *
-         * @param fileName The name of the file to create the packet for.
+         * @param fileName     The name of the file to create the packet for.
+         * @param transferSize The size of the file, or -1 if it is not known.
+         * @param offset       The offset to resume the upload from, or -1 to start afresh.
          * @return A byte array containing the WRQ packet for the specified file.
          */
-        private static byte[] createWrqPacket(String fileName) {
-            byte[] fileNameBytes = fileName.getBytes();
-            // create a byte array with length equal to the length of the file name plus 4 (for the opcode and null byte)
-            byte[] wrqPacket = new byte[fileNameBytes.length + 4];
-            // set the first two bytes to 0 and the opcode for WRQ
-            wrqPacket[0] = 0;
-            wrqPacket[1] = OP_WRQ;
-            // copy the bytes of the file name to the WRQ packet, starting at the third byte
-            System.arraycopy(fileNameBytes, 0, wrqPacket, 2, fileNameBytes.length);
-            // set the last byte of the WRQ packet to 0 to terminate the file name string
-            wrqPacket[wrqPacket.length - 1] = 0;
-            // return the WRQ packet as a byte array
-            return wrqPacket;
+        private static byte[] createWrqPacket(String fileName, long transferSize, long offset) {
+            return createRequestPacket(OP_WRQ, fileName, transferSize, false, offset, -1);
         }
 
         /**
-         * Receives the initial acknowledgment from the server.
+         * Creates a read or write request packet: the opcode, the file name, the "octet" mode and the
+         * requested options, each string terminated by a null byte.
+         *
+         * @param opcode       The opcode of the request.
+         * @param fileName     The name of the file to create the packet for.
+         * @param transferSize The value of the tsize option, or -1 to leave it out.
+         * @param multicast    Whether to ask for the file to be sent over multicast.
+         * @param offset       The value of the offset option, or -1 to leave it out.
+         * @param length       The value of the length option, or -1 to leave it out.
+         * @return A byte array containing the request packet.
+         */
+        static byte[] createRequestPacket(byte opcode, String fileName, long transferSize, boolean multicast, long offset, long length) {
+            // the request is written into a default sized packet, then trimmed to its length
+            byte[] requestPacket = new byte[BUFFER_SIZE + 4];
+            PacketWriter writer = new PacketWriter().wrap(requestPacket);
+            TransferOptions.addRequested(writer.request(opcode, fileName, "octet"), transferSize, multicast, offset, length);
+            ByteBuffer request = writer.finish();
+            return Arrays.copyOf(requestPacket, request.limit());
+        }
+
+        /**
+         * Receives the initial acknowledgment from the server, which is either an ACK for block 0 or an
+         * OACK listing the options the server agreed to.
          *
          * @param clientSocket The DatagramSocket object used to receive data.
+         * @param options      The transfer options, updated with the values acknowledged by the server.
+         * @param wrqPacket    The write request, resent if the server does not answer it.
+         * @param rtt          The round-trip time estimate, updated from the time the server took to answer.
+         * @return The port the server sent the acknowledgment from, which identifies the transfer on the server side.
          * @throws IOException            If an I/O error occurs while receiving the acknowledgment.
          * @throws SocketTimeoutException If a timeout occurs while waiting for the acknowledgment.
          */
-        private static void receiveInitialAck(DatagramSocket clientSocket) throws IOException, SocketTimeoutException {
-            // create a byte array to store the ACK packet
-            byte[] ackBuffer = new byte[4];
+        private static int receiveInitialAck(DatagramSocket clientSocket, TransferOptions options, DatagramPacket wrqPacket, RttEstimator rtt) throws IOException, SocketTimeoutException {
+            // create a byte array to store the ACK or OACK packet
+            byte[] ackBuffer = new byte[BUFFER_SIZE + 4];
             // create a DatagramPacket to receive the ACK packet
             DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-            clientSocket.setSoTimeout(5000);
-            try {
-                // receive the ACK packet from the server
-                clientSocket.receive(ackPacket);
-            } catch (SocketTimeoutException e) {
-                // if the packet is not received within the timeout period, print an error message and throw an exception
-                System.out.println("Timeout waiting for initial ACK.");
-                throw e;
+            PacketReader reader = new PacketReader();
+            long sentAt = System.nanoTime();
+            while (true) {
+                try {
+                    // receive the ACK packet from the server
+                    boolean retransmitted = receiveWithRetransmission(clientSocket, ackPacket, wrqPacket, rtt);
+                    reader.wrap(ackBuffer, ackPacket.getLength());
+                    // the server answers from its own address, and a packet from anywhere else is answered with an error (RFC 1350)
+                    if (!ackPacket.getAddress().equals(wrqPacket.getAddress())) {
+                        rejectStray(clientSocket, ackPacket, reader);
+                        continue;
+                    }
+                    if (!retransmitted) {
+                        rtt.addSample(System.nanoTime() - sentAt);
+                    }
+                    break;
+                } catch (SocketTimeoutException e) {
+                    // if the packet is not received after every retransmission, print an error message and throw an exception
+                    System.out.println("Timeout waiting for initial ACK.");
+                    throw e;
+                }
             }
-            // check if the opcode of the received packet is ACK
-            if (ackPacket.getData()[1] != OP_ACK) {
-                // if the opcode is not ACK, print an error message and return
-                System.out.println("Invalid opcode received: " + ackPacket.getData()[1]);
-                return;
+            // an OACK carries the options the server agreed to, a plain ACK means the defaults apply
+            if (reader.opcode() == OP_OACK) {
+                options.applyOack(reader);
+                if (options.timeout > 0) {
+                    rtt.setFixedTimeout(TimeUnit.SECONDS.toNanos(options.timeout));
+                }
+            } else if (reader.opcode() == OP_ERROR) {
+                throw new IOException("Server error: " + reader.errorMessage());
+            } else if (reader.opcode() != OP_ACK) {
+                // if the opcode is not ACK, print an error message and throw an exception
+                System.out.println("Invalid opcode received: " + reader.opcode());
+                throw new IOException("Server did not acknowledge the write request.");
             }
+            return ackPacket.getPort();
         }
 
 
         /**
          * Sends a data packet to the TFTP server.
          *
-         * @param clientSocket  the DatagramSocket used to send the packet
-         * @param serverAddress the IP address of the TFTP server
-         * @param serverPort    the port number of the TFTP server
-         * @param blockNumber   the block number of the data packet
-         * @param dataBuffer    the buffer containing the data to send
-         * @param dataSize      the size of the data to send
+         * @param dataPacket  the packet addressed to the server, whose data already holds the block after the header
+         * @param blockNumber the block number of the data packet
+         * @param dataSize    the size of the data to send
          * @throws IOException if there is an error sending the packet
          */
-        private static void sendData(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, short blockNumber, byte[] dataBuffer, int dataSize) throws IOException {
-            // create a data packet containing the block number and the data to be sent
-            byte[] dataPacket = createDataPacket(blockNumber, dataBuffer, dataSize);
-            // create a DatagramPacket to send the data packet to the server
-            DatagramPacket sendPacket = new DatagramPacket(dataPacket, dataPacket.length, serverAddress, serverPort);
-            // send the data packet to the server
-            clientSocket.send(sendPacket);
+        private static void sendData(OutgoingPacket dataPacket, short blockNumber, int dataSize) throws IOException {
+            // write the opcode and block number in front of the data and send the packet trimmed to the size of the block
+            PacketWriter.putHeader(dataPacket.data(), OP_DATA, blockNumber);
+            dataPacket.send(dataSize + 4);
         }
 
+        /**
+         * Waits for an acknowledgment packet from the TFTP server, retransmitting the data packet
+         * whenever the retransmission timeout expires.
+         *
+         * @param clientSocket the DatagramSocket used to receive the packet
+         * @param blockNumber  the block number of the data packet to acknowledge
+         * @param dataPacket   the data packet being acknowledged, resent on timeout
+         * @param trailer      the trailer sent after the final block, resent with it, or null
+         * @param ackPacket    the DatagramPacket to receive the ACK packet into, reused for every block
+         * @param reader       the reader the ACK packet is read with, reused for every block
+         * @param rtt          the round-trip time estimate, updated from the time the ACK took to arrive
+         * @return the number of packets from anywhere but the server's transfer ID ignored while waiting
+         * @throws IOException if there is an error receiving the packet or the packet received is invalid
+         */
+        private static int receiveAck(DatagramSocket clientSocket, short blockNumber, DatagramPacket dataPacket, DatagramPacket trailer,
+                                       DatagramPacket ackPacket, PacketReader reader, RttEstimator rtt) throws IOException {
+            long sentAt = System.nanoTime();
+            int strayPackets = 0;
+            while (true) {
+                try {
+                    // receive the ACK packet from the server; only an ACK for a block that was sent once times the round trip
+                    if (!receiveWithRetransmission(clientSocket, ackPacket, dataPacket, trailer, rtt) && sentAt != 0) {
+                        rtt.addSample(System.nanoTime() - sentAt);
+                    }
+                    sentAt = 0;
+                } catch (SocketTimeoutException e) {
+                    // if the packet is not received after every retransmission, print an error message and throw an exception
+                    System.out.println("Timeout waiting for ACK for block " + blockNumber + " after " + MAX_RETRIES + " retransmissions");
+                    throw e;
+                }
+                reader.wrap(ackPacket.getData(), ackPacket.getLength());
+                // a packet from anywhere but the server's transfer ID is answered with an error and ignored (RFC 1350)
+                if (!isFromServer(ackPacket, dataPacket)) {
+                    strayPackets++;
+                    rejectStray(clientSocket, ackPacket, reader);
+                    continue;
+                }
+                if (reader.opcode() == OP_ERROR) {
+                    throw new IOException("Server error: " + reader.errorMessage());
+                }
+                // check if the opcode of the received packet is ACK
+                if (reader.opcode() != OP_ACK) {
+                    // if the opcode is not ACK, print an error message and keep waiting
+                    System.out.println("Invalid opcode received: " + reader.opcode());
+                    continue;
+                }
+                // check if the block number of the received ACK packet matches the block number of the data packet that was sent
+                short receivedBlockNumber = (short) reader.block();
+                if (receivedBlockNumber == blockNumber) {
+                    return strayPackets;
+                }
+                // an ACK for an earlier block is a late or repeated answer; keep waiting for the right one
+                System.out.println("Received ACK packet with incorrect block number. Expected " + blockNumber + ", but received " + receivedBlockNumber);
+            }
+        }
 
         /**
-         * Creates a data packet.
+         * Receives a packet, resending the last packet sent each time the retransmission timeout expires
+         * without an answer. The timeout doubles with every retransmission.
          *
-         * @param blockNumber the block number of the data packet
-         * @param dataBuffer  the buffer containing the data to send
-         * @param dataSize    the size of the data to send
-         * @return the created data packet
+         * @param clientSocket the DatagramSocket used to receive the packet
+         * @param packet       the DatagramPacket to receive into
+         * @param lastSent     the last packet sent, which is resent on timeout
+         * @param rtt          the round-trip time estimate that sets the retransmission timeout
+         * @return true if the last packet had to be retransmitted before the answer arrived
+         * @throws SocketTimeoutException if no answer arrives after the maximum number of retransmissions
+         * @throws IOException            if there is an error sending or receiving a packet
          */
-        private static byte[] createDataPacket(short blockNumber, byte[] dataBuffer, int dataSize) {
-            // create a byte array with length equal to the size of the data block plus 4 (for the opcode and block number)
-            byte[] dataPacket = new byte[dataSize + 4];
-            // set the first two bytes to 0 and the opcode for DATA
-            dataPacket[0] = 0;
-            dataPacket[1] = OP_DATA;
-            // set the next two bytes to the block number, using bit shifting and masking to split the block number into two bytes
-            dataPacket[2] = (byte) (blockNumber >> 8);
-            dataPacket[3] = (byte) (blockNumber & 0xFF);
-            // copy the bytes of the data block to the data packet, starting at the fifth byte
-            System.arraycopy(dataBuffer, 0, dataPacket, 4, dataSize);
-            // return the data packet as a byte array
-            return dataPacket;
+        private static boolean receiveWithRetransmission(DatagramSocket clientSocket, DatagramPacket packet, DatagramPacket lastSent, RttEstimator rtt) throws IOException {
+            return receiveWithRetransmission(clientSocket, packet, lastSent, null, rtt);
         }
 
         /**
-         * Waits for an acknowledgment packet from the TFTP server.
+         * Receives a packet, resending the last packet sent, and the trailer that followed it if there is
+         * one, each time the retransmission timeout expires without an answer.
          *
          * @param clientSocket the DatagramSocket used to receive the packet
-         * @param blockNumber  the block number of the data packet to acknowledge
-         * @throws IOException if there is an error receiving the packet or the packet received is invalid
+         * @param packet       the DatagramPacket to receive into
+         * @param lastSent     the last packet sent, which is resent on timeout
+         * @param trailer      the trailer sent after it, resent with it, or null
+         * @param rtt          the round-trip time estimate that sets the retransmission timeout
+         * @return true if the last packet had to be retransmitted before the answer arrived
+         * @throws SocketTimeoutException if no answer arrives after the maximum number of retransmissions
+         * @throws IOException            if there is an error sending or receiving a packet
          */
-        private static void receiveAck(DatagramSocket clientSocket, short blockNumber) throws IOException {
-            // create a byte array to store the ACK packet
-            byte[] ackBuffer = new byte[4];
-            // create a DatagramPacket to receive the ACK packet
-            DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-            try {
-                // receive the ACK packet from the server
-                clientSocket.receive(ackPacket);
-            } catch (SocketTimeoutException e) {
-                // if the packet is not received within the timeout period, print an error message and throw an exception
-                System.out.println("Timeout waiting for ACK for block " + blockNumber);
-                throw e;
-            }
-            // check if the opcode of the received packet is ACK
-            if (ackPacket.getData()[1] != OP_ACK) {
-                // if the opcode is not ACK, print an error message and return
-                System.out.println("Invalid opcode received: " + ackPacket.getData()[1]);
-                return;
-            }
-            // check if the block number of the received ACK packet matches the block number of the data packet that was sent
-            short receivedBlockNumber = (short) (((ackPacket.getData()[2] & 0xFF) << 8) | (ackPacket.getData()[3] & 0xFF));
-            if (receivedBlockNumber != blockNumber) {
-                System.out.println("Received ACK packet with incorrect block number. Expected " + blockNumber + ", but received " + receivedBlockNumber);
+        private static boolean receiveWithRetransmission(DatagramSocket clientSocket, DatagramPacket packet, DatagramPacket lastSent,
+                                                         DatagramPacket trailer, RttEstimator rtt) throws IOException {
+            int retries = 0;
+            while (true) {
+                clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(rtt.timeout())));
+                try {
+                    // a received packet shrinks the length to its own size, so open it up to the whole buffer again
+                    packet.setLength(packet.getData().length);
+                    clientSocket.receive(packet);
+                    return retries > 0;
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) {
+                        throw e;
+                    }
+                    rtt.backoff();
+                    clientSocket.send(lastSent);
+                    if (trailer != null) {
+                        clientSocket.send(trailer);
+                    }
+                }
             }
         }
 
@@ -327,59 +770,42 @@ import java.util.Scanner;
          * Creates a read request packet.
          *
          * @param fileName the name of the file to read
+         * @param options  the options holding the range to ask for, if there is one
          * @return the created read request packet
          */
-        private static byte[] createRrqPacket(String fileName) {
-            // convert the file name to a byte array
-            byte[] fileNameBytes = fileName.getBytes();
-            // create a byte array with length equal to the length of the file name plus 4 (for the opcode and null terminator)
-            byte[] rrqPacket = new byte[fileNameBytes.length + 4];
-            // set the first two bytes to 0 and the opcode for RRQ
-            rrqPacket[0] = 0;
-            rrqPacket[1] = OP_RRQ;
-            // copy the bytes of the file name to the RRQ packet, starting at the third byte
-            System.arraycopy(fileNameBytes, 0, rrqPacket, 2, fileNameBytes.length);
-            // set the last byte to 0 (null terminator)
-            rrqPacket[rrqPacket.length - 1] = 0;
-            // return the RRQ packet as a byte array
-            return rrqPacket;
+        private static byte[] createRrqPacket(String fileName, TransferOptions options) {
+            // a tsize of 0 asks the server for the size of the file
+            return createRequestPacket(OP_RRQ, fileName, 0, false, options.requestedOffset, options.requestedLength);
         }
 
         /**
-         * Sends an acknowledgment packet to the TFTP server.
+         * Sends an acknowledgment packet to the TFTP server, reusing an ACK packet already addressed to it.
          *
-         * @param clientSocket  the DatagramSocket used to send the packet
-         * @param serverAddress the IP address of the TFTP server
-         * @param serverPort    the port number of the TFTP server
-         * @param blockNumber   the block number of the data packet to acknowledge
+         * @param ackPacket   the ACK packet created by {@link #createAckPacket}, rewritten with the new block number
+         * @param blockNumber the block number of the data packet to acknowledge
+         * @return the DatagramPacket that was sent, so it can be retransmitted
          * @throws IOException if there is an error sending the packet
          */
-        private static void sendAck(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, short blockNumber) throws IOException {
-            // create an ACK packet for the given block number
-            byte[] ackPacket = createAckPacket(blockNumber);
-            // create a DatagramPacket to send the ACK packet to the server
-            DatagramPacket sendPacket = new DatagramPacket(ackPacket, ackPacket.length, serverAddress, serverPort);
+        private static DatagramPacket sendAck(OutgoingPacket ackPacket, short blockNumber) throws IOException {
+            // write the block number into the ACK packet
+            PacketWriter.putHeader(ackPacket.data(), OP_ACK, blockNumber);
             // send the ACK packet to the server
-            clientSocket.send(sendPacket);
+            ackPacket.send(HEADER_SIZE);
+            return ackPacket.packet();
         }
 
         /**
-         * Creates an acknowledgment packet.
+         * Creates an acknowledgment packet addressed to the TFTP server, acknowledging block 0 until it is rewritten.
          *
-         * @param blockNumber the block number of the data packet to acknowledge
-         * @return the created acknowledgment packet
+         * @param clientSocket  the DatagramSocket the packet is sent from
+         * @param serverAddress the IP address of the TFTP server
+         * @param serverPort    the port number of the TFTP server
+         * @return the packet, ready to be sent
          */
-        private static byte[] createAckPacket(short blockNumber) {
-            // create a byte array with length equal to 4 (for the opcode and block number)
-            byte[] ackPacket = new byte[4];
-            // set the first two bytes to 0 and the opcode for ACK
-            ackPacket[0] = 0;
-            ackPacket[1] = OP_ACK;
-            // set the third and fourth bytes to the block number (in network byte order)
-            ackPacket[2] = (byte) (blockNumber >> 8);
-            ackPacket[3] = (byte) (blockNumber & 0xFF);
-            // return the ACK packet as a byte array
-            return ackPacket;
+        private static OutgoingPacket createAckPacket(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort) {
+            byte[] ackPacket = new byte[HEADER_SIZE];
+            PacketWriter.putHeader(ackPacket, OP_ACK, 0);
+            return new OutgoingPacket(clientSocket, ackPacket, serverAddress, serverPort);
         }
 
 }
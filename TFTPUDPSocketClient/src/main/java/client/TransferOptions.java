@@ -0,0 +1,235 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import protocol.Checksums;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+
+import static protocol.Tftp.*;
+
+/**
+ * The options the client asks for in its read and write requests, and the values the server agreed to.
+ * A server that does not support options answers without an OACK packet, in which case the RFC 1350
+ * defaults stay in effect.
+ */
+class TransferOptions {
+    // Block size to ask for; 1468 bytes fills an Ethernet frame without IP fragmentation
+    static final int REQUESTED_BLOCK_SIZE = Math.max(MIN_BLOCK_SIZE, Math.min(Integer.getInteger("tftp.blksize", 1468), MAX_BLOCK_SIZE));
+    // Number of blocks the server may send before waiting for an ACK (RFC 7440)
+    static final int REQUESTED_WINDOW_SIZE = Math.max(1, Math.min(Integer.getInteger("tftp.windowsize", 16), 65535));
+    // Retransmission timeout in seconds to ask the server to use (RFC 2349); 0 keeps the adaptive timeout
+    static final int REQUESTED_TIMEOUT = Math.max(0, Math.min(Integer.getInteger("tftp.timeout", 0), 255));
+    // Whether to ask for files to be sent over multicast (RFC 2090), shared with other clients reading the same file
+    static final boolean MULTICAST = Boolean.getBoolean("tftp.multicast");
+    // Whether to resume a transfer that was cut off: a download from the end of the local file, an upload
+    // from as much of the file as the server kept
+    static final boolean RESUME = Boolean.getBoolean("tftp.resume");
+    // The part of a file to download, such as its header: the offset of the first byte, and the number of
+    // bytes, or -1 for the rest of the file
+    static final long REQUESTED_OFFSET = Math.max(0, Long.getLong("tftp.offset", 0));
+    static final long REQUESTED_LENGTH = Math.max(-1, Long.getLong("tftp.length", -1));
+    // Whether to ask for the data to be checked end to end with a checksum; crc32c is the only one offered
+    static final boolean CHECKSUM = Checksums.isSupported(System.getProperty("tftp.checksum", "none"));
+
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    int windowSize = 1;
+    // The size of the file reported by the server, or -1 if it did not acknowledge the tsize option
+    long transferSize = -1;
+    // The fixed timeout in seconds agreed with the server, or 0 if the timeout is adaptive
+    int timeout;
+    // The multicast group and port the server sends the file to, or null if it did not acknowledge the multicast option
+    InetAddress multicastAddress;
+    int multicastPort;
+    // Whether the last multicast option received made this client the master client, which acknowledges the blocks
+    boolean master;
+    // The offset to ask for, or -1 to leave the option out, and the length to ask for, or -1 to leave it out
+    long requestedOffset = -1;
+    long requestedLength = -1;
+    // Where the server agreed to start the transfer in the file, and how many bytes it agreed to send, or
+    // -1 for the rest of the file; the whole file unless it acknowledged the offset or length option
+    long offset;
+    long length = -1;
+    // Whether the server agreed to the checksum option, so the sender follows the final block with its trailer
+    boolean checksum;
+
+    /**
+     * Creates the options for downloading into a local file. With resuming turned on, the download
+     * continues from the end of what the local file holds; otherwise the range set by the offset and
+     * length properties is asked for, if there is one.
+     *
+     * @param destination the local file the download is saved to
+     * @return the options
+     */
+    static TransferOptions forRead(File destination) {
+        TransferOptions options = new TransferOptions();
+        if (RESUME && destination.length() > 0) {
+            options.requestedOffset = destination.length();
+        } else if (REQUESTED_OFFSET > 0 || REQUESTED_LENGTH >= 0) {
+            options.requestedOffset = REQUESTED_OFFSET;
+            options.requestedLength = REQUESTED_LENGTH;
+        }
+        return options;
+    }
+
+    /**
+     * Creates the options for uploading a local file. With resuming turned on, the client offers to
+     * continue from the end of the file, and the server answers with how much of it it already has.
+     *
+     * @param source the local file being uploaded
+     * @return the options
+     */
+    static TransferOptions forWrite(File source) {
+        TransferOptions options = new TransferOptions();
+        if (RESUME && source.length() > 0) {
+            options.requestedOffset = source.length();
+        }
+        return options;
+    }
+
+    /**
+     * Returns whether the server agreed to transfer only part of the file, in which case the local file
+     * is written from the offset on and keeps what lies outside the range.
+     *
+     * @return true if the transfer starts past the beginning of the file or stops before its end
+     */
+    boolean isRanged() {
+        return offset > 0 || length >= 0;
+    }
+
+    /**
+     * Adds the options to a read or write request being written.
+     *
+     * @param request      the writer holding the request, after its file name and mode
+     * @param transferSize the size of the file being written, 0 to ask the server for the size of the
+     *                     file being read, or -1 to leave out the tsize option
+     * @param multicast    whether to ask for the file to be sent over multicast, in which case the
+     *                     client acknowledges every block, and windowsize and checksum are left out
+     * @param offset       the value of the offset option, or -1 to leave it out
+     * @param length       the value of the length option, or -1 to leave it out
+     */
+    static void addRequested(PacketWriter request, long transferSize, boolean multicast, long offset, long length) {
+        request.option("blksize", REQUESTED_BLOCK_SIZE);
+        if (multicast) {
+            request.option("multicast", "");
+        } else {
+            request.option("windowsize", REQUESTED_WINDOW_SIZE);
+        }
+        if (transferSize >= 0) {
+            request.option("tsize", transferSize);
+        }
+        if (REQUESTED_TIMEOUT > 0) {
+            request.option("timeout", REQUESTED_TIMEOUT);
+        }
+        if (offset >= 0) {
+            request.option("offset", offset);
+        }
+        if (length >= 0) {
+            request.option("length", length);
+        }
+        if (CHECKSUM && !multicast) {
+            request.option(Checksums.OPTION, Checksums.CRC32C);
+        }
+    }
+
+    /**
+     * Applies the options acknowledged by the server in an option acknowledgment (OACK) packet.
+     *
+     * @param oack the reader wrapped around the received OACK packet
+     * @throws IOException if the server acknowledged a value the client did not ask for
+     */
+    void applyOack(PacketReader oack) throws IOException {
+        while (oack.nextOption()) {
+            if (oack.optionIs("blksize")) {
+                long negotiatedBlockSize = oack.optionValueAsLong();
+                if (negotiatedBlockSize < MIN_BLOCK_SIZE || negotiatedBlockSize > REQUESTED_BLOCK_SIZE) {
+                    throw new IOException("Server acknowledged an invalid block size: " + oack.optionValue());
+                }
+                blockSize = (int) negotiatedBlockSize;
+            } else if (oack.optionIs("windowsize")) {
+                long negotiatedWindowSize = oack.optionValueAsLong();
+                if (negotiatedWindowSize < 1 || negotiatedWindowSize > REQUESTED_WINDOW_SIZE) {
+                    throw new IOException("Server acknowledged an invalid window size: " + oack.optionValue());
+                }
+                windowSize = (int) negotiatedWindowSize;
+            } else if (oack.optionIs("tsize")) {
+                long negotiatedTransferSize = oack.optionValueAsLong();
+                if (negotiatedTransferSize < 0) {
+                    throw new IOException("Server acknowledged an invalid transfer size: " + oack.optionValue());
+                }
+                transferSize = negotiatedTransferSize;
+            } else if (oack.optionIs("timeout")) {
+                // the server must use the timeout exactly as requested or leave it out of the OACK
+                if (oack.optionValueAsLong() != REQUESTED_TIMEOUT) {
+                    throw new IOException("Server acknowledged an invalid timeout: " + oack.optionValue());
+                }
+                timeout = REQUESTED_TIMEOUT;
+            } else if (oack.optionIs("offset")) {
+                // the server may start earlier than asked, at the beginning of a block or of what it kept of an upload
+                long negotiatedOffset = oack.optionValueAsLong();
+                if (negotiatedOffset < 0 || negotiatedOffset > requestedOffset) {
+                    throw new IOException("Server acknowledged an invalid offset: " + oack.optionValue());
+                }
+                offset = negotiatedOffset;
+            } else if (oack.optionIs("length")) {
+                long negotiatedLength = oack.optionValueAsLong();
+                if (negotiatedLength < 0 || requestedLength < 0) {
+                    throw new IOException("Server acknowledged an invalid length: " + oack.optionValue());
+                }
+                length = negotiatedLength;
+            } else if (oack.optionIs(Checksums.OPTION)) {
+                if (!CHECKSUM || !Checksums.isSupported(oack.optionValue())) {
+                    throw new IOException("Server acknowledged an invalid checksum: " + oack.optionValue());
+                }
+                checksum = true;
+            } else if (oack.optionIs("multicast")) {
+                applyMulticast(oack.optionValue());
+            }
+        }
+    }
+
+    /**
+     * Applies the value of the multicast option, "address,port,mc". The address and port may be left
+     * empty once the client knows them, and mc is 1 when the client is the master client.
+     *
+     * @param value the value of the multicast option
+     * @throws IOException if the value is not valid
+     */
+    private void applyMulticast(String value) throws IOException {
+        String[] fields = value.split(",", -1);
+        if (fields.length != 3) {
+            throw new IOException("Server acknowledged an invalid multicast option: " + value);
+        }
+        if (!fields[0].isEmpty()) {
+            multicastAddress = InetAddress.getByName(fields[0].trim());
+            if (!multicastAddress.isMulticastAddress()) {
+                throw new IOException("Server acknowledged an invalid multicast address: " + fields[0]);
+            }
+        }
+        if (!fields[1].isEmpty()) {
+            multicastPort = (int) parse("multicast", fields[1]);
+        }
+        if (multicastAddress == null || multicastPort <= 0 || multicastPort > 65535) {
+            throw new IOException("Server acknowledged an invalid multicast option: " + value);
+        }
+        master = parse("multicast", fields[2]) == 1;
+    }
+
+    /**
+     * Parses the numeric value of an option.
+     *
+     * @param name  the name of the option
+     * @param value the value of the option
+     * @return the parsed value
+     * @throws IOException if the value is not a number
+     */
+    private static long parse(String name, String value) throws IOException {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Server acknowledged an invalid " + name + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.Tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static protocol.Tftp.OP_ACK;
+import static protocol.Tftp.OP_DATA;
+import static protocol.Tftp.OP_RRQ;
+import static protocol.Tftp.OP_WRQ;
+
+/**
+ * Runs transfers over loopback against a minimal RFC 1350 server and checks that, once a transfer is
+ * under way, the client allocates next to nothing per block: the figure is what a long transfer
+ * allocates on the client's thread beyond a short one, spread over the extra blocks, so the fixed
+ * cost of starting and finishing a transfer drops out.
+ */
+class SteadyStateAllocationTest {
+    private static final int SHORT_BLOCKS = 2_000;
+    private static final int LONG_BLOCKS = 10_000;
+    // Well under one small object per block; a copy of each block alone would be over 512
+    private static final double MAX_BYTES_PER_BLOCK = 16;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @TempDir
+    static Path directory;
+
+    private static byte[] shortFile;
+    private static byte[] longFile;
+    private static LockstepServer server;
+
+    /**
+     * Starts the server with the files to download.
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    @BeforeAll
+    static void startServer() throws IOException {
+        Random random = new Random(69);
+        // One byte short of a whole block, so the last block ends the transfer
+        shortFile = new byte[SHORT_BLOCKS * Tftp.DEFAULT_BLOCK_SIZE - 1];
+        longFile = new byte[LONG_BLOCKS * Tftp.DEFAULT_BLOCK_SIZE - 1];
+        random.nextBytes(shortFile);
+        random.nextBytes(longFile);
+        server = new LockstepServer();
+        server.files.put("short.bin", shortFile);
+        server.files.put("long.bin", longFile);
+        Thread thread = new Thread(server, "lockstep-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    @AfterAll
+    static void stopServer() {
+        server.socket.close();
+    }
+
+    @Test
+    void retrievesAllocateNothingPerBlock() throws IOException {
+        File shortCopy = directory.resolve("short.bin").toFile();
+        File longCopy = directory.resolve("long.bin").toFile();
+        // Lets the JIT settle
+        for (int round = 0; round < 2; round++) {
+            retrieve("short.bin", shortCopy);
+            retrieve("long.bin", longCopy);
+        }
+
+        long before = allocated();
+        retrieve("short.bin", shortCopy);
+        long shortBytes = allocated() - before;
+        before = allocated();
+        retrieve("long.bin", longCopy);
+        long longBytes = allocated() - before;
+
+        assertArrayEquals(shortFile, Files.readAllBytes(shortCopy.toPath()));
+        assertArrayEquals(longFile, Files.readAllBytes(longCopy.toPath()));
+        assertPerBlock("retrieve", shortBytes, longBytes);
+    }
+
+    @Test
+    void sendsAllocateNothingPerBlock() throws IOException {
+        File shortSource = Files.write(directory.resolve("short-source.bin"), shortFile).toFile();
+        File longSource = Files.write(directory.resolve("long-source.bin"), longFile).toFile();
+        for (int round = 0; round < 2; round++) {
+            send(shortSource, "short-upload.bin");
+            send(longSource, "long-upload.bin");
+        }
+
+        long before = allocated();
+        send(shortSource, "short-upload.bin");
+        long shortBytes = allocated() - before;
+        before = allocated();
+        send(longSource, "long-upload.bin");
+        long longBytes = allocated() - before;
+
+        assertArrayEquals(shortFile, server.files.get("short-upload.bin"));
+        assertArrayEquals(longFile, server.files.get("long-upload.bin"));
+        assertPerBlock("send", shortBytes, longBytes);
+    }
+
+    /**
+     * Downloads a file from the server.
+     *
+     * @param name        the file to download
+     * @param destination the local file to save it to
+     * @throws IOException if the transfer fails
+     */
+    private static void retrieve(String name, File destination) throws IOException {
+        TFTPUDPSocketClient.retrieve(InetAddress.getLoopbackAddress(), server.port(), name, destination);
+    }
+
+    /**
+     * Uploads a file to the server.
+     *
+     * @param source the local file to upload
+     * @param name   the name to store it under
+     * @throws IOException if the transfer fails
+     */
+    private static void send(File source, String name) throws IOException {
+        TFTPUDPSocketClient.send(InetAddress.getLoopbackAddress(), server.port(), source, name);
+    }
+
+    /**
+     * Returns the bytes allocated so far on this thread, which the client runs its transfers on.
+     *
+     * @return the bytes allocated
+     */
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Fails if the long transfer allocated more than the allowance per block beyond the short one.
+     *
+     * @param direction  the kind of transfer, for the failure message
+     * @param shortBytes the bytes the client allocated during the short transfer
+     * @param longBytes  the bytes the client allocated during the long transfer
+     */
+    private static void assertPerBlock(String direction, long shortBytes, long longBytes) {
+        double perBlock = (double) (longBytes - shortBytes) / (LONG_BLOCKS - SHORT_BLOCKS);
+        System.out.printf("Client allocated %d bytes for a short %s and %d for a long one, %.2f per block%n",
+                shortBytes, direction, longBytes, perBlock);
+        assertTrue(perBlock < MAX_BYTES_PER_BLOCK,
+                "Client allocated " + perBlock + " bytes per block during a steady " + direction);
+    }
+
+    /**
+     * A server that ignores options and serves one transfer at a time, one block at a time, from a
+     * fresh socket as RFC 1350 has it. Files are kept in memory, and uploads are added to them.
+     */
+    private static class LockstepServer implements Runnable {
+        final Map<String, byte[]> files = new ConcurrentHashMap<>();
+        final DatagramSocket socket;
+
+        /**
+         * Opens the socket requests are sent to.
+         *
+         * @throws SocketException if the socket cannot be opened
+         */
+        LockstepServer() throws SocketException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        }
+
+        /**
+         * Returns the port requests are sent to.
+         *
+         * @return the port
+         */
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        /**
+         * Serves requests until the socket is closed.
+         */
+        @Override
+        public void run() {
+            byte[] buffer = new byte[516];
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+            PacketReader reader = new PacketReader();
+            while (!socket.isClosed()) {
+                try {
+                    request.setLength(buffer.length);
+                    socket.receive(request);
+                    reader.wrap(buffer, request.getLength());
+                    try (DatagramSocket transfer = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                        transfer.setSoTimeout(1000);
+                        if (reader.opcode() == OP_RRQ) {
+                            serve(transfer, request.getSocketAddress(), files.get(reader.baseName()));
+                        } else if (reader.opcode() == OP_WRQ) {
+                            String name = reader.baseName();
+                            files.put(name, receive(transfer, request.getSocketAddress()));
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        System.out.println("Transfer failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends a file, resending a block whenever its acknowledgement is late.
+         *
+         * @param transfer the socket of the transfer
+         * @param client   the client to send to
+         * @param contents the file
+         * @throws IOException if the client stops answering
+         */
+        private void serve(DatagramSocket transfer, SocketAddress client, byte[] contents) throws IOException {
+            byte[] out = new byte[4 + Tftp.DEFAULT_BLOCK_SIZE];
+            byte[] in = new byte[Tftp.DEFAULT_BLOCK_SIZE];
+            DatagramPacket ack = new DatagramPacket(in, in.length);
+            PacketReader reader = new PacketReader();
+            int blocks = contents.length / Tftp.DEFAULT_BLOCK_SIZE + 1;
+            for (int block = 1; block <= blocks; block++) {
+                int offset = (block - 1) * Tftp.DEFAULT_BLOCK_SIZE;
+                int length = Math.min(Tftp.DEFAULT_BLOCK_SIZE, contents.length - offset);
+                PacketWriter.putHeader(out, OP_DATA, block);
+                System.arraycopy(contents, offset, out, 4, length);
+                DatagramPacket data = new DatagramPacket(out, 4 + length, client);
+                transfer.send(data);
+                while (true) {
+                    ack.setLength(in.length);
+                    try {
+                        transfer.receive(ack);
+                    } catch (SocketTimeoutException e) {
+                        transfer.send(data);
+                        continue;
+                    }
+                    reader.wrap(in, ack.getLength());
+                    if (reader.opcode() == OP_ACK && reader.block() == (block & 0xFFFF)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Receives a file, acknowledging every block.
+         *
+         * @param transfer the socket of the transfer
+         * @param client   the client sending the file
+         * @return the file
+         * @throws IOException if the client stops sending
+         */
+        private byte[] receive(DatagramSocket transfer, SocketAddress client) throws IOException {
+            byte[] out = new byte[4];
+            byte[] in = new byte[4 + Tftp.DEFAULT_BLOCK_SIZE];
+            DatagramPacket data = new DatagramPacket(in, in.length);
+            PacketReader reader = new PacketReader();
+            PacketWriter writer = new PacketWriter();
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            DatagramPacket ack = new DatagramPacket(out, 4, client);
+            writer.wrap(out).ack(0);
+            transfer.send(ack);
+            boolean last = false;
+            for (int block = 1; !last; ) {
+                data.setLength(in.length);
+                transfer.receive(data);
+                reader.wrap(in, data.getLength());
+                if (reader.opcode() != OP_DATA) {
+                    continue;
+                }
+                // A repeated block is acknowledged again but not kept
+                if (reader.block() == (block & 0xFFFF)) {
+                    contents.write(in, reader.dataOffset(), reader.dataLength());
+                    last = reader.dataLength() < Tftp.DEFAULT_BLOCK_SIZE;
+                    block++;
+                }
+                writer.wrap(out).ack(reader.block());
+                transfer.send(ack);
+            }
+            return contents.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import protocol.Metrics;
+
+/**
+ * Keeps the server within its capacity: a cap on concurrent transfers, which each hold a channel, on
+ * the memory their packet and write buffers take, and on the files they hold open for their whole
+ * run. The engine reserves a transfer's share before creating it and the transfer gives it back
+ * when it closes, so an overload turns into refused requests rather than exhausted memory or file
+ * descriptors. Files served from the cache or a shared mapping hold no descriptor and are not
+ * counted. Only used from the engine's thread, so it is not synchronized.
+ */
+class AdmissionControl {
+    /** The message of the ERROR packet that refuses a request for lack of capacity. */
+    static final String BUSY_MESSAGE = "Server busy, try again later";
+
+    private final int maxTransfers;
+    private final long maxBufferMemory;
+    private final int maxOpenFiles;
+    private int transfers;
+    private long bufferMemory;
+    private int openFiles;
+
+    /**
+     * Creates an admission control with nothing reserved.
+     *
+     * @param maxTransfers    the most transfers that may run at once
+     * @param maxBufferMemory the most memory, in bytes, the buffers of running transfers may take
+     * @param maxOpenFiles    the most files running transfers may hold open
+     */
+    AdmissionControl(int maxTransfers, long maxBufferMemory, int maxOpenFiles) {
+        this.maxTransfers = maxTransfers;
+        this.maxBufferMemory = maxBufferMemory;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Reserves a transfer slot and its buffer memory, if both are free.
+     *
+     * @param bufferBytes the memory the transfer's buffers take
+     * @return -1 if the transfer was admitted, otherwise the limit that was reached, as counted in the
+     *         metrics ({@link Metrics#LIMIT_TRANSFERS} or {@link Metrics#LIMIT_MEMORY})
+     */
+    int tryAdmit(long bufferBytes) {
+        if (transfers >= maxTransfers) {
+            return Metrics.LIMIT_TRANSFERS;
+        }
+        if (bufferMemory + bufferBytes > maxBufferMemory) {
+            return Metrics.LIMIT_MEMORY;
+        }
+        transfers++;
+        bufferMemory += bufferBytes;
+        return -1;
+    }
+
+    /**
+     * Gives back a transfer slot and its buffer memory once the transfer has closed.
+     *
+     * @param bufferBytes the memory reserved for the transfer's buffers
+     */
+    void release(long bufferBytes) {
+        transfers--;
+        bufferMemory -= bufferBytes;
+    }
+
+    /**
+     * Reserves an open file for a transfer about to open one, if the cap allows.
+     *
+     * @return true if the file may be opened
+     */
+    boolean tryOpenFile() {
+        if (openFiles >= maxOpenFiles) {
+            return false;
+        }
+        openFiles++;
+        return true;
+    }
+
+    /**
+     * Gives back an open file once the transfer has closed it.
+     */
+    void fileClosed() {
+        openFiles--;
+    }
+}
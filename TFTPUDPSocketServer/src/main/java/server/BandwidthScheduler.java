@@ -0,0 +1,399 @@
+package server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * Paces the DATA blocks of read transfers so they stay within the server's bandwidth limits and share
+ * the bandwidth fairly. A transfer with blocks to send hands its flow to the scheduler instead of
+ * sending them, and the event loop calls {@link #dispatch} to send blocks while the limits allow.
+ * Every block is charged to a global token bucket and to the token bucket of the client's subnet, and
+ * a flow whose subnet is out of tokens waits on its own without holding up the others. Between the
+ * flows that may send, blocks go out in start-time fair queueing order: each flow's next block is
+ * tagged with the virtual time at which its previous block finished, counted in bytes divided by the
+ * flow's weight, and the lowest tag goes first. A flow that was idle starts at the current virtual
+ * time, so a small fetch that only ever has a window or two in flight is served ahead of the backlog
+ * of a large one, while large transfers share what is left in proportion to their weights. Weights
+ * come from priority classes matched against the file name.
+ */
+class BandwidthScheduler {
+    // Virtual time is counted in bytes scaled by this factor and divided by the flow's weight
+    private static final long TAG_SCALE = 1 << 16;
+    // Token buckets hold up to this many seconds of traffic, which is the largest burst they let through
+    private static final double BURST_SECONDS = 0.1;
+    private static final Comparator<Flow> BY_START_TAG = Comparator.<Flow>comparingLong(flow -> flow.startTag).thenComparingLong(flow -> flow.sequence);
+    private static final Comparator<Flow> BY_WAKE_TIME = Comparator.comparingLong(flow -> flow.wakeAt);
+
+    private final TokenBucket globalBucket;
+    private final long clientRate;
+    private final int prefixLength;
+    private final int prefixLength6;
+    private final List<PriorityClass> priorityClasses;
+    // The token bucket of every subnet with a flow open, shared by the flows from that subnet
+    private final Map<InetAddress, TokenBucket> clientBuckets = new HashMap<>();
+    // Flows that may send as soon as the global bucket allows, lowest start tag first
+    private final PriorityQueue<Flow> ready = new PriorityQueue<>(BY_START_TAG);
+    // Flows waiting for their subnet's bucket to refill, earliest first
+    private final PriorityQueue<Flow> throttled = new PriorityQueue<>(BY_WAKE_TIME);
+    // The start tag of the block sent last
+    private long virtualTime;
+    private long sequence;
+
+    /**
+     * Creates a scheduler with the given limits.
+     *
+     * @param rate            the most bytes per second sent to all clients together, or 0 for no limit
+     * @param clientRate      the most bytes per second sent to one client subnet, or 0 for no limit
+     * @param prefixLength    the prefix length that groups IPv4 clients into subnets, 32 for one bucket per address
+     * @param prefixLength6   the prefix length that groups IPv6 clients into subnets, 128 for one bucket per address
+     * @param priorityClasses the priority classes, as a comma separated list of glob=weight pairs
+     * @throws IllegalArgumentException if the priority classes are not valid
+     */
+    BandwidthScheduler(long rate, long clientRate, int prefixLength, int prefixLength6, String priorityClasses) {
+        this.globalBucket = rate > 0 ? new TokenBucket(rate, System.nanoTime()) : null;
+        this.clientRate = clientRate;
+        this.prefixLength = Math.max(0, Math.min(prefixLength, 32));
+        this.prefixLength6 = Math.max(0, Math.min(prefixLength6, 128));
+        this.priorityClasses = parsePriorityClasses(priorityClasses);
+    }
+
+    /**
+     * Opens a flow for a read transfer, weighted by the priority class of its file.
+     *
+     * @param transfer      the transfer whose blocks the flow paces
+     * @param clientAddress the client the transfer sends to, whose subnet's bucket the flow is charged to
+     * @return the flow
+     */
+    Flow open(ReadTransfer transfer, SocketAddress clientAddress) {
+        TokenBucket bucket = null;
+        if (clientRate > 0) {
+            bucket = clientBuckets.computeIfAbsent(subnetOf(clientAddress), subnet -> new TokenBucket(clientRate, System.nanoTime()));
+            bucket.flows++;
+        }
+        return new Flow(transfer, weightOf(transfer.fileName), bucket);
+    }
+
+    /**
+     * Queues a flow whose transfer has blocks to send. A flow that is already queued keeps its place.
+     *
+     * @param flow the flow
+     */
+    void submit(Flow flow) {
+        if (flow.state == FlowState.IDLE) {
+            flow.waitingSince = System.nanoTime();
+            enqueue(flow);
+        }
+    }
+
+    /**
+     * Takes a flow out of the scheduler once its transfer has ended, releasing its subnet's bucket
+     * when no other flow uses it.
+     *
+     * @param flow the flow
+     */
+    void close(Flow flow) {
+        if (flow.state == FlowState.READY) {
+            ready.remove(flow);
+        } else if (flow.state == FlowState.THROTTLED) {
+            throttled.remove(flow);
+        }
+        flow.state = FlowState.CLOSED;
+        if (flow.bucket != null && --flow.bucket.flows == 0) {
+            clientBuckets.values().remove(flow.bucket);
+        }
+    }
+
+    /**
+     * Sends blocks in fair queueing order until every queued flow has sent its blocks, the global
+     * bucket runs out of tokens, or the remaining flows wait for their subnet's bucket.
+     *
+     * @param now    the current System.nanoTime() value
+     * @param sender sends the next block of a transfer and returns the size of the packet, or 0 if
+     *               nothing was sent because the transfer failed
+     */
+    void dispatch(long now, ToIntFunction<ReadTransfer> sender) {
+        Flow flow;
+        while ((flow = throttled.peek()) != null && flow.wakeAt <= now) {
+            throttled.poll();
+            enqueue(flow);
+        }
+        while ((flow = ready.peek()) != null) {
+            if (globalBucket != null && globalBucket.nanosUntilAvailable(now) > 0) {
+                return;
+            }
+            ready.poll();
+            if (!flow.transfer.hasPacedBlocks()) {
+                // The transfer took back its blocks, for example because its client changed
+                flow.state = FlowState.IDLE;
+                continue;
+            }
+            if (flow.bucket != null) {
+                long wait = flow.bucket.nanosUntilAvailable(now);
+                if (wait > 0) {
+                    flow.wakeAt = now + wait;
+                    flow.state = FlowState.THROTTLED;
+                    throttled.add(flow);
+                    continue;
+                }
+            }
+            if (flow.waitingSince != 0) {
+                METRICS.pacingDelay.record(now - flow.waitingSince);
+                flow.waitingSince = 0;
+            }
+            flow.state = FlowState.IDLE;
+            virtualTime = flow.startTag;
+            int packetSize = sender.applyAsInt(flow.transfer);
+            if (packetSize > 0) {
+                if (globalBucket != null) {
+                    globalBucket.take(packetSize);
+                }
+                if (flow.bucket != null) {
+                    flow.bucket.take(packetSize);
+                }
+                flow.finishTag = flow.startTag + packetSize * TAG_SCALE / flow.weight;
+            }
+            // Sending may have ended the transfer, which closes the flow
+            if (flow.state == FlowState.IDLE && flow.transfer.hasPacedBlocks()) {
+                enqueue(flow);
+            }
+        }
+    }
+
+    /**
+     * Returns how long the event loop may wait before blocks can be dispatched again.
+     *
+     * @param now the current System.nanoTime() value
+     * @return the time to wait in nanoseconds, or -1 if no flow is waiting to send
+     */
+    long nanosUntilReady(long now) {
+        long wait = -1;
+        if (!ready.isEmpty()) {
+            wait = globalBucket != null ? globalBucket.nanosUntilAvailable(now) : 0;
+        }
+        Flow next = throttled.peek();
+        if (next != null) {
+            long throttledWait = Math.max(0, next.wakeAt - now);
+            wait = wait < 0 ? throttledWait : Math.min(wait, throttledWait);
+        }
+        return wait;
+    }
+
+    /**
+     * Puts a flow in the ready queue, tagged with the later of the current virtual time and the
+     * finish of its last block, so an idle flow cannot save up a share to spend later.
+     *
+     * @param flow the flow
+     */
+    private void enqueue(Flow flow) {
+        flow.startTag = Math.max(virtualTime, flow.finishTag);
+        flow.sequence = sequence++;
+        flow.state = FlowState.READY;
+        ready.add(flow);
+    }
+
+    /**
+     * Returns the weight of the first priority class matching a file name.
+     *
+     * @param fileName the name of the file
+     * @return the weight, or 1 if no class matches
+     */
+    private int weightOf(String fileName) {
+        try {
+            for (PriorityClass priorityClass : priorityClasses) {
+                if (priorityClass.pattern.matches(Paths.get(fileName))) {
+                    return priorityClass.weight;
+                }
+            }
+        } catch (InvalidPathException e) {
+            // A name that is not a valid path matches no class
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the subnet a client belongs to, which is its address with the host bits cleared.
+     *
+     * @param clientAddress the address of the client
+     * @return the subnet address
+     */
+    private InetAddress subnetOf(SocketAddress clientAddress) {
+        InetAddress address = ((InetSocketAddress) clientAddress).getAddress();
+        byte[] bytes = address.getAddress();
+        int prefix = bytes.length == 4 ? prefixLength : prefixLength6;
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = prefix - i * 8;
+            if (bits <= 0) {
+                bytes[i] = 0;
+            } else if (bits < 8) {
+                bytes[i] &= (byte) (0xFF << (8 - bits));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Cannot happen, since the address has the length of the one it came from
+            return address;
+        }
+    }
+
+    /**
+     * Parses priority classes written as a comma separated list of glob=weight pairs, such as
+     * {@code *.cfg=8,*.{img,iso}=1}. Commas inside braces belong to the glob.
+     *
+     * @param spec the priority classes, or an empty string for none
+     * @return the classes, in the order they are matched
+     * @throws IllegalArgumentException if a pair is not valid or a weight is not between 1 and 1000
+     */
+    static List<PriorityClass> parsePriorityClasses(String spec) {
+        List<PriorityClass> classes = new ArrayList<>();
+        for (String entry : spec.split(",(?![^{]*})")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected glob=weight: " + entry);
+            }
+            int weight;
+            try {
+                weight = Integer.parseInt(entry.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight: " + entry);
+            }
+            if (weight < 1 || weight > 1000) {
+                throw new IllegalArgumentException("Weight must be between 1 and 1000: " + entry);
+            }
+            PathMatcher pattern = FileSystems.getDefault().getPathMatcher("glob:" + entry.substring(0, separator).trim());
+            classes.add(new PriorityClass(pattern, weight));
+        }
+        return classes;
+    }
+
+    /**
+     * Where a flow is in the scheduler.
+     */
+    enum FlowState {
+        /** The transfer has no blocks to send. */
+        IDLE,
+        /** The flow waits in the ready queue for its turn. */
+        READY,
+        /** The flow waits for its subnet's bucket to refill. */
+        THROTTLED,
+        /** The transfer has ended. */
+        CLOSED
+    }
+
+    /**
+     * The scheduler's view of one read transfer.
+     */
+    static final class Flow {
+        final ReadTransfer transfer;
+        final int weight;
+        // The bucket of the client's subnet, or null when clients are not limited
+        final TokenBucket bucket;
+        FlowState state = FlowState.IDLE;
+        long startTag;
+        long finishTag;
+        long sequence;
+        long wakeAt;
+        // When the flow was submitted, until its first block is sent
+        long waitingSince;
+
+        /**
+         * Creates a flow.
+         *
+         * @param transfer the transfer whose blocks the flow paces
+         * @param weight   the flow's share of the bandwidth relative to other flows
+         * @param bucket   the bucket of the client's subnet, or null
+         */
+        Flow(ReadTransfer transfer, int weight, TokenBucket bucket) {
+            this.transfer = transfer;
+            this.weight = weight;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * A file name pattern and the weight given to transfers of matching files.
+     */
+    static final class PriorityClass {
+        final PathMatcher pattern;
+        final int weight;
+
+        /**
+         * Creates a priority class.
+         *
+         * @param pattern the pattern file names are matched against
+         * @param weight  the weight of matching transfers
+         */
+        PriorityClass(PathMatcher pattern, int weight) {
+            this.pattern = pattern;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A token bucket that refills at a fixed rate up to a burst of {@link #BURST_SECONDS} of traffic.
+     * Packets may be sent while the bucket holds any tokens, and a packet larger than what is left
+     * puts the bucket in debt, which the following packets wait out.
+     */
+    static final class TokenBucket {
+        private final double bytesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long updatedAt;
+        // The flows charged to this bucket
+        int flows;
+
+        /**
+         * Creates a full bucket.
+         *
+         * @param rate the rate in bytes per second
+         * @param now  the current System.nanoTime() value
+         */
+        TokenBucket(long rate, long now) {
+            this.bytesPerNano = rate / 1e9;
+            this.capacity = rate * BURST_SECONDS;
+            this.tokens = capacity;
+            this.updatedAt = now;
+        }
+
+        /**
+         * Returns how long until the bucket holds tokens again.
+         *
+         * @param now the current System.nanoTime() value
+         * @return the time in nanoseconds, or 0 if a packet may be sent now
+         */
+        long nanosUntilAvailable(long now) {
+            if (now > updatedAt) {
+                tokens = Math.min(capacity, tokens + (now - updatedAt) * bytesPerNano);
+                updatedAt = now;
+            }
+            return tokens > 0 ? 0 : (long) Math.ceil((1 - tokens) / bytesPerNano);
+        }
+
+        /**
+         * Takes the tokens for a packet that was sent.
+         *
+         * @param bytes the size of the packet
+         */
+        void take(long bytes) {
+            tokens -= bytes;
+        }
+    }
+}
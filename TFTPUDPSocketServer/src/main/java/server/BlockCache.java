@@ -0,0 +1,256 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static protocol.Tftp.OP_DATA;
+
+/**
+ * A size-bounded cache of files held off the heap as ready-to-send DATA packets. A cached file is
+ * laid out as consecutive slots of block size + 4 bytes with the opcode and block number already in
+ * front of every block, so sending a block is a matter of pointing a view at its slot: no disk read
+ * and no copy. Entries are keyed by file and block size, dropped when the file's size or
+ * modification time changes, and evicted least recently used first once the cache is full.
+ * A file missing from the cache is read into it on a loader thread, so the engine's thread never
+ * waits for the disk, and the transfer that asked for it is served from disk in the meantime. The
+ * loaded file is handed back to the engine's thread on its next lookup, so the entries are only used
+ * from that thread and are not synchronized.
+ */
+class BlockCache {
+    /**
+     * A file cached as DATA packets for one block size.
+     */
+    static final class CachedFile {
+        private final ByteBuffer packets;
+        private final FileTime lastModified;
+        final long fileSize;
+        final int blockCount;
+        private final int slotSize;
+
+        /**
+         * Creates a cached file around its packets.
+         *
+         * @param packets      the direct buffer holding every DATA packet of the file
+         * @param lastModified the modification time of the file when it was read
+         * @param fileSize     the size of the file in bytes
+         * @param blockCount   the number of blocks, including the final short or empty block
+         * @param blockSize    the block size the packets were laid out for
+         */
+        private CachedFile(ByteBuffer packets, FileTime lastModified, long fileSize, int blockCount, int blockSize) {
+            this.packets = packets;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.blockCount = blockCount;
+            this.slotSize = blockSize + 4;
+        }
+
+        /**
+         * Returns a view of the packets that a single transfer can move around without disturbing
+         * other transfers sending the same file.
+         *
+         * @return a new view of the cached packets
+         */
+        ByteBuffer view() {
+            return packets.duplicate();
+        }
+
+        /**
+         * Points a view at the DATA packet of a block.
+         *
+         * @param view  a view returned by {@link #view()}
+         * @param block the number of the block, from 1 to the block count
+         * @return the view, positioned at the start of the packet and limited to its end
+         */
+        ByteBuffer block(ByteBuffer view, int block) {
+            int offset = (block - 1) * slotSize;
+            int end = block == blockCount ? packets.capacity() : offset + slotSize;
+            return view.clear().position(offset).limit(end);
+        }
+
+        /**
+         * Returns the number of bytes of memory held by this file.
+         *
+         * @return the capacity of the packet buffer
+         */
+        long memorySize() {
+            return packets.capacity();
+        }
+    }
+
+    /**
+     * Identifies a cached file by its path and the block size its packets were laid out for.
+     *
+     * @param path      the path of the file
+     * @param blockSize the block size
+     */
+    private record Key(Path path, int blockSize) {
+    }
+
+    /**
+     * A file the loader thread read, waiting to be added to the cache on the engine's thread.
+     *
+     * @param key  the key of the file
+     * @param file the cached file, or null if it could not be read
+     */
+    private record Loaded(Key key, CachedFile file) {
+    }
+
+    private final long capacity;
+    private final long maxFileSize;
+    // Kept in access order, so the first entry is the least recently used one
+    private final Map<Key, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    // Reads missing files into the cache one at a time, away from the engine's thread
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "cache-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // The files being read, so a file is read once however many transfers ask for it meanwhile, and
+    // the files read, for the engine's thread to add on its next lookup
+    private final Set<Key> loading = new HashSet<>();
+    private final Queue<Loaded> loaded = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity    the most memory, in bytes, the cached packets may take up
+     * @param maxFileSize the largest file, in bytes, that is cached
+     */
+    BlockCache(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+    }
+
+    /**
+     * Returns the cached packets of a file. A file that is missing or has changed since it was cached
+     * is read into the cache on the loader thread, and is there for the transfers that ask for it
+     * once it has been read.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @param blockSize  the block size negotiated for the transfer
+     * @return the cached file, or null if the file is not cached yet or too large to cache, and must be read from disk
+     */
+    CachedFile get(Path path, BasicFileAttributes attributes, int blockSize) {
+        addLoaded();
+        Key key = new Key(path, blockSize);
+        CachedFile cached = entries.get(key);
+        if (cached != null) {
+            if (cached.fileSize == attributes.size() && cached.lastModified.equals(attributes.lastModifiedTime())) {
+                return cached;
+            }
+            // The file changed since it was cached
+            remove(key);
+        }
+        if (!attributes.isRegularFile() || attributes.size() > maxFileSize) {
+            return null;
+        }
+        if (loading.add(key)) {
+            loader.execute(() -> loaded.add(new Loaded(key, loadQuietly(path, blockSize, attributes))));
+        }
+        return null;
+    }
+
+    /**
+     * Adds the files the loader thread has read since the last lookup, making room for each by
+     * evicting the least recently used files.
+     */
+    private void addLoaded() {
+        Loaded entry;
+        while ((entry = loaded.poll()) != null) {
+            loading.remove(entry.key());
+            CachedFile cached = entry.file();
+            if (cached == null) {
+                continue;
+            }
+            remove(entry.key());
+            Iterator<CachedFile> eldest = entries.values().iterator();
+            while (size + cached.memorySize() > capacity && eldest.hasNext()) {
+                size -= eldest.next().memorySize();
+                eldest.remove();
+            }
+            entries.put(entry.key(), cached);
+            size += cached.memorySize();
+        }
+    }
+
+    /**
+     * Removes a file from the cache. Transfers already sending it keep their view of the packets.
+     *
+     * @param key the key of the file to remove
+     */
+    private void remove(Key key) {
+        CachedFile removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.memorySize();
+        }
+    }
+
+    /**
+     * Reads a file into a new direct buffer laid out as DATA packets, on the loader thread.
+     *
+     * @param path       the path of the file
+     * @param blockSize  the block size to lay the packets out for
+     * @param attributes the attributes of the file when it was looked up
+     * @return the cached file, or null if the file could not be read or changed size while it was being read
+     */
+    private static CachedFile loadQuietly(Path path, int blockSize, BasicFileAttributes attributes) {
+        try {
+            return load(path, blockSize, attributes);
+        } catch (IOException e) {
+            System.out.println("Error caching " + path.getFileName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads a file into a new direct buffer laid out as DATA packets.
+     *
+     * @param path       the path of the file
+     * @param blockSize  the block size to lay the packets out for
+     * @param attributes the current attributes of the file
+     * @return the cached file, or null if the file changed size while it was being read
+     * @throws IOException if the file cannot be read
+     */
+    private static CachedFile load(Path path, int blockSize, BasicFileAttributes attributes) throws IOException {
+        long fileSize = attributes.size();
+        // Every full block is followed by one more, possibly empty, block
+        long blockCount = fileSize / blockSize + 1;
+        long memorySize = fileSize + 4 * blockCount;
+        if (memorySize > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer packets = ByteBuffer.allocateDirect((int) memorySize);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = 0;
+            for (int block = 1; block <= blockCount; block++) {
+                packets.put((byte) 0).put(OP_DATA).putShort((short) block);
+                packets.limit((int) Math.min(packets.position() + blockSize, memorySize));
+                while (packets.hasRemaining()) {
+                    int bytesRead = file.read(packets, position);
+                    if (bytesRead == -1) {
+                        return null;
+                    }
+                    position += bytesRead;
+                }
+                packets.limit((int) memorySize);
+            }
+        }
+        return new CachedFile(packets.clear(), attributes.lastModifiedTime(), fileSize, (int) blockCount, blockSize);
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of direct buffers for packets, so that starting and finishing transfers does not allocate
+ * and free native memory each time. Direct buffers let the channels send and receive without copying
+ * through a temporary buffer. Buffers are pooled by exact size, since only a handful of block sizes
+ * are in use at any time, and buffers returned once the pool holds its limit are left to the garbage
+ * collector. The pool is only used from the engine's thread, so it is not synchronized.
+ */
+class BufferPool {
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+    private final long maxPooledBytes;
+    private long pooledBytes;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxPooledBytes the most memory, in bytes, the idle buffers in the pool may hold
+     */
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none of the right size is idle.
+     *
+     * @param size the capacity of the buffer
+     * @return a cleared direct buffer of the given capacity
+     */
+    ByteBuffer acquire(int size) {
+        ArrayDeque<ByteBuffer> buffers = freeBuffers.get(size);
+        ByteBuffer buffer = buffers != null ? buffers.pollFirst() : null;
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        pooledBytes -= size;
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer the buffer to return, or null to do nothing
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || pooledBytes + buffer.capacity() > maxPooledBytes) {
+            return;
+        }
+        freeBuffers.computeIfAbsent(buffer.capacity(), size -> new ArrayDeque<>()).addFirst(buffer);
+        pooledBytes += buffer.capacity();
+    }
+}
@@ -0,0 +1,243 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import protocol.Checksums;
+
+import static protocol.Tftp.*;
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * Sends a file to a group of clients at once with the multicast option (RFC 2090). Every DATA block
+ * goes to a multicast group, so it crosses the network once however many clients are listening.
+ * One client at a time, the master client, acknowledges blocks and so drives the transfer, in
+ * lockstep; the others store whatever blocks they see. When the master has the whole file, the next
+ * client in line becomes master and acknowledges the last block it holds without a gap, and the
+ * transfer goes back to fill in the blocks it missed. Clients that ask for the same file with the
+ * same block size while the transfer runs join it late in the same way.
+ */
+class MulticastTransfer extends ReadTransfer {
+    private final InetSocketAddress groupAddress;
+    // Every client in the transfer, and the ones still waiting for their turn as master client in the order they joined
+    private final Set<SocketAddress> members = new HashSet<>();
+    private final ArrayDeque<SocketAddress> waitingClients = new ArrayDeque<>();
+    // Whether the current master client has acknowledged anything since it was made master
+    private boolean masterAcknowledged;
+    // The highest block sent to the group before the current master client took over, any of which it may already hold
+    private int highestSentBlock;
+
+    /**
+     * Creates a multicast transfer of the named file, with the requesting client as the first master client.
+     *
+     * @param channel          the channel bound to this transfer's TID, shared by every client in the transfer
+     * @param clientAddress    the address and port of the first client
+     * @param fileName         the name of the file to send
+     * @param requestedOptions the options included in the first client's request
+     * @param groupAddress     the multicast group and port the DATA packets are sent to
+     * @param blockCache       the cache of ready-to-send DATA packets shared by all transfers
+     * @param sharedReads      the rings of blocks read from files, shared by all transfers of the same file
+     * @param bufferPool       the pool the transfer takes its packet buffers from
+     * @param scheduler        the scheduler pacing DATA blocks, or null if the server has no bandwidth limits
+     */
+    MulticastTransfer(DatagramChannel channel, SocketAddress clientAddress, String fileName, Map<String, String> requestedOptions,
+                      InetSocketAddress groupAddress, BlockCache blockCache, SharedReads sharedReads, BufferPool bufferPool,
+                      BandwidthScheduler scheduler) {
+        super(channel, clientAddress, fileName, multicastOptions(requestedOptions), blockCache, sharedReads, bufferPool, scheduler);
+        this.groupAddress = groupAddress;
+        dataAddress = groupAddress;
+        members.add(clientAddress);
+    }
+
+    /**
+     * Removes the options a multicast transfer does not take from a request: windowsize, since the
+     * master client acknowledges every block, and checksum, since clients collect the blocks out of order.
+     *
+     * @param requestedOptions the options included in the client's request
+     * @return the options without windowsize and checksum
+     */
+    private static Map<String, String> multicastOptions(Map<String, String> requestedOptions) {
+        Map<String, String> options = new LinkedHashMap<>(requestedOptions);
+        options.remove("windowsize");
+        options.remove(Checksums.OPTION);
+        return options;
+    }
+
+    @Override
+    void start() throws IOException {
+        if (!openFile()) {
+            return;
+        }
+        System.out.println("Multicast transfer of " + fileName + " to " + groupAddress + " started.");
+        // Clients leave by acknowledging the final block, so it has to be known before it is sent
+        finalBlock = (int) (fileSize / blockSize) + 1;
+        acceptedOptions.put("multicast", multicastOption(true));
+        sendOack();
+        state = State.AWAITING_ACK;
+        awaitReply();
+    }
+
+    /**
+     * Adds a client that asked for the same file to the transfer. It is told the group to listen on,
+     * and waits for its turn as master client to fetch the blocks it missed.
+     *
+     * @param client           the address and port of the joining client
+     * @param requestedOptions the options included in the client's request
+     * @throws IOException if an error occurs while sending the OACK packet
+     */
+    void join(SocketAddress client, Map<String, String> requestedOptions) throws IOException {
+        if (members.add(client)) {
+            waitingClients.add(client);
+            System.out.println("Client " + client + " joined the multicast transfer of " + fileName + ".");
+        }
+        // Acknowledge the options this transfer already uses, and tell the client it is not the master client yet
+        Map<String, String> options = new LinkedHashMap<>();
+        if (requestedOptions.containsKey("blksize")) {
+            options.put("blksize", Integer.toString(blockSize));
+        }
+        if (requestedOptions.containsKey("tsize")) {
+            options.put("tsize", Long.toString(fileSize));
+        }
+        options.put("multicast", multicastOption(client.equals(clientAddress)));
+        channel.send(createOackPacket(options), client);
+    }
+
+    /**
+     * Formats the value of the multicast option: the group address, port, and whether the client is the master client.
+     *
+     * @param master whether the client receiving the option is the master client
+     * @return the option value
+     */
+    private String multicastOption(boolean master) {
+        return groupAddress.getAddress().getHostAddress() + "," + groupAddress.getPort() + "," + (master ? 1 : 0);
+    }
+
+    @Override
+    boolean isPeer(SocketAddress senderAddress) {
+        return members.contains(senderAddress);
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet, SocketAddress sender) throws IOException {
+        if (received.opcode() != OP_ACK) {
+            System.out.println("Invalid opcode received: " + received.opcode());
+            return;
+        }
+        int receivedBlockNumber = received.block();
+        if (!sender.equals(clientAddress)) {
+            // Only the master client drives the transfer; any other client acknowledging the final block already has the whole file
+            if (receivedBlockNumber == finalBlock) {
+                leave(sender);
+            }
+            return;
+        }
+        if (finalBlock != -1 && receivedBlockNumber > finalBlock) {
+            return;
+        }
+        if (masterAcknowledged && receivedBlockNumber <= lastAckedBlock) {
+            // A late or repeated ACK; the retransmission timer takes care of lost packets
+            duplicatePackets++;
+            return;
+        }
+        // A master client that fills in the blocks it missed jumps ahead to the blocks it kept from earlier
+        if (masterAcknowledged && receivedBlockNumber > Math.max(lastSentBlock, highestSentBlock)) {
+            outOfOrderPackets++;
+            return;
+        }
+        // A new master client may acknowledge any block, since it may hold blocks from earlier in the transfer
+        masterAcknowledged = true;
+        replyReceived();
+        lastAckedBlock = receivedBlockNumber;
+        if (receivedBlockNumber == finalBlock) {
+            System.out.println("Multicast transfer of " + fileName + " completed for " + sender);
+            members.remove(sender);
+            electMaster();
+            return;
+        }
+        sendWindow();
+    }
+
+    @Override
+    void retransmit() throws IOException {
+        if (!masterAcknowledged) {
+            // The master client has not answered the OACK that made it master
+            sendMasterOack();
+            return;
+        }
+        super.retransmit();
+    }
+
+    @Override
+    void onClientError(SocketAddress senderAddress) throws IOException {
+        leave(senderAddress);
+    }
+
+    @Override
+    void onRetriesExhausted() throws IOException {
+        System.out.println("Master client " + clientAddress + " stopped answering in the multicast transfer of " + fileName + ".");
+        members.remove(clientAddress);
+        electMaster();
+    }
+
+    /**
+     * Removes a client from the transfer, electing a new master client if it was the master.
+     *
+     * @param client the client leaving the transfer
+     * @throws IOException if an error occurs while contacting the new master client
+     */
+    private void leave(SocketAddress client) throws IOException {
+        if (!members.remove(client)) {
+            return;
+        }
+        System.out.println("Client " + client + " left the multicast transfer of " + fileName + ".");
+        if (client.equals(clientAddress)) {
+            electMaster();
+        } else {
+            waitingClients.remove(client);
+        }
+    }
+
+    /**
+     * Makes the next waiting client the master client, or ends the transfer when no clients are left.
+     *
+     * @throws IOException if an error occurs while sending the OACK packet
+     */
+    private void electMaster() throws IOException {
+        SocketAddress next = waitingClients.poll();
+        if (next == null) {
+            System.out.println("Multicast transfer of " + fileName + " finished.");
+            complete();
+            return;
+        }
+        highestSentBlock = Math.max(highestSentBlock, lastSentBlock);
+        clientAddress = next;
+        masterAcknowledged = false;
+        // The new master client decides where the data picks up once it answers
+        cancelPacing();
+        sendMasterOack();
+        state = State.AWAITING_ACK;
+        awaitReply();
+    }
+
+    /**
+     * Tells the current master client that it is the master client.
+     *
+     * @throws IOException if an error occurs while sending the OACK packet
+     */
+    private void sendMasterOack() throws IOException {
+        if (lastSentBlock == 0) {
+            // No block has been sent yet, so the master client still needs every accepted option
+            sendOack();
+            return;
+        }
+        channel.send(createOackPacket(Map.of("multicast", multicastOption(true))), clientAddress);
+    }
+}
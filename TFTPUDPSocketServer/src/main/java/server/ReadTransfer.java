@@ -0,0 +1,473 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import protocol.Checksums;
+import protocol.Metrics;
+import protocol.PacketWriter;
+
+import static protocol.Tftp.*;
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * Sends a file to the client a window of blocks at a time (RFC 7440), waiting in
+ * {@link State#AWAITING_ACK} for the ACK of the last block in the window before sending the next
+ * window. Without a negotiated window size the window is a single block, which is the lockstep
+ * exchange of RFC 1350. When options were negotiated, the OACK is treated as block 0 and the
+ * client's ACK of it starts the data. Files small enough for the {@link BlockCache} are sent straight
+ * from their cached DATA packets once the cache has read them. Other files are read through the {@link SharedReads} ring of the
+ * file, so transfers of the same file at the same time share the blocks one of them read, and large
+ * files are copied out of a memory mapping instead of being read a block at a time. When the
+ * server has bandwidth limits, the blocks of a window are handed to the {@link BandwidthScheduler},
+ * which sends them as the limits and the other transfers allow, and the retransmission timer starts
+ * once the last of them is out. With the offset and length options the client reads part of the
+ * file, to resume a download or fetch a header: the range starts at the block holding the requested
+ * offset, so its blocks are the file's own blocks, renumbered from 1, and the OACK reports where it
+ * starts and how long it is. With the checksum option the blocks are added to a CRC32C checksum the
+ * first time they are sent, and the trailer carrying it follows the final block every time that block
+ * is sent; the checksum of a file sent whole is cached, so later readers of it skip the work.
+ */
+class ReadTransfer extends Transfer {
+    private final int windowSize;
+    private final BlockCache blockCache;
+    private final SharedReads sharedReads;
+    // Paces the DATA blocks when the server has bandwidth limits, or null when blocks go out straight away
+    private final BandwidthScheduler scheduler;
+    private BandwidthScheduler.Flow flow;
+    // The blocks waiting for the scheduler, and whether they are a retransmission
+    private int pacedNext = 1;
+    private int pacedEnd;
+    private boolean pacedRetransmission;
+    // The ring of blocks shared with other transfers of the file, or null when the file is cached
+    private SharedReads.Ring ring;
+    // The cached packets of the file and this transfer's view of them, or null when reading from disk
+    private BlockCache.CachedFile cachedFile;
+    private ByteBuffer cachedPackets;
+    // For a read of part of the file, the file block before the first block sent, the length of the
+    // range and the packet its blocks are renumbered in; the packet is null when the whole file is sent
+    private int rangeStartBlock;
+    private long rangeLength;
+    private ByteBuffer rangePacket;
+    // With the checksum option, the checksum of the data once known, or else the checksum of the blocks
+    // sent so far and how many they are. A file sent whole has its checksum cached under its path and attributes
+    private boolean checksumAccepted;
+    private long dataChecksum = -1;
+    private CRC32C checksum;
+    private int checksummedBlocks;
+    private Path checksumPath;
+    private BasicFileAttributes checksumAttributes;
+    // The size of the file once it is open
+    long fileSize;
+    // Where DATA packets go: the client, or the group of a multicast transfer
+    SocketAddress dataAddress;
+    // The last block the client acknowledged, the last block sent, and the final block once it is known
+    int lastAckedBlock;
+    int lastSentBlock;
+    int finalBlock = -1;
+
+    /**
+     * Creates a transfer that sends the named file from the retrieve directory.
+     *
+     * @param channel          the channel bound to this transfer's TID
+     * @param clientAddress    the address and port of the client
+     * @param fileName         the name of the file to send
+     * @param requestedOptions the options included in the client's request
+     * @param blockCache       the cache of ready-to-send DATA packets shared by all transfers
+     * @param sharedReads      the rings of blocks read from files, shared by all transfers of the same file
+     * @param bufferPool       the pool the transfer takes its packet buffers from
+     * @param scheduler        the scheduler pacing DATA blocks, or null if the server has no bandwidth limits
+     */
+    ReadTransfer(DatagramChannel channel, SocketAddress clientAddress, String fileName, Map<String, String> requestedOptions,
+                 BlockCache blockCache, SharedReads sharedReads, BufferPool bufferPool, BandwidthScheduler scheduler) {
+        super(channel, clientAddress, fileName, requestedOptions, bufferPool, false);
+        this.blockCache = blockCache;
+        this.sharedReads = sharedReads;
+        this.scheduler = scheduler;
+        windowSize = negotiateOption("windowsize", requestedOptions.get("windowsize"), 1, MAX_WINDOW_SIZE, 1);
+        dataAddress = clientAddress;
+    }
+
+    @Override
+    void start() throws IOException {
+        if (!openFile()) {
+            return;
+        }
+        if (acceptedOptions.isEmpty()) {
+            sendWindow();
+        } else {
+            // Acknowledge the options and wait for the client to ACK them as block 0
+            sendOack();
+            state = State.AWAITING_ACK;
+            awaitReply();
+        }
+    }
+
+    /**
+     * Opens the file from the cache or the file's shared ring, and records its size when the client
+     * asked for it. The file is looked up in the index of the retrieve directory, so a missing file is
+     * refused without touching the disk. If the file cannot be opened, or reading it from disk would
+     * take an open file over the server's cap, the client is sent an error instead.
+     *
+     * @return true if the file was opened, false if the transfer failed
+     * @throws IOException if an error occurs while sending the error packet
+     */
+    boolean openFile() throws IOException {
+        BasicFileAttributes attributes = RETRIEVE_INDEX.lookup(fileName);
+        if (attributes == null) {
+            System.out.println("File not found: " + fileName);
+            sendError(ERROR_FILE_NOT_FOUND, "File not found");
+            return false;
+        }
+        Path path = Paths.get(RETRIEVE_DIRECTORY + fileName);
+        boolean busy = false;
+        try {
+            // Serve the file from the cache when it is there, otherwise from the ring the transfers of the file share,
+            // which holds a file open unless the file is large enough to be read through a shared mapping. A file
+            // that fits in the cache is read into it in the background for the transfers that come later
+            cachedFile = blockCache.get(path, attributes, blockSize);
+            if (cachedFile != null) {
+                cachedPackets = cachedFile.view();
+                finalBlock = cachedFile.blockCount;
+                fileSize = cachedFile.fileSize;
+            } else if (attributes.size() >= MAP_THRESHOLD || reserveFile()) {
+                ring = sharedReads.acquire(path, attributes, blockSize);
+                fileSize = ring.size;
+            } else {
+                busy = true;
+            }
+        } catch (IOException e) {
+            // The file could not be opened, so tell the client and give up
+            System.out.println("Error reading from file: " + e.getMessage());
+            sendError(ERROR_FILE_NOT_FOUND, e.getMessage() != null ? e.getMessage() : "File not found");
+            return false;
+        }
+        if (busy) {
+            refuseBusy(Metrics.LIMIT_FILES);
+            return false;
+        }
+        // Report the size of the file up front when the client asks for it (RFC 2349)
+        if (requestedOptions.containsKey("tsize")) {
+            acceptedOptions.put("tsize", Long.toString(fileSize));
+        }
+        if (isRanged(requestedOptions)) {
+            negotiateRange();
+        }
+        if (Checksums.isSupported(requestedOptions.get(Checksums.OPTION))) {
+            negotiateChecksum(path, attributes);
+        }
+        if (scheduler != null) {
+            flow = scheduler.open(this, clientAddress);
+        }
+        return true;
+    }
+
+    /**
+     * Works out the part of the file to send from the offset and length options. The range is moved to
+     * start at the beginning of the block holding the requested offset, and keeps its requested end,
+     * cut off at the end of the file. Each option the client sent is acknowledged with the value used.
+     */
+    private void negotiateRange() {
+        long requestedOffset = parseBytes(requestedOptions.get("offset"));
+        long requestedLength = parseBytes(requestedOptions.get("length"));
+        long start = Math.min(Math.max(requestedOffset, 0), fileSize);
+        long end = requestedLength >= 0 && requestedLength < fileSize - start ? start + requestedLength : fileSize;
+        rangeStartBlock = (int) (start / blockSize);
+        start = (long) rangeStartBlock * blockSize;
+        rangeLength = end - start;
+        if (requestedOffset >= 0) {
+            acceptedOptions.put("offset", Long.toString(start));
+        }
+        if (requestedLength >= 0) {
+            acceptedOptions.put("length", Long.toString(rangeLength));
+        }
+        if (start > 0 || end < fileSize) {
+            finalBlock = (int) (rangeLength / blockSize) + 1;
+            rangePacket = bufferPool.acquire(blockSize + 4);
+        }
+    }
+
+    /**
+     * Accepts the checksum option. The checksum of a file sent whole comes from the cache when the file
+     * has not changed since it was last sent whole; otherwise it is worked out as the blocks go out.
+     *
+     * @param path       the path of the file
+     * @param attributes the attributes of the file
+     */
+    private void negotiateChecksum(Path path, BasicFileAttributes attributes) {
+        acceptedOptions.put(Checksums.OPTION, Checksums.CRC32C);
+        checksumAccepted = true;
+        if (rangePacket == null) {
+            checksumPath = path;
+            checksumAttributes = attributes;
+            dataChecksum = CHECKSUMS.get(path, attributes);
+        }
+        if (dataChecksum == -1) {
+            checksum = new CRC32C();
+        }
+    }
+
+    /**
+     * Returns whether a request asks for part of a file with the offset or length option.
+     *
+     * @param requestedOptions the options included in the request
+     * @return true if the request names a range
+     */
+    static boolean isRanged(Map<String, String> requestedOptions) {
+        return requestedOptions.containsKey("offset") || requestedOptions.containsKey("length");
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet, SocketAddress sender) throws IOException {
+        // Check that the received packet is an ACK packet
+        if (received.opcode() != OP_ACK) {
+            System.out.println("Invalid opcode received: " + received.opcode());
+            return;
+        }
+        // The ACK of the OACK, which counts as block 0, starts the first window
+        int receivedBlockNumber = unwrapBlock(received.block(), lastSentBlock);
+        if (receivedBlockNumber == 0 && lastSentBlock == 0) {
+            replyReceived();
+            sendWindow();
+            return;
+        }
+        // Only ACKs for blocks sent since the last acknowledged one move the transfer forward. A repeated
+        // ACK is never answered with data, since that would send every later block twice (RFC 1123)
+        if (receivedBlockNumber <= lastAckedBlock) {
+            duplicatePackets++;
+            return;
+        }
+        if (receivedBlockNumber > lastSentBlock) {
+            System.out.println("Received ACK packet with incorrect block number. Expected " + lastSentBlock + ", but received " + receivedBlockNumber);
+            outOfOrderPackets++;
+            return;
+        }
+        replyReceived();
+        // The ACK of the final block ends the transfer
+        if (receivedBlockNumber == finalBlock) {
+            System.out.println("File transfer to client completed for " + fileName);
+            complete();
+            return;
+        }
+        // An ACK for a block before the end of the window means the client saw a gap after it, so the
+        // next window rolls back and starts again from the block after the acknowledged one
+        lastAckedBlock = receivedBlockNumber;
+        sendWindow();
+    }
+
+    /**
+     * Sends the blocks following the last acknowledged block, up to the window size or the final block.
+     *
+     * @throws IOException if an error occurs while reading the file or sending a packet
+     */
+    void sendWindow() throws IOException {
+        int block = lastAckedBlock + 1;
+        int windowEnd = lastAckedBlock + windowSize;
+        if (flow != null) {
+            // Blocks count as sent once the scheduler has sent them
+            lastSentBlock = lastAckedBlock;
+            state = State.AWAITING_ACK;
+            pace(block, windowEnd, false);
+            return;
+        }
+        while (block <= windowEnd && (finalBlock == -1 || block <= finalBlock)) {
+            sendBlock(block);
+            block++;
+        }
+        lastSentBlock = block - 1;
+        state = State.AWAITING_ACK;
+        awaitReply();
+    }
+
+    @Override
+    void retransmit() throws IOException {
+        if (lastSentBlock == 0) {
+            // The client has not acknowledged the OACK yet
+            sendOack();
+            return;
+        }
+        // Resend every block of the window that has not been acknowledged
+        if (flow != null) {
+            pace(lastAckedBlock + 1, lastSentBlock, true);
+            return;
+        }
+        for (int block = lastAckedBlock + 1; block <= lastSentBlock; block++) {
+            sendBlock(block);
+        }
+    }
+
+    /**
+     * Hands a range of blocks to the bandwidth scheduler, stopping the retransmission timer until they have been sent.
+     *
+     * @param first          the first block to send
+     * @param last           the last block to send, unless the final block comes first
+     * @param retransmission whether the blocks were sent before, in which case the timer keeps its backoff
+     */
+    private void pace(int first, int last, boolean retransmission) {
+        pacedNext = first;
+        pacedEnd = last;
+        pacedRetransmission = retransmission;
+        timers.cancel(this);
+        scheduler.submit(flow);
+    }
+
+    /**
+     * Drops the blocks waiting for the bandwidth scheduler.
+     */
+    void cancelPacing() {
+        pacedNext = pacedEnd + 1;
+    }
+
+    /**
+     * Returns whether blocks are waiting for the bandwidth scheduler.
+     *
+     * @return true if the scheduler has blocks of this transfer to send
+     */
+    boolean hasPacedBlocks() {
+        return pacedNext <= pacedEnd && (finalBlock == -1 || pacedNext <= finalBlock) && !isComplete();
+    }
+
+    @Override
+    boolean isPacing() {
+        return hasPacedBlocks();
+    }
+
+    /**
+     * Sends the next block the bandwidth scheduler let through, and starts the retransmission timer
+     * once the last waiting block is out.
+     *
+     * @return the size of the packet sent
+     * @throws IOException if an error occurs while reading the file or sending the packet
+     */
+    int sendPacedBlock() throws IOException {
+        int block = pacedNext++;
+        int packetSize = sendBlock(block);
+        lastSentBlock = Math.max(lastSentBlock, block);
+        if (!hasPacedBlocks()) {
+            if (pacedRetransmission) {
+                timers.schedule(this, System.nanoTime() + rtt.timeout());
+            } else {
+                awaitReply();
+            }
+        }
+        return packetSize;
+    }
+
+    /**
+     * Reads a block of the file and sends it to the client as a DATA packet. A block shorter than the
+     * block size, which may be empty, is the final block, which is followed by the trailer when the
+     * client asked for a checksum. Only the low 16 bits of the block number go in the packet, so block
+     * 65536 goes out as block 0.
+     *
+     * @param block the number of the block to send, starting at 1
+     * @return the size of the packet sent
+     * @throws IOException if an error occurs while reading the file or sending the packet
+     */
+    private int sendBlock(int block) throws IOException {
+        ByteBuffer packet;
+        if (rangePacket != null) {
+            packet = rangeBlock(block);
+        } else if (cachedFile != null) {
+            // The cached packet already carries the opcode and block number
+            packet = cachedFile.block(cachedPackets, block);
+        } else {
+            // The ring reads the block unless another transfer of the file already did
+            packet = sharedReads.block(ring, block);
+            if (packet.limit() - 4 < blockSize) {
+                finalBlock = block;
+            }
+        }
+        if (checksum != null && block == checksummedBlocks + 1) {
+            int position = packet.position();
+            checksum.update(packet.position(position + 4));
+            packet.position(position);
+            checksummedBlocks = block;
+        }
+        int packetSize = countBlock(channel.send(packet, dataAddress));
+        if (checksumAccepted && block == finalBlock) {
+            sendTrailer();
+        }
+        return packetSize;
+    }
+
+    /**
+     * Prepares a block of the range being read, copying the file block it comes from into the range's
+     * packet under the block's number in the range, and cutting it off at the end of the range.
+     *
+     * @param block the number of the block in the range, starting at 1
+     * @return the range's packet, holding the block
+     * @throws IOException if an error occurs while reading the file
+     */
+    private ByteBuffer rangeBlock(int block) throws IOException {
+        int dataSize = (int) Math.min(blockSize, rangeLength - (long) (block - 1) * blockSize);
+        if (dataSize > 0) {
+            int fileBlock = rangeStartBlock + block;
+            ByteBuffer source = cachedFile != null ? cachedFile.block(cachedPackets, fileBlock) : sharedReads.block(ring, fileBlock);
+            rangePacket.put(4, source, source.position() + 4, dataSize);
+        }
+        PacketWriter.putHeader(rangePacket, OP_DATA, block);
+        return rangePacket.limit(4 + dataSize).position(0);
+    }
+
+    /**
+     * Sends the trailer carrying the checksum of the data, which is complete once the final block has
+     * been sent for the first time. The checksum of a file sent whole is then added to the cache.
+     *
+     * @throws IOException if an error occurs while sending the packet
+     */
+    private void sendTrailer() throws IOException {
+        if (dataChecksum == -1) {
+            dataChecksum = checksum.getValue();
+            checksum = null;
+            if (checksumPath != null) {
+                CHECKSUMS.put(checksumPath, checksumAttributes, dataChecksum);
+            }
+        }
+        channel.send(ByteBuffer.wrap(Checksums.trailer(dataChecksum)), dataAddress);
+    }
+
+    /**
+     * Counts a DATA packet that was sent in the metrics.
+     *
+     * @param packetSize the size of the packet, including its 4 byte header
+     * @return the size of the packet
+     */
+    private static int countBlock(int packetSize) {
+        METRICS.blocksSent.increment();
+        METRICS.bytesSent.add(packetSize - 4);
+        return packetSize;
+    }
+
+    @Override
+    void close() {
+        if (flow != null) {
+            scheduler.close(flow);
+            flow = null;
+        }
+        super.close();
+    }
+
+    @Override
+    void releaseBuffers() {
+        super.releaseBuffers();
+        if (rangePacket != null) {
+            bufferPool.release(rangePacket);
+        }
+    }
+
+    @Override
+    void closeFile() throws IOException {
+        if (ring != null) {
+            // Closes the file if this was its last reader
+            sharedReads.release(ring);
+            ring = null;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import protocol.MappedFiles;
+import protocol.PacketWriter;
+
+import static protocol.Tftp.OP_DATA;
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * Coalesces the reads of transfers sending the same file at the same time, for files the
+ * {@link BlockCache} does not hold. Every transfer of an unchanged file with the same block size
+ * shares one {@link Ring} of DATA packets: the first transfer to need a block reads it from disk or
+ * the file's mapping into the ring, and the others send it from there, so a file read by many
+ * clients at once is read about once rather than once per client. A ring is reference counted like a
+ * mapping: it is created by its first reader, holds the file's only channel, and gives its buffers
+ * back to the pool when its last reader finishes. A transfer that falls more than a ring behind the
+ * others reads its blocks from the file again. The rings
+ * are only used from the engine's thread, where every packet is sent before the loop moves on, so a
+ * block needs no reference count of its own while it is being sent.
+ */
+class SharedReads {
+    /**
+     * The blocks recently read from one file for one block size, in a ring of ready-to-send DATA packets.
+     */
+    static final class Ring {
+        private final Key key;
+        private final Object fileKey;
+        private final FileTime lastModified;
+        final long size;
+        // The file is read through a shared mapping when it is large, otherwise through a channel
+        private final MappedFiles.Mapping mapping;
+        private final FileChannel file;
+        // Block n is kept in slot (n - 1) % slots, with its packet and the number of the block it holds, or 0
+        private final ByteBuffer[] packets;
+        private final int[] blocks;
+        private int readers;
+
+        /**
+         * Creates an empty ring over an open file.
+         *
+         * @param key        the file and block size the ring is for
+         * @param attributes the attributes of the file when it was opened
+         * @param mapping    the mapping of the file, or null if it is read through a channel
+         * @param file       the channel of the file, or null if it is mapped
+         * @param slots      the number of blocks the ring holds
+         */
+        private Ring(Key key, BasicFileAttributes attributes, MappedFiles.Mapping mapping, FileChannel file, int slots) {
+            this.key = key;
+            this.fileKey = attributes.fileKey();
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.mapping = mapping;
+            this.file = file;
+            this.packets = new ByteBuffer[slots];
+            this.blocks = new int[slots];
+        }
+
+        /**
+         * Returns whether the ring was created for the file as it is now.
+         *
+         * @param attributes the current attributes of the file
+         * @return true if the file is the same and unchanged
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime())
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    /**
+     * The file and block size a ring is shared by.
+     *
+     * @param path      the path of the file
+     * @param blockSize the block size
+     */
+    private record Key(Path path, int blockSize) {
+    }
+
+    private final Map<Key, Ring> rings = new HashMap<>();
+    private final MappedFiles mappedFiles;
+    private final BufferPool bufferPool;
+    private final int ringSize;
+
+    /**
+     * Creates the shared reads with no rings yet.
+     *
+     * @param mappedFiles the mappings large files are read through
+     * @param bufferPool  the pool the rings take their packet buffers from and return them to
+     * @param ringSize    the number of bytes of blocks each ring holds, of which it holds at least 16 blocks
+     */
+    SharedReads(MappedFiles mappedFiles, BufferPool bufferPool, int ringSize) {
+        this.mappedFiles = mappedFiles;
+        this.bufferPool = bufferPool;
+        this.ringSize = ringSize;
+    }
+
+    /**
+     * Returns the ring of a file for a new reader, opening the file if no transfer of the unchanged
+     * file with the same block size is running. Every call must be matched by a call to {@link #release}.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @param blockSize  the block size of the reader's transfer
+     * @return the ring
+     * @throws IOException if the file cannot be opened
+     */
+    Ring acquire(Path path, BasicFileAttributes attributes, int blockSize) throws IOException {
+        Key key = new Key(path, blockSize);
+        Ring ring = rings.get(key);
+        if (ring == null || !ring.matches(attributes)) {
+            // Readers of a ring over an older version of the file keep it until they finish
+            ring = open(key, attributes);
+            rings.put(key, ring);
+        }
+        ring.readers++;
+        return ring;
+    }
+
+    /**
+     * Releases a reader's hold on a ring, closing the file and returning the ring's buffers to the
+     * pool when the last reader finishes.
+     *
+     * @param ring the ring returned by {@link #acquire}
+     * @throws IOException if the file's channel cannot be closed
+     */
+    void release(Ring ring) throws IOException {
+        if (--ring.readers > 0) {
+            return;
+        }
+        if (rings.get(ring.key) == ring) {
+            rings.remove(ring.key);
+        }
+        for (ByteBuffer packet : ring.packets) {
+            bufferPool.release(packet);
+        }
+        if (ring.mapping != null) {
+            // Unmaps the file if this was its last reader
+            mappedFiles.release(ring.mapping);
+        } else {
+            ring.file.close();
+        }
+    }
+
+    /**
+     * Returns the DATA packet of a block, reading the block into the ring unless another transfer
+     * already did. The packet must be sent before the ring is used again, since the next block read
+     * into its slot overwrites it.
+     *
+     * @param ring  the ring of the file
+     * @param block the number of the block, starting at 1
+     * @return the packet, with its opcode and block number in front of the data, from position 0 to its length
+     * @throws IOException if the block cannot be read
+     */
+    ByteBuffer block(Ring ring, int block) throws IOException {
+        int slot = (block - 1) % ring.packets.length;
+        ByteBuffer packet = ring.packets[slot];
+        if (ring.blocks[slot] == block) {
+            METRICS.sharedReadHits.increment();
+            return packet.position(0);
+        }
+        if (packet == null) {
+            packet = bufferPool.acquire(ring.key.blockSize + 4);
+            ring.packets[slot] = packet;
+        }
+        // Read the block at its offset, leaving room for the opcode and block number
+        ring.blocks[slot] = 0;
+        long position = (long) (block - 1) * ring.key.blockSize;
+        packet.clear().position(4);
+        long readStart = System.nanoTime();
+        if (ring.mapping != null) {
+            // A mapped file is copied from memory without a read call
+            ring.mapping.read(position, packet);
+        } else {
+            while (packet.hasRemaining() && ring.file.read(packet, position + packet.position() - 4) != -1) {
+                // Keep reading until the block is full or the end of the file is reached
+            }
+        }
+        METRICS.diskRead.recordSince(readStart);
+        PacketWriter.putHeader(packet, OP_DATA, block);
+        packet.flip();
+        ring.blocks[slot] = block;
+        return packet;
+    }
+
+    /**
+     * Opens a file for a new ring, through a shared mapping if it is large.
+     *
+     * @param key        the file and block size of the ring
+     * @param attributes the attributes of the file
+     * @return the ring, with no readers yet
+     * @throws IOException if the file cannot be opened
+     */
+    private Ring open(Key key, BasicFileAttributes attributes) throws IOException {
+        // The ring never holds more blocks than the file has
+        long fileBlocks = attributes.size() / key.blockSize + 1;
+        int slots = (int) Math.min(fileBlocks, Math.max(16, ringSize / (key.blockSize + 4)));
+        if (attributes.size() >= MAP_THRESHOLD) {
+            return new Ring(key, attributes, mappedFiles.acquire(key.path, attributes), null, slots);
+        }
+        return new Ring(key, attributes, null, FileChannel.open(key.path, StandardOpenOption.READ), slots);
+    }
+}
@@ -1,17 +1,69 @@
 package server;
 
 import java.io.*;
-import java.net.*;
-import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
+import protocol.ChecksumCache;
+import protocol.DirectoryIndex;
+import protocol.Metrics;
+import protocol.MetricsEndpoint;
+
+import static protocol.Tftp.DEFAULT_BLOCK_SIZE;
+
 public class TFTPUDPSocketServer {
-    private static final int BUFFER_SIZE = 512;
-    private static final byte OP_RRQ = 1;
-    private static final byte OP_WRQ = 2;
-    private static final byte OP_DATA = 3;
-    private static final byte OP_ACK = 4;
-    private static final byte OP_ERROR = 5;
+    static final int BUFFER_SIZE = DEFAULT_BLOCK_SIZE;
+    static final int MAX_WINDOW_SIZE = 64;
+    // Number of times a packet is retransmitted without an answer before the transfer is abandoned
+    static final int MAX_RETRIES = Integer.getInteger("tftp.maxRetries", 5);
+    // Largest file a client may upload; larger uploads are refused before any data is sent
+    static final long MAX_UPLOAD_SIZE = Long.getLong("tftp.maxUploadSize", Long.MAX_VALUE);
+    // Memory, in bytes, for files cached off the heap as DATA packets, and the largest file that is cached
+    static final long CACHE_SIZE = Long.getLong("tftp.cacheSize", 64L * 1024 * 1024);
+    static final long CACHE_MAX_FILE_SIZE = Long.getLong("tftp.cacheMaxFileSize", 16L * 1024 * 1024);
+    // Files at least this large that do not fit in the cache are served from a shared memory mapping
+    static final long MAP_THRESHOLD = Long.getLong("tftp.mapThreshold", 1024 * 1024);
+    // Bytes of recently read blocks kept for each file read by transfers that are not served from the cache,
+    // so concurrent transfers of the same file share one read of each block
+    static final int READ_RING_SIZE = Integer.getInteger("tftp.readRingSize", 1024 * 1024);
+    // Memory, in bytes, kept in idle direct packet buffers for reuse by later transfers
+    static final long BUFFER_POOL_SIZE = Long.getLong("tftp.bufferPoolSize", 16L * 1024 * 1024);
+    // Multicast group and first port used for multicast transfers (RFC 2090), and the interface they are sent from
+    static final String MULTICAST_ADDRESS = System.getProperty("tftp.multicastAddress", "239.255.0.69");
+    static final int MULTICAST_PORT = Integer.getInteger("tftp.multicastPort", 1758);
+    static final String MULTICAST_INTERFACE = System.getProperty("tftp.multicastInterface");
+    // Uploads are gathered into chunks of this many bytes, of which up to tftp.writeQueueSize wait for the disk writer
+    static final int WRITE_CHUNK_SIZE = Integer.getInteger("tftp.writeChunkSize", 256 * 1024);
+    static final int WRITE_QUEUE_SIZE = Integer.getInteger("tftp.writeQueueSize", 64);
+    // When the final ACK of an upload is sent: none, write (after the rename) or fsync
+    static final WriteBehind.Durability DURABILITY = WriteBehind.Durability.parse(System.getProperty("tftp.durability", "write"));
+    // Bytes per second sent to all clients together and to each client subnet, 0 for no limit. With a limit,
+    // DATA blocks are paced and shared between transfers by the weights of the priority classes their files match
+    static final long RATE_LIMIT = Long.getLong("tftp.rateLimit", 0);
+    static final long CLIENT_RATE_LIMIT = Long.getLong("tftp.clientRateLimit", 0);
+    static final String PRIORITY_CLASSES = System.getProperty("tftp.priorityClasses", "");
+    // Prefix lengths grouping IPv4 and IPv6 clients into the subnets tftp.clientRateLimit applies to
+    static final int CLIENT_PREFIX_LENGTH = Integer.getInteger("tftp.clientPrefixLength", 32);
+    static final int CLIENT_PREFIX_LENGTH6 = Integer.getInteger("tftp.clientPrefixLength6", 128);
+    // Caps on the transfers running at once, the memory their buffers take and the files they hold open. A request
+    // over a cap waits up to tftp.admissionWait milliseconds in a queue of tftp.admissionQueueSize, then is refused as busy
+    static final int MAX_TRANSFERS = Integer.getInteger("tftp.maxTransfers", 512);
+    static final long MAX_BUFFER_MEMORY = Long.getLong("tftp.maxBufferMemory", 256L * 1024 * 1024);
+    static final int MAX_OPEN_FILES = Integer.getInteger("tftp.maxOpenFiles", 256);
+    static final long ADMISSION_WAIT = Long.getLong("tftp.admissionWait", 1000);
+    static final int ADMISSION_QUEUE_SIZE = Integer.getInteger("tftp.admissionQueueSize", 1024);
+    // Localhost port the metrics are served on as Prometheus text, or 0 to publish them over JMX only
+    static final int METRICS_PORT = Integer.getInteger("tftp.metricsPort", 0);
+    static final Metrics METRICS = new Metrics();
+    static final String RETRIEVE_DIRECTORY = "src/Retrieve Files/";
+    static final String RECEIVED_DIRECTORY = "src/Received Files/";
+    // Read requests are resolved against an index of the retrieve directory kept current by a WatchService,
+    // unless tftp.directoryIndex is false, in which case every request looks its file up on disk
+    static final DirectoryIndex RETRIEVE_INDEX = new DirectoryIndex(Paths.get(RETRIEVE_DIRECTORY),
+            Boolean.parseBoolean(System.getProperty("tftp.directoryIndex", "true")));
+    // CRC32C checksums of up to this many files sent whole with the checksum option, checked against each file's
+    // size and modification time, so a hot file is not checksummed again for every reader
+    static final ChecksumCache CHECKSUMS = new ChecksumCache(Integer.getInteger("tftp.checksumCacheSize", 4096));
 
     public static void main(String[] args) throws IOException {
         // Create scanner to get user input
@@ -35,274 +87,10 @@ public class TFTPUDPSocketServer {
         System.out.printf("Server listening on port %d...\n", portNumber);
         System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
 
-        // Create server socket
-        DatagramSocket serverSocket = new DatagramSocket(portNumber);
-
-        // Start main server loop
-        while (true) {
-            // Create buffer for incoming data
-            byte[] buffer = new byte[BUFFER_SIZE + 4];
-            DatagramPacket receivedPacket = new DatagramPacket(buffer, buffer.length);
-            serverSocket.receive(receivedPacket);
-            System.out.println("Connection established with client " + receivedPacket.getAddress() + ":" + receivedPacket.getPort());
-
-            // Extract client information and packet data
-            InetAddress clientAddress = receivedPacket.getAddress();
-            int clientPort = receivedPacket.getPort();
-            byte[] packetData = receivedPacket.getData();
-
-            // Determine packet opcode
-            byte opcode = packetData[1];
-
-            // Handle read or write request
-            if (opcode == OP_WRQ) {
-                handleWriteRequest(serverSocket, packetData, clientAddress, clientPort);
-            } else if (opcode == OP_RRQ) {
-                handleReadRequest(serverSocket, packetData, clientAddress, clientPort);
-            } else {
-                System.out.println("Invalid opcode received: " + opcode);
-            }
-        }
-    }
-
-    /**
-     * Handles a read request from the client. Sends the requested file to the client.
-     *
-     * @param serverSocket  the DatagramSocket used by the server
-     * @param packetData    the data received in the read request packet
-     * @param clientAddress the InetAddress of the client
-     * @param clientPort    the port number of the client
-     * @throws IOException if an error occurs while sending or receiving data
-     */
-    private static void handleReadRequest(DatagramSocket serverSocket, byte[] packetData, InetAddress clientAddress, int clientPort) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(packetData);
-        byte[] fileNameBytes = new byte[BUFFER_SIZE];
-        int fileNameLength = 0;
-        // Extract the file name from the packet data
-        for (int i = 2; i < packetData.length; i++) {
-            if (packetData[i] == 0) {
-                fileNameLength = i - 2;
-                break;
-            }
-            fileNameBytes[i - 2] = packetData[i];
-        }
-        // Convert the file name bytes to a String and get the file name without the path
-        String fileName = new String(fileNameBytes, 0, fileNameLength);
-        fileName = new File("src/Retreived Files/" + fileName).getName();
-        // Send the file to the client in chunks
-        try (FileInputStream fis = new FileInputStream("src/Retrieve Files/" + fileName)) {
-            short blockNumber = 1;
-            byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-
-            while (true) {
-                // Read a chunk of data from the file
-                int bytesRead = fis.read(dataBuffer, 4, BUFFER_SIZE);
-                if (bytesRead == -1) {
-                    // End of file, stop sending data
-                    break;
-                }
-                // Add the block number and opcode to the data buffer
-                dataBuffer[0] = 0;
-                dataBuffer[1] = OP_DATA;
-                dataBuffer[2] = (byte) (blockNumber >> 8);
-                dataBuffer[3] = (byte) (blockNumber & 0xFF);
-
-                // Send the data packet to the client and wait for an ACK packet
-                DatagramPacket sendPacket = new DatagramPacket(dataBuffer, bytesRead + 4, clientAddress, clientPort);
-                int dataSize = sendPacket.getLength() - 4;
-                serverSocket.send(sendPacket);
-                receiveAck(serverSocket, clientAddress, clientPort, blockNumber);
-
-                blockNumber++;
-                // Check if the last packet was received and break out of the loop
-                if (dataSize < BUFFER_SIZE) {
-                    System.out.println("File transfer to client completed for " + fileName);
-                    break;
-                }
-
-                }
-        } catch (IOException e) {
-            // An error occurred while reading the file
-            System.out.println("Error reading from file: " + e.getMessage());
-            sendError(serverSocket, clientAddress, clientPort, e.getMessage());
-        }
-    }
-
-    /**
-     * Waits to receive an ACK packet with the expected block number from the client.
-     *
-     * @param serverSocket        the DatagramSocket used by the server
-     * @param clientAddress       the InetAddress of the client
-     * @param clientPort          the port number of the client
-     * @param expectedBlockNumber the block number expected in the ACK packet
-     * @throws IOException if an error occurs while receiving data
-     */
-    private static void receiveAck(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, short expectedBlockNumber) throws IOException {
-        byte[] ackBuffer = new byte[4];
-        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-        serverSocket.receive(ackPacket);
-
-        // Check that the received packet is an ACK packet
-        if (ackPacket.getData()[1] != OP_ACK) {
-            System.out.println("Invalid opcode received: " + ackPacket.getData()[1]);
-            return;
-        }
-        // Check that the received block number is the expected block number
-        short receivedBlockNumber = (short) (((ackPacket.getData()[2] & 0xFF) << 8) | (ackPacket.getData()[3] & 0xFF));
-        if (receivedBlockNumber != expectedBlockNumber) {
-            System.out.println("Received ACK packet with incorrect block number. Expected " + expectedBlockNumber + ", but received " + receivedBlockNumber);
-        }
+        MetricsEndpoint.start(METRICS, "udp", METRICS_PORT);
 
-    }
-
-    /**
-     * Handles a write request from the client. Receives a file from the client and saves it to disk.
-     *
-     * @param serverSocket  the DatagramSocket used by the server
-     * @param packetData    the data received in the write request packet
-     * @param clientAddress the InetAddress of the client
-     * @param clientPort    the port number of the client
-     * @throws IOException if an error occurs while sending or receiving data
-     */
-    private static void handleWriteRequest(DatagramSocket serverSocket, byte[] packetData, InetAddress clientAddress, int clientPort) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(packetData);
-        byte[] fileNameBytes = new byte[BUFFER_SIZE];
-        int fileNameLength = 0;
-
-        // Extract the file name from the packet data
-        for (int i = 2; i < packetData.length; i++) {
-            if (packetData[i] == 0) {
-                fileNameLength = i - 2;
-                break;
-            }
-            fileNameBytes[i - 2] = packetData[i];
-        }
-
-        // Convert the file name bytes to a String and get the file name without the path
-        String fileName = new String(fileNameBytes, 0, fileNameLength);
-        fileName = new File(fileName).getName();
-
-        // Send an initial ACK packet to the client
-        sendInitialAck(serverSocket, clientAddress, clientPort);
-
-        // Receive data packets from the client and write them to the file
-        writeToFile(serverSocket, clientAddress, clientPort, fileName);
-    }
-
-
-    /**
-     * Sends an initial ACK packet to the client with block number 0.
-     *
-     * @param serverSocket  the DatagramSocket used by the server
-     * @param clientAddress the InetAddress of the client
-     * @param clientPort    the port number of the client
-     * @throws IOException if an error occurs while sending data
-     */
-    private static void sendInitialAck(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort) throws IOException {
-        byte[] ackPacket = createAckPacket((short) 0);
-        DatagramPacket sendPacket = new DatagramPacket(ackPacket, ackPacket.length, clientAddress, clientPort);
-        serverSocket.send(sendPacket);
-    }
-
-    /**
-     * Creates an ACK packet with the specified block number.
-     *
-     * @param blockNumber the block number to include in the ACK packet
-     * @return a byte array containing the ACK packet
-     */
-    private static byte[] createAckPacket(short blockNumber) {
-        byte[] ackPacket = new byte[4];
-        ackPacket[0] = 0;
-        ackPacket[1] = OP_ACK;
-        ackPacket[2] = (byte) (blockNumber >> 8);
-        ackPacket[3] = (byte) (blockNumber & 0xFF);
-
-        return ackPacket;
-    }
-
-    /**
-     * Receives data packets from the client and writes them to the specified file.
-     *
-     * @param serverSocket  the DatagramSocket used by the server
-     * @param clientAddress the InetAddress of the client
-     * @param clientPort    the port number of the client
-     * @param fileName      the name of the file to write the data to
-     * @throws IOException if an error occurs while receiving or writing data
-     */
-    private static void writeToFile(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, String fileName) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream("src/Received Files/" + fileName)) {
-            short blockNumber = 1;
-            System.out.println("Received block number: " + blockNumber);
-            while (true) {
-                // Receive a data packet from the client
-                byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-                DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
-                serverSocket.receive(dataPacket);
-                // Check that the data packet is from the correct client and has the expected block number
-                if (clientAddress.equals(dataPacket.getAddress()) && clientPort == dataPacket.getPort()) {
-                    short receivedBlockNumber = (short) (((dataPacket.getData()[2] & 0xFF) << 8) | (dataPacket.getData()[3] & 0xFF));
-                    if (receivedBlockNumber == blockNumber) {
-                        // Write the data to the file
-                        int dataSize = dataPacket.getLength() - 4;
-                        fos.write(dataPacket.getData(), 4, dataSize);
-
-                        // Send an ACK packet with the current block number
-                        sendAck(serverSocket, clientAddress, clientPort, blockNumber);
-                        blockNumber++;
-
-                        // Check if the last packet was received and break out of the loop
-                        if (dataSize < BUFFER_SIZE) {
-                            System.out.println("File transfer to server completed for " + fileName);
-                            break;
-                        }
-                    } else {
-                        System.out.println("Received data packet with incorrect block number. Expected " + blockNumber + ", but received " + receivedBlockNumber);
-                    }
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("Error writing to file: " + e.getMessage());
-        }
-    }
-
-    /**
-     * Sends an ACK packet with the specified block number to the client.
-     *
-     * @param serverSocket  the DatagramSocket used by the server
-     * @param clientAddress the InetAddress of the client
-     * @param clientPort    the port number of the client
-     * @param blockNumber   the block number to include in the ACK packet
-     * @throws IOException if an error occurs while sending data
-     */
-    private static void sendAck(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, short blockNumber) throws IOException {
-        byte[] ackPacket = createAckPacket(blockNumber);
-        DatagramPacket sendPacket = new DatagramPacket(ackPacket, ackPacket.length, clientAddress, clientPort);
-        serverSocket.send(sendPacket);
-    }
-
-    /**
-     * Sends an error packet to the client with the specified error message.
-     *
-     * @param serverSocket  the DatagramSocket used by the server
-     * @param clientAddress the InetAddress of the client
-     * @param clientPort    the port number of the client
-     * @param errorMessage  the error message to include in the error packet
-     * @throws IOException if an error occurs while sending data
-     */
-    private static void sendError(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, String errorMessage) throws IOException {
-        byte[] errorPacket = new byte[4 + errorMessage.length() + 1];
-        errorPacket[0] = 0;
-        errorPacket[1] = OP_ERROR;
-        errorPacket[2] = 0;
-        errorPacket[3] = 5; // Error code 5
-        byte[] messageBytes = errorMessage.getBytes();
-        System.arraycopy(messageBytes, 0, errorPacket, 4, messageBytes.length);
-        errorPacket[errorPacket.length - 1] = 0; // Null terminator
-        DatagramPacket sendPacket = new DatagramPacket(errorPacket, errorPacket.length, clientAddress, clientPort);
-        serverSocket.send(sendPacket);
+        // Start the transfer engine, which serves every transfer from a single event loop
+        TransferEngine engine = new TransferEngine(portNumber);
+        engine.run();
     }
 }
-
-
-
-
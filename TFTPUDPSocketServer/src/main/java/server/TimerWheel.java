@@ -0,0 +1,104 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel holding one retransmission timer per transfer. Transfers are linked into
+ * the slot for their deadline through their own fields, so scheduling, cancelling and expiring a
+ * timer take constant time and allocate nothing, however many transfers are active.
+ */
+class TimerWheel {
+    static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int SLOTS = 512;
+
+    // The first transfer in each slot, with the rest linked through Transfer.nextTimer
+    private final Transfer[] slots = new Transfer[SLOTS];
+    // The tick up to which slots have been expired
+    private long currentTick = Math.floorDiv(System.nanoTime(), TICK);
+    private int size;
+
+    /**
+     * Schedules a transfer's timer, replacing any timer it already has.
+     *
+     * @param transfer the transfer to schedule
+     * @param deadline the System.nanoTime() value at which the timer expires
+     */
+    void schedule(Transfer transfer, long deadline) {
+        cancel(transfer);
+        // A deadline in a tick that was already expired goes into the current tick
+        long tick = Math.max(Math.floorDiv(deadline, TICK), currentTick);
+        int slot = (int) (tick & (SLOTS - 1));
+        transfer.timerDeadline = deadline;
+        transfer.timerSlot = slot;
+        transfer.previousTimer = null;
+        transfer.nextTimer = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].previousTimer = transfer;
+        }
+        slots[slot] = transfer;
+        size++;
+    }
+
+    /**
+     * Cancels a transfer's timer if it has one.
+     *
+     * @param transfer the transfer whose timer to cancel
+     */
+    void cancel(Transfer transfer) {
+        if (transfer.timerSlot < 0) {
+            return;
+        }
+        if (transfer.previousTimer != null) {
+            transfer.previousTimer.nextTimer = transfer.nextTimer;
+        } else {
+            slots[transfer.timerSlot] = transfer.nextTimer;
+        }
+        if (transfer.nextTimer != null) {
+            transfer.nextTimer.previousTimer = transfer.previousTimer;
+        }
+        transfer.nextTimer = null;
+        transfer.previousTimer = null;
+        transfer.timerSlot = -1;
+        size--;
+    }
+
+    /**
+     * Returns how long the event loop may wait for packets before the next tick needs expiring.
+     *
+     * @param now the current System.nanoTime() value
+     * @return the time to wait in milliseconds, or 0 to wait indefinitely because no timers are scheduled
+     */
+    long millisUntilNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long nextTick = (Math.floorDiv(now, TICK) + 1) * TICK;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTick - now));
+    }
+
+    /**
+     * Expires every timer whose deadline has passed, cancelling it before handing its transfer to the callback.
+     *
+     * @param now       the current System.nanoTime() value
+     * @param onExpired the callback to run for each transfer whose timer expired
+     */
+    void expire(long now, Consumer<Transfer> onExpired) {
+        long nowTick = Math.floorDiv(now, TICK);
+        // Visit every slot between the last expired tick and now, but each slot at most once
+        long firstTick = Math.max(currentTick, nowTick - SLOTS + 1);
+        for (long tick = firstTick; tick <= nowTick && size > 0; tick++) {
+            Transfer transfer = slots[(int) (tick & (SLOTS - 1))];
+            while (transfer != null) {
+                Transfer next = transfer.nextTimer;
+                // Timers further than one turn of the wheel away stay in the slot until their turn comes
+                if (transfer.timerDeadline <= now) {
+                    cancel(transfer);
+                    onExpired.accept(transfer);
+                }
+                transfer = next;
+            }
+        }
+        currentTick = nowTick;
+    }
+}
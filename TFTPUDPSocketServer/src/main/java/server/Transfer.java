@@ -0,0 +1,469 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import protocol.Metrics;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.RttEstimator;
+
+import static protocol.Tftp.*;
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * A single read or write transfer, driven by the {@link TransferEngine} whenever a packet
+ * arrives on its channel or its retransmission timer expires. Subclasses move through the
+ * {@link State}s as blocks are exchanged.
+ */
+abstract class Transfer {
+    /**
+     * The states a transfer moves through.
+     */
+    enum State {
+        /** A DATA packet has been sent and the server is waiting for its ACK. */
+        AWAITING_ACK,
+        /** An ACK has been sent and the server is waiting for the next DATA packet. */
+        AWAITING_DATA,
+        /** A block has arrived and the server is waiting for the disk writer before acknowledging it: for the writer to catch up, or for the file to be saved after the last block. */
+        AWAITING_DISK,
+        /** The final ACK has been sent, and the server waits a while to send it again if the client resends the last block. */
+        DALLYING,
+        /** The transfer has finished, successfully or not. */
+        COMPLETE
+    }
+
+    final DatagramChannel channel;
+    // The client the transfer exchanges packets with; in a multicast transfer, the current master client
+    SocketAddress clientAddress;
+    final String fileName;
+    final Map<String, String> requestedOptions;
+    final Map<String, String> acceptedOptions = new LinkedHashMap<>();
+    final int blockSize;
+    final BufferPool bufferPool;
+    private final ByteBuffer receiveBuffer;
+    // Reads the packet handed to onPacket, and writes the packets the transfer sends from its own buffers
+    final PacketReader received = new PacketReader();
+    final PacketWriter writer = new PacketWriter();
+    final RttEstimator rtt = new RttEstimator();
+    State state;
+    private boolean closed;
+    // Whether the transfer ended in an error, and the request type it is counted under in the metrics
+    private boolean failed;
+    private final int requestType;
+    private final long startedAt = System.nanoTime();
+    // Packets that did nothing for the transfer: repeats of packets already handled, packets ahead of
+    // what was expected, and packets from an address that is not part of the transfer
+    long duplicatePackets;
+    long outOfOrderPackets;
+    long strayPackets;
+
+    // The retransmission timer, linked into the engine's timer wheel
+    TimerWheel timers;
+    long timerDeadline;
+    int timerSlot = -1;
+    Transfer nextTimer;
+    Transfer previousTimer;
+    // Hands the transfer back to the engine's event loop once work done on another thread has finished
+    Consumer<Transfer> diskCompletions;
+    // The capacity the transfer holds in the engine's admission control, given back when it closes
+    AdmissionControl admission;
+    long reservedMemory;
+    private boolean holdsFile;
+    // When the packet awaiting an answer was first sent, and whether it has been sent again since
+    private long sentAt;
+    private boolean retransmitted;
+    private int retries;
+
+    /**
+     * Creates a transfer with the given channel and client, negotiating the options the client requested.
+     *
+     * @param channel          the channel bound to this transfer's TID
+     * @param clientAddress    the address and port of the client
+     * @param fileName         the name of the file being transferred
+     * @param requestedOptions the options included in the client's request
+     * @param bufferPool       the pool the transfer takes its packet buffers from and returns them to
+     * @param receivesData     whether the client sends DATA packets in this transfer, which sizes the receive buffer
+     */
+    Transfer(DatagramChannel channel, SocketAddress clientAddress, String fileName, Map<String, String> requestedOptions,
+             BufferPool bufferPool, boolean receivesData) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.clientAddress = clientAddress;
+        this.fileName = fileName;
+        this.requestedOptions = requestedOptions;
+        this.blockSize = negotiateOption("blksize", requestedOptions.get("blksize"), MIN_BLOCK_SIZE, MAX_BLOCK_SIZE, BUFFER_SIZE);
+        // A timeout requested by the client (RFC 2349) replaces the adaptive retransmission timeout
+        int timeoutSeconds = negotiateOption("timeout", requestedOptions.get("timeout"), 1, 255, 0);
+        if (timeoutSeconds > 0) {
+            rtt.setFixedTimeout(TimeUnit.SECONDS.toNanos(timeoutSeconds));
+        }
+        // ACK and ERROR packets fit in a default sized buffer, DATA packets need room for a whole block
+        this.receiveBuffer = bufferPool.acquire((receivesData ? blockSize : BUFFER_SIZE) + 4);
+        this.requestType = receivesData ? Metrics.WRQ : Metrics.RRQ;
+        METRICS.transfersStarted.increment(requestType);
+        METRICS.activeTransfers.increment();
+    }
+
+    /**
+     * Negotiates a numeric option from the value requested by the client. Values that are not numbers
+     * or are below the minimum are ignored, and larger values are capped at the maximum. An accepted
+     * option is recorded so it is acknowledged in the OACK.
+     *
+     * @param name         the name of the option
+     * @param requested    the requested value, or null if the client did not ask for the option
+     * @param minimum      the smallest value the server accepts
+     * @param maximum      the largest value the server agrees to
+     * @param defaultValue the value to use when the option is not accepted
+     * @return the value to use for this transfer
+     */
+    int negotiateOption(String name, String requested, int minimum, int maximum, int defaultValue) {
+        int negotiatedValue = parseOption(requested, minimum, maximum);
+        if (negotiatedValue < 0) {
+            return defaultValue;
+        }
+        acceptedOptions.put(name, Integer.toString(negotiatedValue));
+        return negotiatedValue;
+    }
+
+    /**
+     * Parses the value of a numeric option requested by a client, capping it at the maximum.
+     *
+     * @param requested the requested value, or null if the client did not ask for the option
+     * @param minimum   the smallest value the server accepts
+     * @param maximum   the largest value the server agrees to
+     * @return the value the server agrees to, or -1 if the option is missing, not a number or below the minimum
+     */
+    static int parseOption(String requested, int minimum, int maximum) {
+        if (requested == null) {
+            return -1;
+        }
+        try {
+            int requestedValue = Integer.parseInt(requested.trim());
+            return requestedValue < minimum ? -1 : Math.min(requestedValue, maximum);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a size or position in bytes requested by a client, such as the tsize or offset option.
+     *
+     * @param requested the requested value, or null if the client did not send the option
+     * @return the number of bytes, or -1 if there is no valid number, in which case the option is ignored
+     */
+    static long parseBytes(String requested) {
+        if (requested == null) {
+            return -1;
+        }
+        try {
+            return Math.max(Long.parseLong(requested.trim()), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Turns the 16-bit block number carried by a packet into a full block number. Block numbers wrap
+     * around from 65535 to 0 in transfers of more than 65535 blocks, so the full number is taken to be
+     * the one closest to a block number the transfer already knows.
+     *
+     * @param wireBlock the block number from the packet, between 0 and 65535
+     * @param reference a full block number known to be within 32768 blocks of the packet's block
+     * @return the full block number
+     */
+    static int unwrapBlock(int wireBlock, int reference) {
+        return reference + (short) (wireBlock - reference);
+    }
+
+    /**
+     * Opens the file and sends the first packet of the transfer.
+     *
+     * @throws IOException if an error occurs while sending the first packet
+     */
+    abstract void start() throws IOException;
+
+    /**
+     * Handles a packet received from the client.
+     *
+     * @param packet the received packet, positioned at its first byte
+     * @param sender the address the packet came from, which is the client unless the transfer has several
+     * @throws IOException if an error occurs while handling the packet
+     */
+    abstract void onPacket(ByteBuffer packet, SocketAddress sender) throws IOException;
+
+    /**
+     * Resumes the transfer on the event loop after the disk writer finished the work it was handed.
+     *
+     * @throws IOException if an error occurs while answering the client
+     */
+    void onDiskComplete() throws IOException {
+    }
+
+    /**
+     * Sends the last packet again because the client did not answer it in time.
+     *
+     * @throws IOException if an error occurs while sending the packet
+     */
+    abstract void retransmit() throws IOException;
+
+    /**
+     * Closes the file used by the transfer.
+     *
+     * @throws IOException if an error occurs while closing the file
+     */
+    abstract void closeFile() throws IOException;
+
+    /**
+     * Returns the packet buffers used by the transfer to the pool once the transfer is closed.
+     */
+    void releaseBuffers() {
+        bufferPool.release(receiveBuffer);
+    }
+
+    /**
+     * Receives every packet waiting on the channel and hands the ones from the client to {@link #onPacket}.
+     *
+     * @throws IOException if an error occurs while receiving or handling a packet
+     */
+    void onReadable() throws IOException {
+        SocketAddress senderAddress;
+        while (state != State.COMPLETE && (senderAddress = channel.receive(receiveBuffer.clear())) != null) {
+            received.wrap(receiveBuffer.flip());
+            // Ignore packets too short to hold an opcode and block number
+            if (received.length() < HEADER_SIZE) {
+                continue;
+            }
+            // A packet from anywhere else is answered with an error without disturbing the transfer (RFC 1350)
+            if (!isPeer(senderAddress)) {
+                strayPackets++;
+                if (received.opcode() != OP_ERROR) {
+                    channel.send(PacketWriter.errorPacket(ERROR_UNKNOWN_TID, "Unknown transfer ID"), senderAddress);
+                }
+                continue;
+            }
+            if (received.opcode() == OP_ERROR) {
+                METRICS.errorsReceived.increment(requestType);
+                onClientError(senderAddress);
+                continue;
+            }
+            onPacket(receiveBuffer, senderAddress);
+        }
+    }
+
+    /**
+     * Returns whether a packet came from a client taking part in this transfer.
+     *
+     * @param senderAddress the address the packet came from
+     * @return true if the sender is the transfer's client
+     */
+    boolean isPeer(SocketAddress senderAddress) {
+        return clientAddress.equals(senderAddress);
+    }
+
+    /**
+     * Handles an ERROR packet from a client, which aborts the transfer.
+     *
+     * @param senderAddress the address the ERROR packet came from
+     * @throws IOException if an error occurs while handling the packet
+     */
+    void onClientError(SocketAddress senderAddress) throws IOException {
+        System.out.println("Transfer of " + fileName + " aborted by client.");
+        fail();
+    }
+
+    /**
+     * Starts the retransmission timer for a packet that was just sent and that the client is expected to answer.
+     */
+    void awaitReply() {
+        sentAt = System.nanoTime();
+        retransmitted = false;
+        retries = 0;
+        timers.schedule(this, sentAt + rtt.timeout());
+    }
+
+    /**
+     * Records that the client answered the packet awaiting an answer. The round-trip time is only
+     * sampled when the packet was not retransmitted, since an answer to a retransmitted packet could
+     * belong to either copy.
+     */
+    void replyReceived() {
+        if (!retransmitted) {
+            long sample = System.nanoTime() - sentAt;
+            rtt.addSample(sample);
+            METRICS.blockRtt.record(sample);
+        }
+    }
+
+    /**
+     * Handles the expiry of the retransmission timer: backs off the timeout and retransmits the last
+     * packet, or gives up once the retry limit is reached.
+     *
+     * @throws IOException if an error occurs while retransmitting
+     */
+    void onTimeout() throws IOException {
+        if (++retries > MAX_RETRIES) {
+            onRetriesExhausted();
+            return;
+        }
+        rtt.backoff();
+        retransmitted = true;
+        METRICS.retransmits.increment();
+        retransmit();
+        // A retransmission left to the bandwidth scheduler starts the timer once it has been sent
+        if (!isPacing()) {
+            timers.schedule(this, System.nanoTime() + rtt.timeout());
+        }
+    }
+
+    /**
+     * Returns whether packets of the transfer are waiting for the bandwidth scheduler.
+     *
+     * @return true if the scheduler has packets of this transfer to send
+     */
+    boolean isPacing() {
+        return false;
+    }
+
+    /**
+     * Handles a client that stopped answering after every retransmission, which abandons the transfer.
+     *
+     * @throws IOException if an error occurs while telling the client
+     */
+    void onRetriesExhausted() throws IOException {
+        System.out.println("Transfer of " + fileName + " timed out after " + MAX_RETRIES + " retransmissions.");
+        sendError(ERROR_NOT_DEFINED, "Transfer timed out");
+    }
+
+    /**
+     * Sends an option acknowledgment (OACK) packet listing the accepted options to the client.
+     *
+     * @throws IOException if an error occurs while sending the packet
+     */
+    void sendOack() throws IOException {
+        channel.send(createOackPacket(acceptedOptions), clientAddress);
+    }
+
+    /**
+     * Creates an option acknowledgment (OACK) packet listing the given options.
+     *
+     * @param options the accepted options and their negotiated values
+     * @return a buffer containing the OACK packet, ready to be sent
+     */
+    static ByteBuffer createOackPacket(Map<String, String> options) {
+        return new PacketWriter().wrap(ByteBuffer.allocate(BUFFER_SIZE + 4)).oack().options(options).finish();
+    }
+
+    /**
+     * Sends an error packet to the client and marks the transfer as complete.
+     *
+     * @param errorCode    the TFTP error code to include in the error packet
+     * @param errorMessage the error message to include in the error packet
+     * @throws IOException if an error occurs while sending the error packet
+     */
+    void sendError(short errorCode, String errorMessage) throws IOException {
+        fail();
+        METRICS.errorsSent.increment(requestType);
+        channel.send(PacketWriter.errorPacket(errorCode, errorMessage), clientAddress);
+    }
+
+    /**
+     * Reserves an open file with the engine's admission control before the transfer opens one.
+     *
+     * @return true if the file may be opened, false if the cap on open files has been reached
+     */
+    boolean reserveFile() {
+        if (admission != null && !holdsFile) {
+            if (!admission.tryOpenFile()) {
+                return false;
+            }
+            holdsFile = true;
+        }
+        return true;
+    }
+
+    /**
+     * Refuses the transfer because the server has reached one of its capacity limits.
+     *
+     * @param limit the limit that was reached, as counted in the metrics
+     * @throws IOException if an error occurs while sending the error packet
+     */
+    void refuseBusy(int limit) throws IOException {
+        System.out.println("Refused transfer of " + fileName + ": the " + Metrics.LIMITS[limit] + " limit is reached.");
+        METRICS.rejectedRequests.increment(limit);
+        sendError(ERROR_NOT_DEFINED, AdmissionControl.BUSY_MESSAGE);
+    }
+
+    /**
+     * Marks the transfer as complete so the engine closes it.
+     */
+    void complete() {
+        state = State.COMPLETE;
+    }
+
+    /**
+     * Marks the transfer as complete after an error, so it is counted as failed.
+     */
+    void fail() {
+        failed = true;
+        complete();
+    }
+
+    /**
+     * Returns whether the transfer has finished.
+     *
+     * @return true if the transfer is complete
+     */
+    boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Closes the transfer's channel and file, which also removes the channel from the selector, returns
+     * its buffers to the pool and gives its capacity back to the admission control. Closing a transfer
+     * again does nothing.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (duplicatePackets + outOfOrderPackets + strayPackets > 0) {
+            System.out.println("Transfer of " + fileName + " ignored " + duplicatePackets + " duplicate, "
+                    + outOfOrderPackets + " out-of-order and " + strayPackets + " stray packets.");
+            METRICS.duplicatePackets.add(duplicatePackets);
+            METRICS.outOfOrderPackets.add(outOfOrderPackets);
+            METRICS.strayPackets.add(strayPackets);
+        }
+        METRICS.activeTransfers.decrement();
+        METRICS.transferDuration.recordSince(startedAt);
+        if (failed) {
+            METRICS.transfersFailed.increment(requestType);
+        }
+        state = State.COMPLETE;
+        timers.cancel(this);
+        try {
+            closeFile();
+        } catch (IOException e) {
+            System.out.println("Error closing file " + fileName + ": " + e.getMessage());
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing transfer channel: " + e.getMessage());
+        }
+        releaseBuffers();
+        if (admission != null) {
+            if (holdsFile) {
+                admission.fileClosed();
+            }
+            admission.release(reservedMemory);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package server;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import protocol.MappedFiles;
+import protocol.Metrics;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+
+import static protocol.Tftp.*;
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * Serves every UDP transfer from a single thread. The listening channel and one channel per transfer
+ * are registered with the same Selector, and each transfer is a small state machine that is driven
+ * by the packets arriving on its channel and by its retransmission timer. Read requests with the
+ * multicast option for a file that is already being multicast join the running transfer. With
+ * bandwidth limits set, read transfers hand their DATA blocks to a {@link BandwidthScheduler},
+ * which the loop lets send whatever the limits allow after handling the ready channels. Requests are
+ * admitted within the caps of an {@link AdmissionControl}; those over a cap wait in a short queue
+ * that the loop admits from as transfers close, and are refused as busy if they wait too long.
+ */
+class TransferEngine implements Runnable {
+    private final Selector selector;
+    private final DatagramChannel listener;
+    private final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE + 4);
+    private final PacketReader request = new PacketReader();
+    private final TimerWheel timers = new TimerWheel();
+    private final BlockCache blockCache = new BlockCache(CACHE_SIZE, CACHE_MAX_FILE_SIZE);
+    private final BufferPool bufferPool = new BufferPool(BUFFER_POOL_SIZE);
+    private final SharedReads sharedReads = new SharedReads(new MappedFiles(), bufferPool, READ_RING_SIZE);
+    private final WriteBehind writeBehind = new WriteBehind(WRITE_QUEUE_SIZE, WRITE_CHUNK_SIZE, DURABILITY, METRICS);
+    private final BandwidthScheduler scheduler = RATE_LIMIT > 0 || CLIENT_RATE_LIMIT > 0
+            ? new BandwidthScheduler(RATE_LIMIT, CLIENT_RATE_LIMIT, CLIENT_PREFIX_LENGTH, CLIENT_PREFIX_LENGTH6, PRIORITY_CLASSES) : null;
+    // Transfers whose disk work finished on the writer thread, waiting to be resumed on the event loop
+    private final Queue<Transfer> diskCompletions = new ConcurrentLinkedQueue<>();
+    private final Consumer<Transfer> diskCompletionHandler = this::postDiskCompletion;
+    // Created once, since a method reference bound to this engine would otherwise be allocated on every pass of the loop
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+    private final Consumer<Transfer> timeoutHandler = this::handleTimeout;
+    private final ToIntFunction<ReadTransfer> pacedSender = this::sendPaced;
+    private final AdmissionControl admission = new AdmissionControl(MAX_TRANSFERS, MAX_BUFFER_MEMORY, MAX_OPEN_FILES);
+    // Requests waiting for capacity in the order they arrived, keyed by client so a repeated request does not queue twice
+    private final Map<SocketAddress, PendingRequest> pendingRequests = new LinkedHashMap<>();
+    // Running multicast transfers, keyed by file name and block size, so later requests can join them
+    private final Map<String, MulticastTransfer> multicastTransfers = new HashMap<>();
+
+    /**
+     * Opens the selector and binds the listening channel to the given port.
+     *
+     * @param portNumber the port number to listen for read and write requests on
+     * @throws IOException if the selector or listening channel cannot be opened
+     */
+    TransferEngine(int portNumber) throws IOException {
+        selector = Selector.open();
+        listener = DatagramChannel.open();
+        listener.bind(new InetSocketAddress(portNumber));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Runs the event loop, dispatching readable channels to the listener or to their transfer,
+     * expiring retransmission timers in between and admitting queued requests as capacity frees up.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(keyHandler, selectTimeout());
+            } catch (IOException e) {
+                System.out.println("Error waiting for packets: " + e.getMessage());
+            }
+            timers.expire(System.nanoTime(), timeoutHandler);
+            Transfer transfer;
+            while ((transfer = diskCompletions.poll()) != null) {
+                handleDiskCompletion(transfer);
+            }
+            if (scheduler != null) {
+                scheduler.dispatch(System.nanoTime(), pacedSender);
+            }
+            admitPendingRequests();
+        }
+    }
+
+    /**
+     * Returns how long the event loop may wait for packets before a timer expires, the bandwidth
+     * scheduler can send again or the oldest queued request runs out of time.
+     *
+     * @return the time to wait in milliseconds, or 0 to wait indefinitely
+     */
+    private long selectTimeout() {
+        long now = System.nanoTime();
+        long timeout = timers.millisUntilNextTick(now);
+        long pacingWait = scheduler != null ? scheduler.nanosUntilReady(now) : -1;
+        if (pacingWait >= 0) {
+            long pacingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(pacingWait + 999_999));
+            timeout = timeout == 0 ? pacingMillis : Math.min(timeout, pacingMillis);
+        }
+        if (!pendingRequests.isEmpty()) {
+            long queuedAt = pendingRequests.values().iterator().next().queuedAt;
+            long waitMillis = Math.max(1, ADMISSION_WAIT - TimeUnit.NANOSECONDS.toMillis(now - queuedAt));
+            timeout = timeout == 0 ? waitMillis : Math.min(timeout, waitMillis);
+        }
+        return timeout;
+    }
+
+    /**
+     * Sends the next block of a read transfer that the bandwidth scheduler let through.
+     *
+     * @param transfer the transfer
+     * @return the size of the packet sent, or 0 if the transfer failed
+     */
+    private int sendPaced(ReadTransfer transfer) {
+        try {
+            return transfer.sendPacedBlock();
+        } catch (IOException e) {
+            System.out.println("Error during transfer of " + transfer.fileName + ": " + e.getMessage());
+            transfer.fail();
+            closeIfComplete(transfer);
+            return 0;
+        }
+    }
+
+    /**
+     * Queues a transfer whose disk work finished for the event loop, and wakes the loop up. Called on the writer thread.
+     *
+     * @param transfer the transfer to resume
+     */
+    private void postDiskCompletion(Transfer transfer) {
+        diskCompletions.add(transfer);
+        selector.wakeup();
+    }
+
+    /**
+     * Resumes a transfer whose disk work finished, unless it ended in the meantime.
+     *
+     * @param transfer the transfer to resume
+     */
+    private void handleDiskCompletion(Transfer transfer) {
+        if (transfer.isComplete()) {
+            return;
+        }
+        try {
+            transfer.onDiskComplete();
+        } catch (IOException e) {
+            System.out.println("Error during transfer of " + transfer.fileName + ": " + e.getMessage());
+            transfer.fail();
+        }
+        closeIfComplete(transfer);
+    }
+
+    /**
+     * Handles the expiry of a transfer's retransmission timer.
+     *
+     * @param transfer the transfer whose timer expired
+     */
+    private void handleTimeout(Transfer transfer) {
+        try {
+            transfer.onTimeout();
+        } catch (IOException e) {
+            System.out.println("Error during transfer of " + transfer.fileName + ": " + e.getMessage());
+            transfer.fail();
+        }
+        closeIfComplete(transfer);
+    }
+
+    /**
+     * Handles a single readable channel.
+     *
+     * @param key the selection key of the readable channel
+     */
+    private void handleKey(SelectionKey key) {
+        if (key.channel() == listener) {
+            try {
+                acceptRequests();
+            } catch (IOException e) {
+                System.out.println("Error receiving request: " + e.getMessage());
+            }
+            return;
+        }
+        Transfer transfer = (Transfer) key.attachment();
+        try {
+            transfer.onReadable();
+        } catch (IOException e) {
+            System.out.println("Error during transfer of " + transfer.fileName + ": " + e.getMessage());
+            transfer.fail();
+        }
+        closeIfComplete(transfer);
+    }
+
+    /**
+     * Receives every pending request on the listening channel and starts a transfer for each of them
+     * that fits within the server's capacity. The others are queued behind any request already
+     * waiting, or refused at once if the queue is full.
+     *
+     * @throws IOException if an error occurs while receiving from the listening channel
+     */
+    private void acceptRequests() throws IOException {
+        SocketAddress clientAddress;
+        while ((clientAddress = listener.receive(requestBuffer.clear())) != null) {
+            request.wrap(requestBuffer.flip());
+            System.out.println("Connection established with client " + clientAddress);
+            if (request.length() < 2) {
+                System.out.println("Invalid packet received.");
+                continue;
+            }
+
+            // Determine packet opcode; the file name is stripped of any path so it stays in the server's directories
+            int opcode = request.opcode();
+            if (opcode != OP_WRQ && opcode != OP_RRQ) {
+                System.out.println("Invalid opcode received: " + opcode);
+                METRICS.invalidRequests.increment();
+                continue;
+            }
+            PendingRequest pending = new PendingRequest(clientAddress, opcode, request.baseName(), request.options(), System.nanoTime());
+            // Requests already waiting go first, so a newcomer cannot take capacity freed up for them,
+            // but joining a running multicast transfer takes none
+            if (pendingRequests.isEmpty() ? tryStart(pending)
+                    : wantsMulticast(opcode, pending.requestedOptions)
+                    && joinMulticast(clientAddress, pending.fileName, pending.requestedOptions)) {
+                continue;
+            }
+            if (pendingRequests.containsKey(clientAddress)) {
+                // The client repeated its request while it was waiting
+                continue;
+            }
+            if (ADMISSION_WAIT <= 0 || pendingRequests.size() >= ADMISSION_QUEUE_SIZE) {
+                if (pending.refusal < 0) {
+                    // Not tried because others are waiting, so it is refused for the limit holding them up
+                    pending.refusal = pendingRequests.values().iterator().next().refusal;
+                }
+                refuse(pending);
+                continue;
+            }
+            pendingRequests.put(clientAddress, pending);
+            METRICS.queuedRequests.increment();
+        }
+    }
+
+    /**
+     * Starts the queued requests in the order they arrived for as long as capacity allows, and refuses
+     * those that have waited longer than the admission wait.
+     */
+    private void admitPendingRequests() {
+        if (pendingRequests.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<PendingRequest> iterator = pendingRequests.values().iterator();
+        while (iterator.hasNext()) {
+            PendingRequest pending = iterator.next();
+            boolean started = tryStart(pending);
+            if (!started && now - pending.queuedAt < TimeUnit.MILLISECONDS.toNanos(ADMISSION_WAIT)) {
+                // Later requests have waited less, and do not overtake this one
+                return;
+            }
+            iterator.remove();
+            METRICS.queuedRequests.decrement();
+            if (!started) {
+                refuse(pending);
+            }
+        }
+    }
+
+    /**
+     * Starts the transfer of a request if the server has the capacity for it. A read request with the
+     * multicast option joins a running transfer of the file if there is one, which takes no capacity.
+     *
+     * @param pending the request
+     * @return true if the request was dealt with, false if it is over a limit, which is recorded in the request
+     */
+    private boolean tryStart(PendingRequest pending) {
+        boolean multicast = wantsMulticast(pending.opcode, pending.requestedOptions);
+        if (multicast && joinMulticast(pending.clientAddress, pending.fileName, pending.requestedOptions)) {
+            return true;
+        }
+        long bufferBytes = bufferBytes(pending.opcode, pending.requestedOptions);
+        int refusal = admission.tryAdmit(bufferBytes);
+        if (refusal >= 0) {
+            pending.refusal = refusal;
+            return false;
+        }
+        Transfer transfer;
+        try {
+            if (pending.opcode == OP_WRQ) {
+                transfer = new WriteTransfer(openTransferChannel(), pending.clientAddress, pending.fileName, pending.requestedOptions, bufferPool, writeBehind);
+            } else if (multicast) {
+                transfer = createMulticast(pending.clientAddress, pending.fileName, pending.requestedOptions);
+            } else {
+                transfer = new ReadTransfer(openTransferChannel(), pending.clientAddress, pending.fileName, pending.requestedOptions,
+                        blockCache, sharedReads, bufferPool, scheduler);
+            }
+        } catch (IOException e) {
+            System.out.println("Error starting transfer of " + pending.fileName + ": " + e.getMessage());
+            admission.release(bufferBytes);
+            return true;
+        }
+        transfer.admission = admission;
+        transfer.reservedMemory = bufferBytes;
+        start(transfer);
+        return true;
+    }
+
+    /**
+     * Returns whether a request is for a multicast transfer: a read request with the multicast option.
+     * A request for part of a file is served on its own, since a multicast transfer sends the whole file.
+     *
+     * @param opcode           the opcode of the request
+     * @param requestedOptions the options included in the request
+     * @return true if the request should join or start a multicast transfer
+     */
+    private static boolean wantsMulticast(int opcode, Map<String, String> requestedOptions) {
+        return opcode == OP_RRQ && requestedOptions.containsKey("multicast") && !ReadTransfer.isRanged(requestedOptions);
+    }
+
+    /**
+     * Returns the memory the packet and write buffers of a transfer take, which is what it reserves
+     * from the admission control. Blocks served from the cache or a mapping are shared and not counted.
+     *
+     * @param opcode           the opcode of the request
+     * @param requestedOptions the options included in the request
+     * @return the number of bytes
+     */
+    private static long bufferBytes(int opcode, Map<String, String> requestedOptions) {
+        int blockSize = Transfer.parseOption(requestedOptions.get("blksize"), MIN_BLOCK_SIZE, MAX_BLOCK_SIZE);
+        if (blockSize < 0) {
+            blockSize = BUFFER_SIZE;
+        }
+        if (opcode == OP_WRQ) {
+            // The receive buffer for DATA, the ACK buffer and the chunk the upload is gathered into
+            return blockSize + 4 + 4 + WRITE_CHUNK_SIZE;
+        }
+        // The receive buffer for ACKs, and a block's worth of the ring DATA is read into, plus the
+        // packet the blocks of a range are renumbered in
+        long bytes = BUFFER_SIZE + 4 + blockSize + 4;
+        return ReadTransfer.isRanged(requestedOptions) ? bytes + blockSize + 4 : bytes;
+    }
+
+    /**
+     * Refuses a request the server has no capacity for with an ERROR packet from the listening port,
+     * since no transfer was started to send it from.
+     *
+     * @param pending the request, with the limit that was reached
+     */
+    private void refuse(PendingRequest pending) {
+        System.out.println("Refused request for " + pending.fileName + " from " + pending.clientAddress
+                + ": the " + Metrics.LIMITS[pending.refusal] + " limit is reached.");
+        METRICS.rejectedRequests.increment(pending.refusal);
+        METRICS.errorsSent.increment(pending.opcode == OP_WRQ ? Metrics.WRQ : Metrics.RRQ);
+        try {
+            listener.send(PacketWriter.errorPacket(ERROR_NOT_DEFINED, AdmissionControl.BUSY_MESSAGE), pending.clientAddress);
+        } catch (IOException e) {
+            System.out.println("Error sending busy error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a non-blocking channel bound to an ephemeral port, which becomes the server's
+     * transfer ID (TID) for one transfer as described in RFC 1350.
+     *
+     * @return the new transfer channel
+     * @throws IOException if the channel cannot be opened
+     */
+    private DatagramChannel openTransferChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(null);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Registers a transfer's channel with the selector and sends its first packet.
+     *
+     * @param transfer the transfer to start
+     */
+    private void start(Transfer transfer) {
+        transfer.timers = timers;
+        transfer.diskCompletions = diskCompletionHandler;
+        try {
+            transfer.channel.register(selector, SelectionKey.OP_READ, transfer);
+            transfer.start();
+        } catch (IOException e) {
+            System.out.println("Error starting transfer of " + transfer.fileName + ": " + e.getMessage());
+            transfer.fail();
+        }
+        closeIfComplete(transfer);
+    }
+
+    /**
+     * Closes a transfer once it has finished, so later multicast requests no longer join it.
+     *
+     * @param transfer the transfer to check
+     */
+    private void closeIfComplete(Transfer transfer) {
+        if (!transfer.isComplete()) {
+            return;
+        }
+        transfer.close();
+        if (transfer instanceof MulticastTransfer) {
+            multicastTransfers.values().remove(transfer);
+        }
+    }
+
+    /**
+     * Adds the client to the multicast transfer of the requested file already running with the same block size, if there is one.
+     *
+     * @param clientAddress    the address and port of the client
+     * @param fileName         the name of the requested file
+     * @param requestedOptions the options included in the client's request
+     * @return true if a running transfer was found, false if a new one must be started
+     */
+    private boolean joinMulticast(SocketAddress clientAddress, String fileName, Map<String, String> requestedOptions) {
+        MulticastTransfer running = multicastTransfers.get(multicastKey(fileName, requestedOptions));
+        if (running == null) {
+            return false;
+        }
+        try {
+            running.join(clientAddress, requestedOptions);
+        } catch (IOException e) {
+            System.out.println("Error joining transfer of " + fileName + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key running multicast transfers are found by: the file name and the block size.
+     *
+     * @param fileName         the name of the requested file
+     * @param requestedOptions the options included in the client's request
+     * @return the key
+     */
+    private static String multicastKey(String fileName, Map<String, String> requestedOptions) {
+        int blockSize = Transfer.parseOption(requestedOptions.get("blksize"), MIN_BLOCK_SIZE, MAX_BLOCK_SIZE);
+        return fileName + ":" + (blockSize < 0 ? BUFFER_SIZE : blockSize);
+    }
+
+    /**
+     * Creates a multicast transfer of the requested file for a client no running transfer serves.
+     * Only IPv4 clients are served over multicast, and only for files of at most 65535 blocks, since a
+     * client joining late cannot tell which wrap of the block numbers it has seen. Other requests get
+     * a unicast transfer, which ignores the multicast option.
+     *
+     * @param clientAddress    the address and port of the client
+     * @param fileName         the name of the requested file
+     * @param requestedOptions the options included in the client's request
+     * @return the transfer, not yet started
+     * @throws IOException if the transfer's channel cannot be opened
+     */
+    private Transfer createMulticast(SocketAddress clientAddress, String fileName, Map<String, String> requestedOptions) throws IOException {
+        int blockSize = Transfer.parseOption(requestedOptions.get("blksize"), MIN_BLOCK_SIZE, MAX_BLOCK_SIZE);
+        if (blockSize < 0) {
+            blockSize = BUFFER_SIZE;
+        }
+        if (!(((InetSocketAddress) clientAddress).getAddress() instanceof Inet4Address) || !fitsBlockNumbers(fileName, blockSize)) {
+            return new ReadTransfer(openTransferChannel(), clientAddress, fileName, requestedOptions, blockCache, sharedReads, bufferPool, scheduler);
+        }
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.bind(null);
+        channel.configureBlocking(false);
+        NetworkInterface networkInterface = MULTICAST_INTERFACE != null
+                ? NetworkInterface.getByName(MULTICAST_INTERFACE) : interfaceReaching(clientAddress);
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        MulticastTransfer transfer = new MulticastTransfer(channel, clientAddress, fileName, requestedOptions,
+                nextGroupAddress(), blockCache, sharedReads, bufferPool, scheduler);
+        multicastTransfers.put(multicastKey(fileName, requestedOptions), transfer);
+        return transfer;
+    }
+
+    /**
+     * Returns whether a file can be sent without the block numbers wrapping around.
+     *
+     * @param fileName  the name of the file in the retrieve directory
+     * @param blockSize the block size of the transfer
+     * @return true if the file needs at most 65535 blocks, false if it is larger or missing
+     */
+    private static boolean fitsBlockNumbers(String fileName, int blockSize) {
+        BasicFileAttributes attributes = RETRIEVE_INDEX.lookup(fileName);
+        return attributes != null && attributes.size() / blockSize + 1 <= 0xFFFF;
+    }
+
+    /**
+     * Returns the network interface the server reaches a client through, which is where the client
+     * joins the multicast group unless it is configured otherwise.
+     *
+     * @param clientAddress the address of the client
+     * @return the interface, or null if it cannot be determined
+     * @throws IOException if the probe channel cannot be opened
+     */
+    private static NetworkInterface interfaceReaching(SocketAddress clientAddress) throws IOException {
+        // Connecting a datagram channel sends nothing, but picks the local address routed to the client
+        try (DatagramChannel probe = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            probe.connect(clientAddress);
+            return NetworkInterface.getByInetAddress(((InetSocketAddress) probe.getLocalAddress()).getAddress());
+        }
+    }
+
+    /**
+     * Returns a multicast group address for a new transfer, using the first port not taken by a running multicast transfer.
+     *
+     * @return the group address and port
+     * @throws IOException if the configured multicast address cannot be resolved
+     */
+    private InetSocketAddress nextGroupAddress() throws IOException {
+        InetAddress group = InetAddress.getByName(MULTICAST_ADDRESS);
+        int port = MULTICAST_PORT;
+        while (isGroupPortInUse(port)) {
+            port++;
+        }
+        return new InetSocketAddress(group, port);
+    }
+
+    /**
+     * Returns whether a running multicast transfer sends to the given group port.
+     *
+     * @param port the group port
+     * @return true if the port is taken
+     */
+    private boolean isGroupPortInUse(int port) {
+        for (MulticastTransfer transfer : multicastTransfers.values()) {
+            if (((InetSocketAddress) transfer.dataAddress).getPort() == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A request waiting in the admission queue for capacity.
+     */
+    private static final class PendingRequest {
+        final SocketAddress clientAddress;
+        final int opcode;
+        final String fileName;
+        final Map<String, String> requestedOptions;
+        final long queuedAt;
+        // The limit that kept the request from starting, as counted in the metrics, or -1 if none has yet
+        int refusal = -1;
+
+        /**
+         * Creates a request that has not been admitted yet.
+         *
+         * @param clientAddress    the address and port of the client
+         * @param opcode           the opcode of the request
+         * @param fileName         the name of the requested file
+         * @param requestedOptions the options included in the request
+         * @param queuedAt         when the request arrived, in {@link System#nanoTime()} terms
+         */
+        PendingRequest(SocketAddress clientAddress, int opcode, String fileName, Map<String, String> requestedOptions, long queuedAt) {
+            this.clientAddress = clientAddress;
+            this.opcode = opcode;
+            this.fileName = fileName;
+            this.requestedOptions = requestedOptions;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
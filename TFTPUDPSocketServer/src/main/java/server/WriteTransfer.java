@@ -0,0 +1,311 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import protocol.Checksums;
+import protocol.Metrics;
+
+import static protocol.Tftp.*;
+import static server.TFTPUDPSocketServer.*;
+
+/**
+ * Receives a file from the client one block at a time, acknowledging block N and then waiting in
+ * {@link State#AWAITING_DATA} for block N + 1. When options were negotiated, an OACK takes the
+ * place of the ACK for block 0. When the client announces the file size with the tsize option, the
+ * upload is refused up front if it cannot fit, and the destination file is preallocated to that size.
+ * With the offset option the client resumes an upload that was cut off: the data is appended to what
+ * the destination's partial file kept of the earlier attempt, up to the requested offset, and the
+ * OACK tells the client how much that is so it sends the rest of its file from there.
+ * With the checksum option each block is added to a CRC32C checksum as it is handed to the writer,
+ * and the final block is only committed once the client's trailer has arrived and matches it; an
+ * upload that does not match is refused and its partial file deleted. An upload without the offset
+ * option cannot be resumed, so it is staged in a temporary file that is deleted if it is cut off.
+ * Block numbers wrap around from 65535 to 0, so uploads are not limited to 65535 blocks. Blocks are
+ * acknowledged as soon as they are handed to the {@link WriteBehind} writer, and the final block once
+ * the file has been saved as far as the durability policy asks for. When the writer has fallen behind,
+ * the ACK is held back in {@link State#AWAITING_DISK} until the writer has taken the data. A repeat of the last block is
+ * acknowledged again without being written, also for a while after the final ACK in case it was lost.
+ */
+class WriteTransfer extends Transfer {
+    private final ByteBuffer ackBuffer;
+    private final WriteBehind writeBehind;
+    private WriteBehind.Upload upload;
+    // The error that kept the upload from being saved, and whether it was saved, reported by the writer thread
+    private volatile IOException commitError;
+    private volatile boolean committed;
+    // Hands the transfer back to the event loop once the writer has caught up with the data held back
+    private final Runnable writerCaughtUp = () -> diskCompletions.accept(this);
+    private short blockNumber;
+    // The bytes kept from an earlier attempt, which this transfer's data follows, and the bytes received since
+    private long offset;
+    private long bytesWritten;
+    // The size announced by the client, or -1 if it did not send the tsize option
+    private long transferSize = -1;
+    // The checksum of the data received, or null if the client did not ask for one, the checksum in the
+    // client's trailer, or -1 until it arrives, and whether the final block has arrived
+    private CRC32C checksum;
+    private long senderChecksum = -1;
+    private boolean finalReceived;
+
+    /**
+     * Creates a transfer that saves the named file to the received directory.
+     *
+     * @param channel          the channel bound to this transfer's TID
+     * @param clientAddress    the address and port of the client
+     * @param fileName         the name of the file to write the data to
+     * @param requestedOptions the options included in the client's request
+     * @param bufferPool       the pool the transfer takes its packet buffers from
+     * @param writeBehind      the background writer the received blocks are handed to
+     */
+    WriteTransfer(DatagramChannel channel, SocketAddress clientAddress, String fileName, Map<String, String> requestedOptions,
+                  BufferPool bufferPool, WriteBehind writeBehind) {
+        super(channel, clientAddress, fileName, requestedOptions, bufferPool, true);
+        this.writeBehind = writeBehind;
+        ackBuffer = bufferPool.acquire(4);
+    }
+
+    @Override
+    void start() throws IOException {
+        File destination = new File(RECEIVED_DIRECTORY + fileName);
+        // Refuse an announced upload that is too large before any data is sent (RFC 2349)
+        transferSize = parseBytes(requestedOptions.get("tsize"));
+        if (transferSize >= 0) {
+            if (transferSize > MAX_UPLOAD_SIZE || transferSize > destination.getAbsoluteFile().getParentFile().getUsableSpace()) {
+                System.out.println("Refused upload of " + fileName + ": " + transferSize + " bytes do not fit.");
+                sendError(ERROR_DISK_FULL, "File too large");
+                return;
+            }
+            acceptedOptions.put("tsize", Long.toString(transferSize));
+        }
+        if (Checksums.isSupported(requestedOptions.get(Checksums.OPTION))) {
+            checksum = new CRC32C();
+            acceptedOptions.put(Checksums.OPTION, Checksums.CRC32C);
+        }
+        if (!reserveFile()) {
+            refuseBusy(Metrics.LIMIT_FILES);
+            return;
+        }
+        try {
+            // The data goes to a temporary file that replaces the destination once the upload is complete,
+            // with the announced size reserved up front so the file is laid out in one go. A resumed upload
+            // keeps what its partial file holds up to the offset the client asked for
+            long resumeFrom = parseBytes(requestedOptions.get("offset"));
+            upload = writeBehind.open(destination.toPath(), transferSize >= 0 ? Math.min(resumeFrom, transferSize) : resumeFrom);
+            offset = upload.offset();
+            if (resumeFrom >= 0) {
+                acceptedOptions.put("offset", Long.toString(offset));
+            }
+            if (transferSize > 0) {
+                upload.preallocate(transferSize);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing to file: " + e.getMessage());
+            sendError(ERROR_ACCESS_VIOLATION, "Error writing to file");
+            return;
+        }
+        // Send an initial ACK packet with block number 0, or an OACK in its place, and wait for the first block
+        blockNumber = 0;
+        if (acceptedOptions.isEmpty()) {
+            sendAck();
+        } else {
+            sendOack();
+            state = State.AWAITING_DATA;
+        }
+        awaitReply();
+        blockNumber = 1;
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet, SocketAddress sender) throws IOException {
+        // The client's trailer may arrive before or after the final block, and is sent again with it
+        if (received.opcode() == OP_OACK && checksum != null) {
+            if (senderChecksum == -1 && (senderChecksum = Checksums.valueOf(received)) != -1 && finalReceived) {
+                commitUpload();
+            }
+            return;
+        }
+        // Check that the received packet is a DATA packet with the expected block number
+        if (received.opcode() != OP_DATA) {
+            System.out.println("Invalid opcode received: " + received.opcode());
+            return;
+        }
+        short receivedBlockNumber = (short) received.block();
+        if (finalReceived) {
+            // The client resent the final block: while it waits for the trailer or is being saved it is
+            // acknowledged later, after that the final ACK was lost and is sent again
+            duplicatePackets++;
+            if (state == State.DALLYING && receivedBlockNumber == blockNumber) {
+                channel.send(ackBuffer.rewind(), clientAddress);
+            }
+            return;
+        }
+        if (state == State.AWAITING_DISK) {
+            // The client resent the block whose ACK is held back until the writer catches up
+            duplicatePackets++;
+            return;
+        }
+        if (receivedBlockNumber != blockNumber) {
+            if ((short) (receivedBlockNumber - blockNumber) < 0) {
+                // An old block: the client missed the last ACK, so send it again without writing the block
+                // again, and without retransmitting anything else (RFC 1123)
+                duplicatePackets++;
+                if ((short) (receivedBlockNumber + 1) == blockNumber) {
+                    retransmit();
+                }
+                return;
+            }
+            System.out.println("Received data packet with incorrect block number. Expected " + (blockNumber & 0xFFFF) + ", but received " + (receivedBlockNumber & 0xFFFF));
+            outOfOrderPackets++;
+            return;
+        }
+        replyReceived();
+
+        // Stop an upload that grows past the announced size or the upload limit
+        int dataSize = received.dataLength();
+        long size = offset + bytesWritten + dataSize;
+        if (size > MAX_UPLOAD_SIZE || (transferSize >= 0 && size > transferSize)) {
+            System.out.println("Upload of " + fileName + " exceeded its allowed size.");
+            sendError(ERROR_DISK_FULL, "File too large");
+            return;
+        }
+
+        // Hand the data to the disk writer, giving up if it could not write an earlier chunk
+        if (upload.failed()) {
+            System.out.println("Error writing to file " + fileName + ".");
+            sendError(ERROR_DISK_FULL, "Error writing to file");
+            return;
+        }
+        if (checksum != null) {
+            checksum.update(packet.position(received.dataOffset()));
+        }
+        packet.position(received.dataOffset());
+        boolean handedOver = upload.append(packet, writerCaughtUp);
+        bytesWritten += dataSize;
+        METRICS.blocksReceived.increment();
+        METRICS.bytesReceived.add(dataSize);
+
+        // The last block is acknowledged once the file is saved, so the client only hears success when it is true.
+        // Without the trailer yet, the timer keeps running so the client is asked again for the final block and trailer
+        if (dataSize < blockSize) {
+            finalReceived = true;
+            if (checksum != null && senderChecksum == -1) {
+                awaitReply();
+                return;
+            }
+            commitUpload();
+            return;
+        }
+        if (!handedOver) {
+            // The writer has fallen behind, so the ACK waits for it, and the client waits for the ACK
+            state = State.AWAITING_DISK;
+            timers.cancel(this);
+            return;
+        }
+
+        // Send an ACK packet with the current block number
+        sendAck();
+        awaitReply();
+        blockNumber++;
+    }
+
+    /**
+     * Saves the upload once its final block has arrived, unless its checksum does not match the one
+     * in the client's trailer, in which case the upload is rejected and the client sent an error.
+     *
+     * @throws IOException if an error occurs while sending the error packet
+     */
+    private void commitUpload() throws IOException {
+        if (checksum != null && checksum.getValue() != senderChecksum) {
+            System.out.println("Upload of " + fileName + " does not match its checksum.");
+            upload.reject();
+            sendError(ERROR_NOT_DEFINED, "Checksum mismatch");
+            return;
+        }
+        state = State.AWAITING_DISK;
+        timers.cancel(this);
+        upload.commit(offset + bytesWritten, error -> {
+            commitError = error;
+            committed = true;
+            diskCompletions.accept(this);
+        });
+    }
+
+    @Override
+    void retransmit() throws IOException {
+        // The block number wraps around in large uploads, so check that nothing was written yet
+        if (blockNumber == 1 && bytesWritten == 0 && !acceptedOptions.isEmpty()) {
+            // The client has not sent the first block since the OACK
+            sendOack();
+            return;
+        }
+        // Resend the last ACK, which is still in the ACK buffer
+        channel.send(ackBuffer.rewind(), clientAddress);
+    }
+
+    @Override
+    void onDiskComplete() throws IOException {
+        if (!finalReceived) {
+            // The writer took the data held back, so acknowledge the block and carry on
+            if (state == State.AWAITING_DISK) {
+                sendAck();
+                awaitReply();
+                blockNumber++;
+            }
+            return;
+        }
+        // The writer may also have caught up with the final block before saving the file
+        if (!committed || state != State.AWAITING_DISK) {
+            return;
+        }
+        if (commitError != null) {
+            System.out.println("Error writing to file: " + commitError.getMessage());
+            sendError(ERROR_DISK_FULL, "Error writing to file");
+            return;
+        }
+        sendAck();
+        System.out.println("File transfer to server completed for " + fileName);
+        // Stay around for a retransmission timeout in case the final ACK is lost and the client resends the last block
+        state = State.DALLYING;
+        timers.schedule(this, System.nanoTime() + rtt.timeout());
+    }
+
+    @Override
+    void onTimeout() throws IOException {
+        if (state == State.DALLYING) {
+            complete();
+            return;
+        }
+        super.onTimeout();
+    }
+
+    /**
+     * Sends an ACK packet with the current block number to the client.
+     *
+     * @throws IOException if an error occurs while sending data
+     */
+    private void sendAck() throws IOException {
+        channel.send(writer.wrap(ackBuffer).ack(blockNumber), clientAddress);
+        state = State.AWAITING_DATA;
+    }
+
+    @Override
+    void releaseBuffers() {
+        super.releaseBuffers();
+        bufferPool.release(ackBuffer);
+    }
+
+    @Override
+    void closeFile() throws IOException {
+        // An upload that never reached its final block keeps its partial file if the client negotiated the
+        // offset option to resume it, and leaves nothing behind otherwise
+        if (upload != null) {
+            upload.abort();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import client.TFTPUDPSocketClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static protocol.Tftp.OP_DATA;
+import static protocol.Tftp.OP_OACK;
+import static protocol.Tftp.OP_RRQ;
+
+/**
+ * Runs a multicast transfer (RFC 2090) over loopback against a transfer engine on its own thread.
+ * The first master client is driven by the test, so it can hold the transfer back until the UDP
+ * clients have joined it part way through; the clients then have to take over as master one after
+ * the other and fetch the blocks they missed, writing them in front of blocks they already hold.
+ */
+class MulticastTransferTest {
+    private static final String FILE_NAME = "multicast.bin";
+    // The block size the pom has the clients ask for, which a client must match to join the transfer
+    private static final int BLOCK_SIZE = 512;
+    // Not a whole number of blocks, so the final block is short
+    private static final int FILE_SIZE = 6000 * BLOCK_SIZE + 77;
+    private static final int FINAL_BLOCK = FILE_SIZE / BLOCK_SIZE + 1;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @TempDir
+    static Path directory;
+
+    private static byte[] file;
+    private static int port;
+
+    /**
+     * Writes the file to serve, waits for the server's directory index to list it, and starts an
+     * engine on a free port.
+     *
+     * @throws Exception if the file cannot be written or the index does not list it in time
+     */
+    @BeforeAll
+    static void startEngine() throws Exception {
+        file = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(file);
+        Path retrieve = Files.createDirectories(Paths.get(TFTPUDPSocketServer.RETRIEVE_DIRECTORY));
+        Files.write(retrieve.resolve(FILE_NAME), file);
+        // The index may already be running, in which case it learns of the file from its watch service
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (TFTPUDPSocketServer.RETRIEVE_INDEX.lookup(FILE_NAME) == null && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        Thread engineThread = new Thread(new TransferEngine(port), "multicast-engine");
+        engineThread.setDaemon(true);
+        engineThread.start();
+    }
+
+    /**
+     * Removes the file the test served.
+     *
+     * @throws IOException if the file cannot be removed
+     */
+    @AfterAll
+    static void removeFile() throws IOException {
+        Files.deleteIfExists(Paths.get(TFTPUDPSocketServer.RETRIEVE_DIRECTORY, FILE_NAME));
+    }
+
+    @Test
+    void lateJoinersFetchTheBlocksTheyMissedAndEndUpWithTheSameFile() throws Exception {
+        File firstCopy = directory.resolve("first.bin").toFile();
+        File secondCopy = directory.resolve("second.bin").toFile();
+        long outOfOrderBefore = TFTPUDPSocketServer.METRICS.outOfOrderPackets.get();
+        try (MasterClient master = new MasterClient()) {
+            master.request();
+            master.acknowledgeUpTo(100);
+
+            CompletableFuture<Void> first = retrieve(firstCopy);
+            int firstJoined = master.acknowledgeUntilJoined(firstCopy);
+            CompletableFuture<Void> second = retrieve(secondCopy);
+            int secondJoined = master.acknowledgeUntilJoined(secondCopy);
+            assertTrue(firstJoined < secondJoined && secondJoined < FINAL_BLOCK,
+                    "The clients joined after blocks " + firstJoined + " and " + secondJoined + " of " + FINAL_BLOCK);
+            // Acknowledging the final block hands the transfer to the first client, then to the second
+            master.acknowledgeUpTo(FINAL_BLOCK);
+
+            first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertArrayEquals(file, master.received());
+        }
+        // Each client handed over by acknowledging the final block, rather than being dropped for
+        // silence because an ACK past the blocks of its own pass was ignored as out of order
+        awaitTransfersFinished();
+        assertEquals(outOfOrderBefore, TFTPUDPSocketServer.METRICS.outOfOrderPackets.get(), "Out-of-order ACKs");
+        assertArrayEquals(file, Files.readAllBytes(firstCopy.toPath()));
+        assertArrayEquals(file, Files.readAllBytes(secondCopy.toPath()));
+    }
+
+    /**
+     * Waits until the server has closed every transfer, which is when a transfer adds its packet
+     * counts to the metrics.
+     *
+     * @throws Exception if a transfer is still running after the timeout
+     */
+    private static void awaitTransfersFinished() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (TFTPUDPSocketServer.METRICS.activeTransfers.get() > 0) {
+            assertTrue(System.nanoTime() < deadline, "The multicast transfer did not finish");
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Starts the UDP client retrieving the file over multicast on a thread of its own.
+     *
+     * @param destination the local file to save the file to
+     * @return completed once the client has the whole file
+     */
+    private static CompletableFuture<Void> retrieve(File destination) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                TFTPUDPSocketClient.retrieve(InetAddress.getLoopbackAddress(), port, FILE_NAME, destination);
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }, "client-" + destination.getName());
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * The first master client of the transfer, which acknowledges blocks only as far as the test
+     * lets it and keeps every block it receives.
+     */
+    private static class MasterClient implements AutoCloseable {
+        final DatagramSocket control;
+        MulticastSocket group;
+        final ByteBuffer received = ByteBuffer.allocate(FILE_SIZE);
+        final byte[] in = new byte[4 + BLOCK_SIZE];
+        final DatagramPacket packet = new DatagramPacket(in, in.length);
+        final PacketReader reader = new PacketReader();
+        final byte[] out = new byte[512];
+        final PacketWriter writer = new PacketWriter();
+        SocketAddress serverTid;
+        int lastBlock;
+
+        /**
+         * Opens the control socket requests and ACKs are sent from.
+         *
+         * @throws IOException if the socket cannot be opened
+         */
+        MasterClient() throws IOException {
+            control = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            control.setSoTimeout(1000);
+        }
+
+        /**
+         * Asks for the file over multicast, joins the group named in the OACK and acknowledges the
+         * OACK to start the transfer.
+         *
+         * @throws IOException if the server does not answer with an OACK making this client master
+         */
+        void request() throws IOException {
+            ByteBuffer request = writer.wrap(out).request(OP_RRQ, FILE_NAME, "octet")
+                    .option("blksize", BLOCK_SIZE).option("tsize", 0).option("multicast", "").finish();
+            control.send(new DatagramPacket(out, request.remaining(), InetAddress.getLoopbackAddress(), port));
+            packet.setLength(in.length);
+            control.receive(packet);
+            reader.wrap(in, packet.getLength());
+            assertEquals(OP_OACK, reader.opcode(), "Expected an OACK, got opcode " + reader.opcode());
+            serverTid = packet.getSocketAddress();
+            Map<String, String> options = reader.options();
+            assertEquals(Long.toString(FILE_SIZE), options.get("tsize"));
+            String[] multicast = options.get("multicast").split(",");
+            assertEquals("1", multicast[2], "The first client is the master client");
+
+            group = new MulticastSocket(Integer.parseInt(multicast[1]));
+            group.setSoTimeout(1000);
+            group.joinGroup(new InetSocketAddress(InetAddress.getByName(multicast[0]), 0),
+                    NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()));
+            sendAck();
+        }
+
+        /**
+         * Receives and acknowledges blocks in lockstep up to the given block.
+         *
+         * @param block the last block to acknowledge
+         * @throws IOException if the server stops sending
+         */
+        void acknowledgeUpTo(int block) throws IOException {
+            while (lastBlock < block) {
+                acknowledgeNext();
+            }
+        }
+
+        /**
+         * Receives and acknowledges blocks slowly until a UDP client has joined the transfer, which
+         * it has once it has set the size of its file from the OACK it was sent.
+         *
+         * @param destination the client's file
+         * @return the last block acknowledged before the client joined
+         * @throws Exception if the server stops sending, or the transfer ends before the client joins
+         */
+        int acknowledgeUntilJoined(File destination) throws Exception {
+            while (destination.length() != FILE_SIZE) {
+                if (lastBlock + 1 >= FINAL_BLOCK) {
+                    fail("The transfer got to its final block before a client joined");
+                }
+                acknowledgeNext();
+                Thread.sleep(1);
+            }
+            return lastBlock;
+        }
+
+        /**
+         * Waits for the next block on the group and acknowledges it, acknowledging the last block
+         * again whenever the server goes quiet.
+         *
+         * @throws IOException if nothing arrives after several tries
+         */
+        void acknowledgeNext() throws IOException {
+            for (int tries = 0; ; ) {
+                packet.setLength(in.length);
+                try {
+                    group.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (++tries == 5) {
+                        throw e;
+                    }
+                    sendAck();
+                    continue;
+                }
+                reader.wrap(in, packet.getLength());
+                if (reader.opcode() == OP_DATA && reader.block() == lastBlock + 1) {
+                    received.put(in, reader.dataOffset(), reader.dataLength());
+                    lastBlock++;
+                    sendAck();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Acknowledges the last block received, or the OACK before any block.
+         *
+         * @throws IOException if the packet cannot be sent
+         */
+        void sendAck() throws IOException {
+            writer.wrap(out).ack(lastBlock);
+            control.send(new DatagramPacket(out, 4, serverTid));
+        }
+
+        /**
+         * Returns the bytes received so far.
+         *
+         * @return the bytes
+         */
+        byte[] received() {
+            return Arrays.copyOf(received.array(), received.position());
+        }
+
+        @Override
+        public void close() {
+            control.close();
+            if (group != null) {
+                group.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.Tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static protocol.Tftp.OP_ACK;
+import static protocol.Tftp.OP_DATA;
+import static protocol.Tftp.OP_RRQ;
+import static protocol.Tftp.OP_WRQ;
+
+/**
+ * Runs transfers over loopback against a transfer engine on its own thread and checks that, once
+ * a transfer is under way, the engine allocates next to nothing per block: the figure is what a
+ * long transfer allocates on the engine thread beyond a short one, spread over the extra blocks,
+ * so the fixed cost of starting and finishing a transfer drops out.
+ */
+class SteadyStateAllocationTest {
+    private static final int SHORT_BLOCKS = 2_000;
+    private static final int LONG_BLOCKS = 10_000;
+    // Well under one small object per block; a copy of each block alone would be over 512
+    private static final double MAX_BYTES_PER_BLOCK = 16;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static byte[] shortFile;
+    private static byte[] longFile;
+    private static Thread engineThread;
+    private static int port;
+
+    /**
+     * Writes the files to serve before the server's directory index is first used, and starts an
+     * engine on a free port.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    @BeforeAll
+    static void startEngine() throws IOException {
+        Random random = new Random(69);
+        // One byte short of a whole block, so the last block ends the transfer
+        shortFile = new byte[SHORT_BLOCKS * Tftp.DEFAULT_BLOCK_SIZE - 1];
+        longFile = new byte[LONG_BLOCKS * Tftp.DEFAULT_BLOCK_SIZE - 1];
+        random.nextBytes(shortFile);
+        random.nextBytes(longFile);
+        Path retrieve = Files.createDirectories(Paths.get(TFTPUDPSocketServer.RETRIEVE_DIRECTORY));
+        Files.createDirectories(Paths.get(TFTPUDPSocketServer.RECEIVED_DIRECTORY));
+        Files.write(retrieve.resolve("short.bin"), shortFile);
+        Files.write(retrieve.resolve("long.bin"), longFile);
+
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        engineThread = new Thread(new TransferEngine(port), "transfer-engine");
+        engineThread.setDaemon(true);
+        engineThread.start();
+    }
+
+    /**
+     * Removes the files the tests wrote.
+     *
+     * @throws IOException if a file cannot be removed
+     */
+    @AfterAll
+    static void removeFiles() throws IOException {
+        for (String name : new String[]{"short.bin", "long.bin"}) {
+            Files.deleteIfExists(Paths.get(TFTPUDPSocketServer.RETRIEVE_DIRECTORY, name));
+            Files.deleteIfExists(Paths.get(TFTPUDPSocketServer.RECEIVED_DIRECTORY, name));
+        }
+    }
+
+    @Test
+    void downloadsAllocateNothingPerBlock() throws Exception {
+        // The cache loads files in the background and takes them in on a later request, so it
+        // takes two rounds before both are served from it; these also let the JIT settle
+        for (int round = 0; round < 2; round++) {
+            assertArrayEquals(shortFile, download("short.bin"));
+            assertArrayEquals(longFile, download("long.bin"));
+        }
+
+        long before = allocated();
+        assertArrayEquals(shortFile, download("short.bin"));
+        long shortBytes = allocated() - before;
+        before = allocated();
+        assertArrayEquals(longFile, download("long.bin"));
+        long longBytes = allocated() - before;
+
+        assertPerBlock("download", shortBytes, longBytes);
+    }
+
+    @Test
+    void uploadsAllocateNothingPerBlock() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            upload("short.bin", shortFile);
+            upload("long.bin", longFile);
+        }
+
+        long before = allocated();
+        upload("short.bin", shortFile);
+        long shortBytes = allocated() - before;
+        before = allocated();
+        upload("long.bin", longFile);
+        long longBytes = allocated() - before;
+
+        assertArrayEquals(longFile, Files.readAllBytes(Paths.get(TFTPUDPSocketServer.RECEIVED_DIRECTORY, "long.bin")));
+        assertPerBlock("upload", shortBytes, longBytes);
+    }
+
+    /**
+     * Fails if the long transfer allocated more than the allowance per block beyond the short one.
+     *
+     * @param direction  the kind of transfer, for the failure message
+     * @param shortBytes the bytes the engine allocated during the short transfer
+     * @param longBytes  the bytes the engine allocated during the long transfer
+     */
+    private static void assertPerBlock(String direction, long shortBytes, long longBytes) {
+        double perBlock = (double) (longBytes - shortBytes) / (LONG_BLOCKS - SHORT_BLOCKS);
+        System.out.printf("Engine allocated %d bytes for a short %s and %d for a long one, %.2f per block%n",
+                shortBytes, direction, longBytes, perBlock);
+        assertTrue(perBlock < MAX_BYTES_PER_BLOCK,
+                "Engine allocated " + perBlock + " bytes per block during a steady " + direction);
+    }
+
+    /**
+     * Returns the bytes allocated so far on the engine thread, once it has finished with the packets
+     * already sent to it.
+     *
+     * @return the bytes allocated
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static long allocated() throws InterruptedException {
+        // The final acknowledgement is handled after the peer has moved on
+        Thread.sleep(200);
+        return THREADS.getThreadAllocatedBytes(engineThread.getId());
+    }
+
+    /**
+     * Downloads a file one block at a time, without options.
+     *
+     * @param name the file to download
+     * @return the contents
+     * @throws IOException if the transfer fails
+     */
+    private static byte[] download(String name) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            socket.setSoTimeout(5000);
+            byte[] out = new byte[512];
+            PacketWriter writer = new PacketWriter();
+            ByteBuffer request = writer.wrap(out).request(OP_RRQ, name, "octet").finish();
+            socket.send(new DatagramPacket(out, request.remaining(), InetAddress.getLoopbackAddress(), port));
+
+            byte[] in = new byte[4 + Tftp.DEFAULT_BLOCK_SIZE];
+            DatagramPacket received = new DatagramPacket(in, in.length);
+            PacketReader reader = new PacketReader();
+            ByteBuffer contents = ByteBuffer.allocate(LONG_BLOCKS * Tftp.DEFAULT_BLOCK_SIZE);
+            boolean last = false;
+            for (int block = 1; !last; ) {
+                received.setLength(in.length);
+                socket.receive(received);
+                reader.wrap(in, received.getLength());
+                assertEquals(OP_DATA, reader.opcode(), "Expected data, got opcode " + reader.opcode());
+                // A repeated block is acknowledged again but not kept
+                if (reader.block() == (block & 0xFFFF)) {
+                    contents.put(in, reader.dataOffset(), reader.dataLength());
+                    last = reader.dataLength() < Tftp.DEFAULT_BLOCK_SIZE;
+                    block++;
+                }
+                writer.wrap(out).ack(reader.block());
+                socket.send(new DatagramPacket(out, 4, received.getSocketAddress()));
+            }
+            byte[] result = new byte[contents.position()];
+            contents.flip().get(result);
+            return result;
+        }
+    }
+
+    /**
+     * Uploads a file one block at a time, without options, and waits for the final acknowledgement.
+     *
+     * @param name     the name to upload under
+     * @param contents the contents
+     * @throws IOException if the transfer fails
+     */
+    private static void upload(String name, byte[] contents) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            socket.setSoTimeout(5000);
+            byte[] out = new byte[4 + Tftp.DEFAULT_BLOCK_SIZE];
+            PacketWriter writer = new PacketWriter();
+            ByteBuffer request = writer.wrap(out).request(OP_WRQ, name, "octet").finish();
+            socket.send(new DatagramPacket(out, request.remaining(), InetAddress.getLoopbackAddress(), port));
+
+            byte[] in = new byte[Tftp.DEFAULT_BLOCK_SIZE];
+            DatagramPacket received = new DatagramPacket(in, in.length);
+            PacketReader reader = new PacketReader();
+            SocketAddress server = awaitAck(socket, received, reader, 0);
+            int blocks = contents.length / Tftp.DEFAULT_BLOCK_SIZE + 1;
+            for (int block = 1; block <= blocks; block++) {
+                int offset = (block - 1) * Tftp.DEFAULT_BLOCK_SIZE;
+                int length = Math.min(Tftp.DEFAULT_BLOCK_SIZE, contents.length - offset);
+                PacketWriter.putHeader(out, OP_DATA, block);
+                System.arraycopy(contents, offset, out, 4, length);
+                socket.send(new DatagramPacket(out, 4 + length, server));
+                awaitAck(socket, received, reader, block);
+            }
+        }
+    }
+
+    /**
+     * Waits for the acknowledgement of a block, skipping any repeat of an earlier one.
+     *
+     * @param socket   the socket to receive on
+     * @param received the packet to receive into
+     * @param reader   the reader to parse with
+     * @param block    the block number expected
+     * @return the address the acknowledgement came from
+     * @throws IOException if nothing arrives in time
+     */
+    private static SocketAddress awaitAck(DatagramSocket socket, DatagramPacket received, PacketReader reader,
+                                          int block) throws IOException {
+        while (true) {
+            received.setLength(received.getData().length);
+            socket.receive(received);
+            reader.wrap(received.getData(), received.getLength());
+            assertEquals(OP_ACK, reader.opcode(), "Expected an acknowledgement, got opcode " + reader.opcode());
+            if (reader.block() == (block & 0xFFFF)) {
+                return received.getSocketAddress();
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import protocol.Metrics;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks what an upload leaves on disk and when it counts as finished: the data only appears under
+ * the destination's name once the temporary file is renamed over it, an abandoned upload leaves no
+ * file behind unless it can be resumed, uploads that end together are committed as one group, and the
+ * durability policy decides when the commit callback runs, which is when the UDP server sends the
+ * final ACK.
+ */
+class WriteBehindTest {
+    private static final int QUEUE_SIZE = 16;
+    // Small enough that every upload spans several chunks and ends with a partly filled one
+    private static final int CHUNK_SIZE = 4096;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void committedUploadReplacesTheDestinationOnlyOnceComplete() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, WriteBehind.Durability.WRITE, new Metrics());
+        Path destination = Files.writeString(directory.resolve("upload.bin"), "old contents");
+        byte[] data = randomBytes(3 * CHUNK_SIZE + 100);
+
+        WriteBehind.Upload upload = writeBehind.open(destination, -1);
+        // Announced larger than it turns out to be, so the file must be trimmed when it is committed
+        upload.preallocate(data.length + CHUNK_SIZE);
+        upload.append(ByteBuffer.wrap(data), null);
+        assertEquals(1, temporaryFiles().size(), "The data goes to a temporary file beside the destination");
+        assertEquals("old contents", Files.readString(destination), "The destination is untouched before the commit");
+
+        assertNull(commit(upload, data.length).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(data, Files.readAllBytes(destination));
+        assertEquals(List.of(), temporaryFiles());
+    }
+
+    @Test
+    void abandonedUploadLeavesNoFileBehind() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, WriteBehind.Durability.WRITE, new Metrics());
+        Path destination = directory.resolve("abandoned.bin");
+
+        WriteBehind.Upload upload = writeBehind.open(destination, -1);
+        upload.append(ByteBuffer.wrap(randomBytes(2 * CHUNK_SIZE + 100)), null);
+        upload.abort();
+        awaitWriter(writeBehind);
+
+        assertFalse(Files.exists(destination));
+        assertEquals(List.of(), temporaryFiles());
+    }
+
+    @Test
+    void abandonedResumableUploadKeepsOnlyItsPartialFile() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, WriteBehind.Durability.WRITE, new Metrics());
+        Path destination = directory.resolve("resumable.bin");
+        byte[] data = randomBytes(2 * CHUNK_SIZE + 100);
+
+        WriteBehind.Upload upload = writeBehind.open(destination, 0);
+        upload.preallocate(4 * CHUNK_SIZE);
+        upload.append(ByteBuffer.wrap(data), null);
+        upload.abort();
+        awaitWriter(writeBehind);
+
+        assertFalse(Files.exists(destination));
+        // Trimmed to the data received, so a resumed upload continues from data that is really there
+        assertArrayEquals(data, Files.readAllBytes(directory.resolve(".resumable.bin.partial")));
+        assertEquals(List.of(), temporaryFiles().stream().filter(name -> name.endsWith(".part")).collect(Collectors.toList()));
+    }
+
+    @Test
+    void rejectedResumableUploadLeavesNoPartialFile() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, WriteBehind.Durability.WRITE, new Metrics());
+        Path destination = directory.resolve("rejected.bin");
+
+        WriteBehind.Upload upload = writeBehind.open(destination, 0);
+        upload.append(ByteBuffer.wrap(randomBytes(CHUNK_SIZE + 100)), null);
+        upload.reject();
+        awaitWriter(writeBehind);
+
+        assertFalse(Files.exists(destination));
+        assertEquals(List.of(), temporaryFiles());
+    }
+
+    @Test
+    void durabilityNoneFinishesAsSoonAsTheLastBlockArrives() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, WriteBehind.Durability.NONE, new Metrics());
+        Path destination = directory.resolve("none.bin");
+        byte[] data = randomBytes(3 * CHUNK_SIZE + 100);
+
+        WriteBehind.Upload upload = writeBehind.open(destination, -1);
+        upload.append(ByteBuffer.wrap(data), null);
+        CompletableFuture<Thread> callbackThread = new CompletableFuture<>();
+        upload.commit(data.length, error -> callbackThread.complete(Thread.currentThread()));
+
+        // The callback ran before commit returned, without waiting for the writer
+        assertTrue(callbackThread.isDone());
+        assertSame(Thread.currentThread(), callbackThread.get());
+        // The file is still saved, in the background
+        awaitWriter(writeBehind);
+        assertArrayEquals(data, Files.readAllBytes(destination));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = WriteBehind.Durability.class, names = {"WRITE", "FSYNC"})
+    void durableUploadFinishesOnceRenamedIntoPlace(WriteBehind.Durability durability) throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, durability, new Metrics());
+        Path destination = directory.resolve("durable.bin");
+        byte[] data = randomBytes(3 * CHUNK_SIZE + 100);
+
+        WriteBehind.Upload upload = writeBehind.open(destination, -1);
+        upload.append(ByteBuffer.wrap(data), null);
+        CompletableFuture<byte[]> seenByCallback = new CompletableFuture<>();
+        CompletableFuture<Thread> callbackThread = new CompletableFuture<>();
+        upload.commit(data.length, error -> {
+            callbackThread.complete(Thread.currentThread());
+            try {
+                seenByCallback.complete(Files.readAllBytes(destination));
+            } catch (IOException e) {
+                seenByCallback.completeExceptionally(e);
+            }
+        });
+
+        // The callback runs on the writer thread, and by then the whole file is in place
+        assertArrayEquals(data, seenByCallback.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotEquals(Thread.currentThread(), callbackThread.get());
+        assertEquals(List.of(), temporaryFiles());
+    }
+
+    @Test
+    void uploadsEndingWhileTheWriterIsBusyAreCommittedTogether() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(QUEUE_SIZE, CHUNK_SIZE, WriteBehind.Durability.WRITE, new Metrics());
+        // Hold the writer thread in the callback of a first upload
+        CountDownLatch writerHeld = new CountDownLatch(1);
+        CountDownLatch releaseWriter = new CountDownLatch(1);
+        WriteBehind.Upload first = writeBehind.open(directory.resolve("first.bin"), -1);
+        first.commit(0, error -> {
+            writerHeld.countDown();
+            awaitQuietly(releaseWriter);
+        });
+        assertTrue(writerHeld.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Both end while the writer is busy, so they land in its next batch
+        Path second = directory.resolve("second.bin");
+        Path third = directory.resolve("third.bin");
+        CompletableFuture<Boolean> thirdInPlaceForSecond = new CompletableFuture<>();
+        CompletableFuture<Boolean> secondInPlaceForThird = new CompletableFuture<>();
+        commitWhenDone(writeBehind, second, () -> thirdInPlaceForSecond.complete(Files.exists(third)));
+        commitWhenDone(writeBehind, third, () -> secondInPlaceForThird.complete(Files.exists(second)));
+        releaseWriter.countDown();
+
+        // Each upload was renamed before either was told it had finished
+        assertTrue(thirdInPlaceForSecond.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(secondInPlaceForThird.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Writes a small upload and commits it, running a check once it has finished.
+     *
+     * @param writeBehind the writer
+     * @param destination the file to upload to
+     * @param onCommitted run on the writer thread once the upload has finished
+     * @throws IOException if the upload cannot be started
+     */
+    private static void commitWhenDone(WriteBehind writeBehind, Path destination, Runnable onCommitted) throws IOException {
+        WriteBehind.Upload upload = writeBehind.open(destination, -1);
+        byte[] data = randomBytes(CHUNK_SIZE + 100);
+        upload.append(ByteBuffer.wrap(data), null);
+        upload.commit(data.length, error -> onCommitted.run());
+    }
+
+    /**
+     * Commits an upload.
+     *
+     * @param upload the upload
+     * @param length the size of the uploaded file
+     * @return completed with the error the commit reported, or null, once the upload has finished
+     */
+    private static CompletableFuture<IOException> commit(WriteBehind.Upload upload, long length) {
+        CompletableFuture<IOException> result = new CompletableFuture<>();
+        upload.commit(length, result::complete);
+        return result;
+    }
+
+    /**
+     * Waits until the writer has worked through everything queued so far, by committing an empty
+     * upload behind it: the writer handles its queue in order.
+     *
+     * @param writeBehind the writer to wait for
+     * @throws Exception if the writer does not get there in time
+     */
+    private void awaitWriter(WriteBehind writeBehind) throws Exception {
+        Path marker = directory.resolve("marker");
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        writeBehind.open(marker, -1).commit(0, error -> done.complete(null));
+        // Under the NONE policy the callback runs straight away, so wait for the rename as well
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!Files.exists(marker) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        done.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Files.delete(marker);
+    }
+
+    /**
+     * Lists the hidden files uploads are staged in.
+     *
+     * @return the names of the temporary and partial files in the directory
+     * @throws IOException if the directory cannot be listed
+     */
+    private List<String> temporaryFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith("."))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Waits for a latch, giving up quietly after the timeout.
+     *
+     * @param latch the latch
+     */
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns random bytes that are the same on every run.
+     *
+     * @param length the number of bytes
+     * @return the bytes
+     */
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,119 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.Tftp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding single packets with the shared protocol codec every program uses:
+ * building ACK, OACK, ERROR, DATA and request packets, and reading the file name and options out of
+ * a request, both into a map and in place with the option cursor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(Tftp.HEADER_SIZE);
+    private final ByteBuffer packetBuffer = ByteBuffer.allocate(Tftp.DEFAULT_BLOCK_SIZE + Tftp.HEADER_SIZE);
+    private final PacketWriter writer = new PacketWriter();
+    private final PacketReader reader = new PacketReader();
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private ByteBuffer request;
+    private short blockNumber;
+
+    /**
+     * The DATA packet a block of file data is sent in, at several block sizes.
+     */
+    @State(Scope.Thread)
+    public static class Block {
+        @Param({"512", "1468", "8192"})
+        public int blockSize;
+        ByteBuffer packet;
+
+        @Setup
+        public void setUp() {
+            packet = ByteBuffer.allocateDirect(blockSize + Tftp.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Builds the options the OACK benchmark encodes and the request the parsing benchmarks read.
+     */
+    @Setup
+    public void setUp() {
+        options.put("blksize", "1468");
+        options.put("windowsize", "16");
+        options.put("tsize", "1048576");
+        ByteBuffer encoded = new PacketWriter().wrap(ByteBuffer.allocate(Tftp.DEFAULT_BLOCK_SIZE + Tftp.HEADER_SIZE))
+                .request(Tftp.OP_RRQ, "src/Retrieve Files/benchmark.bin", "octet").options(options).finish();
+        request = ByteBuffer.allocateDirect(encoded.remaining()).put(encoded).flip();
+    }
+
+    @Benchmark
+    public ByteBuffer createAckPacket() {
+        return writer.wrap(ackBuffer).ack(blockNumber++);
+    }
+
+    @Benchmark
+    public ByteBuffer createOackPacket() {
+        return writer.wrap(packetBuffer).oack().options(options).finish();
+    }
+
+    @Benchmark
+    public ByteBuffer createErrorPacket() {
+        return writer.wrap(packetBuffer).error(Tftp.ERROR_FILE_NOT_FOUND, "File not found");
+    }
+
+    @Benchmark
+    public ByteBuffer createDataPacket(Block block) {
+        PacketWriter.putHeader(block.packet, Tftp.OP_DATA, blockNumber++);
+        return block.packet;
+    }
+
+    @Benchmark
+    public ByteBuffer createRequestPacket() {
+        return writer.wrap(packetBuffer).request(Tftp.OP_RRQ, "benchmark.bin", "octet")
+                .option("blksize", 1468).option("windowsize", 16).option("tsize", 0).finish();
+    }
+
+    @Benchmark
+    public String extractFileName() {
+        return reader.wrap(request).baseName();
+    }
+
+    @Benchmark
+    public Map<String, String> extractOptions() {
+        return reader.wrap(request).options();
+    }
+
+    @Benchmark
+    public long parseOptionsInPlace() {
+        long sum = 0;
+        reader.wrap(request);
+        while (reader.nextOption()) {
+            if (reader.optionIs("blksize") || reader.optionIs("windowsize") || reader.optionIs("tsize")) {
+                sum += reader.optionValueAsLong();
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,115 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading a whole file one block at a time with each of the strategies the servers use: a
+ * FileInputStream into a byte array (the TCP server's small files), positional FileChannel reads into
+ * a direct buffer (the UDP server's uncached files), and copies out of a memory mapping (both servers'
+ * large files). The file stays in the page cache, so this compares the cost of the calls and copies
+ * rather than the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileReadBenchmark {
+    @Param({"65536", "16777216"})
+    public int fileSize;
+
+    @Param({"512", "1468", "8192"})
+    public int blockSize;
+
+    private Path file;
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private byte[] array;
+    private ByteBuffer direct;
+    private ByteBuffer heap;
+
+    /**
+     * Writes a file of random bytes and opens it for every strategy.
+     *
+     * @throws IOException if the file cannot be written or opened
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        file = Files.createTempFile("tftp-read-benchmark", ".bin");
+        Files.write(file, content);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        array = new byte[blockSize];
+        direct = ByteBuffer.allocateDirect(blockSize);
+        heap = ByteBuffer.wrap(array);
+    }
+
+    /**
+     * Closes and deletes the file.
+     *
+     * @throws IOException if the file cannot be deleted
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws IOException {
+        try (FileInputStream in = new FileInputStream(file.toFile())) {
+            int bytesRead;
+            while ((bytesRead = in.read(array, 0, blockSize)) > 0) {
+                blackhole.consume(array[bytesRead - 1]);
+            }
+        }
+    }
+
+    @Benchmark
+    public void fileChannel(Blackhole blackhole) throws IOException {
+        for (long position = 0; position < fileSize; position += blockSize) {
+            direct.clear();
+            while (direct.hasRemaining() && channel.read(direct, position + direct.position()) > 0) {
+                // Keep reading until the block is full or the end of the file is reached
+            }
+            blackhole.consume(direct.get(direct.position() - 1));
+        }
+    }
+
+    @Benchmark
+    public void mapped(Blackhole blackhole) {
+        for (int position = 0; position < fileSize; position += blockSize) {
+            int length = Math.min(blockSize, fileSize - position);
+            heap.clear();
+            heap.put(0, mapping, position, length);
+            blackhole.consume(array[length - 1]);
+        }
+    }
+}
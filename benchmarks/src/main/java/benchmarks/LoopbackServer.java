@@ -0,0 +1,193 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One of the servers running in a JVM of its own on a free localhost port, serving files from a
+ * temporary directory. The servers are started from the target/classes directories of their module
+ * and of the tftp-protocol module, looked up from the working directory or its parent, so the
+ * benchmarks run from the repository root or the benchmarks module alike. JVM options for the server, such as -Dtftp.durability=fsync, go in the
+ * tftp.serverJvmArgs system property.
+ */
+final class LoopbackServer implements AutoCloseable {
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    final int port;
+    private final Path directory;
+    private final Process process;
+
+    /**
+     * Starts a server and waits until it listens on its port.
+     *
+     * @param module    the directory of the server's Maven module
+     * @param mainClass the server's main class
+     * @param udp       whether the server listens on a UDP port rather than a TCP port
+     * @throws IOException if the server cannot be started or does not come up in time
+     */
+    LoopbackServer(String module, String mainClass, boolean udp) throws IOException {
+        directory = Files.createTempDirectory("tftp-benchmark");
+        Files.createDirectories(directory.resolve("src/Retrieve Files"));
+        Files.createDirectories(directory.resolve("src/Received Files"));
+        port = udp ? freeUdpPort() : freeTcpPort();
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        String jvmArgs = System.getProperty("tftp.serverJvmArgs", "").trim();
+        if (!jvmArgs.isEmpty()) {
+            command.addAll(List.of(jvmArgs.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(classesOf(module) + File.pathSeparator + classesOf("tftp-protocol"));
+        command.add(mainClass);
+        // The servers ask for their port on standard input and log every transfer to standard output
+        process = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write((port + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT;
+        while (!isBound(port, udp)) {
+            if (!process.isAlive() || System.nanoTime() > deadline) {
+                close();
+                throw new IOException(mainClass + " did not start listening on port " + port);
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while starting " + mainClass);
+            }
+        }
+    }
+
+    /**
+     * Writes a file of random bytes for clients to read.
+     *
+     * @param name the name of the file
+     * @param size the size of the file in bytes
+     * @return the content of the file
+     * @throws IOException if the file cannot be written
+     */
+    byte[] addFile(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(retrievedFile(name), content);
+        return content;
+    }
+
+    /**
+     * Returns where a file clients can read is kept.
+     *
+     * @param name the name of the file
+     * @return the path of the file in the server's retrieve directory
+     */
+    Path retrievedFile(String name) {
+        return directory.resolve("src/Retrieve Files").resolve(name);
+    }
+
+    /**
+     * Returns where a file uploaded by a client is stored.
+     *
+     * @param name the name the file was uploaded under
+     * @return the path of the file in the server's received directory
+     */
+    Path receivedFile(String name) {
+        return directory.resolve("src/Received Files").resolve(name);
+    }
+
+    /**
+     * Stops the server and deletes its directory.
+     *
+     * @throws IOException if the directory cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        process.destroy();
+        try {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Finds the compiled classes of a module.
+     *
+     * @param module the directory of the module
+     * @return the module's target/classes directory
+     * @throws IOException if the module has not been built
+     */
+    private static Path classesOf(String module) throws IOException {
+        for (Path candidate : List.of(Paths.get(module, "target", "classes"), Paths.get("..", module, "target", "classes"))) {
+            if (Files.isDirectory(candidate)) {
+                return candidate.toAbsolutePath().normalize();
+            }
+        }
+        throw new IOException(module + "/target/classes not found; build the project from the repository root first");
+    }
+
+    /**
+     * Returns a UDP port nothing is bound to.
+     *
+     * @return the port
+     * @throws IOException if no port can be bound
+     */
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns a TCP port nothing listens on.
+     *
+     * @return the port
+     * @throws IOException if no port can be bound
+     */
+    private static int freeTcpPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns whether a port is taken, by trying to bind it.
+     *
+     * @param port the port
+     * @param udp  whether to check the UDP port rather than the TCP port
+     * @return true if something is bound to the port
+     */
+    private static boolean isBound(int port, boolean udp) {
+        try {
+            if (udp) {
+                new DatagramSocket(port).close();
+            } else {
+                new ServerSocket(port).close();
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole RRQ and WRQ transfers against the TCP server over loopback, reporting the time per
+ * transfer with its percentiles. The TCP protocol has no block size option, so blocks are always 512
+ * bytes. A write counts as done when the server closes the connection, which it does once the upload
+ * is saved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TcpLoopbackBenchmark {
+    private static final int BLOCK_SIZE = 512;
+    private static final byte OP_RRQ = 1;
+    private static final byte OP_WRQ = 2;
+    private static final byte OP_DATA = 3;
+    private static final byte[] HANDSHAKE = "HANDSHAKE".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    private LoopbackServer server;
+    private byte[] content;
+    // The size of the file on the wire, with the 4 byte header of each DATA packet
+    private long streamSize;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LoopbackServer("TFTPTCPSocketServer", "server.TFTPTCPSocketServer", false);
+        content = server.addFile("benchmark.bin", fileSize);
+        streamSize = fileSize + 4L * ((fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        try (Socket socket = connect(OP_RRQ, "benchmark.bin")) {
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long bytesReceived = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                bytesReceived += bytesRead;
+            }
+            if (bytesReceived != streamSize) {
+                throw new IOException("Received " + bytesReceived + " of " + streamSize + " bytes");
+            }
+            return bytesReceived;
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        try (Socket socket = connect(OP_WRQ, "upload-" + Thread.currentThread().getId() + ".bin")) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            byte[] packet = new byte[BLOCK_SIZE + 4];
+            short block = 1;
+            for (int offset = 0; offset < fileSize; offset += BLOCK_SIZE) {
+                int dataSize = Math.min(BLOCK_SIZE, fileSize - offset);
+                packet[1] = OP_DATA;
+                packet[2] = (byte) (block >> 8);
+                packet[3] = (byte) block;
+                System.arraycopy(content, offset, packet, 4, dataSize);
+                out.write(packet, 0, dataSize + 4);
+                block++;
+            }
+            out.flush();
+            // The server reads to the end of the stream when the file is a whole number of blocks, and
+            // closes the connection once the file is saved, unless it sends an error first
+            socket.shutdownOutput();
+            byte[] reply = socket.getInputStream().readAllBytes();
+            if (reply.length > 0) {
+                throw new IOException("Server sent an error: " + new String(reply, 4, Math.max(reply.length - 5, 0), StandardCharsets.US_ASCII));
+            }
+            return fileSize;
+        }
+    }
+
+    /**
+     * Connects to the server, exchanges handshakes and sends a request.
+     *
+     * @param opcode   the opcode of the request
+     * @param fileName the name of the file
+     * @return the connected socket
+     * @throws IOException if the connection or handshake fails
+     */
+    private Socket connect(byte opcode, String fileName) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port);
+        try {
+            byte[] handshake = socket.getInputStream().readNBytes(HANDSHAKE.length);
+            if (!Arrays.equals(handshake, HANDSHAKE)) {
+                throw new IOException("Invalid handshake received");
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(HANDSHAKE);
+            byte[] name = fileName.getBytes(StandardCharsets.US_ASCII);
+            byte[] request = new byte[name.length + 9];
+            request[1] = opcode;
+            System.arraycopy(name, 0, request, 2, name.length);
+            System.arraycopy("octet".getBytes(StandardCharsets.US_ASCII), 0, request, name.length + 3, 5);
+            out.write(request);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole RRQ and WRQ transfers against the UDP server over loopback, reporting the time per
+ * transfer with its percentiles; dividing the file size by the mean time gives the throughput. The
+ * benchmark plays the client itself with a minimal driver that keeps no file, so the numbers are
+ * dominated by the server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UdpLoopbackBenchmark {
+    private static final byte OP_RRQ = 1;
+    private static final byte OP_WRQ = 2;
+    private static final byte OP_DATA = 3;
+    private static final byte OP_ACK = 4;
+    private static final byte OP_ERROR = 5;
+    private static final byte OP_OACK = 6;
+    private static final int TIMEOUT_MILLIS = 1000;
+    private static final int MAX_RETRIES = 5;
+
+    /**
+     * The server, shared by every benchmark thread, and the file it serves.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"65536", "1048576", "16777216"})
+        public int fileSize;
+
+        LoopbackServer server;
+        byte[] content;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = new LoopbackServer("TFTPUDPSocketServer", "server.TFTPUDPSocketServer", true);
+            content = server.addFile("benchmark.bin", fileSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            server.close();
+        }
+    }
+
+    /**
+     * The number of blocks the server sends before waiting for an ACK when reading.
+     */
+    @State(Scope.Thread)
+    public static class Window {
+        @Param({"1", "16"})
+        public int windowSize;
+    }
+
+    @Param({"512", "1468", "8192"})
+    public int blockSize;
+
+    private DatagramSocket socket;
+    private SocketAddress serverAddress;
+    private DatagramPacket received;
+    private DatagramPacket sent;
+    private String uploadName;
+
+    /**
+     * Opens this thread's client socket.
+     *
+     * @param server the server to talk to
+     * @throws IOException if the socket cannot be opened
+     */
+    @Setup(Level.Trial)
+    public void setUp(Server server) throws IOException {
+        socket = new DatagramSocket();
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.server.port);
+        received = new DatagramPacket(new byte[blockSize + 4], blockSize + 4);
+        sent = new DatagramPacket(new byte[blockSize + 4], blockSize + 4);
+        uploadName = "upload-" + Thread.currentThread().getId() + ".bin";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        socket.close();
+    }
+
+    @Benchmark
+    public long read(Server server, Window window) throws IOException {
+        byte[] request = request(OP_RRQ, "benchmark.bin", "blksize", Integer.toString(blockSize),
+                "windowsize", Integer.toString(window.windowSize), "tsize", "0");
+        DatagramPacket requestPacket = new DatagramPacket(request, request.length, serverAddress);
+        socket.send(requestPacket);
+        DatagramPacket lastAck = requestPacket;
+        SocketAddress transferAddress = null;
+        int windowSize = window.windowSize;
+        short expected = 1;
+        int inWindow = 0;
+        long bytesReceived = 0;
+        int retries = 0;
+        while (true) {
+            try {
+                socket.receive(received);
+            } catch (SocketTimeoutException e) {
+                if (++retries > MAX_RETRIES) {
+                    throw new IOException("Read timed out after " + bytesReceived + " bytes");
+                }
+                socket.send(lastAck);
+                continue;
+            }
+            ByteBuffer packet = ByteBuffer.wrap(received.getData(), 0, received.getLength());
+            byte opcode = packet.get(1);
+            if (opcode == OP_ERROR) {
+                throw new IOException("Server sent an error: " + errorMessage(packet));
+            }
+            if (transferAddress == null) {
+                transferAddress = received.getSocketAddress();
+                if (opcode == OP_OACK) {
+                    windowSize = Math.min(windowSize, acknowledgedWindowSize(packet));
+                    lastAck = ack(transferAddress, (short) 0);
+                    continue;
+                }
+            } else if (!transferAddress.equals(received.getSocketAddress())) {
+                continue;
+            }
+            if (opcode != OP_DATA || packet.getShort(2) != expected) {
+                continue;
+            }
+            retries = 0;
+            int dataSize = received.getLength() - 4;
+            bytesReceived += dataSize;
+            expected++;
+            boolean last = dataSize < blockSize;
+            if (last || ++inWindow == windowSize) {
+                lastAck = ack(transferAddress, (short) (expected - 1));
+                inWindow = 0;
+            }
+            if (last) {
+                if (bytesReceived != server.fileSize) {
+                    throw new IOException("Received " + bytesReceived + " of " + server.fileSize + " bytes");
+                }
+                return bytesReceived;
+            }
+        }
+    }
+
+    @Benchmark
+    public long write(Server server) throws IOException {
+        byte[] request = request(OP_WRQ, uploadName, "blksize", Integer.toString(blockSize),
+                "tsize", Integer.toString(server.fileSize));
+        DatagramPacket requestPacket = new DatagramPacket(request, request.length, serverAddress);
+        socket.send(requestPacket);
+        SocketAddress transferAddress = awaitAck(requestPacket, null, (short) 0);
+        byte[] data = sent.getData();
+        sent.setSocketAddress(transferAddress);
+        short block = 1;
+        int offset = 0;
+        int dataSize;
+        do {
+            dataSize = Math.min(blockSize, server.fileSize - offset);
+            data[0] = 0;
+            data[1] = OP_DATA;
+            data[2] = (byte) (block >> 8);
+            data[3] = (byte) block;
+            System.arraycopy(server.content, offset, data, 4, dataSize);
+            sent.setLength(dataSize + 4);
+            socket.send(sent);
+            awaitAck(sent, transferAddress, block);
+            offset += dataSize;
+            block++;
+        } while (dataSize == blockSize);
+        return offset;
+    }
+
+    /**
+     * Waits for the ACK, or the OACK standing in for ACK 0, of the last packet sent, sending it again
+     * whenever the timeout expires.
+     *
+     * @param lastSent        the packet awaiting its ACK
+     * @param transferAddress the server's transfer address, or null if it is not known yet
+     * @param block           the block number to be acknowledged
+     * @return the address the ACK came from
+     * @throws IOException if the server sends an error or stops answering
+     */
+    private SocketAddress awaitAck(DatagramPacket lastSent, SocketAddress transferAddress, short block) throws IOException {
+        int retries = 0;
+        while (true) {
+            try {
+                socket.receive(received);
+            } catch (SocketTimeoutException e) {
+                if (++retries > MAX_RETRIES) {
+                    throw new IOException("Write timed out waiting for ACK " + (block & 0xFFFF));
+                }
+                socket.send(lastSent);
+                continue;
+            }
+            ByteBuffer packet = ByteBuffer.wrap(received.getData(), 0, received.getLength());
+            byte opcode = packet.get(1);
+            if (opcode == OP_ERROR) {
+                throw new IOException("Server sent an error: " + errorMessage(packet));
+            }
+            if (transferAddress != null && !transferAddress.equals(received.getSocketAddress())) {
+                continue;
+            }
+            if ((opcode == OP_ACK && packet.getShort(2) == block) || (opcode == OP_OACK && block == 0)) {
+                return received.getSocketAddress();
+            }
+        }
+    }
+
+    /**
+     * Sends an ACK packet.
+     *
+     * @param address the server's transfer address
+     * @param block   the block number to acknowledge
+     * @return the packet, kept for resending
+     * @throws IOException if the packet cannot be sent
+     */
+    private DatagramPacket ack(SocketAddress address, short block) throws IOException {
+        byte[] ack = {0, OP_ACK, (byte) (block >> 8), (byte) block};
+        DatagramPacket packet = new DatagramPacket(ack, ack.length, address);
+        socket.send(packet);
+        return packet;
+    }
+
+    /**
+     * Builds a request packet in octet mode.
+     *
+     * @param opcode   the opcode of the request
+     * @param fileName the name of the file
+     * @param options  the requested options, as alternating names and values
+     * @return the packet
+     */
+    private static byte[] request(byte opcode, String fileName, String... options) {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(0);
+        packet.write(opcode);
+        for (String field : new String[]{fileName, "octet"}) {
+            packet.writeBytes(field.getBytes(StandardCharsets.US_ASCII));
+            packet.write(0);
+        }
+        for (String option : options) {
+            packet.writeBytes(option.getBytes(StandardCharsets.US_ASCII));
+            packet.write(0);
+        }
+        return packet.toByteArray();
+    }
+
+    /**
+     * Reads the window size the server agreed to from an OACK packet.
+     *
+     * @param packet the OACK packet
+     * @return the window size, or 1 if the server left the option out
+     */
+    private static int acknowledgedWindowSize(ByteBuffer packet) {
+        String[] fields = new String(packet.array(), 2, packet.limit() - 2, StandardCharsets.US_ASCII).split("\0");
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            if (fields[i].equalsIgnoreCase("windowsize")) {
+                return Integer.parseInt(fields[i + 1]);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Reads the message of an ERROR packet.
+     *
+     * @param packet the ERROR packet
+     * @return the message
+     */
+    private static String errorMessage(ByteBuffer packet) {
+        return new String(packet.array(), 4, Math.max(packet.limit() - 5, 0), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,217 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import client.TFTPTCPSocketClient;
+import client.TFTPUDPSocketClient;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Moves large files through each server and client, in both directions. A file of more than 65535
+ * blocks of 512 bytes makes the 16-bit block number wrap around during the transfer; this runs in
+ * every build. A file of more than 4 GiB also takes every offset past the range of an int and of an
+ * unsigned 32-bit number; this only runs with the large-tests profile, mvn install -Dtftp.largeTests,
+ * which also runs everything on a heap much smaller than the files, so a transfer that holds the file
+ * in memory fails. The files are sparse, with a marker every MiB, around each place the block number
+ * wraps and across the 2 GiB and 4 GiB boundaries, so they take little disk space and a block that
+ * lands in the wrong place still shows. The servers run in JVMs of their own.
+ */
+class LargeTransferTest {
+    private static final int BLOCK_SIZE = 512;
+    // Past the first wrap, and not a whole number of blocks, so the final block is short
+    private static final long WRAP_FILE_SIZE = 48L * 1024 * 1024 + 123;
+    // Past 4 GiB, and not a whole number of blocks either
+    private static final long HUGE_FILE_SIZE = 4L * 1024 * 1024 * 1024 + 1024 * 1024 + 123;
+    private static final long[] OFFSET_LIMITS = {1L << 31, 1L << 32};
+    private static final int MARKER_SPACING = 1024 * 1024;
+
+    @TempDir
+    static Path directory;
+
+    private static Path wrapSource;
+    private static Path hugeSource;
+
+    /**
+     * Writes the sparse files the transfers start from.
+     *
+     * @throws IOException if a file cannot be written
+     */
+    @BeforeAll
+    static void writeSources() throws IOException {
+        wrapSource = directory.resolve("wrap-source.bin");
+        writeSparseFile(wrapSource, WRAP_FILE_SIZE);
+        if (Boolean.getBoolean("tftp.largeTests")) {
+            assertTrue(Runtime.getRuntime().maxMemory() < WRAP_FILE_SIZE,
+                    "The heap must be smaller than the files; run with the large-tests profile");
+            hugeSource = directory.resolve("huge-source.bin");
+            writeSparseFile(hugeSource, HUGE_FILE_SIZE);
+        }
+    }
+
+    @Test
+    void udpDownloadPastTheBlockNumberWrap() throws IOException {
+        udpDownload(wrapSource, WRAP_FILE_SIZE);
+    }
+
+    @Test
+    void udpUploadPastTheBlockNumberWrap() throws IOException {
+        udpUpload(wrapSource);
+    }
+
+    @Test
+    void tcpDownloadPastTheBlockNumberWrap() throws IOException {
+        tcpDownload(wrapSource, WRAP_FILE_SIZE);
+    }
+
+    @Test
+    void tcpUploadPastTheBlockNumberWrap() throws IOException {
+        tcpUpload(wrapSource);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "tftp.largeTests", matches = "true")
+    void udpDownloadPastFourGiB() throws IOException {
+        udpDownload(hugeSource, HUGE_FILE_SIZE);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "tftp.largeTests", matches = "true")
+    void udpUploadPastFourGiB() throws IOException {
+        udpUpload(hugeSource);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "tftp.largeTests", matches = "true")
+    void tcpDownloadPastFourGiB() throws IOException {
+        tcpDownload(hugeSource, HUGE_FILE_SIZE);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "tftp.largeTests", matches = "true")
+    void tcpUploadPastFourGiB() throws IOException {
+        tcpUpload(hugeSource);
+    }
+
+    /**
+     * Downloads a file from the UDP server with the UDP client.
+     *
+     * @param source the file to serve
+     * @param size   the size of the file
+     * @throws IOException if the transfer fails
+     */
+    private static void udpDownload(Path source, long size) throws IOException {
+        try (LoopbackServer server = new LoopbackServer("TFTPUDPSocketServer", "server.TFTPUDPSocketServer", true)) {
+            writeSparseFile(server.retrievedFile("large.bin"), size);
+            File copy = directory.resolve("udp-download.bin").toFile();
+            TFTPUDPSocketClient.retrieve(InetAddress.getLoopbackAddress(), server.port, "large.bin", copy);
+            assertSameContent(source, copy.toPath());
+        }
+    }
+
+    /**
+     * Uploads a file to the UDP server with the UDP client.
+     *
+     * @param source the file to upload
+     * @throws IOException if the transfer fails
+     */
+    private static void udpUpload(Path source) throws IOException {
+        try (LoopbackServer server = new LoopbackServer("TFTPUDPSocketServer", "server.TFTPUDPSocketServer", true)) {
+            TFTPUDPSocketClient.send(InetAddress.getLoopbackAddress(), server.port, source.toFile(), "large.bin");
+            assertSameContent(source, server.receivedFile("large.bin"));
+        }
+    }
+
+    /**
+     * Downloads a file from the TCP server with the TCP client.
+     *
+     * @param source the file to serve
+     * @param size   the size of the file
+     * @throws IOException if the transfer fails
+     */
+    private static void tcpDownload(Path source, long size) throws IOException {
+        try (LoopbackServer server = new LoopbackServer("TFTPTCPSocketServer", "server.TFTPTCPSocketServer", false)) {
+            writeSparseFile(server.retrievedFile("large.bin"), size);
+            File copy = directory.resolve("tcp-download.bin").toFile();
+            TFTPTCPSocketClient.retrieve("localhost", server.port, "large.bin", copy);
+            assertSameContent(source, copy.toPath());
+        }
+    }
+
+    /**
+     * Uploads a file to the TCP server with the TCP client.
+     *
+     * @param source the file to upload
+     * @throws IOException if the transfer fails
+     */
+    private static void tcpUpload(Path source) throws IOException {
+        try (LoopbackServer server = new LoopbackServer("TFTPTCPSocketServer", "server.TFTPTCPSocketServer", false)) {
+            TFTPTCPSocketClient.send("localhost", server.port, source.toFile(), "large.bin");
+            assertSameContent(source, server.receivedFile("large.bin"));
+        }
+    }
+
+    /**
+     * Writes a sparse file holding only markers: the offset of every MiB boundary, the block counts
+     * either side of each place the block number wraps, and a marker across each offset limit the
+     * file reaches.
+     *
+     * @param path the file to write
+     * @param size the size of the file
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeSparseFile(Path path, long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(size);
+            for (long offset = 0; offset + Long.BYTES <= size; offset += MARKER_SPACING) {
+                file.seek(offset);
+                file.writeLong(offset);
+            }
+            // Block n starts at (n - 1) * 512, so block 65536 is the first one numbered 0 on the wire
+            for (long wrap = 65536; (wrap - 1) * BLOCK_SIZE < size; wrap += 65536) {
+                for (long block = wrap - 2; block <= wrap + 1; block++) {
+                    long offset = (block - 1) * BLOCK_SIZE;
+                    if (offset + Long.BYTES <= size) {
+                        file.seek(offset);
+                        file.writeLong(block);
+                        file.seek(offset + BLOCK_SIZE - Long.BYTES);
+                        file.writeLong(~block);
+                    }
+                }
+            }
+            // Half before the limit and half after, so a copy split or truncated at it shows
+            for (long limit : OFFSET_LIMITS) {
+                if (limit + Long.BYTES <= size) {
+                    file.seek(limit - Long.BYTES / 2);
+                    file.writeLong(~limit);
+                }
+            }
+            file.seek(size - 1);
+            file.write(0x5A);
+        }
+    }
+
+    /**
+     * Fails unless a copy is byte for byte the same as its source, comparing the two as streams, and
+     * then deletes the copy to free its disk space.
+     *
+     * @param source the file the transfer started from
+     * @param copy   the file the transfer produced
+     * @throws IOException if either file cannot be read
+     */
+    private static void assertSameContent(Path source, Path copy) throws IOException {
+        assertEquals(Files.size(source), Files.size(copy), "Size of " + copy);
+        assertEquals(-1L, Files.mismatch(source, copy), "Offset of the first byte that differs in " + copy);
+        Files.delete(copy);
+    }
+}
@@ -0,0 +1,109 @@
+package loadgen;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The impairments an {@link ImpairmentRelay} applies to the packets it forwards: the probability of
+ * losing, duplicating or reordering a packet, and a delay with jitter added to every packet. Written
+ * as a comma separated list such as {@code loss=0.02,delay=20,jitter=5,duplicate=0.01,reorder=0.05},
+ * with probabilities between 0 and 1 and times in milliseconds; anything left out is not impaired.
+ */
+public final class Impairment {
+    /** Forwards every packet once, straight away. */
+    public static final Impairment NONE = new Impairment(0, 0, 0, 0, 0);
+
+    final double loss;
+    final long delayNanos;
+    final long jitterNanos;
+    final double duplicate;
+    final double reorder;
+
+    /**
+     * Creates a set of impairments.
+     *
+     * @param loss         the probability that a packet is dropped
+     * @param delayMillis  the delay added to every packet, in milliseconds
+     * @param jitterMillis the most the delay of a packet varies above or below the delay, in milliseconds
+     * @param duplicate    the probability that a packet is sent twice
+     * @param reorder      the probability that a packet is held back and sent after the next one
+     * @throws IllegalArgumentException if a probability is not between 0 and 1 or a time is negative
+     */
+    public Impairment(double loss, long delayMillis, long jitterMillis, double duplicate, double reorder) {
+        this.loss = probability("loss", loss);
+        this.duplicate = probability("duplicate", duplicate);
+        this.reorder = probability("reorder", reorder);
+        if (delayMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException("Delay and jitter must not be negative");
+        }
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+    }
+
+    /**
+     * Parses impairments written as a comma separated list of name=value pairs.
+     *
+     * @param spec the impairments, such as {@code loss=0.02,delay=20}; empty for none
+     * @return the impairments
+     * @throws IllegalArgumentException if a name is unknown or a value is not valid
+     */
+    public static Impairment parse(String spec) {
+        double loss = 0;
+        long delay = 0;
+        long jitter = 0;
+        double duplicate = 0;
+        double reorder = 0;
+        for (String setting : spec.split(",")) {
+            if (setting.isBlank()) {
+                continue;
+            }
+            String[] nameAndValue = setting.split("=", 2);
+            if (nameAndValue.length != 2) {
+                throw new IllegalArgumentException("Expected name=value: " + setting);
+            }
+            String value = nameAndValue[1].trim();
+            try {
+                switch (nameAndValue[0].trim()) {
+                    case "loss" -> loss = Double.parseDouble(value);
+                    case "delay" -> delay = Long.parseLong(value);
+                    case "jitter" -> jitter = Long.parseLong(value);
+                    case "duplicate" -> duplicate = Double.parseDouble(value);
+                    case "reorder" -> reorder = Double.parseDouble(value);
+                    default -> throw new IllegalArgumentException("Unknown impairment: " + nameAndValue[0]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + nameAndValue[0] + ": " + value);
+            }
+        }
+        return new Impairment(loss, delay, jitter, duplicate, reorder);
+    }
+
+    /**
+     * Returns whether packets are forwarded unchanged.
+     *
+     * @return true if nothing is impaired
+     */
+    public boolean isNone() {
+        return loss == 0 && delayNanos == 0 && jitterNanos == 0 && duplicate == 0 && reorder == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "loss=" + loss + ",delay=" + TimeUnit.NANOSECONDS.toMillis(delayNanos) + ",jitter=" + TimeUnit.NANOSECONDS.toMillis(jitterNanos)
+                + ",duplicate=" + duplicate + ",reorder=" + reorder;
+    }
+
+    /**
+     * Checks that a probability is between 0 and 1.
+     *
+     * @param name  the name of the impairment, for the error message
+     * @param value the probability
+     * @return the probability
+     * @throws IllegalArgumentException if it is out of range
+     */
+    private static double probability(String name, double value) {
+        if (!(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException(name + " must be between 0 and 1: " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,462 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * An in-process UDP relay that sits between TFTP clients and a server and impairs the packets it
+ * forwards, so lossy and congested networks can be reproduced over loopback. Clients send their
+ * requests to {@link #address()} instead of the server. Each client gets a session with two channels
+ * of its own: one towards the server, and one towards the client that stands in for the server's
+ * transfer ID (TID), so the client sees the same port changes as it would talking to the server
+ * directly. Every packet may be dropped, delayed by the configured delay plus or minus the jitter,
+ * sent twice, or held back until the next packet in the same direction overtakes it. Jitter alone
+ * also reorders packets whose delays cross, as on a real network. Multicast data does not pass
+ * through the relay.
+ *
+ * <p>The relay runs on a daemon thread of its own and is closed with {@link #close()}, so it can be
+ * started around a single test:
+ * <pre>{@code
+ * try (ImpairmentRelay relay = new ImpairmentRelay(server, Impairment.parse("loss=0.1"), 42)) {
+ *     TFTPUDPSocketClient.retrieve(relay.address().getAddress(), relay.port(), "file.bin", destination);
+ * }
+ * }</pre>
+ */
+public final class ImpairmentRelay implements AutoCloseable {
+    // How long a packet picked for reordering waits for a later packet to overtake it
+    private static final long REORDER_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("loadgen.reorderHold", 20));
+    // Sessions that have not seen a packet for this long are closed
+    private static final long SESSION_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final InetSocketAddress server;
+    private final Impairment toServer;
+    private final Impairment toClient;
+    private final Random random;
+    private final Selector selector;
+    private final DatagramChannel listener;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65536);
+    private final Map<SocketAddress, Session> sessions = new HashMap<>();
+    // Packets waiting for their delay to pass, in the order they are due
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+    private final Thread thread;
+    private volatile boolean open = true;
+    private long sequence;
+    private long nextSweep;
+
+    // Written only by the relay thread
+    private volatile long forwarded;
+    private volatile long dropped;
+    private volatile long duplicated;
+    private volatile long reordered;
+
+    /**
+     * Starts a relay that impairs packets in both directions the same way.
+     *
+     * @param server     the address the server listens for requests on
+     * @param impairment the impairments applied to every packet
+     * @param seed       the seed of the random numbers deciding which packets are impaired, so runs can be repeated
+     * @throws IOException if the relay's channels cannot be opened
+     */
+    public ImpairmentRelay(InetSocketAddress server, Impairment impairment, long seed) throws IOException {
+        this(server, impairment, impairment, seed);
+    }
+
+    /**
+     * Starts a relay that impairs packets to the server and packets to the clients separately.
+     *
+     * @param server   the address the server listens for requests on
+     * @param toServer the impairments applied to packets from the clients to the server
+     * @param toClient the impairments applied to packets from the server to the clients
+     * @param seed     the seed of the random numbers deciding which packets are impaired, so runs can be repeated
+     * @throws IOException if the relay's channels cannot be opened
+     */
+    public ImpairmentRelay(InetSocketAddress server, Impairment toServer, Impairment toClient, long seed) throws IOException {
+        this.server = server;
+        this.toServer = toServer;
+        this.toClient = toClient;
+        this.random = new Random(seed);
+        selector = Selector.open();
+        listener = DatagramChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::run, "impairment-relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the address clients send their requests to.
+     *
+     * @return the loopback address and port of the relay
+     */
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) listener.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException("Relay is closed", e);
+        }
+    }
+
+    /**
+     * Returns the port clients send their requests to.
+     *
+     * @return the port of the relay
+     */
+    public int port() {
+        return address().getPort();
+    }
+
+    /**
+     * Returns the number of packets sent on, counting both copies of a duplicated packet.
+     *
+     * @return the number of packets forwarded
+     */
+    public long forwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Returns the number of packets lost on purpose.
+     *
+     * @return the number of packets dropped
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the number of packets sent twice.
+     *
+     * @return the number of packets duplicated
+     */
+    public long duplicated() {
+        return duplicated;
+    }
+
+    /**
+     * Returns the number of packets that were overtaken by a later packet after being held back.
+     *
+     * @return the number of packets reordered
+     */
+    public long reordered() {
+        return reordered;
+    }
+
+    /**
+     * Stops the relay and closes its channels. Packets still waiting for their delay are lost.
+     */
+    @Override
+    public void close() {
+        open = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Session session : sessions.values()) {
+            session.close();
+        }
+        try {
+            listener.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Error closing relay: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return forwarded + " forwarded, " + dropped + " dropped, " + duplicated + " duplicated, " + reordered + " reordered";
+    }
+
+    /**
+     * Runs the event loop, forwarding packets as they arrive and releasing delayed packets once they are due.
+     */
+    private void run() {
+        while (open) {
+            long timeoutMillis = 1000;
+            Delayed next = delayed.peek();
+            if (next != null) {
+                long nanos = next.releaseAt - System.nanoTime();
+                timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999));
+            }
+            try {
+                selector.select(keyHandler, timeoutMillis);
+            } catch (IOException e) {
+                System.out.println("Error waiting for packets: " + e.getMessage());
+            }
+            long now = System.nanoTime();
+            while ((next = delayed.peek()) != null && next.releaseAt <= now) {
+                release(delayed.poll(), now);
+            }
+            if (now - nextSweep >= 0) {
+                closeIdleSessions(now);
+                nextSweep = now + TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+    }
+
+    /**
+     * Receives every pending packet on a readable channel and impairs it on its way.
+     *
+     * @param key the selection key of the readable channel
+     */
+    private void handleKey(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Session session = (Session) key.attachment();
+        try {
+            SocketAddress sender;
+            while ((sender = channel.receive(receiveBuffer.clear())) != null) {
+                byte[] packet = new byte[receiveBuffer.flip().remaining()];
+                receiveBuffer.get(packet);
+                if (channel == listener) {
+                    // A new request goes to the server's listening port, from a session of its own
+                    Session requester = sessions.get(sender);
+                    if (requester == null) {
+                        requester = new Session(sender);
+                        sessions.put(sender, requester);
+                    }
+                    impair(packet, requester, true, server);
+                } else if (channel == session.upstream) {
+                    // The server answers from its TID, which the rest of the client's packets go to
+                    if (!sender.equals(server)) {
+                        session.serverTid = sender;
+                    }
+                    impair(packet, session, false, session.client);
+                } else if (sender.equals(session.client)) {
+                    impair(packet, session, true, session.serverTid != null ? session.serverTid : server);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error receiving packet: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops, duplicates or delays a packet as the impairments of its direction say.
+     *
+     * @param packet   the packet
+     * @param session  the session of the client the packet is from or to
+     * @param toServer whether the packet goes to the server
+     * @param target   the address to send the packet to
+     */
+    private void impair(byte[] packet, Session session, boolean toServer, SocketAddress target) {
+        Impairment impairment = toServer ? this.toServer : this.toClient;
+        long now = System.nanoTime();
+        session.lastActive = now;
+        if (impairment.loss > 0 && random.nextDouble() < impairment.loss) {
+            dropped++;
+            return;
+        }
+        int copies = 1;
+        if (impairment.duplicate > 0 && random.nextDouble() < impairment.duplicate) {
+            copies = 2;
+            duplicated++;
+        }
+        for (int i = 0; i < copies; i++) {
+            long delay = impairment.delayNanos;
+            if (impairment.jitterNanos > 0) {
+                delay = Math.max(0, delay + (long) ((random.nextDouble() * 2 - 1) * impairment.jitterNanos));
+            }
+            boolean reorder = impairment.reorder > 0 && random.nextDouble() < impairment.reorder;
+            Delayed entry = new Delayed(packet, session, toServer, target, now + delay, sequence++, reorder);
+            if (delay == 0 && delayed.isEmpty()) {
+                release(entry, now);
+            } else {
+                delayed.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Sends a packet whose delay has passed. A packet picked for reordering is held back instead, and
+     * goes out right after the next packet in the same direction, or on its own once the hold expires.
+     *
+     * @param entry the packet
+     * @param now   the current time in nanoseconds
+     */
+    private void release(Delayed entry, long now) {
+        Session session = entry.session;
+        int direction = entry.toServer ? 0 : 1;
+        if (entry.held) {
+            // The hold expired without anything overtaking the packet
+            if (session.held[direction] == entry) {
+                session.held[direction] = null;
+                send(entry);
+            }
+            return;
+        }
+        Delayed waiting = session.held[direction];
+        if (entry.reorder && waiting == null) {
+            entry.held = true;
+            entry.releaseAt = now + REORDER_HOLD_NANOS;
+            session.held[direction] = entry;
+            delayed.add(entry);
+            return;
+        }
+        send(entry);
+        if (waiting != null) {
+            session.held[direction] = null;
+            send(waiting);
+            reordered++;
+        }
+    }
+
+    /**
+     * Sends a packet from the session's channel for its direction.
+     *
+     * @param entry the packet
+     */
+    private void send(Delayed entry) {
+        if (!entry.session.isOpen()) {
+            return;
+        }
+        DatagramChannel channel = entry.toServer ? entry.session.upstream : entry.session.downstream;
+        try {
+            channel.send(ByteBuffer.wrap(entry.packet), entry.target);
+            forwarded++;
+        } catch (IOException e) {
+            System.out.println("Error forwarding packet: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the sessions of clients that have gone quiet.
+     *
+     * @param now the current time in nanoseconds
+     */
+    private void closeIdleSessions(long now) {
+        List<Session> idle = new ArrayList<>();
+        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+            Session session = it.next();
+            if (now - session.lastActive > SESSION_IDLE_NANOS) {
+                it.remove();
+                idle.add(session);
+            }
+        }
+        for (Session session : idle) {
+            session.close();
+        }
+    }
+
+    /**
+     * The channels relaying one client's packets, opened when its first request arrives.
+     */
+    private final class Session {
+        final SocketAddress client;
+        // Sends to the server, and receives the server's replies
+        final DatagramChannel upstream;
+        // Sends to the client from a port standing in for the server's TID, and receives the client's packets
+        final DatagramChannel downstream;
+        // The port the server answers from, or null until it has answered
+        SocketAddress serverTid;
+        long lastActive;
+        // The packet held back for reordering in each direction, to the server and to the client
+        final Delayed[] held = new Delayed[2];
+
+        /**
+         * Opens the session's channels and registers them with the relay's selector.
+         *
+         * @param client the address and port of the client
+         * @throws IOException if the channels cannot be opened
+         */
+        Session(SocketAddress client) throws IOException {
+            this.client = client;
+            upstream = DatagramChannel.open();
+            downstream = DatagramChannel.open();
+            try {
+                upstream.bind(null);
+                downstream.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                upstream.configureBlocking(false);
+                downstream.configureBlocking(false);
+                upstream.register(selector, SelectionKey.OP_READ, this);
+                downstream.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns whether the session's channels are still open.
+         *
+         * @return true if packets can be sent
+         */
+        boolean isOpen() {
+            return upstream.isOpen() && downstream.isOpen();
+        }
+
+        /**
+         * Closes the session's channels.
+         */
+        void close() {
+            try {
+                upstream.close();
+                downstream.close();
+            } catch (IOException e) {
+                System.out.println("Error closing relay session: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A packet waiting to be sent, ordered by the time it is due and then by arrival.
+     */
+    private static final class Delayed implements Comparable<Delayed> {
+        final byte[] packet;
+        final Session session;
+        final boolean toServer;
+        final SocketAddress target;
+        final long sequence;
+        // Whether the packet was picked to be overtaken by the next one in its direction
+        final boolean reorder;
+        long releaseAt;
+        // Whether the packet is being held back, in which case it is due when the hold expires
+        boolean held;
+
+        /**
+         * Creates a delayed packet.
+         *
+         * @param packet    the packet
+         * @param session   the session of the client the packet is from or to
+         * @param toServer  whether the packet goes to the server
+         * @param target    the address to send the packet to
+         * @param releaseAt the time the packet is due, in nanoseconds
+         * @param sequence  the order the packet arrived in, breaking ties between packets due at the same time
+         * @param reorder   whether the packet is to be overtaken by the next one
+         */
+        Delayed(byte[] packet, Session session, boolean toServer, SocketAddress target, long releaseAt, long sequence, boolean reorder) {
+            this.packet = packet;
+            this.session = session;
+            this.toServer = toServer;
+            this.target = target;
+            this.releaseAt = releaseAt;
+            this.sequence = sequence;
+            this.reorder = reorder;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            int byTime = Long.compare(releaseAt, other.releaseAt);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
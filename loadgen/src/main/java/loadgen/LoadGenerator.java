@@ -0,0 +1,257 @@
+package loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import client.TFTPTCPSocketClient;
+import client.TFTPUDPSocketClient;
+
+/**
+ * Drives many simulated clients against a running UDP or TCP server at once, to reproduce a boot
+ * storm on one machine. Every simulated client runs the real client's transfer code on a virtual
+ * thread of its own, and all of them start together unless a ramp-up is configured. UDP clients can
+ * be sent through an {@link ImpairmentRelay} that loses, delays, duplicates and reorders packets.
+ * At the end the generator reports the throughput, the completion time percentiles of the transfers
+ * that succeeded and the reasons the others failed, and exits with status 1 if any failed.
+ *
+ * <p>The load is configured with system properties:
+ * <ul>
+ *     <li>{@code loadgen.protocol}: {@code udp} or {@code tcp}, default {@code udp}</li>
+ *     <li>{@code loadgen.host} and {@code loadgen.port}: the server, default {@code localhost:69}</li>
+ *     <li>{@code loadgen.clients}: the number of simulated clients, default 50</li>
+ *     <li>{@code loadgen.transfers}: the number of transfers each client makes one after the other, default 1</li>
+ *     <li>{@code loadgen.mode}: {@code read} to retrieve {@code loadgen.file}, or {@code write} to send files of
+ *     {@code loadgen.size} bytes, default {@code read}</li>
+ *     <li>{@code loadgen.rampUp}: the milliseconds over which the clients' starts are spread, default 0</li>
+ *     <li>{@code loadgen.impairment}: the impairments of the relay, such as {@code loss=0.02,delay=20,jitter=5};
+ *     UDP only, default none, in which case the clients talk to the server directly</li>
+ *     <li>{@code loadgen.seed}: the seed of the relay's random numbers, default 1</li>
+ * </ul>
+ * The clients' own properties, such as {@code tftp.blksize} and {@code tftp.windowsize}, apply too.
+ */
+public class LoadGenerator {
+    private static final String PROTOCOL = System.getProperty("loadgen.protocol", "udp");
+    private static final String HOST = System.getProperty("loadgen.host", "localhost");
+    private static final int PORT = Integer.getInteger("loadgen.port", 69);
+    private static final int CLIENTS = Math.max(1, Integer.getInteger("loadgen.clients", 50));
+    private static final int TRANSFERS = Math.max(1, Integer.getInteger("loadgen.transfers", 1));
+    private static final boolean WRITE = "write".equals(System.getProperty("loadgen.mode", "read"));
+    private static final String FILE = System.getProperty("loadgen.file", "loadgen.bin");
+    private static final long SIZE = Math.max(0, Long.getLong("loadgen.size", 1024 * 1024));
+    private static final long RAMP_UP_MILLIS = Math.max(0, Long.getLong("loadgen.rampUp", 0));
+    private static final Impairment IMPAIRMENT = Impairment.parse(System.getProperty("loadgen.impairment", ""));
+    private static final long SEED = Long.getLong("loadgen.seed", 1);
+
+    /**
+     * Runs the configured load and prints the report.
+     *
+     * @param args not used
+     * @throws Exception if the relay, the temporary files or the worker threads cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        boolean udp = !"tcp".equals(PROTOCOL);
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(HOST), PORT);
+        ImpairmentRelay relay = udp && !IMPAIRMENT.isNone() ? new ImpairmentRelay(server, IMPAIRMENT, SEED) : null;
+        InetSocketAddress target = relay != null ? relay.address() : server;
+        Path workDirectory = Files.createTempDirectory("loadgen");
+
+        System.out.println("Running " + CLIENTS + " " + (udp ? "UDP" : "TCP") + " clients x " + TRANSFERS + " "
+                + (WRITE ? "write of " + SIZE + " bytes" : "read of " + FILE) + " against " + HOST + ":" + PORT
+                + (relay != null ? " through a relay with " + IMPAIRMENT : ""));
+        Results results = new Results(CLIENTS * TRANSFERS);
+        // The clients report their progress on standard output, which would drown the report
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long elapsed;
+        try {
+            elapsed = runClients(udp, target, workDirectory, results);
+        } finally {
+            System.setOut(console);
+            if (relay != null) {
+                relay.close();
+            }
+            deleteRecursively(workDirectory);
+        }
+        results.print(elapsed, relay);
+        System.exit(results.failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Starts every simulated client, releases them together and waits for all of their transfers to end.
+     *
+     * @param udp           whether the clients use UDP rather than TCP
+     * @param target        the address the clients send their requests to, the server's or the relay's
+     * @param workDirectory the directory the clients keep their local files in
+     * @param results       where the transfers are recorded
+     * @return the time from the start of the first client to the end of the last transfer, in nanoseconds
+     * @throws Exception if a client's file cannot be created or the wait is interrupted
+     */
+    private static long runClients(boolean udp, InetSocketAddress target, Path workDirectory, Results results) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CLIENTS; i++) {
+                File localFile = workDirectory.resolve("client-" + i + ".bin").toFile();
+                if (WRITE) {
+                    try (RandomAccessFile file = new RandomAccessFile(localFile, "rw")) {
+                        file.setLength(SIZE);
+                    }
+                }
+                String remoteName = WRITE ? "loadgen-" + i + ".bin" : FILE;
+                long startOffset = CLIENTS > 1 ? RAMP_UP_MILLIS * i / (CLIENTS - 1) : 0;
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        Thread.sleep(startOffset);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int n = 0; n < TRANSFERS; n++) {
+                        runTransfer(udp, target, localFile, remoteName, results);
+                    }
+                });
+            }
+            long startTime = System.nanoTime();
+            start.countDown();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            return System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Runs one transfer with the real client and records how it went.
+     *
+     * @param udp        whether the client uses UDP rather than TCP
+     * @param target     the address the client sends its request to
+     * @param localFile  the file to send, or to save the retrieved file to
+     * @param remoteName the name of the file on the server
+     * @param results    where the transfer is recorded
+     */
+    private static void runTransfer(boolean udp, InetSocketAddress target, File localFile, String remoteName, Results results) {
+        long startTime = System.nanoTime();
+        try {
+            if (udp && WRITE) {
+                TFTPUDPSocketClient.send(target.getAddress(), target.getPort(), localFile, remoteName);
+            } else if (udp) {
+                TFTPUDPSocketClient.retrieve(target.getAddress(), target.getPort(), remoteName, localFile);
+            } else if (WRITE) {
+                TFTPTCPSocketClient.send(target.getHostString(), target.getPort(), localFile, remoteName);
+            } else {
+                TFTPTCPSocketClient.retrieve(target.getHostString(), target.getPort(), remoteName, localFile);
+            }
+            results.success(System.nanoTime() - startTime, localFile.length());
+        } catch (IOException | RuntimeException e) {
+            results.failure(e);
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it, ignoring files that cannot be deleted.
+     *
+     * @param directory the directory to delete
+     */
+    private static void deleteRecursively(Path directory) {
+        try (var paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            System.out.println("Error deleting " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The completion times of the successful transfers and the reasons for the failed ones, recorded by every client at once.
+     */
+    private static final class Results {
+        private final long[] durations;
+        private final AtomicLong successes = new AtomicLong();
+        private final LongAdder bytes = new LongAdder();
+        // The number of failures for each distinct error message
+        private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+        /**
+         * Creates an empty record for the given number of transfers.
+         *
+         * @param transfers the number of transfers that will be run
+         */
+        Results(int transfers) {
+            durations = new long[transfers];
+        }
+
+        /**
+         * Records a successful transfer.
+         *
+         * @param nanos the time the transfer took
+         * @param size  the number of bytes transferred
+         */
+        void success(long nanos, long size) {
+            durations[(int) successes.getAndIncrement()] = nanos;
+            bytes.add(size);
+        }
+
+        /**
+         * Records a failed transfer.
+         *
+         * @param e the error the client reported
+         */
+        void failure(Exception e) {
+            String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            failures.computeIfAbsent(reason, r -> new LongAdder()).increment();
+        }
+
+        /**
+         * Prints the report of the run.
+         *
+         * @param elapsedNanos the time the whole run took
+         * @param relay        the relay the clients went through, or null if they talked to the server directly
+         */
+        void print(long elapsedNanos, ImpairmentRelay relay) {
+            int completed = (int) successes.get();
+            long failed = failures.values().stream().mapToLong(LongAdder::sum).sum();
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf("Transfers: %d succeeded, %d failed in %.3f s%n", completed, failed, seconds);
+            System.out.printf("Throughput: %.1f transfers/s, %.2f MiB/s%n", completed / seconds, bytes.sum() / seconds / (1024 * 1024));
+            if (completed > 0) {
+                long[] sorted = Arrays.copyOf(durations, completed);
+                Arrays.sort(sorted);
+                System.out.printf("Completion time (ms): p50 %.1f, p99 %.1f, p999 %.1f, max %.1f%n",
+                        percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[completed - 1] / 1e6);
+            }
+            if (failed > 0) {
+                System.out.println("Failures:");
+                failures.forEach((reason, count) -> System.out.println("  " + count.sum() + " x " + reason));
+            }
+            if (relay != null) {
+                System.out.println("Relay: " + relay);
+            }
+        }
+
+        /**
+         * Returns a percentile of the completion times by the nearest-rank method.
+         *
+         * @param sorted     the completion times in nanoseconds, in ascending order
+         * @param percentile the percentile, between 0 and 1
+         * @return the completion time at that percentile, in milliseconds
+         */
+        private static double percentile(long[] sorted, double percentile) {
+            int rank = (int) Math.ceil(percentile * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+}
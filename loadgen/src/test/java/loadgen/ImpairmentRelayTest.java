@@ -0,0 +1,147 @@
+package loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import client.TFTPUDPSocketClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs UDP transfers between the UDP client and the UDP server, in a JVM of its own, through an
+ * {@link ImpairmentRelay} that loses, duplicates and reorders packets, and checks that the file
+ * still arrives intact and that the relay did impair the transfer in each of those ways. The seed is
+ * fixed, so the same packets are picked for impairment on every run.
+ */
+class ImpairmentRelayTest {
+    // Enough blocks that every impairment hits some packets at these rates
+    private static final int FILE_SIZE = 1024 * 1024 + 123;
+    private static final Impairment IMPAIRMENT = new Impairment(0.05, 0, 0, 0.05, 0.05);
+    private static final long SEED = 42;
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    @TempDir
+    static Path directory;
+
+    private static byte[] file;
+    private static Process server;
+    private static InetSocketAddress serverAddress;
+
+    /**
+     * Writes the file to serve and starts the UDP server in the temporary directory, on a free port.
+     *
+     * @throws Exception if the server does not start listening in time
+     */
+    @BeforeAll
+    static void startServer() throws Exception {
+        file = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(file);
+        Files.write(Files.createDirectories(directory.resolve("src/Retrieve Files")).resolve("impaired.bin"), file);
+        Files.createDirectories(directory.resolve("src/Received Files"));
+
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        String classPath = classesOf("server.TFTPUDPSocketServer") + File.pathSeparator + classesOf("protocol.Tftp");
+        server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath, "server.TFTPUDPSocketServer")
+                .directory(directory.toFile()).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+        // The server asks for its port on standard input
+        try (OutputStream in = server.getOutputStream()) {
+            in.write((port + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT;
+        while (!isBound(port)) {
+            assertTrue(server.isAlive() && System.nanoTime() < deadline, "The server did not start listening on port " + port);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Stops the server.
+     *
+     * @throws InterruptedException if interrupted while waiting for it to exit
+     */
+    @AfterAll
+    static void stopServer() throws InterruptedException {
+        server.destroy();
+        server.waitFor(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void downloadArrivesIntactThroughLossDuplicationAndReordering() throws IOException {
+        File copy = directory.resolve("download.bin").toFile();
+        try (ImpairmentRelay relay = new ImpairmentRelay(serverAddress, IMPAIRMENT, SEED)) {
+            TFTPUDPSocketClient.retrieve(relay.address().getAddress(), relay.port(), "impaired.bin", copy);
+            assertImpaired(relay);
+        }
+        assertArrayEquals(file, Files.readAllBytes(copy.toPath()));
+    }
+
+    @Test
+    void uploadArrivesIntactThroughLossDuplicationAndReordering() throws IOException {
+        File source = Files.write(directory.resolve("upload-source.bin"), file).toFile();
+        try (ImpairmentRelay relay = new ImpairmentRelay(serverAddress, IMPAIRMENT, SEED)) {
+            TFTPUDPSocketClient.send(relay.address().getAddress(), relay.port(), source, "upload.bin");
+            assertImpaired(relay);
+        }
+        assertArrayEquals(file, Files.readAllBytes(directory.resolve("src/Received Files/upload.bin")));
+    }
+
+    /**
+     * Fails unless the relay dropped, duplicated and reordered packets of the transfer.
+     *
+     * @param relay the relay the transfer went through
+     */
+    private static void assertImpaired(ImpairmentRelay relay) {
+        System.out.println("Relay: " + relay);
+        assertTrue(relay.dropped() > 0, "No packets dropped: " + relay);
+        assertTrue(relay.duplicated() > 0, "No packets duplicated: " + relay);
+        assertTrue(relay.reordered() > 0, "No packets reordered: " + relay);
+    }
+
+    /**
+     * Returns where a class on the test class path was loaded from, without initializing it.
+     *
+     * @param className the name of the class
+     * @return the directory or jar holding the class
+     * @throws Exception if the class cannot be found
+     */
+    private static String classesOf(String className) throws Exception {
+        Class<?> type = Class.forName(className, false, ImpairmentRelayTest.class.getClassLoader());
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    /**
+     * Returns whether a UDP port is taken, by trying to bind it.
+     *
+     * @param port the port
+     * @return true if something is bound to the port
+     */
+    private static boolean isBound(int port) {
+        try {
+            new DatagramSocket(port).close();
+            return false;
+        } catch (SocketException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package protocol;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the CRC32C checksums of recently sent files, so a file read again and again with the checksum
+ * option is checksummed once rather than once per reader. Entries are keyed by the file's path and
+ * remembered with its modification time and size, so a file that changes is checksummed again. A
+ * transfer sending an uncached file whole works the checksum out from the blocks as it sends them,
+ * and adds it once the last block is out. The least recently used entries are dropped to keep the
+ * cache within its capacity. Both servers keep one for the {@link Checksums checksum option}.
+ */
+public class ChecksumCache {
+    /**
+     * The checksum of a file as it was when it was worked out.
+     */
+    private static final class Entry {
+        private final FileTime lastModified;
+        private final long size;
+        private final long checksum;
+
+        /**
+         * Creates an entry.
+         *
+         * @param attributes the attributes of the file that was checksummed
+         * @param checksum   the checksum
+         */
+        private Entry(BasicFileAttributes attributes, long checksum) {
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.checksum = checksum;
+        }
+
+        /**
+         * Returns whether the entry was made from the file as it is now.
+         *
+         * @param attributes the current attributes of the file
+         * @return true if the file has not been modified since
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime());
+        }
+    }
+
+    // In order of use, the least recently used first
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int capacity;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity the most files the cache holds checksums of, or 0 to cache nothing
+     */
+    public ChecksumCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the checksum of a file, if it is cached for the file as it is now.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @return the checksum, or -1 if it is not cached
+     */
+    public synchronized long get(Path path, BasicFileAttributes attributes) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.matches(attributes) ? entry.checksum : -1;
+    }
+
+    /**
+     * Adds the checksum of a file, dropping the least recently used entry if the cache is full.
+     *
+     * @param path       the path of the file
+     * @param attributes the attributes of the file that was checksummed
+     * @param checksum   the checksum
+     */
+    public synchronized void put(Path path, BasicFileAttributes attributes, long checksum) {
+        if (capacity == 0) {
+            return;
+        }
+        entries.put(path, new Entry(attributes, checksum));
+        if (entries.size() > capacity) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+}
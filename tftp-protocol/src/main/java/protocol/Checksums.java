@@ -0,0 +1,66 @@
+package protocol;
+
+import static protocol.Tftp.OP_OACK;
+
+/**
+ * The checksum option, with which a client asks for the data of a transfer to be checked end to end.
+ * The only algorithm offered is CRC32C, named {@code crc32c}. Both sides add each block to the
+ * checksum as it passes through their send or receive loop, so the file is never read twice. Once
+ * the final DATA block is sent, the sender sends the trailer: an OACK packet holding the checksum
+ * option alone, whose value is the sender's checksum as 8 hexadecimal digits. The receiver compares
+ * it with its own before acknowledging the final block, and sends an ERROR packet instead if they
+ * differ. The trailer has a fixed size, so a receiver reading a stream can hold it back from the data.
+ */
+public final class Checksums {
+    public static final String OPTION = "checksum";
+    public static final String CRC32C = "crc32c";
+    // The OACK opcode, the option name, 8 hexadecimal digits, and the empty name ending the options
+    public static final int TRAILER_SIZE = 2 + OPTION.length() + 1 + 8 + 1 + 1;
+
+    private Checksums() {
+    }
+
+    /**
+     * Returns whether the value of a checksum option names an algorithm this implementation offers.
+     *
+     * @param value the value of the option, or null if it was not sent
+     * @return true if the value is crc32c, in any case
+     */
+    public static boolean isSupported(String value) {
+        return value != null && CRC32C.equalsIgnoreCase(value.trim());
+    }
+
+    /**
+     * Writes the trailer carrying a checksum.
+     *
+     * @param value the checksum
+     * @return the trailer packet, {@link #TRAILER_SIZE} bytes long
+     */
+    public static byte[] trailer(long value) {
+        byte[] trailer = new byte[TRAILER_SIZE];
+        new PacketWriter().wrap(trailer).oack().option(OPTION, String.format("%08x", value & 0xFFFFFFFFL)).endOptions().finish();
+        return trailer;
+    }
+
+    /**
+     * Reads the checksum out of a trailer.
+     *
+     * @param packet the received packet
+     * @return the checksum, or -1 if the packet is not a trailer
+     */
+    public static long valueOf(PacketReader packet) {
+        if (packet.length() < 2 || packet.opcode() != OP_OACK) {
+            return -1;
+        }
+        while (packet.nextOption()) {
+            if (packet.optionIs(OPTION)) {
+                try {
+                    return Long.parseUnsignedLong(packet.optionValue().trim(), 16) & 0xFFFFFFFFL;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
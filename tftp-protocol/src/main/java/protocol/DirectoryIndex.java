@@ -0,0 +1,154 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory index of the files in the directory a server sends files from, mapping each name to
+ * the file's attributes: its size, modification time and file key (the inode on Unix). Requests are
+ * resolved against the index, so looking up a file, answering a {@code tsize} option and refusing a
+ * missing file take no system calls however many files the directory holds. The index is built with
+ * one scan of the directory and kept current by a {@link WatchService}, whose events a background
+ * thread applies as they arrive; when the watch service drops events, the directory is scanned
+ * again. A change made outside the server shows up once its event has been applied. If the
+ * directory cannot be watched, every lookup reads the file's attributes from disk instead. Lookups
+ * may come from any thread.
+ */
+public class DirectoryIndex {
+    private final Path directory;
+    private final Map<String, BasicFileAttributes> files = new ConcurrentHashMap<>();
+    // Whether the index is kept current, as opposed to lookups going to disk
+    private volatile boolean watching;
+
+    /**
+     * Indexes a directory and starts the thread that keeps the index current.
+     *
+     * @param directory the directory to index
+     * @param enabled   whether to keep an index at all, rather than look every file up on disk
+     */
+    public DirectoryIndex(Path directory, boolean enabled) {
+        this.directory = directory;
+        if (!enabled) {
+            return;
+        }
+        WatchService watchService;
+        try {
+            // Watch before scanning, so nothing that changes during the scan is missed
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            scan();
+        } catch (IOException e) {
+            System.out.println("Files in " + directory + " will be looked up on disk: " + e.getMessage());
+            return;
+        }
+        watching = true;
+        Thread watcher = new Thread(() -> watch(watchService), "directory-index");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Returns the attributes of a regular file in the directory.
+     *
+     * @param name the name of the file, without any path
+     * @return the attributes, or null if the directory holds no regular file of that name
+     */
+    public BasicFileAttributes lookup(String name) {
+        if (watching) {
+            return files.get(name);
+        }
+        return readAttributes(directory.resolve(name));
+    }
+
+    /**
+     * Applies the watch service's events to the index until the directory can no longer be watched,
+     * for example because it was deleted, after which lookups go to disk.
+     *
+     * @param watchService the watch service the directory is registered with
+     */
+    private void watch(WatchService watchService) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so the whole directory is read again
+                        scan();
+                    } else {
+                        update((Path) event.context());
+                    }
+                }
+                if (!key.reset()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | IOException e) {
+            System.out.println("Stopped watching " + directory + ": " + e.getMessage());
+        }
+        watching = false;
+        files.clear();
+    }
+
+    /**
+     * Reads the whole directory into the index, dropping the entries of files no longer in it.
+     *
+     * @throws IOException if the directory cannot be read
+     */
+    private void scan() throws IOException {
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                names.add(name);
+                update(entry.getFileName());
+            }
+        }
+        files.keySet().retainAll(names);
+    }
+
+    /**
+     * Brings the entry of one file up to date with the file on disk.
+     *
+     * @param name the name of the file, relative to the directory
+     */
+    private void update(Path name) {
+        BasicFileAttributes attributes = readAttributes(directory.resolve(name));
+        if (attributes != null) {
+            files.put(name.toString(), attributes);
+        } else {
+            files.remove(name.toString());
+        }
+    }
+
+    /**
+     * Reads the attributes of a file from disk.
+     *
+     * @param path the path of the file
+     * @return the attributes, or null if the path is missing or is not a regular file
+     */
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Error reading attributes of " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
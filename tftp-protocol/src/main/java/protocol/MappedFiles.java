@@ -0,0 +1,178 @@
+package protocol;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped views of large files, shared by every transfer reading the same file at the same
+ * time. A mapping is reference counted: the first reader maps the file, later readers of the
+ * unchanged file reuse the mapping, and the last reader to finish unmaps it straight away instead of
+ * leaving the address space to the garbage collector. A reader that finds the file changed since it
+ * was mapped gets a fresh mapping, and the old one is unmapped once its own readers finish. Used by
+ * both servers.
+ */
+public class MappedFiles {
+    // FileChannel.map is limited to regions of up to 2 GB, so larger files are mapped in pieces
+    private static final long REGION_SIZE = 1L << 30;
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    /**
+     * A file mapped into memory, read by one or more transfers.
+     */
+    public static final class Mapping {
+        private final Path path;
+        private final FileTime lastModified;
+        private final MappedByteBuffer[] regions;
+        public final long size;
+        private int readers;
+
+        /**
+         * Creates a mapping around the mapped regions of a file.
+         *
+         * @param path         the path of the file
+         * @param lastModified the modification time of the file when it was mapped
+         * @param size         the size of the file in bytes
+         * @param regions      the mapped regions, each {@link #REGION_SIZE} bytes apart from the next
+         */
+        private Mapping(Path path, FileTime lastModified, long size, MappedByteBuffer[] regions) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.regions = regions;
+        }
+
+        /**
+         * Copies bytes of the file into a buffer, from memory rather than with a read call. Must only
+         * be called between {@link #acquire} and the matching {@link #release}: once the last reader
+         * has released the mapping, its memory is gone.
+         *
+         * @param position    the offset in the file of the first byte to copy
+         * @param destination the buffer to copy into, filled from its position up to its limit or the end of the file
+         * @return the number of bytes copied, 0 at the end of the file
+         */
+        public int read(long position, ByteBuffer destination) {
+            int copied = 0;
+            while (destination.hasRemaining() && position < size) {
+                // A view of its own, so readers on other threads never see the region's position move
+                ByteBuffer region = regions[(int) (position / REGION_SIZE)].duplicate();
+                int offset = (int) (position % REGION_SIZE);
+                int length = (int) Math.min(destination.remaining(), region.capacity() - offset);
+                region.position(offset).limit(offset + length);
+                destination.put(region);
+                position += length;
+                copied += length;
+            }
+            return copied;
+        }
+    }
+
+    private final Map<Path, Mapping> mappings = new HashMap<>();
+
+    /**
+     * Returns a mapping of a file for a new reader, mapping the file if no current mapping of it exists.
+     * Every call must be matched by a call to {@link #release}.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @return the mapping
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    public synchronized Mapping acquire(Path path, BasicFileAttributes attributes) throws IOException {
+        Mapping mapping = mappings.get(path);
+        if (mapping == null || mapping.size != attributes.size() || !mapping.lastModified.equals(attributes.lastModifiedTime())) {
+            // The file is not mapped yet or changed since it was mapped; readers of an old mapping keep it until they finish
+            mapping = map(path, attributes);
+            mappings.put(path, mapping);
+        }
+        mapping.readers++;
+        return mapping;
+    }
+
+    /**
+     * Releases a reader's hold on a mapping, unmapping the file when the last reader finishes.
+     *
+     * @param mapping the mapping returned by {@link #acquire}, which this reader must not read afterwards
+     */
+    public synchronized void release(Mapping mapping) {
+        if (--mapping.readers > 0) {
+            return;
+        }
+        if (mappings.get(mapping.path) == mapping) {
+            mappings.remove(mapping.path);
+        }
+        for (MappedByteBuffer region : mapping.regions) {
+            unmap(region);
+        }
+    }
+
+    /**
+     * Maps a whole file read-only.
+     *
+     * @param path       the path of the file
+     * @param attributes the current attributes of the file
+     * @return the new mapping, with no readers yet
+     * @throws IOException if the file cannot be mapped
+     */
+    private static Mapping map(Path path, BasicFileAttributes attributes) throws IOException {
+        long size = attributes.size();
+        MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+        // The mapping stays valid after the channel is closed
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < regions.length; i++) {
+                long position = i * REGION_SIZE;
+                regions[i] = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+            }
+        }
+        return new Mapping(path, attributes.lastModifiedTime(), size, regions);
+    }
+
+    /**
+     * Unmaps a region right away. Without access to {@code sun.misc.Unsafe.invokeCleaner} the region
+     * is left for the garbage collector to unmap.
+     *
+     * @param region the region to unmap, which must not be used afterwards
+     */
+    private static void unmap(MappedByteBuffer region) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) region);
+        } catch (Throwable e) {
+            System.out.println("Failed to unmap a mapped file, leaving it to the garbage collector: " + e);
+        }
+    }
+
+    /**
+     * Looks up {@code sun.misc.Unsafe.invokeCleaner}, which unmaps a mapped buffer straight away. It
+     * is looked up by name rather than compiled against, so the build does not warn about using an
+     * internal API, and the servers still run where the jdk.unsupported module is missing.
+     *
+     * @return the method bound to the Unsafe instance, or null if it is not accessible
+     */
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Mapped files will be unmapped by the garbage collector: " + e);
+            return null;
+        }
+    }
+}
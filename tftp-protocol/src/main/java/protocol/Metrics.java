@@ -0,0 +1,390 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A server's metrics: counters, gauges and histograms that the transfer code records into on its
+ * hot path, and that {@link MetricsEndpoint} publishes over JMX and as Prometheus text. The UDP and
+ * TCP servers keep the same set, so they are monitored alike. Recording never takes a lock: counters
+ * and histogram buckets are {@link LongAdder}s, which spread contended updates over several cells,
+ * and histogram buckets are fixed up front so a sample is one search through a short array and one
+ * increment.
+ */
+public class Metrics {
+    /** The request types transfers and errors are counted by. */
+    public static final String[] REQUESTS = {"RRQ", "WRQ"};
+    public static final int RRQ = 0;
+    public static final int WRQ = 1;
+    /** The capacity limits requests are refused by. */
+    public static final String[] LIMITS = {"transfers", "memory", "files"};
+    public static final int LIMIT_TRANSFERS = 0;
+    public static final int LIMIT_MEMORY = 1;
+    public static final int LIMIT_FILES = 2;
+
+    private final List<Metric> metrics = new ArrayList<>();
+
+    public final Gauge activeTransfers = add(new Gauge("tftp_active_transfers", "Transfers in progress."));
+    public final LabeledCounter transfersStarted = add(new LabeledCounter("tftp_transfers_started_total", "Transfers started, by request type.", "request", REQUESTS));
+    public final LabeledCounter transfersFailed = add(new LabeledCounter("tftp_transfers_failed_total", "Transfers that ended in an error, by request type.", "request", REQUESTS));
+    public final Counter bytesSent = add(new Counter("tftp_bytes_sent_total", "File bytes sent to clients, including retransmissions."));
+    public final Counter bytesReceived = add(new Counter("tftp_bytes_received_total", "File bytes received from clients."));
+    public final Counter blocksSent = add(new Counter("tftp_blocks_sent_total", "DATA blocks sent, including retransmissions."));
+    public final Counter blocksReceived = add(new Counter("tftp_blocks_received_total", "DATA blocks received and accepted."));
+    public final Counter sharedReadHits = add(new Counter("tftp_shared_read_hits_total", "DATA blocks sent from a block a transfer of the same file already read, without reading the file again."));
+    public final Counter retransmits = add(new Counter("tftp_retransmits_total", "Retransmission timeouts that resent a packet."));
+    public final Counter duplicatePackets = add(new Counter("tftp_duplicate_packets_total", "Packets ignored as repeats of packets already handled."));
+    public final Counter outOfOrderPackets = add(new Counter("tftp_out_of_order_packets_total", "Packets ignored for being ahead of the expected block."));
+    public final Counter strayPackets = add(new Counter("tftp_stray_packets_total", "Packets received on a transfer port from an unknown transfer ID."));
+    public final LabeledCounter errorsSent = add(new LabeledCounter("tftp_errors_sent_total", "ERROR packets sent to clients, by request type.", "request", REQUESTS));
+    public final LabeledCounter errorsReceived = add(new LabeledCounter("tftp_errors_received_total", "ERROR packets received from clients, by request type.", "request", REQUESTS));
+    public final LabeledCounter rejectedRequests = add(new LabeledCounter("tftp_rejected_requests_total", "Requests refused as busy, by the capacity limit that was reached.", "limit", LIMITS));
+    public final Gauge queuedRequests = add(new Gauge("tftp_queued_requests", "Requests waiting for capacity to be admitted."));
+    public final Counter invalidRequests = add(new Counter("tftp_invalid_requests_total", "Requests with an opcode other than RRQ or WRQ."));
+    public final Histogram blockRtt = add(new Histogram("tftp_block_rtt_seconds", "Round-trip time from sending a packet to its answer."));
+    public final Histogram transferDuration = add(new Histogram("tftp_transfer_duration_seconds", "Time from a request to the end of its transfer."));
+    public final Histogram diskRead = add(new Histogram("tftp_disk_read_seconds", "Time to read one block from disk or a mapping."));
+    public final Histogram diskWrite = add(new Histogram("tftp_disk_write_seconds", "Time to write one chunk of an upload."));
+    public final Histogram diskSync = add(new Histogram("tftp_disk_sync_seconds", "Time to fsync one upload."));
+    public final Histogram pacingDelay = add(new Histogram("tftp_pacing_delay_seconds", "Time DATA waited for the bandwidth scheduler before being sent."));
+
+    /**
+     * Registers a metric so it is published.
+     *
+     * @param metric the metric
+     * @param <M>    the type of the metric
+     * @return the metric
+     */
+    private <M extends Metric> M add(M metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Returns every registered metric, in the order it was registered.
+     *
+     * @return the metrics
+     */
+    List<Metric> all() {
+        return metrics;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     *
+     * @return the metrics as text
+     */
+    String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : metrics) {
+            text.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            text.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.appendPrometheus(text);
+        }
+        return text.toString();
+    }
+
+    /**
+     * A named metric with a line of help text.
+     */
+    public abstract static class Metric {
+        final String name;
+        final String help;
+
+        /**
+         * Creates a metric.
+         *
+         * @param name the metric name, in Prometheus style
+         * @param help what the metric measures
+         */
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Returns the Prometheus type of the metric.
+         *
+         * @return counter, gauge or histogram
+         */
+        abstract String type();
+
+        /**
+         * Appends the metric's samples in the Prometheus text format.
+         *
+         * @param text the text to append to
+         */
+        abstract void appendPrometheus(StringBuilder text);
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        /**
+         * Creates a counter.
+         *
+         * @param name the metric name
+         * @param help what the counter counts
+         */
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * Adds one to the counter.
+         */
+        public void increment() {
+            value.increment();
+        }
+
+        /**
+         * Adds to the counter.
+         *
+         * @param amount the amount to add
+         */
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * Returns the current count.
+         *
+         * @return the count
+         */
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder text) {
+            text.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * A value that goes up and down.
+     */
+    public static class Gauge extends Counter {
+        /**
+         * Creates a gauge.
+         *
+         * @param name the metric name
+         * @param help what the gauge measures
+         */
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * Subtracts one from the gauge.
+         */
+        public void decrement() {
+            add(-1);
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+    }
+
+    /**
+     * A set of counters told apart by the value of one label, fixed when the counter is created.
+     */
+    public static class LabeledCounter extends Metric {
+        private final String label;
+        private final String[] values;
+        private final LongAdder[] counts;
+
+        /**
+         * Creates a labeled counter.
+         *
+         * @param name   the metric name
+         * @param help   what the counter counts
+         * @param label  the name of the label
+         * @param values the values the label can take
+         */
+        LabeledCounter(String name, String help, String label, String[] values) {
+            super(name, help);
+            this.label = label;
+            this.values = values;
+            this.counts = new LongAdder[values.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Adds one to the counter for a label value.
+         *
+         * @param index the index of the label value
+         */
+        public void increment(int index) {
+            counts[index].increment();
+        }
+
+        /**
+         * Returns the count for a label value.
+         *
+         * @param index the index of the label value
+         * @return the count
+         */
+        public long get(int index) {
+            return counts[index].sum();
+        }
+
+        /**
+         * Returns the values the label can take.
+         *
+         * @return the label values
+         */
+        String[] values() {
+            return values;
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder text) {
+            for (int i = 0; i < values.length; i++) {
+                text.append(name).append('{').append(label).append("=\"").append(values[i]).append("\"} ").append(get(i)).append('\n');
+            }
+        }
+    }
+
+    /**
+     * A distribution of durations over fixed buckets, growing by a factor of two from 10 microseconds
+     * to about 84 seconds, recorded in nanoseconds and published in seconds.
+     */
+    public static class Histogram extends Metric {
+        private static final long[] BOUNDS = new long[24];
+
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUNDS[i] = TimeUnit.MICROSECONDS.toNanos(10) << i;
+            }
+        }
+
+        // One bucket per bound, plus one for samples above the largest bound
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Creates a histogram.
+         *
+         * @param name the metric name
+         * @param help what the histogram measures
+         */
+        Histogram(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos the duration in nanoseconds
+         */
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Records the time since a start time taken from {@link System#nanoTime()}.
+         *
+         * @param startNanos the start time
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Returns the number of recorded durations.
+         *
+         * @return the count
+         */
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Returns the sum of the recorded durations in seconds.
+         *
+         * @return the sum
+         */
+        double sumSeconds() {
+            return sum.sum() / 1e9;
+        }
+
+        /**
+         * Estimates a quantile as the upper bound of the bucket it falls in.
+         *
+         * @param quantile the quantile, between 0 and 1
+         * @return the estimate in seconds, or 0 if nothing was recorded
+         */
+        double quantileSeconds(double quantile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BOUNDS[i] / 1e9;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder text) {
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += buckets[i].sum();
+                text.append(name).append("_bucket{le=\"").append(String.format(Locale.ROOT, "%.6f", BOUNDS[i] / 1e9))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BOUNDS.length].sum();
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            text.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", sumSeconds())).append('\n');
+            text.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
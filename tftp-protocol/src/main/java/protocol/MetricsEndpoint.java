@@ -0,0 +1,183 @@
+package protocol;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the server's {@link Metrics}: as a JMX MBean, where each counter, gauge and histogram
+ * summary is a read-only attribute, and optionally as Prometheus text at /metrics on a localhost HTTP
+ * port. Both read the metrics only when asked, so publishing costs nothing while nobody looks.
+ */
+public class MetricsEndpoint implements DynamicMBean {
+    private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+    private final String description;
+
+    /**
+     * Creates the MBean view of the metrics.
+     *
+     * @param metrics     the metrics to publish
+     * @param description what the metrics belong to, shown by JMX clients
+     */
+    private MetricsEndpoint(Metrics metrics, String description) {
+        this.description = description;
+        for (Metrics.Metric metric : metrics.all()) {
+            if (metric instanceof Metrics.Counter) {
+                Metrics.Counter counter = (Metrics.Counter) metric;
+                attributes.put(metric.name, counter::get);
+            } else if (metric instanceof Metrics.LabeledCounter) {
+                Metrics.LabeledCounter counter = (Metrics.LabeledCounter) metric;
+                String[] values = counter.values();
+                for (int i = 0; i < values.length; i++) {
+                    int index = i;
+                    attributes.put(metric.name + "_" + values[i], () -> counter.get(index));
+                }
+            } else if (metric instanceof Metrics.Histogram) {
+                Metrics.Histogram histogram = (Metrics.Histogram) metric;
+                attributes.put(metric.name + "_count", histogram::count);
+                attributes.put(metric.name + "_sum", histogram::sumSeconds);
+                attributes.put(metric.name + "_p50", () -> histogram.quantileSeconds(0.5));
+                attributes.put(metric.name + "_p99", () -> histogram.quantileSeconds(0.99));
+                attributes.put(metric.name + "_p999", () -> histogram.quantileSeconds(0.999));
+            }
+        }
+        // Prometheus works rates out from the counters itself, JMX clients get them ready-made
+        attributes.put("tftp_bytes_sent_per_second", new Rate(metrics.bytesSent::get)::perSecond);
+        attributes.put("tftp_bytes_received_per_second", new Rate(metrics.bytesReceived::get)::perSecond);
+    }
+
+    /**
+     * Registers the metrics as an MBean named tftp:type=Metrics,server=<name>, and serves them at
+     * http://localhost:<port>/metrics unless the port is 0.
+     *
+     * @param metrics the metrics to publish
+     * @param name    the name of the server, such as udp
+     * @param port    the localhost port to serve Prometheus text on, or 0 for none
+     * @throws IOException if the HTTP port cannot be bound
+     */
+    public static void start(Metrics metrics, String name, int port) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsEndpoint(metrics, "TFTP " + name + " server metrics"),
+                    new ObjectName("tftp:type=Metrics,server=" + name));
+        } catch (Exception e) {
+            System.out.println("Error registering metrics with JMX: " + e.getMessage());
+        }
+        if (port == 0) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics available at http://" + server.getAddress().getHostString() + ":" + port + "/metrics");
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Object> value = attributes.get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.get();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Supplier<Object> value = attributes.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value.get()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList list) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, Supplier<Object>> attribute : attributes.entrySet()) {
+            String type = attribute.getValue().get() instanceof Long ? "long" : "double";
+            infos.add(new MBeanAttributeInfo(attribute.getKey(), type, attribute.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), description, infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    /**
+     * The rate at which a counter grows, measured over the time since it was last measured, but no
+     * more often than once a second so frequent readers see a steady value.
+     */
+    private static final class Rate {
+        private final LongSupplier counter;
+        private long lastTime = System.nanoTime();
+        private long lastValue;
+        private double perSecond;
+
+        /**
+         * Creates a rate for a counter.
+         *
+         * @param counter reads the counter
+         */
+        Rate(LongSupplier counter) {
+            this.counter = counter;
+            this.lastValue = counter.getAsLong();
+        }
+
+        /**
+         * Returns the rate, measuring it again when a second has passed.
+         *
+         * @return the increase of the counter per second
+         */
+        synchronized Object perSecond() {
+            long now = System.nanoTime();
+            long elapsed = now - lastTime;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                long value = counter.getAsLong();
+                perSecond = (value - lastValue) * 1e9 / elapsed;
+                lastValue = value;
+                lastTime = now;
+            }
+            return perSecond;
+        }
+    }
+}
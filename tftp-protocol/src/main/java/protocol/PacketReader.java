@@ -0,0 +1,322 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static protocol.Tftp.OP_OACK;
+
+/**
+ * A flyweight view of a received packet. It is pointed at a packet with {@link #wrap} and reads the
+ * fields straight out of the buffer, so one reader serves every packet of a transfer without copying
+ * or allocating. The strings of a request or OACK are only located, and turned into {@code String}s
+ * when asked for; option names are compared and option values parsed in place. Reading fields does
+ * not move the buffer's position.
+ */
+public final class PacketReader {
+    private ByteBuffer buffer;
+    // The packet lies between these indexes of the buffer
+    private int start;
+    private int end;
+    // The array last wrapped by wrap(byte[], int), and the buffer kept over it
+    private byte[] wrappedArray;
+    private ByteBuffer arrayBuffer;
+    // Where the file name and mode of a request end, located on first use, or -1
+    private int fileNameEnd;
+    private int modeEnd;
+    // The option the cursor is on, and where the next one starts, or -1 before the first
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+    private int nextOption;
+
+    /**
+     * Points the reader at the packet between a buffer's position and limit.
+     *
+     * @param packet the buffer holding the packet
+     * @return this reader
+     */
+    public PacketReader wrap(ByteBuffer packet) {
+        buffer = packet;
+        start = packet.position();
+        end = packet.limit();
+        fileNameEnd = -1;
+        nextOption = -1;
+        return this;
+    }
+
+    /**
+     * Points the reader at a packet at the start of an array. Wrapping the same array again, as a
+     * transfer does for every packet it receives, reuses the buffer over it.
+     *
+     * @param packet the array holding the packet
+     * @param length the length of the packet
+     * @return this reader
+     */
+    public PacketReader wrap(byte[] packet, int length) {
+        if (packet != wrappedArray) {
+            wrappedArray = packet;
+            arrayBuffer = ByteBuffer.wrap(packet);
+        }
+        arrayBuffer.clear().limit(length);
+        return wrap(arrayBuffer);
+    }
+
+    /**
+     * Returns the length of the packet.
+     *
+     * @return the length in bytes
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * Returns the opcode of the packet.
+     *
+     * @return the opcode, or -1 if the packet is too short to hold one
+     */
+    public int opcode() {
+        return end - start < 2 ? -1 : buffer.getShort(start) & 0xFFFF;
+    }
+
+    /**
+     * Returns the block number of a DATA or ACK packet, which is the error code of an ERROR packet.
+     *
+     * @return the block number, between 0 and 65535, or -1 if the packet is too short to hold one
+     */
+    public int block() {
+        return end - start < 4 ? -1 : buffer.getShort(start + 2) & 0xFFFF;
+    }
+
+    /**
+     * Returns the error code of an ERROR packet.
+     *
+     * @return the error code, or -1 if the packet is too short to hold one
+     */
+    public int errorCode() {
+        return block();
+    }
+
+    /**
+     * Returns the message of an ERROR packet.
+     *
+     * @return the message, empty if the packet has none
+     */
+    public String errorMessage() {
+        int messageStart = Math.min(start + 4, end);
+        return string(messageStart, terminator(messageStart));
+    }
+
+    /**
+     * Returns the index in the buffer of the data of a DATA packet.
+     *
+     * @return the index just past the opcode and block number
+     */
+    public int dataOffset() {
+        return start + Tftp.HEADER_SIZE;
+    }
+
+    /**
+     * Returns the length of the data of a DATA packet.
+     *
+     * @return the number of data bytes, 0 for an empty block
+     */
+    public int dataLength() {
+        return Math.max(end - start - Tftp.HEADER_SIZE, 0);
+    }
+
+    /**
+     * Returns the file name of a read or write request as it was sent.
+     *
+     * @return the file name
+     */
+    public String fileName() {
+        locateRequest();
+        return string(start + 2, fileNameEnd);
+    }
+
+    /**
+     * Returns the file name of a read or write request without any directory in front of it, so a
+     * client cannot reach outside the directory the server serves.
+     *
+     * @return the last component of the file name
+     */
+    public String baseName() {
+        locateRequest();
+        int nameStart = fileNameEnd;
+        while (nameStart > start + 2 && buffer.get(nameStart - 1) != '/' && buffer.get(nameStart - 1) != '\\') {
+            nameStart--;
+        }
+        return string(nameStart, fileNameEnd);
+    }
+
+    /**
+     * Returns the transfer mode of a read or write request.
+     *
+     * @return the mode as it was sent, empty if the request has none
+     */
+    public String mode() {
+        locateRequest();
+        return string(Math.min(fileNameEnd + 1, end), modeEnd);
+    }
+
+    /**
+     * Moves to the next option of a read or write request or an OACK packet. Options are name/value
+     * pairs of null terminated strings (RFC 2347); an empty name, as written by
+     * {@link PacketWriter#endOptions()}, or a name without a value ends the list.
+     *
+     * @return true if there is another option, false once every option has been read
+     */
+    public boolean nextOption() {
+        if (nextOption == -1) {
+            if (opcode() == OP_OACK) {
+                nextOption = Math.min(start + 2, end);
+            } else {
+                locateRequest();
+                nextOption = Math.min(modeEnd + 1, end);
+            }
+        }
+        nameStart = nextOption;
+        nameEnd = terminator(nameStart);
+        if (nameEnd == nameStart || nameEnd + 1 >= end) {
+            nextOption = end;
+            return false;
+        }
+        valueStart = nameEnd + 1;
+        valueEnd = terminator(valueStart);
+        nextOption = Math.min(valueEnd + 1, end);
+        return true;
+    }
+
+    /**
+     * Returns whether the current option has the given name. Option names are case-insensitive.
+     *
+     * @param name the name in lower case
+     * @return true if the option has the name
+     */
+    public boolean optionIs(String name) {
+        if (nameEnd - nameStart != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int c = buffer.get(nameStart + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of the current option.
+     *
+     * @return the name in lower case
+     */
+    public String optionName() {
+        return string(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the value of the current option.
+     *
+     * @return the value as it was sent
+     */
+    public String optionValue() {
+        return string(valueStart, valueEnd);
+    }
+
+    /**
+     * Parses the value of the current option as a decimal number, ignoring spaces around it.
+     *
+     * @return the value, or -1 if it is not a non-negative number that fits in a long
+     */
+    public long optionValueAsLong() {
+        int from = valueStart;
+        int to = valueEnd;
+        while (from < to && buffer.get(from) == ' ') {
+            from++;
+        }
+        while (to > from && buffer.get(to - 1) == ' ') {
+            to--;
+        }
+        if (from < to && buffer.get(from) == '+') {
+            from++;
+        }
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Collects the options of a read or write request or an OACK packet, for code that keeps them.
+     *
+     * @return the options in the order they were sent, with names in lower case
+     */
+    public Map<String, String> options() {
+        Map<String, String> options = new LinkedHashMap<>();
+        nextOption = -1;
+        while (nextOption()) {
+            options.put(optionName(), optionValue());
+        }
+        return options;
+    }
+
+    /**
+     * Finds the ends of the file name and mode of a request, if not already done. A string missing
+     * its terminator runs to the end of the packet.
+     */
+    private void locateRequest() {
+        if (fileNameEnd == -1) {
+            fileNameEnd = terminator(Math.min(start + 2, end));
+            modeEnd = terminator(Math.min(fileNameEnd + 1, end));
+        }
+    }
+
+    /**
+     * Returns the index of the null byte ending the string that starts at the given index.
+     *
+     * @param from the index of the first byte of the string
+     * @return the index of the null byte, or the end of the packet if there is none
+     */
+    private int terminator(int from) {
+        int index = from;
+        while (index < end && buffer.get(index) != 0) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Decodes the ASCII string between two indexes of the packet.
+     *
+     * @param from the index of the first byte
+     * @param to   the index just past the last byte
+     * @return the string
+     */
+    private String string(int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, Math.max(to - from, 0), StandardCharsets.US_ASCII);
+        }
+        byte[] bytes = new byte[Math.max(to - from, 0)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
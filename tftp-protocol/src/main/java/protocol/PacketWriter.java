@@ -0,0 +1,227 @@
+package protocol;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static protocol.Tftp.OP_ACK;
+import static protocol.Tftp.OP_ERROR;
+import static protocol.Tftp.OP_OACK;
+
+/**
+ * A flyweight that writes packets straight into a buffer. It is pointed at a buffer with
+ * {@link #wrap}, after which a packet is either written in one call ({@link #ack}, {@link #error}) or
+ * started with {@link #request} or {@link #oack}, given its options, and completed with
+ * {@link #finish}. Strings are written as ASCII one character at a time and numbers digit by digit,
+ * so nothing is allocated. Every completed packet is returned as the flipped buffer, ready to be sent.
+ */
+public final class PacketWriter {
+    private ByteBuffer buffer;
+    // The array last wrapped by wrap(byte[]), and the buffer kept over it
+    private byte[] wrappedArray;
+    private ByteBuffer arrayBuffer;
+
+    /**
+     * Points the writer at a buffer. The packet is written from the start of the buffer.
+     *
+     * @param packet the buffer to write packets into
+     * @return this writer
+     */
+    public PacketWriter wrap(ByteBuffer packet) {
+        buffer = packet;
+        buffer.clear();
+        return this;
+    }
+
+    /**
+     * Points the writer at an array. Wrapping the same array again reuses the buffer over it.
+     *
+     * @param packet the array to write packets into
+     * @return this writer
+     */
+    public PacketWriter wrap(byte[] packet) {
+        if (packet != wrappedArray) {
+            wrappedArray = packet;
+            arrayBuffer = ByteBuffer.wrap(packet);
+        }
+        return wrap(arrayBuffer);
+    }
+
+    /**
+     * Writes an ACK packet.
+     *
+     * @param block the block number to acknowledge, of which the low 16 bits are sent
+     * @return the buffer holding the packet, ready to be sent
+     */
+    public ByteBuffer ack(int block) {
+        buffer.clear();
+        buffer.putShort(OP_ACK).putShort((short) block);
+        return buffer.flip();
+    }
+
+    /**
+     * Writes an ERROR packet.
+     *
+     * @param errorCode the TFTP error code
+     * @param message   the error message, which should be ASCII
+     * @return the buffer holding the packet, ready to be sent
+     */
+    public ByteBuffer error(int errorCode, String message) {
+        buffer.clear();
+        buffer.putShort(OP_ERROR).putShort((short) errorCode);
+        putString(message);
+        return buffer.flip();
+    }
+
+    /**
+     * Starts a read or write request. Options may follow before the request is finished.
+     *
+     * @param opcode   {@link Tftp#OP_RRQ} or {@link Tftp#OP_WRQ}
+     * @param fileName the name of the file
+     * @param mode     the transfer mode, such as "octet"
+     * @return this writer
+     */
+    public PacketWriter request(byte opcode, String fileName, String mode) {
+        buffer.clear();
+        buffer.putShort(opcode);
+        putString(fileName);
+        putString(mode);
+        return this;
+    }
+
+    /**
+     * Starts an option acknowledgment (OACK) packet, to which the accepted options are added.
+     *
+     * @return this writer
+     */
+    public PacketWriter oack() {
+        buffer.clear();
+        buffer.putShort(OP_OACK);
+        return this;
+    }
+
+    /**
+     * Adds an option to the request or OACK packet being written.
+     *
+     * @param name  the name of the option
+     * @param value the value of the option
+     * @return this writer
+     */
+    public PacketWriter option(String name, String value) {
+        putString(name);
+        putString(value);
+        return this;
+    }
+
+    /**
+     * Adds an option with a numeric value to the request or OACK packet being written.
+     *
+     * @param name  the name of the option
+     * @param value the value of the option, not negative
+     * @return this writer
+     * @throws BufferOverflowException if the option does not fit in the buffer, like any other packet that is too large
+     */
+    public PacketWriter option(String name, long value) {
+        putString(name);
+        // Write the digits from the last one back, once the number of digits is known
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        if (end >= buffer.limit()) {
+            throw new BufferOverflowException();
+        }
+        long rest = value;
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + rest % 10));
+            rest /= 10;
+        }
+        buffer.position(end);
+        buffer.put((byte) 0);
+        return this;
+    }
+
+    /**
+     * Adds options to the request or OACK packet being written, in the map's order.
+     *
+     * @param options the option names and values
+     * @return this writer
+     */
+    public PacketWriter options(Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            option(option.getKey(), option.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Ends the options of the request or OACK packet being written with an empty name, for streams
+     * such as TCP connections, where the end of a packet does not end the list.
+     *
+     * @return this writer
+     */
+    public PacketWriter endOptions() {
+        buffer.put((byte) 0);
+        return this;
+    }
+
+    /**
+     * Completes the request or OACK packet being written.
+     *
+     * @return the buffer holding the packet, ready to be sent
+     */
+    public ByteBuffer finish() {
+        return buffer.flip();
+    }
+
+    /**
+     * Writes the opcode and block number in front of the data of a DATA packet, or the whole of an
+     * ACK packet, at the start of a buffer without moving its position.
+     *
+     * @param packet the buffer holding the packet
+     * @param opcode the opcode of the packet
+     * @param block  the block number, of which the low 16 bits are sent
+     */
+    public static void putHeader(ByteBuffer packet, byte opcode, int block) {
+        packet.putShort(0, opcode).putShort(2, (short) block);
+    }
+
+    /**
+     * Writes the opcode and block number at the start of an array.
+     *
+     * @param packet the array holding the packet
+     * @param opcode the opcode of the packet
+     * @param block  the block number, of which the low 16 bits are sent
+     */
+    public static void putHeader(byte[] packet, byte opcode, int block) {
+        packet[0] = 0;
+        packet[1] = opcode;
+        packet[2] = (byte) (block >> 8);
+        packet[3] = (byte) block;
+    }
+
+    /**
+     * Creates an ERROR packet in a buffer of its own, for errors sent outside the hot path.
+     *
+     * @param errorCode the TFTP error code
+     * @param message   the error message, which should be ASCII
+     * @return a buffer holding the packet, ready to be sent
+     */
+    public static ByteBuffer errorPacket(int errorCode, String message) {
+        return new PacketWriter().wrap(ByteBuffer.allocate(Tftp.HEADER_SIZE + message.length() + 1)).error(errorCode, message);
+    }
+
+    /**
+     * Writes a null terminated string, replacing characters outside ASCII with '?'.
+     *
+     * @param value the string to write
+     */
+    private void putString(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+        buffer.put((byte) 0);
+    }
+}
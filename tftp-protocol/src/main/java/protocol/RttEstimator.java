@@ -0,0 +1,82 @@
+package protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the round-trip time of a transfer and derives its retransmission timeout (RTO) the way
+ * RFC 6298 does for TCP: a smoothed RTT and RTT variance updated from each sample, and an RTO that
+ * doubles on every expiry until a fresh sample arrives. Samples must only be taken from packets
+ * that were not retransmitted (Karn's algorithm). A timeout negotiated with the RFC 2349 timeout
+ * option is used as is instead. Used by the UDP server and client.
+ */
+public class RttEstimator {
+    public static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    public static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+    public static final long MAX_RTO = TimeUnit.SECONDS.toNanos(10);
+    // The timer granularity; the RTT variance term never falls below it
+    private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private long smoothedRtt;
+    private long rttVariance;
+    private long rto = INITIAL_RTO;
+    private boolean fixed;
+
+    /**
+     * Updates the estimate with a new round-trip time sample.
+     *
+     * @param rtt the measured round-trip time in nanoseconds
+     */
+    public void addSample(long rtt) {
+        if (fixed) {
+            return;
+        }
+        if (smoothedRtt == 0) {
+            // The first sample sets the estimate directly
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+            rttVariance = rttVariance - (rttVariance >> 2) + (Math.abs(smoothedRtt - rtt) >> 2);
+            smoothedRtt = smoothedRtt - (smoothedRtt >> 3) + (rtt >> 3);
+        }
+        rto = clamp(smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance));
+    }
+
+    /**
+     * Doubles the retransmission timeout after it expired, up to the maximum.
+     */
+    public void backoff() {
+        if (!fixed) {
+            rto = clamp(rto * 2);
+        }
+    }
+
+    /**
+     * Replaces the adaptive timeout with a fixed one that neither samples nor backoff change.
+     *
+     * @param timeout the retransmission timeout in nanoseconds
+     */
+    public void setFixedTimeout(long timeout) {
+        rto = timeout;
+        fixed = true;
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return the retransmission timeout in nanoseconds
+     */
+    public long timeout() {
+        return rto;
+    }
+
+    /**
+     * Keeps a timeout within the minimum and maximum RTO.
+     *
+     * @param timeout the timeout in nanoseconds
+     * @return the timeout, clamped to the allowed range
+     */
+    private static long clamp(long timeout) {
+        return Math.max(MIN_RTO, Math.min(timeout, MAX_RTO));
+    }
+}
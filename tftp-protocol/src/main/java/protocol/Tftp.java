@@ -0,0 +1,29 @@
+package protocol;
+
+/**
+ * The constants of the TFTP protocol shared by the clients and servers: opcodes (RFC 1350, RFC 2347),
+ * error codes, and the sizes of packets and blocks.
+ */
+public final class Tftp {
+    public static final byte OP_RRQ = 1;
+    public static final byte OP_WRQ = 2;
+    public static final byte OP_DATA = 3;
+    public static final byte OP_ACK = 4;
+    public static final byte OP_ERROR = 5;
+    public static final byte OP_OACK = 6;
+    public static final short ERROR_NOT_DEFINED = 0;
+    public static final short ERROR_FILE_NOT_FOUND = 1;
+    public static final short ERROR_ACCESS_VIOLATION = 2;
+    public static final short ERROR_DISK_FULL = 3;
+    public static final short ERROR_ILLEGAL_OPERATION = 4;
+    public static final short ERROR_UNKNOWN_TID = 5;
+    // The opcode and block number in front of the data of a DATA packet, and the whole of an ACK packet
+    public static final int HEADER_SIZE = 4;
+    // Block size of RFC 1350, used unless the blksize option (RFC 2348) agrees on another between the limits
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+
+    private Tftp() {
+    }
+}
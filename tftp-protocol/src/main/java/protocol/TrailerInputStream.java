@@ -0,0 +1,108 @@
+package protocol;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * An input stream that passes on everything but the last bytes of the stream it wraps, which it holds
+ * back as the trailer. It reads ahead of its reader by the size of the trailer, so a reader that
+ * cannot tell where the data ends, such as one reading the final DATA block of a TCP connection up
+ * to the end of the stream, never sees the trailer, and finds it with {@link #trailer} afterwards.
+ */
+public final class TrailerInputStream extends FilterInputStream {
+    private static final int READ_SIZE = 8192;
+
+    private final int trailerSize;
+    // Bytes read from the wrapped stream and not yet passed on lie between start and end
+    private final byte[] buffer;
+    private int start;
+    private int end;
+    private boolean ended;
+
+    /**
+     * Wraps a stream.
+     *
+     * @param in          the stream to read
+     * @param trailerSize the number of bytes at the end of the stream to hold back
+     */
+    public TrailerInputStream(InputStream in, int trailerSize) {
+        super(in);
+        this.trailerSize = trailerSize;
+        buffer = new byte[trailerSize + READ_SIZE];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (end - start <= trailerSize) {
+            if (ended) {
+                return -1;
+            }
+            fill();
+        }
+        int count = Math.min(len, end - start - trailerSize);
+        System.arraycopy(buffer, start, b, off, count);
+        start += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.max(end - start - trailerSize, 0);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return read(new byte[(int) Math.min(n, READ_SIZE)]);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads the wrapped stream to its end and returns the bytes held back.
+     *
+     * @return the trailer, or null if the stream ended too soon or more data follows what was read
+     * @throws IOException if an error occurs while reading the wrapped stream
+     */
+    public byte[] trailer() throws IOException {
+        while (!ended && end - start <= trailerSize) {
+            fill();
+        }
+        if (!ended || end - start != trailerSize) {
+            return null;
+        }
+        return Arrays.copyOfRange(buffer, start, end);
+    }
+
+    /**
+     * Reads more of the wrapped stream, first moving the bytes not passed on to the start of the buffer.
+     *
+     * @throws IOException if an error occurs while reading the wrapped stream
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count == -1) {
+            ended = true;
+        } else {
+            end += count;
+        }
+    }
+}
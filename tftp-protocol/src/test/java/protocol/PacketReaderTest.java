@@ -0,0 +1,215 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static protocol.Tftp.OP_DATA;
+import static protocol.Tftp.OP_ERROR;
+import static protocol.Tftp.OP_OACK;
+import static protocol.Tftp.OP_RRQ;
+
+/**
+ * Tests that the reader copes with whatever arrives off the network: packets cut short, strings
+ * missing their terminator and option values that are not numbers or do not fit in a long.
+ */
+class PacketReaderTest {
+
+    /**
+     * Builds a packet from an opcode followed by raw bytes given as a string, where {@code \0} stands
+     * for the null bytes.
+     *
+     * @param opcode the opcode
+     * @param rest   the bytes after the opcode
+     * @return the packet
+     */
+    private static byte[] packet(byte opcode, String rest) {
+        byte[] body = rest.getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = new byte[2 + body.length];
+        packet[1] = opcode;
+        System.arraycopy(body, 0, packet, 2, body.length);
+        return packet;
+    }
+
+    /**
+     * Reads the only option of an OACK packet holding the given value and parses it as a number.
+     *
+     * @param value the value of the option
+     * @return what {@link PacketReader#optionValueAsLong()} makes of it
+     */
+    private static long parse(String value) {
+        byte[] oack = packet(OP_OACK, "blksize\0" + value + "\0");
+        PacketReader reader = new PacketReader().wrap(oack, oack.length);
+        assertTrue(reader.nextOption());
+        return reader.optionValueAsLong();
+    }
+
+    @Test
+    void packetsTooShortForTheirFieldsReadAsMissing() {
+        PacketReader reader = new PacketReader();
+        assertEquals(-1, reader.wrap(new byte[0], 0).opcode());
+        assertEquals(-1, reader.wrap(new byte[]{0}, 1).opcode());
+        reader.wrap(new byte[]{0, OP_DATA, 0}, 3);
+        assertEquals(OP_DATA, reader.opcode());
+        assertEquals(-1, reader.block());
+        assertEquals(0, reader.dataLength());
+        reader.wrap(new byte[]{0, OP_ERROR}, 2);
+        assertEquals(-1, reader.errorCode());
+        assertEquals("", reader.errorMessage());
+    }
+
+    @Test
+    void readsTheDataOfADataPacket() {
+        byte[] data = {0, OP_DATA, (byte) 0xFF, (byte) 0xFF, 1, 2, 3};
+        PacketReader reader = new PacketReader().wrap(data, data.length);
+        assertEquals(65535, reader.block());
+        assertEquals(4, reader.dataOffset());
+        assertEquals(3, reader.dataLength());
+    }
+
+    @Test
+    void readsOnlyTheLengthGivenWhenAnArrayIsWrappedAgain() {
+        byte[] buffer = new byte[16];
+        PacketWriter.putHeader(buffer, OP_DATA, 7);
+        PacketReader reader = new PacketReader();
+        assertEquals(12, reader.wrap(buffer, 16).dataLength());
+        assertEquals(0, reader.wrap(buffer, 4).dataLength());
+        assertEquals(-1, reader.wrap(buffer, 3).block());
+    }
+
+    @Test
+    void readsAPacketFromTheBufferPosition() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+        buffer.put(new byte[]{9, 9, 9}).put(packet(OP_ERROR, "\0\1File not found\0")).flip().position(3);
+        PacketReader reader = new PacketReader().wrap(buffer);
+        assertEquals(OP_ERROR, reader.opcode());
+        assertEquals(1, reader.errorCode());
+        assertEquals("File not found", reader.errorMessage());
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    void errorMessageWithoutTerminatorRunsToTheEndOfThePacket() {
+        byte[] error = packet(OP_ERROR, "\0\2Access");
+        assertEquals("Access", new PacketReader().wrap(error, error.length).errorMessage());
+    }
+
+    @Test
+    void requestWithoutTerminatorsEndsAtThePacket() {
+        byte[] request = packet(OP_RRQ, "file.bin\0oct");
+        PacketReader reader = new PacketReader().wrap(request, request.length);
+        assertEquals("file.bin", reader.fileName());
+        assertEquals("oct", reader.mode());
+        assertFalse(reader.nextOption());
+
+        byte[] nameOnly = packet(OP_RRQ, "file.bin");
+        reader.wrap(nameOnly, nameOnly.length);
+        assertEquals("file.bin", reader.fileName());
+        assertEquals("", reader.mode());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void baseNameDropsAnyDirectory() {
+        byte[] request = packet(OP_RRQ, "../secret/dir\\passwd\0octet\0");
+        PacketReader reader = new PacketReader().wrap(request, request.length);
+        assertEquals("../secret/dir\\passwd", reader.fileName());
+        assertEquals("passwd", reader.baseName());
+    }
+
+    @Test
+    void cursorWalksTheOptionsInOrder() {
+        byte[] request = packet(OP_RRQ, "f\0octet\0BlkSize\0001428\0tsize\0000\0");
+        PacketReader reader = new PacketReader().wrap(request, request.length);
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("blksize"));
+        assertFalse(reader.optionIs("blksiz"));
+        assertEquals("blksize", reader.optionName());
+        assertEquals("1428", reader.optionValue());
+        assertEquals(1428, reader.optionValueAsLong());
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("tsize"));
+        assertEquals(0, reader.optionValueAsLong());
+        assertFalse(reader.nextOption());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void anOptionWithoutAValueEndsTheList() {
+        byte[] oack = packet(OP_OACK, "timeout\0003\0\0tsize\0001\0");
+        PacketReader reader = new PacketReader().wrap(oack, oack.length);
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("timeout"));
+        assertFalse(reader.nextOption());
+
+        byte[] dangling = packet(OP_OACK, "timeout\0003\0tsize");
+        reader.wrap(dangling, dangling.length);
+        assertTrue(reader.nextOption());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void aValueWithoutTerminatorRunsToTheEndOfThePacket() {
+        byte[] oack = packet(OP_OACK, "tsize\00012345");
+        PacketReader reader = new PacketReader().wrap(oack, oack.length);
+        assertTrue(reader.nextOption());
+        assertEquals("12345", reader.optionValue());
+        assertEquals(12345, reader.optionValueAsLong());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void optionsCollectsEveryOptionFromTheStart() {
+        byte[] oack = packet(OP_OACK, "BLKSIZE\000512\0windowsize\0004\0");
+        PacketReader reader = new PacketReader().wrap(oack, oack.length);
+        assertTrue(reader.nextOption());
+        assertTrue(reader.nextOption());
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("blksize", "512");
+        expected.put("windowsize", "4");
+        assertEquals(expected, reader.options());
+    }
+
+    @Test
+    void wrappingResetsTheCursor() {
+        byte[] oack = packet(OP_OACK, "blksize\000512\0");
+        PacketReader reader = new PacketReader().wrap(oack, oack.length);
+        assertTrue(reader.nextOption());
+        assertFalse(reader.nextOption());
+        reader.wrap(oack, oack.length);
+        assertTrue(reader.nextOption());
+        assertEquals(512, reader.optionValueAsLong());
+    }
+
+    @Test
+    void optionValueAsLongAcceptsPlainNumbers() {
+        assertEquals(0, parse("0"));
+        assertEquals(512, parse(" 512 "));
+        assertEquals(7, parse("+7"));
+        assertEquals(Long.MAX_VALUE, parse("9223372036854775807"));
+    }
+
+    @Test
+    void optionValueAsLongRejectsAnythingElse() {
+        assertEquals(-1, parse(""));
+        assertEquals(-1, parse("   "));
+        assertEquals(-1, parse("+"));
+        assertEquals(-1, parse("-1"));
+        assertEquals(-1, parse("12a"));
+        assertEquals(-1, parse("1 2"));
+        assertEquals(-1, parse("0x10"));
+    }
+
+    @Test
+    void optionValueAsLongRejectsOverlongValues() {
+        assertEquals(-1, parse("9223372036854775808"));
+        assertEquals(-1, parse("99999999999999999999"));
+        assertEquals(-1, parse("1" + "0".repeat(400)));
+    }
+}
@@ -0,0 +1,162 @@
+package protocol;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static protocol.Tftp.OP_ACK;
+import static protocol.Tftp.OP_DATA;
+import static protocol.Tftp.OP_ERROR;
+import static protocol.Tftp.OP_OACK;
+import static protocol.Tftp.OP_WRQ;
+
+/**
+ * Tests that every packet the writer produces reads back the same through {@link PacketReader}, and
+ * that a packet too large for its buffer is refused rather than cut short.
+ */
+class PacketWriterTest {
+
+    @Test
+    void ackReadsBack() {
+        PacketWriter writer = new PacketWriter().wrap(new byte[4]);
+        ByteBuffer ack = writer.ack(65535);
+        assertEquals(4, ack.remaining());
+        PacketReader reader = new PacketReader().wrap(ack);
+        assertEquals(OP_ACK, reader.opcode());
+        assertEquals(65535, reader.block());
+        // Only the low 16 bits of the block number are sent
+        assertEquals(0, reader.wrap(writer.ack(65536)).block());
+    }
+
+    @Test
+    void errorReadsBack() {
+        ByteBuffer error = new PacketWriter().wrap(ByteBuffer.allocate(64)).error(Tftp.ERROR_DISK_FULL, "Disk full");
+        PacketReader reader = new PacketReader().wrap(error);
+        assertEquals(OP_ERROR, reader.opcode());
+        assertEquals(Tftp.ERROR_DISK_FULL, reader.errorCode());
+        assertEquals("Disk full", reader.errorMessage());
+        assertEquals(4 + "Disk full".length() + 1, error.remaining());
+    }
+
+    @Test
+    void errorPacketReadsBack() {
+        ByteBuffer error = PacketWriter.errorPacket(Tftp.ERROR_UNKNOWN_TID, "Unknown transfer ID");
+        assertEquals(error.capacity(), error.remaining());
+        PacketReader reader = new PacketReader().wrap(error);
+        assertEquals(Tftp.ERROR_UNKNOWN_TID, reader.errorCode());
+        assertEquals("Unknown transfer ID", reader.errorMessage());
+    }
+
+    @Test
+    void charactersOutsideAsciiAreReplaced() {
+        ByteBuffer error = new PacketWriter().wrap(ByteBuffer.allocate(32)).error(0, "café ☃");
+        assertEquals("caf? ?", new PacketReader().wrap(error).errorMessage());
+    }
+
+    @Test
+    void requestWithOptionsReadsBack() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("blksize", "1428");
+        options.put(Checksums.OPTION, Checksums.CRC32C);
+        ByteBuffer request = new PacketWriter().wrap(new byte[512])
+                .request(OP_WRQ, "dir/file.bin", "octet")
+                .options(options)
+                .option("tsize", 123456789012L)
+                .option("offset", 0)
+                .finish();
+        PacketReader reader = new PacketReader().wrap(request);
+        assertEquals(OP_WRQ, reader.opcode());
+        assertEquals("dir/file.bin", reader.fileName());
+        assertEquals("file.bin", reader.baseName());
+        assertEquals("octet", reader.mode());
+        Map<String, String> expected = new LinkedHashMap<>(options);
+        expected.put("tsize", "123456789012");
+        expected.put("offset", "0");
+        assertEquals(expected, reader.options());
+    }
+
+    @Test
+    void numericOptionsReadBackAsNumbers() {
+        long[] values = {0, 9, 10, 65535, Long.MAX_VALUE};
+        PacketWriter writer = new PacketWriter().wrap(new byte[128]);
+        PacketReader reader = new PacketReader();
+        for (long value : values) {
+            reader.wrap(writer.oack().option("tsize", value).finish());
+            assertTrue(reader.nextOption());
+            assertEquals(Long.toString(value), reader.optionValue());
+            assertEquals(value, reader.optionValueAsLong());
+            assertFalse(reader.nextOption());
+        }
+    }
+
+    @Test
+    void oackReadsBack() {
+        ByteBuffer oack = new PacketWriter().wrap(ByteBuffer.allocateDirect(64))
+                .oack()
+                .option("windowsize", 8)
+                .option("timeout", "3")
+                .finish();
+        PacketReader reader = new PacketReader().wrap(oack);
+        assertEquals(OP_OACK, reader.opcode());
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("windowsize"));
+        assertEquals(8, reader.optionValueAsLong());
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("timeout"));
+        assertEquals(3, reader.optionValueAsLong());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void endOptionsStopsTheReaderBeforeWhatFollows() {
+        byte[] packet = new byte[64];
+        ByteBuffer oack = new PacketWriter().wrap(packet).oack().option("comp", "deflate").endOptions().finish();
+        int length = oack.remaining();
+        // On a stream the next packet follows straight after
+        packet[length] = 0;
+        packet[length + 1] = OP_DATA;
+        PacketReader reader = new PacketReader().wrap(packet, length + 2);
+        assertTrue(reader.nextOption());
+        assertEquals("deflate", reader.optionValue());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void rewrappingStartsANewPacket() {
+        byte[] packet = new byte[64];
+        PacketWriter writer = new PacketWriter().wrap(packet);
+        writer.error(0, "a long message that is overwritten");
+        ByteBuffer ack = writer.wrap(packet).ack(1);
+        assertEquals(4, ack.remaining());
+    }
+
+    @Test
+    void putHeaderWritesTheSameBytesForArraysAndBuffers() {
+        byte[] array = new byte[6];
+        PacketWriter.putHeader(array, OP_DATA, 0x1234);
+        ByteBuffer buffer = ByteBuffer.allocate(6).position(5);
+        PacketWriter.putHeader(buffer, OP_DATA, 0x1234);
+        assertArrayEquals(array, buffer.array());
+        assertEquals(5, buffer.position());
+        PacketReader reader = new PacketReader().wrap(array, array.length);
+        assertEquals(OP_DATA, reader.opcode());
+        assertEquals(0x1234, reader.block());
+        assertEquals(2, reader.dataLength());
+    }
+
+    @Test
+    void packetsTooLargeForTheBufferAreRefused() {
+        PacketWriter writer = new PacketWriter().wrap(new byte[16]);
+        assertThrows(BufferOverflowException.class, () -> writer.request(OP_WRQ, "a-very-long-file-name.bin", "octet"));
+        assertThrows(BufferOverflowException.class, () -> writer.error(0, "a message longer than the buffer"));
+        assertThrows(BufferOverflowException.class, () -> writer.oack().option("tsize", Long.MAX_VALUE));
+    }
+}